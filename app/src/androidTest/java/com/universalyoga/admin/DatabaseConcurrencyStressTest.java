@@ -0,0 +1,139 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs parallel readers against a bulk writer on one shared, on-disk DatabaseHelper.
+ * The helper has its own database file, created fresh for each test and deleted afterwards, so the app's
+ * database and its process-wide instance are never touched. WAL needs a file, so an in-memory database won't do.
+ * With write-ahead logging the readers must neither fail with "database is locked" nor hit a closed
+ * connection, and they must keep making progress while the writer holds its transactions.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseConcurrencyStressTest {
+
+    private static final String DATABASE_NAME = "stress-test.db";
+    private static final int COURSES = 50;
+    private static final int WRITE_BATCHES = 20;
+    private static final int BATCH_SIZE = 500;
+    private static final int READERS = 4;
+
+    private Context context;
+    private DatabaseHelper dbHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        dbHelper = new DatabaseHelper(context, DATABASE_NAME);
+
+        List<Course> courses = new ArrayList<>();
+        for (int id = 1; id <= COURSES; id++) {
+            courses.add(new Course(id, "Course " + id, "Monday", String.format("%02d:00", id % 24), 20, 60, 10.0,
+                    "Flow Yoga", "Description " + id, "Beginner", false, null));
+        }
+        dbHelper.bulkUpsertCourses(courses);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void writeAheadLogging_isEnabled() {
+        assertTrue(dbHelper.getReadableDatabase().isWriteAheadLoggingEnabled());
+    }
+
+    @Test
+    public void parallelReaders_duringBulkWrites_neverFail() throws Exception {
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger readsDuringWrites = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(READERS + 1);
+
+        Thread writer = new Thread(() -> {
+            try {
+                int id = 1;
+                for (int batch = 0; batch < WRITE_BATCHES; batch++) {
+                    List<ClassInstance> instances = new ArrayList<>(BATCH_SIZE);
+                    for (int i = 0; i < BATCH_SIZE; i++, id++) {
+                        instances.add(new ClassInstance(id, 1 + id % COURSES, new Date(1_700_000_000_000L + id * 60_000L),
+                                "Teacher " + (id % 40), "Comment " + id, 10, false));
+                    }
+                    dbHelper.bulkUpsertClassInstances(instances);
+                }
+            } catch (Throwable t) {
+                errors.add(t);
+            } finally {
+                writing.set(false);
+                done.countDown();
+            }
+        }, "stress-writer");
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            readers.add(new Thread(() -> {
+                try {
+                    int round = 0;
+                    while (writing.get()) {
+                        int courseId = 1 + (reader + round) % COURSES;
+                        dbHelper.getCoursesPage(null, 0, 20);
+                        List<ClassInstance> page = dbHelper.getClassInstanceListRowsPage(courseId, null, 50);
+                        if (!page.isEmpty()) {
+                            dbHelper.getClassInstanceListRowsPage(courseId, page.get(page.size() - 1), 50);
+                            dbHelper.getClassInstance(page.get(0).getId());
+                        }
+                        dbHelper.searchClassInstances("Teacher " + round % 40, 20);
+                        readsDuringWrites.incrementAndGet();
+                        round++;
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-reader-" + r));
+        }
+
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        writer.start();
+        assertTrue("Stress run did not finish in time", done.await(2, TimeUnit.MINUTES));
+
+        assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+        assertTrue("Readers made no progress while the writer was running", readsDuringWrites.get() > 0);
+        assertEquals(WRITE_BATCHES * BATCH_SIZE, countInstances());
+    }
+
+    private int countInstances() {
+        int total = 0;
+        for (int courseId = 1; courseId <= COURSES; courseId++) {
+            total += dbHelper.getClassInstancesForCourse(courseId).size();
+        }
+        return total;
+    }
+}
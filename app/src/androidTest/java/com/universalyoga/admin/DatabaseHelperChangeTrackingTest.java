@@ -0,0 +1,137 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Dirty tracking: which rows an upload picks up, which fields it sends, and when rows become clean.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperChangeTrackingTest {
+
+    private DatabaseHelper dbHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void addCourse_isDirtyAndNeverSynced() {
+        dbHelper.addCourse(course(0, 10.0));
+
+        DirtyRow<Course> dirty = onlyDirtyCourse();
+        assertFalse(dirty.isEverSynced());
+        assertEquals(ChangedFields.ALL_COURSE, dirty.getDirtyFields());
+    }
+
+    @Test
+    public void markSynced_cleansTheRow() {
+        dbHelper.addCourse(course(0, 10.0));
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+
+        assertTrue(dbHelper.getDirtyCoursesAfterId(0, 10).isEmpty());
+    }
+
+    @Test
+    public void updateCourse_marksOnlyTheChangedField() {
+        Course course = course(0, 10.0);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+
+        dbHelper.updateCourse(course(course.getId(), 12.0));
+
+        DirtyRow<Course> dirty = onlyDirtyCourse();
+        assertTrue(dirty.isEverSynced());
+        assertEquals(ChangedFields.COURSE_PRICE, dirty.getDirtyFields());
+    }
+
+    @Test
+    public void updateCourse_withoutChanges_staysClean() {
+        Course course = course(0, 10.0);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+
+        assertEquals(1, dbHelper.updateCourse(course(course.getId(), 10.0)));
+        assertTrue(dbHelper.getDirtyCoursesAfterId(0, 10).isEmpty());
+    }
+
+    @Test
+    public void updateCourse_backToSyncedValues_isClean() {
+        Course course = course(0, 10.0);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+
+        dbHelper.updateCourse(course(course.getId(), 12.0));
+        dbHelper.updateCourse(course(course.getId(), 10.0));
+
+        assertTrue(dbHelper.getDirtyCoursesAfterId(0, 10).isEmpty());
+    }
+
+    @Test
+    public void editDuringUpload_staysDirty() {
+        Course course = course(0, 10.0);
+        dbHelper.addCourse(course);
+        List<DirtyRow<Course>> uploading = dbHelper.getDirtyCoursesAfterId(0, 10);
+
+        dbHelper.updateCourse(course(course.getId(), 12.0));
+        dbHelper.markCoursesSynced(uploading);
+
+        DirtyRow<Course> dirty = onlyDirtyCourse();
+        assertEquals(12.0, dirty.getRow().getPrice(), 0);
+        assertTrue(dirty.isEverSynced());
+    }
+
+    @Test
+    public void pulledRows_areClean() {
+        dbHelper.bulkUpsertCourses(Collections.singletonList(course(7, 10.0)));
+
+        assertTrue(dbHelper.getDirtyCoursesAfterId(0, 10).isEmpty());
+        dbHelper.updateCourse(course(7, 11.0));
+        assertEquals(ChangedFields.COURSE_PRICE, onlyDirtyCourse().getDirtyFields());
+    }
+
+    @Test
+    public void courseWithoutName_isStoredUnderItsType_andTheCallersCourseIsLeftAlone() {
+        Course course = course(0, 10.0);
+        course.setName(null);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+
+        assertNull(course.getName());
+        assertEquals("Flow Yoga", dbHelper.getCourse(course.getId()).getName());
+        // Still no name: the same as stored, so nothing to upload
+        assertEquals(1, dbHelper.updateCourse(course));
+        assertNull(course.getName());
+        assertTrue(dbHelper.getDirtyCoursesAfterId(0, 10).isEmpty());
+    }
+
+    private DirtyRow<Course> onlyDirtyCourse() {
+        List<DirtyRow<Course>> dirty = dbHelper.getDirtyCoursesAfterId(0, 10);
+        assertEquals(1, dirty.size());
+        return dirty.get(0);
+    }
+
+    private static Course course(long id, double price) {
+        return new Course(id, "Course", "Monday", "10:00", 20, 60, price,
+                "Flow Yoga", null, "Beginner", false, null);
+    }
+}
@@ -0,0 +1,96 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes tell the InvalidationTracker which rows they changed, once they are committed, and only if they changed any.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperInvalidationTest {
+
+    private static final String COURSES = DatabaseHelper.TABLE_COURSES;
+    private static final String INSTANCES = DatabaseHelper.TABLE_CLASS_INSTANCES;
+
+    private DatabaseHelper dbHelper;
+    private final List<InvalidationTracker.Invalidation> courseChanges = new ArrayList<>();
+    private final List<InvalidationTracker.Invalidation> instanceChanges = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+        dbHelper.getInvalidationTracker().addObserver(courseChanges::add, COURSES);
+        dbHelper.getInvalidationTracker().addObserver(instanceChanges::add, INSTANCES);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void updateCourse_notifiesItsRowOnlyWhenSomethingChanged() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        courseChanges.clear();
+
+        dbHelper.updateCourse(course);
+        assertTrue(courseChanges.isEmpty());
+
+        course.setPrice(12.0);
+        dbHelper.updateCourse(course);
+        assertEquals(1, courseChanges.size());
+        assertTrue(courseChanges.get(0).isRowChanged(COURSES, course.getId()));
+        assertTrue(instanceChanges.isEmpty());
+    }
+
+    @Test
+    public void pull_notifiesOnceAfterItsTransaction_andNotForSkippedDocuments() {
+        Course course = course(10.0);
+        course.setId(5);
+        PulledChanges<Course> first = new PulledChanges<>(0);
+        first.addChanged(course);
+        dbHelper.applyPulledCourses(first, FirestoreSyncManager.COLLECTION_COURSES);
+        // One notification for the nested upsert and the page around it
+        assertEquals(1, courseChanges.size());
+
+        PulledChanges<Course> again = new PulledChanges<>(0);
+        again.addChanged(course);
+        dbHelper.applyPulledCourses(again, FirestoreSyncManager.COLLECTION_COURSES);
+        assertEquals(1, courseChanges.size());
+    }
+
+    @Test
+    public void deleteCourse_notifiesTheCourseAndItsInstances() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        ClassInstance instance = new ClassInstance(course.getId(), new Date(1_700_000_000_000L), "Ann");
+        dbHelper.addClassInstance(instance);
+        courseChanges.clear();
+        instanceChanges.clear();
+
+        dbHelper.deleteCourse(course.getId());
+
+        assertTrue(courseChanges.get(0).isRowChanged(COURSES, course.getId()));
+        assertTrue(instanceChanges.get(0).isRowChanged(INSTANCES, instance.getId()));
+    }
+
+    private static Course course(double price) {
+        return new Course(0, "Course", "Monday", "10:00", 20, 60, price,
+                "Flow Yoga", null, "Beginner", false, null);
+    }
+}
@@ -0,0 +1,164 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The outbox: one entry per changed document, written with the change, and retried with backoff.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperOutboxTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    private DatabaseHelper dbHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void addCourse_enqueuesAnUpsert() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+
+        OutboxEntry entry = onlyDueEntry();
+        assertEquals(FirestoreSyncManager.COLLECTION_COURSES, entry.getCollection());
+        assertEquals(String.valueOf(course.getId()), entry.getDocumentId());
+        assertEquals(OutboxEntry.Operation.UPSERT, entry.getOperation());
+    }
+
+    @Test
+    public void repeatedChanges_coalesceIntoOneEntry() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        dbHelper.updateCourse(withPrice(course, 11.0));
+        dbHelper.updateCourse(withPrice(course, 12.0));
+
+        assertEquals(1, dbHelper.getOutboxDepth());
+    }
+
+    @Test
+    public void delete_replacesThePendingUpsert() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+        course.setPrice(12.0);
+        dbHelper.updateCourse(course);
+
+        dbHelper.deleteCourse(course.getId());
+
+        assertEquals(OutboxEntry.Operation.DELETE, onlyDueEntry().getOperation());
+    }
+
+    @Test
+    public void deleteOfANeverUploadedRow_dropsItsUpsert_withoutATombstone() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        dbHelper.addClassInstance(new ClassInstance(0, course.getId(), new Date(NOW), "Ann", null, 5, false));
+
+        dbHelper.deleteCourse(course.getId());
+
+        assertTrue(dbHelper.getDueOutboxEntries(0, NOW, 10).isEmpty());
+    }
+
+    @Test
+    public void uploadLandingAfterTheDelete_queuesTheDelete() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        List<DirtyRow<Course>> inFlight = dbHelper.getDirtyCoursesAfterId(0, 10);
+        dbHelper.deleteCourse(course.getId());
+
+        dbHelper.markCoursesSynced(inFlight);
+
+        OutboxEntry entry = onlyDueEntry();
+        assertEquals(OutboxEntry.Operation.DELETE, entry.getOperation());
+        assertEquals(String.valueOf(course.getId()), entry.getDocumentId());
+    }
+
+    @Test
+    public void deleteCourse_enqueuesItsInstances() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        dbHelper.addClassInstance(new ClassInstance(0, course.getId(), new Date(NOW), "Ann", null, 5, false));
+        dbHelper.addClassInstance(new ClassInstance(0, course.getId(), new Date(NOW), "Bob", null, 5, false));
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+        dbHelper.markClassInstancesSynced(dbHelper.getDirtyClassInstancesAfterId(0, 10));
+
+        dbHelper.deleteCourse(course.getId());
+
+        List<OutboxEntry> due = dbHelper.getDueOutboxEntries(0, NOW, 10);
+        assertEquals(3, due.size());
+        for (OutboxEntry entry : due) {
+            assertEquals(OutboxEntry.Operation.DELETE, entry.getOperation());
+        }
+    }
+
+    @Test
+    public void failedEntry_waitsForItsBackoff() {
+        dbHelper.addCourse(course(10.0));
+        Backoff backoff = new Backoff(1_000, 1_000, new Random(1));
+
+        dbHelper.retryOutboxEntriesLater(dbHelper.getDueOutboxEntries(0, NOW, 10), backoff, NOW);
+
+        assertTrue(dbHelper.getDueOutboxEntries(0, NOW, 10).isEmpty());
+        long next = dbHelper.getNextOutboxAttemptAt();
+        assertTrue(next > NOW && next <= NOW + 1_000);
+        assertEquals(1, dbHelper.getDueOutboxEntries(0, next, 10).get(0).getAttempts());
+    }
+
+    @Test
+    public void removingASentEntry_keepsANewerChange() {
+        Course course = course(10.0);
+        dbHelper.addCourse(course);
+        List<OutboxEntry> sent = dbHelper.getDueOutboxEntries(0, NOW, 10);
+
+        dbHelper.updateCourse(withPrice(course, 12.0));
+        dbHelper.removeOutboxEntries(sent);
+
+        assertEquals(1, dbHelper.getOutboxDepth());
+    }
+
+    @Test
+    public void emptyOutbox_hasNoNextAttempt() {
+        assertEquals(0, dbHelper.getOutboxDepth());
+        assertEquals(-1, dbHelper.getNextOutboxAttemptAt());
+    }
+
+    private OutboxEntry onlyDueEntry() {
+        List<OutboxEntry> due = dbHelper.getDueOutboxEntries(0, NOW, 10);
+        assertEquals(1, due.size());
+        return due.get(0);
+    }
+
+    private static Course withPrice(Course course, double price) {
+        Course changed = course(price);
+        changed.setId(course.getId());
+        return changed;
+    }
+
+    private static Course course(double price) {
+        return new Course(0, "Course", "Monday", "10:00", 20, 60, price,
+                "Flow Yoga", null, "Beginner", false, null);
+    }
+}
@@ -0,0 +1,236 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Applying incremental pulls: changed rows are stored, tombstones delete, and the high-water mark moves.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperPullTest {
+
+    private static final String COURSES = FirestoreSyncManager.COLLECTION_COURSES;
+    private static final String INSTANCES = FirestoreSyncManager.COLLECTION_CLASS_INSTANCES;
+
+    private DatabaseHelper dbHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void highWaterMark_isZeroBeforeFirstPull() {
+        assertEquals(0, dbHelper.getHighWaterMark(COURSES));
+    }
+
+    @Test
+    public void applyPulledCourses_storesChangesAndMark() {
+        PulledChanges<Course> changes = new PulledChanges<>(0);
+        changes.addChanged(course(1));
+        changes.addChanged(course(2));
+        changes.observeUpdatedAt(1_700_000_000_000L);
+        changes.setLastPage();
+
+        IngestResult result = dbHelper.applyPulledCourses(changes, COURSES);
+
+        assertEquals(2, result.getInserted());
+        assertNotNull(dbHelper.getCourse(2));
+        assertEquals(1_700_000_000_000L, dbHelper.getHighWaterMark(COURSES));
+        assertEquals(0, dbHelper.getHighWaterMark(INSTANCES));
+    }
+
+    @Test
+    public void applyPulledCourses_unchangedDocumentsAreSkipped() {
+        PulledChanges<Course> first = new PulledChanges<>(0);
+        first.addChanged(course(1));
+        first.addChanged(course(2));
+        dbHelper.applyPulledCourses(first, COURSES);
+
+        PulledChanges<Course> again = new PulledChanges<>(0);
+        again.addChanged(course(1));
+        Course edited = course(2);
+        edited.setPrice(15.0);
+        again.addChanged(edited);
+        IngestResult result = dbHelper.applyPulledCourses(again, COURSES);
+
+        assertEquals(1, result.getSkipped());
+        assertEquals(1, result.getWritten());
+        assertEquals(15.0, dbHelper.getCourse(2).getPrice(), 0);
+    }
+
+    @Test
+    public void applyPulledCourses_invalidRowsAreReported_andTheRestStored() {
+        PulledChanges<Course> first = new PulledChanges<>(0);
+        first.addChanged(course(1));
+        dbHelper.applyPulledCourses(first, COURSES);
+
+        PulledChanges<Course> changes = new PulledChanges<>(0);
+        Course newWithoutType = course(2);
+        newWithoutType.setType(null);
+        Course typeRemoved = course(1);
+        typeRemoved.setType(null);
+        changes.addChanged(newWithoutType);
+        changes.addChanged(typeRemoved);
+        changes.addChanged(course(3));
+        IngestResult result = dbHelper.applyPulledCourses(changes, COURSES);
+
+        assertEquals(Arrays.asList(2L, 1L), result.getInvalidIds());
+        assertEquals(1, result.getInserted());
+        assertEquals(0, result.getUnchanged());
+        assertNull(dbHelper.getCourse(2));
+        assertEquals("Flow Yoga", dbHelper.getCourse(1).getType());
+        assertNotNull(dbHelper.getCourse(3));
+    }
+
+    @Test
+    public void applyPulledCourses_earlierPagesKeepTheOldMark() {
+        PulledChanges<Course> first = new PulledChanges<>(0);
+        first.addChanged(course(1));
+        first.observeUpdatedAt(1_700_000_000_000L);
+        dbHelper.applyPulledCourses(first, COURSES);
+
+        assertNotNull(dbHelper.getCourse(1));
+        assertEquals(0, dbHelper.getHighWaterMark(COURSES));
+
+        PulledChanges<Course> last = new PulledChanges<>(first.getHighWaterMark());
+        last.setLastPage();
+        dbHelper.applyPulledCourses(last, COURSES);
+
+        assertEquals(1_700_000_000_000L, dbHelper.getHighWaterMark(COURSES));
+    }
+
+    @Test
+    public void applyPulledCourses_tombstoneDeletesCourseAndItsInstances() {
+        PulledChanges<Course> first = new PulledChanges<>(0);
+        first.addChanged(course(1));
+        dbHelper.applyPulledCourses(first, COURSES);
+        PulledChanges<ClassInstance> instances = new PulledChanges<>(0);
+        instances.addChanged(new ClassInstance(10, 1, new Date(1_700_000_000_000L), "Ann", null, 10, false));
+        dbHelper.applyPulledClassInstances(instances, INSTANCES);
+
+        PulledChanges<Course> deletion = new PulledChanges<>(5);
+        deletion.addDeleted(1);
+        IngestResult result = dbHelper.applyPulledCourses(deletion, COURSES);
+
+        assertEquals(1, result.getDeleted());
+        assertNull(dbHelper.getCourse(1));
+        assertNull(dbHelper.getClassInstance(10));
+    }
+
+    @Test
+    public void addCourse_nextToPulledLegacyIds_getsAGeneratedId() {
+        PulledChanges<Course> changes = new PulledChanges<>(0);
+        changes.addChanged(course(3));
+        dbHelper.applyPulledCourses(changes, COURSES);
+
+        Course added = course(0);
+        long id = dbHelper.addCourse(added);
+
+        assertEquals(id, added.getId());
+        assertTrue(id > 3);
+        assertEquals(dbHelper.getIdNode(), IdGenerator.nodeOf(id));
+        assertNotNull(dbHelper.getCourse(3));
+        assertNotNull(dbHelper.getCourse(id));
+    }
+
+    @Test
+    public void pulledOlderEdit_keepsTheNewerLocalEditForUpload() {
+        Course course = course(0);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+        course.setPrice(12.0);
+        dbHelper.updateCourse(course);
+
+        Course remote = course(course.getId());
+        remote.setPrice(11.0);
+        remote.setDescription("Edited on another tablet");
+        long old = new HybridLogicalClock(999, () -> IdGenerator.EPOCH_MILLIS).tick();
+        PulledChanges<Course> changes = new PulledChanges<>(0);
+        changes.addChanged(remote, stampsFor(ChangedFields.ALL_COURSE, old));
+        dbHelper.applyPulledCourses(changes, COURSES);
+
+        DirtyRow<Course> row = dbHelper.getDirtyCourse(course.getId());
+        assertEquals(12.0, row.getRow().getPrice(), 0);
+        assertNull(row.getRow().getDescription());
+        assertTrue((row.getDirtyFields() & ChangedFields.COURSE_PRICE) != 0);
+    }
+
+    @Test
+    public void pulledNewerEdit_replacesThePendingLocalEdit() {
+        Course course = course(0);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+        course.setPrice(12.0);
+        dbHelper.updateCourse(course);
+
+        Course remote = course(course.getId());
+        remote.setPrice(11.0);
+        long newer = new HybridLogicalClock(999, () -> System.currentTimeMillis() + 3_600_000).tick();
+        PulledChanges<Course> changes = new PulledChanges<>(0);
+        changes.addChanged(remote, stampsFor(ChangedFields.ALL_COURSE, newer));
+        dbHelper.applyPulledCourses(changes, COURSES);
+
+        assertEquals(11.0, dbHelper.getCourse(course.getId()).getPrice(), 0);
+        assertNull(dbHelper.getDirtyCourse(course.getId()));
+    }
+
+    @Test
+    public void resetDatabase_forgetsMarks() {
+        dbHelper.putSyncState("high_water_mark/" + COURSES, "42");
+        dbHelper.resetDatabase();
+        assertEquals(0, dbHelper.getHighWaterMark(COURSES));
+    }
+
+    @Test
+    public void resetAndClear_keepTheInstallationsNode() {
+        int node = dbHelper.getIdNode();
+        String installation = dbHelper.getInstallationId();
+
+        dbHelper.resetDatabase();
+        assertEquals(node, dbHelper.getIdNode());
+        dbHelper.deleteAllCoursesAndClasses();
+        assertEquals(node, dbHelper.getIdNode());
+        assertEquals(installation, dbHelper.getInstallationId());
+    }
+
+    @Test
+    public void movedNode_givesNewRowsItsIds() {
+        int taken = dbHelper.getIdNode();
+        dbHelper.addCourse(course(0));
+
+        int node = dbHelper.moveToNewIdNode(taken);
+        Course added = course(0);
+        dbHelper.addCourse(added);
+
+        assertNotEquals(taken, node);
+        assertEquals(node, IdGenerator.nodeOf(added.getId()));
+    }
+
+    private static long[] stampsFor(int fields, long stamp) {
+        return FieldClockMerger.stamp(FieldClockMerger.unstamped(ChangedFields.COURSE_FIELD_COUNT), fields, stamp);
+    }
+
+    private static Course course(long id) {
+        return new Course(id, "Course " + id, "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", null, "Beginner", false, null);
+    }
+}
@@ -0,0 +1,181 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that every read query in DatabaseHelper is served by an index, so a later
+ * schema or query change can't silently bring back full table scans.
+ * getAllCourses() is left out on purpose: it reads every row, so a scan is the right plan.
+ * Paged queries must also come back in index order, without a sort step.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperQueryPlanTest {
+
+    // Matches a plain table scan, e.g. "SCAN TABLE class_instances" or "SCAN class_instances"
+    private static final Pattern FULL_SCAN = Pattern.compile("^SCAN (TABLE )?\\w+$");
+
+    private DatabaseHelper dbHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void getCourse_usesPrimaryKey() {
+        assertUsesIndex(DatabaseHelper.SQL_COURSE_BY_ID, "INTEGER PRIMARY KEY", "1");
+    }
+
+    @Test
+    public void getCoursesPage_firstPage_usesTimeIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_COURSES_FIRST_PAGE, DatabaseHelper.INDEX_COURSES_TIME, "50");
+    }
+
+    @Test
+    public void getCoursesPage_pageAfter_usesTimeIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_COURSES_PAGE_AFTER, DatabaseHelper.INDEX_COURSES_TIME,
+                "10:00", "42", "50");
+    }
+
+    @Test
+    public void getCoursesAfterId_usesPrimaryKey() {
+        assertUsesIndex(DatabaseHelper.SQL_COURSES_AFTER_ID, "INTEGER PRIMARY KEY", "0", "500");
+    }
+
+    @Test
+    public void getDirtyCoursesAfterId_usesDirtyIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_DIRTY_COURSES_AFTER_ID, DatabaseHelper.INDEX_COURSES_DIRTY, "0", "500");
+    }
+
+    @Test
+    public void searchCoursesByDayOfWeek_usesDayTimeIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_COURSES_BY_DAY,
+                DatabaseHelper.INDEX_COURSES_DAY_TIME, "Monday");
+    }
+
+    @Test
+    public void idGeneratorStart_searchesOnlyIdsAheadOfTheClock() {
+        String[] args = {String.valueOf(IdGenerator.firstIdAt(System.currentTimeMillis())), "7"};
+        assertUsesIndex(DatabaseHelper.SQL_MAX_COURSE_ID_OF_NODE, "INTEGER PRIMARY KEY", args);
+        assertUsesIndex(DatabaseHelper.SQL_MAX_INSTANCE_ID_OF_NODE, "INTEGER PRIMARY KEY", args);
+    }
+
+    @Test
+    public void getDigestLeaves_readsOnlyTheLeavesOfTheCollection() {
+        assertUsesIndex(DatabaseHelper.SQL_DIGEST_LEAVES, "(" + DatabaseHelper.KEY_COLLECTION + "=?)",
+                FirestoreSyncManager.COLLECTION_COURSES);
+    }
+
+    @Test
+    public void getSyncedIdsInBuckets_usesDigestBucketIndex() {
+        assertUsesIndex(DatabaseHelper.syncedIdsInBucketsSql(DatabaseHelper.TABLE_COURSES, 2),
+                DatabaseHelper.INDEX_COURSES_DIGEST_BUCKET, "7", "9");
+        assertUsesIndex(DatabaseHelper.syncedIdsInBucketsSql(DatabaseHelper.TABLE_CLASS_INSTANCES, 2),
+                DatabaseHelper.INDEX_INSTANCES_DIGEST_BUCKET, "7", "9");
+    }
+
+    @Test
+    public void getClassInstance_usesPrimaryKey() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCE_BY_ID, "INTEGER PRIMARY KEY", "1");
+    }
+
+    @Test
+    public void getClassInstancesAfterId_usesPrimaryKey() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCES_AFTER_ID, "INTEGER PRIMARY KEY", "0", "500");
+    }
+
+    @Test
+    public void getDirtyClassInstancesAfterId_usesDirtyIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_DIRTY_INSTANCES_AFTER_ID, DatabaseHelper.INDEX_INSTANCES_DIRTY, "0", "500");
+    }
+
+    @Test
+    public void getClassInstancesForCourse_usesCourseDateIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCES_FOR_COURSE,
+                DatabaseHelper.INDEX_INSTANCES_COURSE_DATE, "1");
+    }
+
+    @Test
+    public void deleteCourse_instanceIds_useCourseDateIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCE_IDS_FOR_COURSE,
+                DatabaseHelper.INDEX_INSTANCES_COURSE_DATE, "1");
+    }
+
+    @Test
+    public void getClassInstanceListRowsPage_firstPage_usesCourseDateIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCE_LIST_ROWS_FIRST_PAGE,
+                DatabaseHelper.INDEX_INSTANCES_COURSE_DATE, "1", "50");
+    }
+
+    @Test
+    public void getClassInstanceListRowsPage_pageAfter_usesCourseDateIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCE_LIST_ROWS_PAGE_AFTER,
+                DatabaseHelper.INDEX_INSTANCES_COURSE_DATE, "1", "1700000000000", "42", "50");
+    }
+
+    @Test
+    public void searchClassInstancesByDate_usesDateIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_INSTANCES_BY_DATE,
+                DatabaseHelper.INDEX_INSTANCES_DATE, "0", "86399999");
+    }
+
+    @Test
+    public void searchClassInstancesByTeacher_scansOnlyTeachers_thenJoinsOnTeacherIndex() {
+        // A substring match can't use an index, so the small teachers table is scanned instead of the instances
+        List<String> plan = dbHelper.explainQueryPlan(DatabaseHelper.SQL_INSTANCES_BY_TEACHER,
+                new String[]{"%mit%"});
+
+        assertEquals("Plan " + plan, 2, plan.size());
+        assertTrue("Plan " + plan, plan.get(0).startsWith("SCAN"));
+        assertFalse("Plan " + plan, plan.get(0).contains(DatabaseHelper.TABLE_CLASS_INSTANCES));
+        assertTrue("Plan " + plan, plan.get(1).contains(DatabaseHelper.INDEX_INSTANCES_TEACHER_DATE));
+    }
+
+    @Test
+    public void getTeacherSchedule_readsOnlyTheTeacherDateIndex() {
+        assertUsesIndex(DatabaseHelper.SQL_TEACHER_SCHEDULE,
+                "COVERING INDEX " + DatabaseHelper.INDEX_INSTANCES_TEACHER_DATE, "Anna", "1700000000000", "20");
+    }
+
+    @Test
+    public void loadTeacherIndex_groupsOnTheTeacherDateIndex_withoutASort() {
+        assertUsesIndex(DatabaseHelper.SQL_TEACHER_CLASS_COUNTS,
+                "COVERING INDEX " + DatabaseHelper.INDEX_INSTANCES_TEACHER_DATE);
+    }
+
+    private void assertUsesIndex(String sql, String expectedIndex, String... args) {
+        List<String> plan = dbHelper.explainQueryPlan(sql, args);
+        assertFalse("Empty plan for " + sql, plan.isEmpty());
+
+        boolean usesExpectedIndex = false;
+        for (String detail : plan) {
+            assertFalse("Full table scan in plan " + plan + " for " + sql,
+                    FULL_SCAN.matcher(detail).matches());
+            assertFalse("Sort step in plan " + plan + " for " + sql,
+                    detail.contains("USE TEMP B-TREE"));
+            if (detail.contains(expectedIndex)) {
+                usesExpectedIndex = true;
+            }
+        }
+        assertTrue("Expected " + expectedIndex + " in plan " + plan + " for " + sql, usesExpectedIndex);
+    }
+}
@@ -0,0 +1,195 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reconciling the local database with the remote store through their MerkleDigest trees.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DigestReconciliationTest {
+
+    private static final String COURSES = FirestoreSyncManager.COLLECTION_COURSES;
+
+    private DatabaseHelper dbHelper;
+    private InMemoryRemoteStore store;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+        store = new InMemoryRemoteStore();
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void firstRun_buildsTheTreeAndStoresEveryDocument() throws Exception {
+        for (long id = 1; id <= 3; id++) {
+            putCourse(id, 10.0, false);
+        }
+
+        DigestReconciliation.Result result = reconcile();
+
+        assertTrue(result.isBuilt());
+        assertEquals(3, result.getRowsWritten());
+        assertNotNull(dbHelper.getCourse(2));
+        // Older documents get their bucket, without an updatedAt that would make other devices pull them
+        Map<String, Object> document = store.getDocument(COURSES, "2");
+        assertEquals((long) MerkleDigest.bucketOf("2"), document.get(FirestoreCodec.FIELD_DIGEST_BUCKET));
+        assertNull(document.get(FirestoreSyncManager.FIELD_UPDATED_AT));
+    }
+
+    @Test
+    public void inSync_readsOnlyTheRoot() throws Exception {
+        for (long id = 1; id <= 50; id++) {
+            putCourse(id, 10.0, true);
+        }
+        reconcile();
+
+        DigestReconciliation.Result result = reconcile();
+
+        assertTrue(result.isInSync());
+        assertFalse(result.isBuilt());
+        assertEquals(1, result.getDigestDocumentsRead());
+        assertEquals(0, result.getDocumentsFetched());
+    }
+
+    @Test
+    public void documentThePullMissed_isFetchedFromItsBucketAlone() throws Exception {
+        for (long id = 1; id <= 50; id++) {
+            putCourse(id, 10.0, true);
+        }
+        reconcile();
+        // Uploaded by another device, which moved the digest with it
+        Course uploaded = putCourse(51, 12.0, true);
+        MerkleDigest.Deltas deltas = new MerkleDigest.Deltas();
+        deltas.replace(COURSES, "51", 0, MerkleDigest.contribution("51", ContentHash.of(uploaded)));
+        commit(deltas);
+
+        DigestReconciliation.Result result = reconcile();
+
+        assertEquals(1, result.getDivergentBuckets());
+        // The root and one node on each level below it
+        assertEquals(MerkleDigest.DEPTH, result.getDigestDocumentsRead());
+        assertEquals(12.0, dbHelper.getCourse(51).getPrice(), 0);
+        assertEquals(0, result.getBucketsCorrected());
+        assertTrue(reconcile().isInSync());
+    }
+
+    @Test
+    public void driftedDigest_isCorrectedWithoutTouchingTheRows() throws Exception {
+        for (long id = 1; id <= 50; id++) {
+            putCourse(id, 10.0, true);
+        }
+        reconcile();
+        MerkleDigest.Deltas drift = new MerkleDigest.Deltas();
+        drift.add(COURSES, MerkleDigest.bucketOf("7"), 5);
+        commit(drift);
+
+        DigestReconciliation.Result result = reconcile();
+
+        assertEquals(1, result.getBucketsCorrected());
+        assertEquals(0, result.getRowsWritten());
+        assertTrue(reconcile().isInSync());
+    }
+
+    @Test
+    public void syncedRowWhoseDocumentWasDeletedForGood_isDeleted_notUploadedAgain() throws Exception {
+        reconcile();
+        Course course = new Course(0, "Course", "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", null, "Beginner", false, null);
+        dbHelper.addCourse(course);
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+
+        DigestReconciliation.Result result = reconcile();
+
+        assertEquals(1, result.getRowsGone());
+        assertNull(dbHelper.getCourse(course.getId()));
+        assertEquals(0, dbHelper.getOutboxDepth());
+        assertTrue(reconcile().isInSync());
+    }
+
+    @Test
+    public void localLeaves_followUploadsPullsAndDeletes() {
+        Course local = new Course(0, "Course", "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", null, "Beginner", false, null);
+        dbHelper.addCourse(local);
+        // Not in the cloud yet
+        assertArrayEquals(new long[MerkleDigest.LEAF_COUNT], dbHelper.getDigestLeaves(COURSES));
+
+        dbHelper.markCoursesSynced(dbHelper.getDirtyCoursesAfterId(0, 10));
+        Course pulled = new Course(7, "Course 7", "Monday", "10:00", 20, 60, 12.0,
+                "Flow Yoga", null, "Beginner", false, null);
+        PulledChanges<Course> changes = new PulledChanges<>(0);
+        changes.addChanged(pulled);
+        dbHelper.applyPulledCourses(changes, COURSES);
+
+        long[] expected = new long[MerkleDigest.LEAF_COUNT];
+        for (Course course : new Course[]{dbHelper.getCourse(local.getId()), pulled}) {
+            String documentId = String.valueOf(course.getId());
+            expected[MerkleDigest.bucketOf(documentId)] +=
+                    MerkleDigest.contribution(documentId, ContentHash.of(course));
+        }
+        assertArrayEquals(expected, dbHelper.getDigestLeaves(COURSES));
+        Set<Integer> buckets = new HashSet<>(Arrays.asList(MerkleDigest.bucketOf("7"),
+                MerkleDigest.bucketOf(String.valueOf(local.getId()))));
+        assertEquals(new HashSet<>(Arrays.asList(7L, local.getId())),
+                new HashSet<>(dbHelper.getSyncedIdsInBuckets(COURSES, buckets)));
+
+        dbHelper.deleteCourse(local.getId());
+        dbHelper.deleteCourse(7);
+
+        assertArrayEquals(new long[MerkleDigest.LEAF_COUNT], dbHelper.getDigestLeaves(COURSES));
+    }
+
+    private DigestReconciliation.Result reconcile() throws Exception {
+        return DigestReconciliation.forCourses(store, dbHelper, 20).run();
+    }
+
+    // A document written by another device; without a bucket, as an older app version wrote it
+    private Course putCourse(long id, double price, boolean withBucket) {
+        Course course = new Course(id, "Course " + id, "Monday", "10:00", 20, 60, price,
+                "Flow Yoga", null, "Beginner", false, null);
+        Map<String, Object> data = FirestoreCodec.encodeCourse(course, ChangedFields.ALL_COURSE);
+        if (withBucket) {
+            data.put(FirestoreCodec.FIELD_DIGEST_BUCKET, (long) MerkleDigest.bucketOf(String.valueOf(id)));
+        }
+        store.putDocument(COURSES, String.valueOf(id), data);
+        return course;
+    }
+
+    private void commit(MerkleDigest.Deltas deltas) throws Exception {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        store.commit(deltas.toWriteOps(), new RemoteStore.CommitCallback() {
+            @Override
+            public void onSuccess() {
+                committed.complete(null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                committed.completeExceptionally(e);
+            }
+        });
+        committed.get();
+    }
+}
@@ -23,4 +23,11 @@ public class ExampleInstrumentedTest {
         Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
         assertEquals("com.universalyoga.admin", appContext.getPackageName());
     }
+
+    @Test
+    public void sharedDatabaseHelper_isTheSameForEveryCaller() {
+        // Only compares the instances; the app's database is not opened
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        assertSame(DatabaseHelper.getInstance(appContext), DatabaseHelper.getInstance(appContext.getApplicationContext()));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The triggers keep class_instances_fts in step with the instances and their courses, and MATCH finds the rows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FullTextSearchDatabaseTest {
+
+    private DatabaseHelper dbHelper;
+    private Course course;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+        course = new Course(0, "Morning Flow", "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", "Gentle start", "Beginner", false, null);
+        course.setId(dbHelper.addCourse(course));
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void insert_makesTheInstanceSearchable_byItsOwnAndItsCoursesText() {
+        ClassInstance anna = addInstance("Anna Smith", "bring a mat");
+        addInstance("Bob", null);
+
+        assertEquals(ids(anna), ids(search("smi")));
+        assertEquals(ids(anna), ids(search("mat anna")));
+        assertEquals(2, search("flow").size());
+        assertEquals(2, search("gentle").size());
+        assertTrue(search("yin").isEmpty());
+    }
+
+    @Test
+    public void update_replacesTheOldText() {
+        ClassInstance instance = addInstance("Anna", "bring a mat");
+
+        instance.setTeacher("Carla");
+        instance.setAdditionalComments("blocks provided");
+        dbHelper.updateClassInstance(instance);
+
+        assertTrue(search("anna").isEmpty());
+        assertTrue(search("mat").isEmpty());
+        assertEquals(ids(instance), ids(search("carla blocks")));
+    }
+
+    @Test
+    public void courseEdit_reachesItsInstances() {
+        ClassInstance instance = addInstance("Anna", null);
+
+        course.setType("Yin Yoga");
+        course.setName("Evening Calm");
+        dbHelper.updateCourse(course);
+
+        assertTrue(search("flow").isEmpty());
+        assertEquals(ids(instance), ids(search("yin evening")));
+    }
+
+    @Test
+    public void delete_removesTheInstanceFromTheIndex() {
+        ClassInstance instance = addInstance("Anna", null);
+
+        dbHelper.deleteClassInstance(instance.getId());
+
+        assertTrue(search("anna").isEmpty());
+        assertTrue(search("flow").isEmpty());
+    }
+
+    @Test
+    public void search_ranksTeacherHitsFirst_andCountsMatchesBeyondTheRanked() {
+        ClassInstance inComments = addInstance("Bob", "ask Anna");
+        ClassInstance asTeacher = addInstance("Anna", null);
+
+        assertEquals(ids(asTeacher, inComments), ids(search("anna")));
+
+        List<ClassInstance> many = new ArrayList<>();
+        for (int i = 0; i < DatabaseHelper.MAX_RANKED_MATCHES; i++) {
+            many.add(new ClassInstance(10_000 + i, course.getId(), new Date(), "Dana", null, 20, false));
+        }
+        dbHelper.bulkUpsertClassInstances(many);
+        InstanceSearch dana = dbHelper.searchClassInstances("dana", 10, null);
+        assertEquals(DatabaseHelper.MAX_RANKED_MATCHES, dana.getMatchCount());
+        assertEquals(10, dana.getResults().size());
+        assertEquals(DatabaseHelper.MAX_RANKED_MATCHES + 2,
+                dbHelper.searchClassInstances("flow", 10, null).getMatchCount());
+        assertFalse(dbHelper.searchClassInstances("flow", 10, null).isComplete());
+    }
+
+    private List<ClassInstance> search(String query) {
+        return dbHelper.searchClassInstances(query, 100);
+    }
+
+    private ClassInstance addInstance(String teacher, String comments) {
+        ClassInstance instance = new ClassInstance(course.getId(), new Date(), teacher, comments, 20, false);
+        dbHelper.addClassInstance(instance);
+        return instance;
+    }
+
+    private static List<Long> ids(ClassInstance... instances) {
+        List<Long> ids = new ArrayList<>();
+        for (ClassInstance instance : instances) {
+            ids.add(instance.getId());
+        }
+        return ids;
+    }
+
+    private static List<Long> ids(List<ClassInstance> instances) {
+        return ids(instances.toArray(new ClassInstance[0]));
+    }
+}
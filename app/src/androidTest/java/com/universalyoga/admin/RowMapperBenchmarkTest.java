@@ -0,0 +1,215 @@
+package com.universalyoga.admin;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the row mappers with the old per-row column lookups on large result sets.
+ * Timings and allocated bytes are logged under the "RowMapperBenchmark" tag. The test checks that both paths
+ * produce the same objects and, where the old path allocated an exception per missing column, that the mapper
+ * allocates less; timings are not asserted, so it stays stable on slow devices.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RowMapperBenchmarkTest {
+
+    private static final String TAG = "RowMapperBenchmark";
+    private static final int ROWS = 50_000;
+    private static final int ROUNDS = 5;
+
+    private static final String[] COURSE_COLUMNS = {
+            "id", "name", "day_of_week", "time", "capacity", "duration", "price", "type",
+            "description", "difficulty", "equipment_needed", "equipment_description"
+    };
+
+    // Narrow list-row shape: the optional columns are missing
+    private static final String[] LIST_ROW_COLUMNS = {"id", "course_id", "date", "teacher", "is_cancelled"};
+
+    @Test
+    public void courseMapper_fullRows() {
+        MatrixCursor cursor = new MatrixCursor(COURSE_COLUMNS, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            cursor.addRow(new Object[]{i, i % 3 == 0 ? null : "Course " + i, "Monday", "10:00", 20, 60, 9.5,
+                    "Flow Yoga", "Description " + i, "Beginner", i % 2, "Mat"});
+        }
+
+        Measurement legacyCost = new Measurement();
+        Measurement mapperCost = new Measurement();
+        List<Course> legacy = null;
+        List<Course> mapped = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            legacy = legacyCost.run(() -> mapLegacyCourses(cursor));
+            mapped = mapperCost.run(() -> mapAll(cursor, new CourseRowMapper(cursor)));
+        }
+        report("courses, full rows", legacyCost, mapperCost);
+
+        for (int i = 0; i < ROWS; i += 997) {
+            assertEquals(legacy.get(i).toString(), mapped.get(i).toString());
+            assertEquals(legacy.get(i).getDescription(), mapped.get(i).getDescription());
+            assertEquals(legacy.get(i).isEquipmentNeeded(), mapped.get(i).isEquipmentNeeded());
+        }
+    }
+
+    @Test
+    public void classInstanceMapper_listRows() {
+        MatrixCursor cursor = new MatrixCursor(LIST_ROW_COLUMNS, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            cursor.addRow(new Object[]{i, i % 50, 1_700_000_000_000L + i * 86_400_000L, "Teacher " + (i % 40), i % 9 == 0 ? 1 : 0});
+        }
+
+        Measurement legacyCost = new Measurement();
+        Measurement mapperCost = new Measurement();
+        List<ClassInstance> legacy = null;
+        List<ClassInstance> mapped = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            legacy = legacyCost.run(() -> mapLegacyInstances(cursor));
+            mapped = mapperCost.run(() -> mapAll(cursor, new ClassInstanceRowMapper(cursor)));
+        }
+        report("class instances, list rows", legacyCost, mapperCost);
+        // The legacy path throws and catches three IllegalArgumentExceptions per row here
+        assertTrue("Mapper allocated " + mapperCost.bytes + " bytes, legacy " + legacyCost.bytes,
+                mapperCost.bytes < legacyCost.bytes);
+
+        for (int i = 0; i < ROWS; i += 997) {
+            assertEquals(legacy.get(i).toString(), mapped.get(i).toString());
+            assertEquals(legacy.get(i).getId(), mapped.get(i).getId());
+        }
+    }
+
+    private static void report(String name, Measurement legacy, Measurement mapper) {
+        Log.i(TAG, String.format("%s: legacy %.0f ns/row, %.0f bytes/row; mapper %.0f ns/row, %.0f bytes/row (%.1fx)",
+                name, (double) legacy.nanos / ROWS, (double) legacy.bytes / ROWS,
+                (double) mapper.nanos / ROWS, (double) mapper.bytes / ROWS,
+                (double) legacy.nanos / Math.max(1, mapper.nanos)));
+    }
+
+    // The least time and the fewest bytes allocated over the runs of one mapping
+    private static final class Measurement {
+        private long nanos = Long.MAX_VALUE;
+        private long bytes = Long.MAX_VALUE;
+
+        <T> List<T> run(Supplier<List<T>> mapping) {
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            List<T> rows = mapping.get();
+            nanos = Math.min(nanos, System.nanoTime() - start);
+            bytes = Math.min(bytes, allocatedBytes() - startBytes);
+            return rows;
+        }
+    }
+
+    // Bytes allocated by the runtime so far. java.lang.management is not on Android, so there is no per-thread
+    // count; ART's process-wide counter is used, and the least of several runs keeps other threads' share small.
+    private static long allocatedBytes() {
+        String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        Assume.assumeNotNull(allocated);
+        return Long.parseLong(allocated);
+    }
+
+    private static <T> List<T> mapAll(Cursor cursor, RowMapper<T> mapper) {
+        List<T> rows = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            rows.add(mapper.map(cursor));
+        }
+        return rows;
+    }
+
+    // The mapping DatabaseHelper used before the row mappers, kept here as the baseline
+
+    private static List<Course> mapLegacyCourses(Cursor cursor) {
+        List<Course> rows = new ArrayList<>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int id = cursor.getInt(cursor.getColumnIndexOrThrow("id"));
+            String name;
+            try {
+                name = cursor.getString(cursor.getColumnIndexOrThrow("name"));
+                if (name == null || name.isEmpty()) {
+                    name = cursor.getString(cursor.getColumnIndexOrThrow("type"));
+                }
+            } catch (IllegalArgumentException e) {
+                name = cursor.getString(cursor.getColumnIndexOrThrow("type"));
+            }
+            String dayOfWeek = cursor.getString(cursor.getColumnIndexOrThrow("day_of_week"));
+            String time = cursor.getString(cursor.getColumnIndexOrThrow("time"));
+            int capacity = cursor.getInt(cursor.getColumnIndexOrThrow("capacity"));
+            int duration = cursor.getInt(cursor.getColumnIndexOrThrow("duration"));
+            double price = cursor.getDouble(cursor.getColumnIndexOrThrow("price"));
+            String type = cursor.getString(cursor.getColumnIndexOrThrow("type"));
+            String description = null;
+            try {
+                description = cursor.getString(cursor.getColumnIndexOrThrow("description"));
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            String difficulty = null;
+            try {
+                difficulty = cursor.getString(cursor.getColumnIndexOrThrow("difficulty"));
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            boolean equipmentNeeded = false;
+            try {
+                equipmentNeeded = cursor.getInt(cursor.getColumnIndexOrThrow("equipment_needed")) == 1;
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            String equipmentDescription = null;
+            try {
+                equipmentDescription = cursor.getString(cursor.getColumnIndexOrThrow("equipment_description"));
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            rows.add(new Course(id, name, dayOfWeek, time, capacity, duration, price, type,
+                    description, difficulty, equipmentNeeded, equipmentDescription));
+        }
+        return rows;
+    }
+
+    private static List<ClassInstance> mapLegacyInstances(Cursor cursor) {
+        List<ClassInstance> rows = new ArrayList<>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int id = cursor.getInt(cursor.getColumnIndexOrThrow("id"));
+            int courseId = cursor.getInt(cursor.getColumnIndexOrThrow("course_id"));
+            long dateMillis = cursor.getLong(cursor.getColumnIndexOrThrow("date"));
+            String teacher = cursor.getString(cursor.getColumnIndexOrThrow("teacher"));
+            String additionalComments = null;
+            try {
+                additionalComments = cursor.getString(cursor.getColumnIndexOrThrow("additional_comments"));
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            int availableSpots = 0;
+            try {
+                availableSpots = cursor.getInt(cursor.getColumnIndexOrThrow("available_spots"));
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            boolean isCancelled = false;
+            try {
+                isCancelled = cursor.getInt(cursor.getColumnIndexOrThrow("is_cancelled")) == 1;
+            } catch (IllegalArgumentException e) {
+                // missing column
+            }
+            rows.add(new ClassInstance(id, courseId, new Date(dateMillis), teacher,
+                    additionalComments, availableSpots, isCancelled));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,101 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Building a TeacherIndex from each teacher's class count and latest class.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TeacherIndexDatabaseTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private DatabaseHelper dbHelper;
+    private long courseId;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+        courseId = dbHelper.addCourse(new Course(0, "Course", "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", null, "Beginner", false, null));
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void load_indexesEveryDistinctTeacher_withTheirClassCount() {
+        long now = System.currentTimeMillis();
+        addInstance("Anna Smith", now);
+        addInstance("Anna Smith", now);
+        addInstance("Annie Jones", now);
+
+        TeacherIndex index = dbHelper.loadTeacherIndex();
+
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("Anna Smith", "Annie Jones"), index.suggest("ann", 5, now));
+        assertEquals(Collections.singletonList("Annie Jones"), index.suggest("jo", 5, now));
+    }
+
+    @Test
+    public void load_afterEditsAndDeletes_seesOnlyTheTeachersLeft() {
+        long now = System.currentTimeMillis();
+        ClassInstance anna = addInstance("Anna", now);
+        addInstance("Bob", now - DAY);
+
+        anna.setTeacher("Carla");
+        dbHelper.updateClassInstance(anna);
+        TeacherIndex index = dbHelper.loadTeacherIndex();
+        assertEquals(Collections.singletonList("Carla"), index.suggest("c", 5, now));
+        assertEquals(Collections.emptyList(), index.suggest("a", 5, now));
+        assertEquals(2, index.size());
+
+        dbHelper.deleteClassInstance(anna.getId());
+        assertEquals(1, dbHelper.loadTeacherIndex().size());
+    }
+
+    @Test
+    public void changes_fromEditsDeletesAndBulkWrites_keepALoadedIndexAsAFreshLoadWould() {
+        long now = System.currentTimeMillis();
+        ClassInstance anna = addInstance("Anna", now);
+        ClassInstance bob = addInstance("Bob", now - DAY);
+        TeacherIndex index = dbHelper.loadTeacherIndex();
+        dbHelper.setTeacherChangeListener(index::apply);
+
+        anna.setTeacher("Carla");
+        dbHelper.updateClassInstance(anna);
+        dbHelper.deleteClassInstance(bob.getId());
+        dbHelper.bulkUpsertClassInstances(Collections.singletonList(
+                new ClassInstance(10_000, courseId, new Date(now), "Dana", null, 20, false)));
+
+        assertFalse(dbHelper.hasTeacherChangesInFlight());
+        TeacherIndex loaded = dbHelper.loadTeacherIndex();
+        assertEquals(loaded.size(), index.size());
+        for (String prefix : Arrays.asList("a", "b", "c", "d")) {
+            assertEquals(loaded.suggest(prefix, 5, now), index.suggest(prefix, 5, now));
+        }
+    }
+
+    private ClassInstance addInstance(String teacher, long date) {
+        ClassInstance instance = new ClassInstance(courseId, new Date(date), teacher, null, 20, false);
+        dbHelper.addClassInstance(instance);
+        return instance;
+    }
+}
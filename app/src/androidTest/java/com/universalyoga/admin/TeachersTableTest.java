@@ -0,0 +1,154 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The teachers table follows the instances' teacher names on every write path, and serves per-teacher lookups.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TeachersTableTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long NOW = 1_700_000_000_000L;
+
+    private DatabaseHelper dbHelper;
+    private long courseId;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dbHelper = new DatabaseHelper(context, null);
+        courseId = dbHelper.addCourse(new Course(0, "Course", "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", null, "Beginner", false, null));
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void schedule_listsUpcomingClassesInDateOrder_acrossSpellings() {
+        ClassInstance later = addInstance("Anna Smith", NOW + 7 * DAY);
+        ClassInstance sooner = addInstance("anna smith ", NOW + DAY);
+        addInstance("Anna Smith", NOW - DAY);
+        addInstance("Bob", NOW + DAY);
+
+        List<TeacherScheduleEntry> schedule = dbHelper.getTeacherSchedule("ANNA SMITH", NOW, 10);
+
+        assertEquals(2, schedule.size());
+        assertEquals(sooner.getId(), schedule.get(0).getInstanceId());
+        assertEquals(later.getId(), schedule.get(1).getInstanceId());
+        assertEquals(courseId, schedule.get(0).getCourseId());
+        assertEquals(NOW + DAY, schedule.get(0).getDate().getTime());
+        assertFalse(schedule.get(0).isCancelled());
+        // Spelled as the teacher was first written
+        assertEquals("Anna Smith", schedule.get(0).getTeacher());
+        assertEquals(1, dbHelper.getTeacherSchedule("Anna Smith", NOW, 1).size());
+    }
+
+    @Test
+    public void rename_movesTheClass_andDropsTheTeacherWithoutClasses() {
+        ClassInstance instance = addInstance("Anna", NOW + DAY);
+
+        instance.setTeacher("Carla");
+        dbHelper.updateClassInstance(instance);
+
+        assertTrue(dbHelper.getTeacherSchedule("Anna", NOW, 10).isEmpty());
+        assertEquals(1, dbHelper.getTeacherSchedule("Carla", NOW, 10).size());
+        assertTrue(dbHelper.searchClassInstancesByTeacher("An").isEmpty());
+    }
+
+    @Test
+    public void searchByTeacher_matchesAnyPartOfTheName() {
+        ClassInstance anna = addInstance("Anna Smith", NOW + DAY);
+        addInstance("Bob", NOW + DAY);
+        addInstance("50_50 Yoga", NOW + DAY);
+
+        List<ClassInstance> found = dbHelper.searchClassInstancesByTeacher("smith");
+
+        assertEquals(1, found.size());
+        assertEquals(anna.getId(), found.get(0).getId());
+        // Wildcards in the keyword match only themselves
+        assertEquals(1, dbHelper.searchClassInstancesByTeacher("0_5").size());
+        assertTrue(dbHelper.searchClassInstancesByTeacher("%").isEmpty());
+    }
+
+    @Test
+    public void pulledInstances_getTheirTeacherToo() {
+        ClassInstance pulled = new ClassInstance(42, courseId, new Date(NOW + DAY), "Dana", null, 20, false);
+        PulledChanges<ClassInstance> changes = new PulledChanges<>(0);
+        changes.addChanged(pulled);
+        dbHelper.applyPulledClassInstances(changes, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES);
+
+        List<ClassInstance> found = dbHelper.searchClassInstancesByTeacher("da");
+
+        assertEquals(1, found.size());
+        assertEquals(42, found.get(0).getId());
+    }
+
+    @Test
+    public void blankNames_getNoTeacher() {
+        addInstance("  ", NOW + DAY);
+        ClassInstance anna = addInstance("Anna", NOW + DAY);
+
+        // An empty keyword matches every teacher there is
+        List<ClassInstance> found = dbHelper.searchClassInstancesByTeacher("");
+
+        assertEquals(1, found.size());
+        assertEquals(anna.getId(), found.get(0).getId());
+    }
+
+    @Test
+    public void delete_dropsTheTeacherOnlyWithTheirLastClass() {
+        ClassInstance first = addInstance("Anna", NOW + DAY);
+        addInstance("Anna", NOW + 2 * DAY);
+
+        dbHelper.deleteClassInstance(first.getId());
+        assertEquals(1, dbHelper.getTeacherSchedule("Anna", NOW, 10).size());
+    }
+
+    @Test
+    public void invalidPulledInstances_leaveNoTeacherBehind() {
+        ClassInstance stored = new ClassInstance(1, courseId, new Date(NOW + DAY), "Anna", null, 20, false);
+        dbHelper.bulkUpsertClassInstances(Collections.singletonList(stored));
+        // No column constraint fails for a dated instance, so a check is added for the test
+        dbHelper.getWritableDatabase().execSQL("CREATE TEMP TRIGGER no_negative_spots BEFORE UPDATE ON " +
+                DatabaseHelper.TABLE_CLASS_INSTANCES + " WHEN new." + DatabaseHelper.KEY_AVAILABLE_SPOTS + " < 0" +
+                " BEGIN SELECT RAISE(ABORT, 'negative spots'); END");
+        dbHelper.getWritableDatabase().execSQL("CREATE TEMP TRIGGER no_negative_new_spots BEFORE INSERT ON " +
+                DatabaseHelper.TABLE_CLASS_INSTANCES + " WHEN new." + DatabaseHelper.KEY_AVAILABLE_SPOTS + " < 0" +
+                " BEGIN SELECT RAISE(ABORT, 'negative spots'); END");
+
+        IngestResult result = dbHelper.bulkUpsertClassInstances(Arrays.asList(
+                new ClassInstance(1, courseId, new Date(NOW + DAY), "Bob", null, -1, false),
+                new ClassInstance(2, courseId, new Date(NOW + DAY), "Carla", null, -1, false)));
+
+        assertEquals(Arrays.asList(1L, 2L), result.getInvalidIds());
+        // Only Anna, whose class is still stored, is left
+        assertEquals(1, DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(), DatabaseHelper.TABLE_TEACHERS));
+        assertEquals(1, dbHelper.getTeacherSchedule("Anna", NOW, 10).size());
+    }
+
+    private ClassInstance addInstance(String teacher, long date) {
+        ClassInstance instance = new ClassInstance(courseId, new Date(date), teacher, null, 20, false);
+        dbHelper.addClassInstance(instance);
+        return instance;
+    }
+}
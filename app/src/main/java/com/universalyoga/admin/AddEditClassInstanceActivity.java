@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.DatePicker;
 import android.widget.EditText;
@@ -20,7 +21,9 @@ import java.util.Locale;
 
 public class AddEditClassInstanceActivity extends AppCompatActivity {
 
-    private DatabaseHelper dbHelper;
+    private YogaRepository repository;
+    // Drops the pending requests of this screen when it is destroyed
+    private final RequestScope scope = new RequestScope();
     private Course currentCourse;
     private ClassInstance currentInstance;
     private boolean isEditMode = false;
@@ -31,7 +34,7 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
     private TextView tvDayWarning;
     private EditText etDate;
     private Button btnSelectDate;
-    private EditText etTeacher;
+    private AutoCompleteTextView etTeacher;
     private EditText etAdditionalComments;
     private TextView tvAvailableSpots;
     private Button btnSave;
@@ -45,53 +48,45 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_add_edit_class_instance);
 
-        // Initialize database helper
-        dbHelper = new DatabaseHelper(this);
+        repository = YogaRepository.getInstance(this);
 
         // Initialize UI elements
         initializeUI();
 
         // Get course ID from intent
-        int courseId = getIntent().getIntExtra("course_id", -1);
+        long courseId = getIntent().getLongExtra("course_id", -1);
         if (courseId == -1) {
             Toast.makeText(this, "Error: No course selected", Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
 
-        // Load course data
-        currentCourse = dbHelper.getCourse(courseId);
-        if (currentCourse == null) {
-            Toast.makeText(this, "Error: Course not found", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
-        Log.d("check", currentCourse.getDayOfWeek());
-
-        // Display course information
-        tvCourseInfo.setText(String.format("%s - %s at %s\nCapacity: %d, Duration: %d minutes",
-                currentCourse.getType(),
-                currentCourse.getDayOfWeek(),
-                currentCourse.getTime(),
-                currentCourse.getCapacity(),
-                currentCourse.getDuration()));
-
         // Check if we're in edit mode
-        int instanceId = getIntent().getIntExtra("instance_id", -1);
-        if (instanceId != -1) {
-            isEditMode = true;
-            tvTitle.setText("Edit Class Instance");
-            loadInstanceData(instanceId);
-        } else {
-            isEditMode = false;
-            tvTitle.setText("Add Class Instance");
+        long instanceId = getIntent().getLongExtra("instance_id", -1);
+        isEditMode = instanceId != -1;
+        tvTitle.setText(isEditMode ? "Edit Class Instance" : "Add Class Instance");
 
-            // Set available spots to course capacity automatically
-            tvAvailableSpots.setText(String.valueOf(currentCourse.getCapacity()));
+        // Saving is only possible once the course (and instance) have been loaded
+        btnSave.setEnabled(false);
 
-            // Find the next date that matches the course day of week
-            findNextMatchingDate();
-        }
+        // Load course data
+        repository.getCourse(courseId, scope, new RepositoryCallback<Course>() {
+            @Override
+            public void onSuccess(Course course) {
+                if (course == null) {
+                    onFailure(null);
+                    return;
+                }
+                currentCourse = course;
+                showCourse(instanceId);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(AddEditClassInstanceActivity.this, "Error: Course not found", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
 
         // Set up button click listeners
         btnSave.setOnClickListener(new View.OnClickListener() {
@@ -111,6 +106,35 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        scope.cancel();
+        super.onDestroy();
+    }
+
+    private void showCourse(long instanceId) {
+        Log.d("check", currentCourse.getDayOfWeek());
+
+        // Display course information
+        tvCourseInfo.setText(String.format("%s - %s at %s\nCapacity: %d, Duration: %d minutes",
+                currentCourse.getType(),
+                currentCourse.getDayOfWeek(),
+                currentCourse.getTime(),
+                currentCourse.getCapacity(),
+                currentCourse.getDuration()));
+
+        if (isEditMode) {
+            loadInstanceData(instanceId);
+        } else {
+            // Set available spots to course capacity automatically
+            tvAvailableSpots.setText(String.valueOf(currentCourse.getCapacity()));
+
+            // Find the next date that matches the course day of week
+            findNextMatchingDate();
+            btnSave.setEnabled(true);
+        }
+    }
+
     private void initializeUI() {
         tvTitle = findViewById(R.id.tvTitle);
         tvCourseInfo = findViewById(R.id.tvCourseInfo);
@@ -118,6 +142,7 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
         etDate = findViewById(R.id.etDate);
         btnSelectDate = findViewById(R.id.btnSelectDate);
         etTeacher = findViewById(R.id.etTeacher);
+        etTeacher.setAdapter(new TeacherSuggestionAdapter(this, repository));
         etAdditionalComments = findViewById(R.id.etAdditionalComments);
         tvAvailableSpots = findViewById(R.id.tvAvailableSpots);
         btnSave = findViewById(R.id.btnSave);
@@ -139,19 +164,33 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
         });
     }
 
-    private void loadInstanceData(int instanceId) {
-        currentInstance = dbHelper.getClassInstance(instanceId);
-        if (currentInstance == null) {
-            Toast.makeText(this, "Error loading class instance data", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
+    private void loadInstanceData(long instanceId) {
+        repository.getClassInstance(instanceId, scope, new RepositoryCallback<ClassInstance>() {
+            @Override
+            public void onSuccess(ClassInstance instance) {
+                if (instance == null) {
+                    onFailure(null);
+                    return;
+                }
+                currentInstance = instance;
+                showInstanceData();
+                btnSave.setEnabled(true);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(AddEditClassInstanceActivity.this, "Error loading class instance data", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
+    }
 
+    private void showInstanceData() {
         // Set UI elements with instance data
         selectedDate.setTime(currentInstance.getDate());
         updateDateDisplay();
 
-        etTeacher.setText(currentInstance.getTeacher());
+        etTeacher.setText(currentInstance.getTeacher(), false); // Without opening the suggestions
         etAdditionalComments.setText(currentInstance.getAdditionalComments());
         tvAvailableSpots.setText(String.valueOf(currentInstance.getAvailableSpots()));
 
@@ -365,7 +404,8 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
         String additionalComments = etAdditionalComments.getText().toString().trim();
         int availableSpots = Integer.parseInt(tvAvailableSpots.getText().toString());
 
-        FirestoreSyncManager syncManager = new FirestoreSyncManager();
+        // Stay on the screen until the instance is stored, and don't save it twice meanwhile
+        btnSave.setEnabled(false);
 
         if (isEditMode && currentInstance != null) {
             // Update existing instance
@@ -374,8 +414,17 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
             currentInstance.setAdditionalComments(additionalComments);
             currentInstance.setAvailableSpots(availableSpots);
 
-            dbHelper.updateClassInstance(currentInstance);
-            syncManager.uploadClassInstance(currentInstance);
+            repository.updateClassInstance(currentInstance, scope, new RepositoryCallback<Integer>() {
+                @Override
+                public void onSuccess(Integer rows) {
+                    onInstanceSaved();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    onInstanceSaveFailed(e);
+                }
+            });
         } else {
             // Create and save new instance once
             ClassInstance newInstance = new ClassInstance(
@@ -387,15 +436,32 @@ public class AddEditClassInstanceActivity extends AppCompatActivity {
                     false
             );
 
-            dbHelper.addClassInstance(newInstance);
-            syncManager.uploadClassInstance(newInstance);
+            repository.addClassInstance(newInstance, scope, new RepositoryCallback<Long>() {
+                @Override
+                public void onSuccess(Long id) {
+                    onInstanceSaved();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    onInstanceSaveFailed(e);
+                }
+            });
         }
+    }
 
+    private void onInstanceSaved() {
         Toast.makeText(this, isEditMode ? "Class instance updated" : "Class instance added", Toast.LENGTH_SHORT).show();
         setResult(RESULT_OK);
         finish();
     }
 
+    private void onInstanceSaveFailed(Exception e) {
+        Log.e("ConfirmDialog", "Error saving class instance", e);
+        Toast.makeText(this, "Error saving class instance", Toast.LENGTH_SHORT).show();
+        btnSave.setEnabled(true);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -22,7 +22,9 @@ import java.util.Locale;
 
 public class AddEditCourseActivity extends AppCompatActivity {
 
-    private DatabaseHelper dbHelper;
+    private YogaRepository repository;
+    // Drops the pending requests of this screen when it is destroyed
+    private final RequestScope scope = new RequestScope();
     private Course currentCourse;
     private boolean isEditMode = false;
 
@@ -40,22 +42,34 @@ public class AddEditCourseActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_add_edit_course);
 
-        // Initialize DB helper first!
-        dbHelper = new DatabaseHelper(this);
+        repository = YogaRepository.getInstance(this);
 
         initializeUI();
 
-        int courseId = getIntent().getIntExtra("course_id", -1);
+        long courseId = getIntent().getLongExtra("course_id", -1);
         if (courseId != -1) {
             isEditMode = true;
-            currentCourse = dbHelper.getCourse(courseId);
-            if (currentCourse == null) {
-                Toast.makeText(this, "Error loading course", Toast.LENGTH_SHORT).show();
-                finish();
-                return;
-            }
             tvTitle.setText("Edit Course");
-            loadCourseData();
+            // Saving is only possible once the course has been loaded
+            btnSave.setEnabled(false);
+            repository.getCourse(courseId, scope, new RepositoryCallback<Course>() {
+                @Override
+                public void onSuccess(Course course) {
+                    if (course == null) {
+                        onFailure(null);
+                        return;
+                    }
+                    currentCourse = course;
+                    loadCourseData();
+                    btnSave.setEnabled(true);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Toast.makeText(AddEditCourseActivity.this, "Error loading course", Toast.LENGTH_SHORT).show();
+                    finish();
+                }
+            });
         } else {
             isEditMode = false;
             currentCourse = new Course("", "", 0, 0, 0.0, "");
@@ -71,6 +85,12 @@ public class AddEditCourseActivity extends AppCompatActivity {
         btnCancel.setOnClickListener(v -> finish());
     }
 
+    @Override
+    protected void onDestroy() {
+        scope.cancel();
+        super.onDestroy();
+    }
+
     private void initializeUI() {
         tvTitle = findViewById(R.id.tvTitle);
 
@@ -295,17 +315,47 @@ public class AddEditCourseActivity extends AppCompatActivity {
         currentCourse.setEquipmentNeeded(cbEquipmentNeeded.isChecked());
         currentCourse.setEquipmentDescription(etEquipmentDescription.getText().toString().trim());
 
+        // Stay on the screen until the course is stored, and don't save it twice meanwhile
+        btnSave.setEnabled(false);
         if (isEditMode) {
-            dbHelper.updateCourse(currentCourse);
+            repository.updateCourse(currentCourse, scope, new RepositoryCallback<Integer>() {
+                @Override
+                public void onSuccess(Integer rows) {
+                    onCourseSaved();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    onCourseSaveFailed(e);
+                }
+            });
         } else {
-            dbHelper.addCourse(currentCourse);
+            repository.addCourse(currentCourse, scope, new RepositoryCallback<Long>() {
+                @Override
+                public void onSuccess(Long id) {
+                    onCourseSaved();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    onCourseSaveFailed(e);
+                }
+            });
         }
+    }
 
+    private void onCourseSaved() {
         Toast.makeText(this, isEditMode ? "Course updated successfully" : "Course added successfully", Toast.LENGTH_SHORT).show();
         setResult(RESULT_OK);
         finish();
     }
 
+    private void onCourseSaveFailed(Exception e) {
+        Log.e("CourseSave", "Error saving course", e);
+        Toast.makeText(this, "Error saving course", Toast.LENGTH_SHORT).show();
+        btnSave.setEnabled(true);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
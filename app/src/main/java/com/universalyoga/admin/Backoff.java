@@ -0,0 +1,51 @@
+package com.universalyoga.admin;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for retrying failed uploads.
+ * The ceiling doubles with every failed attempt up to a maximum, and the actual delay is drawn
+ * between half the ceiling and the ceiling, so documents that failed together don't all retry
+ * at the same moment when the connection comes back.
+ */
+public class Backoff {
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+
+    /**
+     * @param baseMillis The ceiling after the first failure
+     * @param maxMillis The largest ceiling
+     * @param random Source of the jitter
+     */
+    public Backoff(long baseMillis, long maxMillis, Random random) {
+        if (baseMillis < 1 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("Need 1 <= baseMillis <= maxMillis");
+        }
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    /**
+     * @param attempts How many attempts have failed so far, at least 1
+     * @return How long to wait before the next attempt
+     */
+    public long delayMillis(int attempts) {
+        long ceiling = ceilingMillis(attempts);
+        long half = ceiling / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (ceiling - half));
+        }
+    }
+
+    long ceilingMillis(int attempts) {
+        // Stop doubling once the maximum is reached, long before the value could overflow
+        long ceiling = baseMillis;
+        for (int i = 1; i < attempts && ceiling < maxMillis; i++) {
+            ceiling *= 2;
+        }
+        return Math.min(ceiling, maxMillis);
+    }
+}
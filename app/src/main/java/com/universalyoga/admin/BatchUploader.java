@@ -0,0 +1,188 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends a stream of writes to a RemoteStore in batches, with a cap on the batches in flight.
+ * Writes are added one by one as they are read; when the cap is reached, adding blocks until
+ * a batch completes, so memory stays bounded no matter how many rows are uploaded.
+ * Plain Java, so it can be tested and benchmarked against InMemoryRemoteStore.
+ */
+public class BatchUploader {
+
+    /**
+     * Told about every finished batch. Called on the store's callback threads.
+     */
+    public interface Listener {
+        void onBatchCommitted(int batchIndex, List<WriteOp> ops, UploadResult progress);
+        void onBatchFailed(int batchIndex, List<WriteOp> ops, Exception e, UploadResult progress);
+    }
+
+    /**
+     * Writes that have to commit atomically with the writes of a batch, such as counters kept over them.
+     * Told about every write of the batch being filled, and asked for its own writes when the batch is sent.
+     * Called on the thread that adds the writes.
+     */
+    public interface Extras {
+        void add(WriteOp op);
+
+        /**
+         * @return How many writes the batch being filled needs so far, at least {@code drain().size()}
+         */
+        int size();
+
+        /**
+         * @return The most writes that one more write can add to {@link #size()}
+         */
+        int maxPerWrite();
+
+        /**
+         * @return The writes of the batch being filled; the next batch starts with none
+         */
+        List<WriteOp> drain();
+    }
+
+    private final RemoteStore store;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    /**
+     * @param store Where the batches are committed
+     * @param batchSize Writes per batch, at most {@link RemoteStore#MAX_BATCH_SIZE}
+     * @param maxInFlight How many batches may be committing at the same time
+     */
+    public BatchUploader(RemoteStore store, int batchSize, int maxInFlight) {
+        if (batchSize < 1 || batchSize > RemoteStore.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batchSize must be between 1 and " + RemoteStore.MAX_BATCH_SIZE);
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.store = store;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Start an upload. Add the writes to the session, then call {@link Session#finish()}.
+     * @param listener Told about each batch, or null
+     */
+    public Session start(Listener listener) {
+        return start(listener, null);
+    }
+
+    /**
+     * Start an upload whose batches carry extra writes. A batch is sent once the next write might not fit
+     * in it together with the extra writes, so no batch goes over the batch size.
+     * @param listener Told about each batch, or null; it sees the added writes of a batch, not the extra ones
+     * @param extras The extra writes of each batch, or null
+     */
+    public Session start(Listener listener, Extras extras) {
+        if (extras != null && 1 + extras.maxPerWrite() > batchSize) {
+            throw new IllegalArgumentException("A write and its extras don't fit in a batch of " + batchSize);
+        }
+        return new Session(listener, extras);
+    }
+
+    /**
+     * One upload. Not thread-safe: add writes from a single thread.
+     */
+    public class Session {
+        private final Listener listener;
+        private final Extras extras;
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        private final UploadResult result = new UploadResult();
+        private List<WriteOp> pending = new ArrayList<>(batchSize);
+        private int nextBatchIndex;
+
+        private Session(Listener listener, Extras extras) {
+            this.listener = listener;
+            this.extras = extras;
+        }
+
+        /**
+         * Queue a write; sends a batch once enough writes are queued
+         * @throws InterruptedException If interrupted while waiting for a batch slot
+         */
+        public void add(WriteOp op) throws InterruptedException {
+            pending.add(op);
+            if (extras != null) {
+                extras.add(op);
+            }
+            if (!roomForAnother()) {
+                send();
+            }
+        }
+
+        private boolean roomForAnother() {
+            if (extras == null) {
+                return pending.size() < batchSize;
+            }
+            return pending.size() + extras.size() + 1 + extras.maxPerWrite() <= batchSize;
+        }
+
+        /**
+         * Send the last partial batch and wait until every batch has completed
+         * @return What was committed and what failed
+         * @throws InterruptedException If interrupted while waiting
+         */
+        public UploadResult finish() throws InterruptedException {
+            if (!pending.isEmpty()) {
+                send();
+            }
+            // All permits back means no batch is still committing
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+            return result;
+        }
+
+        private void send() throws InterruptedException {
+            List<WriteOp> batch = pending;
+            pending = new ArrayList<>(batchSize);
+            int batchIndex = nextBatchIndex++;
+            List<WriteOp> committed = batch;
+            if (extras != null) {
+                committed = new ArrayList<>(batch);
+                committed.addAll(extras.drain());
+            }
+
+            inFlight.acquire();
+            try {
+                store.commit(committed, new RemoteStore.CommitCallback() {
+                    @Override
+                    public void onSuccess() {
+                        result.addCommitted(batch.size());
+                        try {
+                            if (listener != null) {
+                                listener.onBatchCommitted(batchIndex, batch, result);
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        failed(batchIndex, batch, e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // The store could not even start the commit
+                failed(batchIndex, batch, e);
+            }
+        }
+
+        private void failed(int batchIndex, List<WriteOp> batch, Exception e) {
+            result.addFailed(batch.size());
+            try {
+                if (listener != null) {
+                    listener.onBatchFailed(batchIndex, batch, e, result);
+                }
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.universalyoga.admin;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Bit masks naming the fields of a course or class instance that changed since the last upload.
+ * Stored in the dirty_fields column, so the upload can merge just those fields into the remote
+ * document instead of rewriting all of it.
+ */
+public final class ChangedFields {
+
+    // Course fields
+    public static final int COURSE_NAME = 1;
+    public static final int COURSE_DAY_OF_WEEK = 1 << 1;
+    public static final int COURSE_TIME = 1 << 2;
+    public static final int COURSE_CAPACITY = 1 << 3;
+    public static final int COURSE_DURATION = 1 << 4;
+    public static final int COURSE_PRICE = 1 << 5;
+    public static final int COURSE_TYPE = 1 << 6;
+    public static final int COURSE_DESCRIPTION = 1 << 7;
+    public static final int COURSE_DIFFICULTY = 1 << 8;
+    public static final int COURSE_EQUIPMENT_NEEDED = 1 << 9;
+    public static final int COURSE_EQUIPMENT_DESCRIPTION = 1 << 10;
+    public static final int COURSE_FIELD_COUNT = 11;
+    public static final int ALL_COURSE = (1 << COURSE_FIELD_COUNT) - 1;
+
+    // Class instance fields
+    public static final int INSTANCE_COURSE_ID = 1;
+    public static final int INSTANCE_DATE = 1 << 1;
+    public static final int INSTANCE_TEACHER = 1 << 2;
+    public static final int INSTANCE_COMMENTS = 1 << 3;
+    public static final int INSTANCE_AVAILABLE_SPOTS = 1 << 4;
+    public static final int INSTANCE_IS_CANCELLED = 1 << 5;
+    public static final int CLASS_INSTANCE_FIELD_COUNT = 6;
+    public static final int ALL_CLASS_INSTANCE = (1 << CLASS_INSTANCE_FIELD_COUNT) - 1;
+
+    private ChangedFields() {
+    }
+
+    /**
+     * @return The fields whose values differ between two versions of a course
+     */
+    public static int between(Course before, Course after) {
+        int changed = 0;
+        if (!Objects.equals(before.getName(), after.getName())) changed |= COURSE_NAME;
+        if (!Objects.equals(before.getDayOfWeek(), after.getDayOfWeek())) changed |= COURSE_DAY_OF_WEEK;
+        if (!Objects.equals(before.getTime(), after.getTime())) changed |= COURSE_TIME;
+        if (before.getCapacity() != after.getCapacity()) changed |= COURSE_CAPACITY;
+        if (before.getDuration() != after.getDuration()) changed |= COURSE_DURATION;
+        if (Double.compare(before.getPrice(), after.getPrice()) != 0) changed |= COURSE_PRICE;
+        if (!Objects.equals(before.getType(), after.getType())) changed |= COURSE_TYPE;
+        if (!Objects.equals(before.getDescription(), after.getDescription())) changed |= COURSE_DESCRIPTION;
+        if (!Objects.equals(before.getDifficulty(), after.getDifficulty())) changed |= COURSE_DIFFICULTY;
+        if (before.isEquipmentNeeded() != after.isEquipmentNeeded()) changed |= COURSE_EQUIPMENT_NEEDED;
+        if (!Objects.equals(before.getEquipmentDescription(), after.getEquipmentDescription())) {
+            changed |= COURSE_EQUIPMENT_DESCRIPTION;
+        }
+        return changed;
+    }
+
+    /**
+     * @return The fields whose values differ between two versions of a class instance
+     */
+    public static int between(ClassInstance before, ClassInstance after) {
+        int changed = 0;
+        if (before.getCourseId() != after.getCourseId()) changed |= INSTANCE_COURSE_ID;
+        if (millis(before.getDate()) != millis(after.getDate())) changed |= INSTANCE_DATE;
+        if (!Objects.equals(before.getTeacher(), after.getTeacher())) changed |= INSTANCE_TEACHER;
+        if (!Objects.equals(before.getAdditionalComments(), after.getAdditionalComments())) changed |= INSTANCE_COMMENTS;
+        if (before.getAvailableSpots() != after.getAvailableSpots()) changed |= INSTANCE_AVAILABLE_SPOTS;
+        if (before.isCancelled() != after.isCancelled()) changed |= INSTANCE_IS_CANCELLED;
+        return changed;
+    }
+
+    /**
+     * Copy some fields from one version of a course to another
+     * @param from The course to copy from
+     * @param to The course to copy to
+     * @param fields The fields to copy
+     */
+    public static void copy(Course from, Course to, int fields) {
+        if ((fields & COURSE_NAME) != 0) to.setName(from.getName());
+        if ((fields & COURSE_DAY_OF_WEEK) != 0) to.setDayOfWeek(from.getDayOfWeek());
+        if ((fields & COURSE_TIME) != 0) to.setTime(from.getTime());
+        if ((fields & COURSE_CAPACITY) != 0) to.setCapacity(from.getCapacity());
+        if ((fields & COURSE_DURATION) != 0) to.setDuration(from.getDuration());
+        if ((fields & COURSE_PRICE) != 0) to.setPrice(from.getPrice());
+        if ((fields & COURSE_TYPE) != 0) to.setType(from.getType());
+        if ((fields & COURSE_DESCRIPTION) != 0) to.setDescription(from.getDescription());
+        if ((fields & COURSE_DIFFICULTY) != 0) to.setDifficulty(from.getDifficulty());
+        if ((fields & COURSE_EQUIPMENT_NEEDED) != 0) to.setEquipmentNeeded(from.isEquipmentNeeded());
+        if ((fields & COURSE_EQUIPMENT_DESCRIPTION) != 0) to.setEquipmentDescription(from.getEquipmentDescription());
+    }
+
+    /**
+     * Copy some fields from one version of a class instance to another
+     * @param from The class instance to copy from
+     * @param to The class instance to copy to
+     * @param fields The fields to copy
+     */
+    public static void copy(ClassInstance from, ClassInstance to, int fields) {
+        if ((fields & INSTANCE_COURSE_ID) != 0) to.setCourseId(from.getCourseId());
+        if ((fields & INSTANCE_DATE) != 0) to.setDate(from.getDate());
+        if ((fields & INSTANCE_TEACHER) != 0) to.setTeacher(from.getTeacher());
+        if ((fields & INSTANCE_COMMENTS) != 0) to.setAdditionalComments(from.getAdditionalComments());
+        if ((fields & INSTANCE_AVAILABLE_SPOTS) != 0) to.setAvailableSpots(from.getAvailableSpots());
+        if ((fields & INSTANCE_IS_CANCELLED) != 0) to.setCancelled(from.isCancelled());
+    }
+
+    private static long millis(Date date) {
+        return date != null ? date.getTime() : Long.MIN_VALUE;
+    }
+}
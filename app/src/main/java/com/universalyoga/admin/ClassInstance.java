@@ -12,8 +12,8 @@ import java.util.Calendar;
  */
 public class ClassInstance {
     // Required fields
-    private int id; // Database primary key
-    private int courseId; // Foreign key to the course
+    private long id; // Database primary key
+    private long courseId; // Foreign key to the course
     private Date date; // e.g., "17/10/2023"
     private String teacher; // Who is teaching this class
 
@@ -25,7 +25,7 @@ public class ClassInstance {
     /**
      * Constructor with required fields
      */
-    public ClassInstance(int courseId, Date date, String teacher) {
+    public ClassInstance(long courseId, Date date, String teacher) {
         this.courseId = courseId;
         this.date = date;
         this.teacher = teacher;
@@ -36,7 +36,7 @@ public class ClassInstance {
     /**
      * Full constructor with all fields
      */
-    public ClassInstance(int courseId, Date date, String teacher,
+    public ClassInstance(long courseId, Date date, String teacher,
                          String additionalComments, int availableSpots, boolean isCancelled) {
         this(courseId, date, teacher);
         this.additionalComments = additionalComments;
@@ -47,7 +47,7 @@ public class ClassInstance {
     /**
      * Constructor with id for database retrieval
      */
-    public ClassInstance(int id, int courseId, Date date, String teacher,
+    public ClassInstance(long id, long courseId, Date date, String teacher,
                          String additionalComments, int availableSpots, boolean isCancelled) {
         this(courseId, date, teacher, additionalComments, availableSpots, isCancelled);
         this.id = id;
@@ -55,19 +55,19 @@ public class ClassInstance {
 
     // Getters and setters
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
-    public int getCourseId() {
+    public long getCourseId() {
         return courseId;
     }
 
-    public void setCourseId(int courseId) {
+    public void setCourseId(long courseId) {
         this.courseId = courseId;
     }
 
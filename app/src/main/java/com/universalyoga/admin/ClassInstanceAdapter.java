@@ -0,0 +1,107 @@
+package com.universalyoga.admin;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Shows the class instances of a course in a RecyclerView, diffed like {@link CourseAdapter}:
+ * only the rows whose instance was added, removed, moved or changed are rebound.
+ */
+public class ClassInstanceAdapter extends ListAdapter<ClassInstance, ClassInstanceAdapter.InstanceViewHolder> {
+
+    public interface InstanceActionListener {
+        void onEditInstance(ClassInstance instance);
+        void onDeleteInstance(ClassInstance instance);
+    }
+
+    // Rows are the same instance when their IDs match, and unchanged when every stored field matches
+    static final DiffUtil.ItemCallback<ClassInstance> DIFF_CALLBACK = new DiffUtil.ItemCallback<ClassInstance>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ClassInstance oldInstance, @NonNull ClassInstance newInstance) {
+            return oldInstance.getId() == newInstance.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ClassInstance oldInstance, @NonNull ClassInstance newInstance) {
+            return ContentHash.of(oldInstance) == ContentHash.of(newInstance);
+        }
+    };
+
+    private final InstanceActionListener actionListener;
+    // Shared by every row; the row is found from the ViewHolder in the view's tag
+    private final View.OnClickListener clickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            ClassInstance instance = instanceAt(v);
+            if (instance != null) {
+                actionListener.onEditInstance(instance);
+            }
+        }
+    };
+    private final View.OnLongClickListener longClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            ClassInstance instance = instanceAt(v);
+            if (instance != null) {
+                actionListener.onDeleteInstance(instance);
+            }
+            return true;
+        }
+    };
+
+    public ClassInstanceAdapter(InstanceActionListener listener) {
+        super(DIFF_CALLBACK);
+        this.actionListener = listener;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
+    }
+
+    @NonNull
+    @Override
+    public InstanceViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View itemView = LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_1, parent, false);
+        InstanceViewHolder holder = new InstanceViewHolder(itemView);
+        itemView.setTag(holder);
+        itemView.setOnClickListener(clickListener);
+        itemView.setOnLongClickListener(longClickListener);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull InstanceViewHolder holder, int position) {
+        holder.tvInstance.setText(getItem(position).toString());
+    }
+
+    // The instance of the row a view belongs to, or null if the row is being removed
+    private ClassInstance instanceAt(View v) {
+        int position = ((InstanceViewHolder) v.getTag()).getBindingAdapterPosition();
+        if (position == RecyclerView.NO_POSITION || actionListener == null) {
+            return null;
+        }
+        return getItem(position);
+    }
+
+    /**
+     * The views of one instance row, looked up once when the row is created
+     */
+    static class InstanceViewHolder extends RecyclerView.ViewHolder {
+        final TextView tvInstance;
+
+        InstanceViewHolder(View itemView) {
+            super(itemView);
+            tvInstance = itemView.findViewById(android.R.id.text1);
+        }
+    }
+}
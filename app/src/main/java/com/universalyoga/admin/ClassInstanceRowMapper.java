@@ -0,0 +1,48 @@
+package com.universalyoga.admin;
+
+import android.database.Cursor;
+
+import java.util.Date;
+
+/**
+ * Maps rows of the class_instances table to ClassInstance objects.
+ * Works with full rows as well as narrow projections such as list rows;
+ * columns missing from the projection are left at their defaults.
+ */
+public class ClassInstanceRowMapper implements RowMapper<ClassInstance> {
+
+    private final int idIndex;
+    private final int courseIdIndex;
+    private final int dateIndex;
+    private final int teacherIndex;
+    private final int additionalCommentsIndex;
+    private final int availableSpotsIndex;
+    private final int isCancelledIndex;
+
+    /**
+     * Resolve the column indices of a cursor's projection
+     * @param cursor The cursor the mapper will read from
+     */
+    public ClassInstanceRowMapper(Cursor cursor) {
+        idIndex = cursor.getColumnIndex(DatabaseHelper.KEY_ID);
+        courseIdIndex = cursor.getColumnIndex(DatabaseHelper.KEY_COURSE_ID);
+        dateIndex = cursor.getColumnIndex(DatabaseHelper.KEY_DATE);
+        teacherIndex = cursor.getColumnIndex(DatabaseHelper.KEY_TEACHER);
+        additionalCommentsIndex = cursor.getColumnIndex(DatabaseHelper.KEY_ADDITIONAL_COMMENTS);
+        availableSpotsIndex = cursor.getColumnIndex(DatabaseHelper.KEY_AVAILABLE_SPOTS);
+        isCancelledIndex = cursor.getColumnIndex(DatabaseHelper.KEY_IS_CANCELLED);
+    }
+
+    @Override
+    public ClassInstance map(Cursor cursor) {
+        return new ClassInstance(
+                idIndex >= 0 ? cursor.getLong(idIndex) : 0,
+                courseIdIndex >= 0 ? cursor.getLong(courseIdIndex) : 0,
+                dateIndex >= 0 ? new Date(cursor.getLong(dateIndex)) : null,
+                teacherIndex >= 0 ? cursor.getString(teacherIndex) : null,
+                additionalCommentsIndex >= 0 ? cursor.getString(additionalCommentsIndex) : null,
+                availableSpotsIndex >= 0 ? cursor.getInt(availableSpotsIndex) : 0,
+                isCancelledIndex >= 0 && cursor.getInt(isCancelledIndex) == 1
+        );
+    }
+}
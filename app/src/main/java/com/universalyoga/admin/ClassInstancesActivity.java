@@ -3,32 +3,42 @@ package com.universalyoga.admin;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.MenuItem;
-import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.annotation.Nullable;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.util.List;
 
-public class ClassInstancesActivity extends AppCompatActivity {
+public class ClassInstancesActivity extends AppCompatActivity implements ClassInstanceAdapter.InstanceActionListener {
 
     private static final int REQUEST_ADD_INSTANCE = 1;
     private static final int REQUEST_EDIT_INSTANCE = 2;
+    private static final int PAGE_SIZE = 50;
+    // Load the next page when the user scrolls this close to the end of the list
+    private static final int PREFETCH_DISTANCE = 10;
 
-    private DatabaseHelper dbHelper;
+    private YogaRepository repository;
+    // Drops the pending requests of this screen when it is destroyed
+    private final RequestScope scope = new RequestScope();
+    private long courseId;
     private Course currentCourse;
-    private List<ClassInstance> instanceList;
+    private final InstanceListPages instancePages = new InstanceListPages(PAGE_SIZE);
+    private ClassInstanceAdapter instanceAdapter;
+    // The course and the instances on screen, each read again only when its rows change
+    private ObservableQuery<Course> courseQuery;
+    private ObservableQuery<List<ClassInstance>> instancesQuery;
 
     private TextView tvCourseInfo;
-    private ListView lvInstances;
+    private RecyclerView rvInstances;
+    private LinearLayoutManager instanceLayoutManager;
     private FloatingActionButton fabAddInstance;
 
     @Override
@@ -44,28 +54,86 @@ public class ClassInstancesActivity extends AppCompatActivity {
         ImageView btnBack = findViewById(R.id.btnBack);
         btnBack.setOnClickListener(v -> finish());
 
-        // Initialize database helper
-        dbHelper = new DatabaseHelper(this);
+        repository = YogaRepository.getInstance(this);
 
         // Get course ID from intent
-        int courseId = getIntent().getIntExtra("course_id", -1);
+        courseId = getIntent().getLongExtra("course_id", -1);
         if (courseId == -1) {
             Toast.makeText(this, "Error: No course selected", Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
 
-        // Load course data
-        currentCourse = dbHelper.getCourse(courseId);
-        if (currentCourse == null) {
-            Toast.makeText(this, "Error: Course not found", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
-
         // Initialize UI
         initializeUI();
 
+        // The course header follows edits of the course, e.g. from a sync, and the screen closes if it is deleted
+        courseQuery = repository.observeCourse(courseId, scope, new RepositoryCallback<Course>() {
+            @Override
+            public void onSuccess(Course course) {
+                if (course == null) {
+                    Toast.makeText(ClassInstancesActivity.this, "Error: Course not found", Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                boolean first = currentCourse == null;
+                currentCourse = course;
+                showCourse();
+                if (first) {
+                    setUpInstanceList();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(ClassInstancesActivity.this, "Error: Course not found", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
+        instancesQuery = repository.observeClassInstanceListRows(courseId, PAGE_SIZE, scope,
+                new RepositoryCallback<List<ClassInstance>>() {
+                    @Override
+                    public void onSuccess(List<ClassInstance> instances) {
+                        showInstances(instances);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        Toast.makeText(ClassInstancesActivity.this, "Error loading class instances", Toast.LENGTH_SHORT).show();
+                    }
+                });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Each query reads only the first time, or if its rows changed while the screen was hidden
+        if (courseQuery != null) {
+            courseQuery.start();
+            instancesQuery.start();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        if (courseQuery != null) {
+            courseQuery.stop();
+            instancesQuery.stop();
+        }
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (courseQuery != null) {
+            courseQuery.close();
+            instancesQuery.close();
+        }
+        scope.cancel();
+        super.onDestroy();
+    }
+
+    private void showCourse() {
         // Set course info
         tvCourseInfo.setText(String.format("%s - %s at %s\nCapacity: %d, Duration: %d minutes",
                 currentCourse.getType(),
@@ -73,36 +141,40 @@ public class ClassInstancesActivity extends AppCompatActivity {
                 currentCourse.getTime(),
                 currentCourse.getCapacity(),
                 currentCourse.getDuration()));
+    }
 
-        // Load instances
-        loadInstances();
-
-        // Set up item click listener for editing
-        lvInstances.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                ClassInstance selectedInstance = instanceList.get(position);
-                openEditInstanceActivity(selectedInstance);
-            }
-        });
+    // Once the course is known, the list shows the instances read so far and takes input
+    private void setUpInstanceList() {
+        instanceAdapter = new ClassInstanceAdapter(this);
+        rvInstances.setAdapter(instanceAdapter);
+        instanceAdapter.submitList(instancePages.getRows());
 
-        // Set up long click listener for deleting
-        lvInstances.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+        // Load further pages while scrolling
+        rvInstances.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
-                ClassInstance selectedInstance = instanceList.get(position);
-                deleteInstance(selectedInstance);
-                return true;
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = instanceAdapter.getItemCount();
+                if (instancePages.hasMore() && totalItemCount > 0
+                        && instanceLayoutManager.findLastVisibleItemPosition() >= totalItemCount - 1 - PREFETCH_DISTANCE) {
+                    loadMoreInstances();
+                }
             }
         });
 
         // Set up FAB to add new instance
-        fabAddInstance.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                openAddInstanceActivity();
-            }
-        });
+        fabAddInstance.setOnClickListener(v -> openAddInstanceActivity());
+    }
+
+    // Tapping a row edits the instance
+    @Override
+    public void onEditInstance(ClassInstance instance) {
+        openEditInstanceActivity(instance);
+    }
+
+    // A long press deletes it
+    @Override
+    public void onDeleteInstance(ClassInstance instance) {
+        deleteInstance(instance);
     }
 
     @Override
@@ -116,24 +188,47 @@ public class ClassInstancesActivity extends AppCompatActivity {
 
     private void initializeUI() {
         tvCourseInfo = findViewById(R.id.tvCourseInfo);
-        lvInstances = findViewById(R.id.lvInstances);
+        rvInstances = findViewById(R.id.rvInstances);
+        instanceLayoutManager = new LinearLayoutManager(this);
+        rvInstances.setLayoutManager(instanceLayoutManager);
+        rvInstances.setHasFixedSize(true);
+        rvInstances.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
         fabAddInstance = findViewById(R.id.fabAddInstance);
     }
 
-    private void loadInstances() {
-        instanceList = dbHelper.getClassInstancesForCourse(currentCourse.getId());
+    private void showInstances(List<ClassInstance> instances) {
+        instancePages.reloaded(instances, instancesQuery.getDeliveredLimit());
+        // Diffed against the rows on screen, so a read of unchanged rows rebinds nothing
+        if (instanceAdapter != null) {
+            instanceAdapter.submitList(instancePages.getRows());
+        }
 
-        if (instanceList.isEmpty()) {
-            Toast.makeText(this, "No class instances found. Add one to get started.", Toast.LENGTH_SHORT).show();
+        if (instances.isEmpty()) {
+            Toast.makeText(ClassInstancesActivity.this, "No class instances found. Add one to get started.", Toast.LENGTH_SHORT).show();
         }
+    }
 
-        ArrayAdapter<ClassInstance> adapter = new ArrayAdapter<>(
-                this,
-                android.R.layout.simple_list_item_1,
-                instanceList
-        );
+    private void loadMoreInstances() {
+        int ticket = instancePages.startLoadingMore();
+        if (ticket < 0) {
+            return;
+        }
+        repository.getClassInstanceListRowsPage(courseId, instancePages.getLast(), PAGE_SIZE, scope,
+                new RepositoryCallback<List<ClassInstance>>() {
+                    @Override
+                    public void onSuccess(List<ClassInstance> page) {
+                        if (instancePages.pageLoaded(ticket, page)) {
+                            instanceAdapter.submitList(instancePages.getRows());
+                            // Later reads keep the loaded pages
+                            instancesQuery.setLimit(instancePages.getRows().size());
+                        }
+                    }
 
-        lvInstances.setAdapter(adapter);
+                    @Override
+                    public void onFailure(Exception e) {
+                        instancePages.pageFailed(ticket);
+                    }
+                });
     }
 
     private void openAddInstanceActivity() {
@@ -155,20 +250,19 @@ public class ClassInstancesActivity extends AppCompatActivity {
         builder.setTitle("Delete Class Instance");
         builder.setMessage("Are you sure you want to delete this class instance?");
         builder.setPositiveButton("Delete", (dialog, which) -> {
-            dbHelper.deleteClassInstance(instance.getId());
-            loadInstances(); // Refresh the list
-            Toast.makeText(ClassInstancesActivity.this, "Class instance deleted", Toast.LENGTH_SHORT).show();
+            repository.deleteClassInstance(instance.getId(), scope, new RepositoryCallback<Integer>() {
+                @Override
+                public void onSuccess(Integer rows) {
+                    Toast.makeText(ClassInstancesActivity.this, "Class instance deleted", Toast.LENGTH_SHORT).show();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Toast.makeText(ClassInstancesActivity.this, "Error deleting class instance", Toast.LENGTH_SHORT).show();
+                }
+            });
         });
         builder.setNegativeButton("Cancel", null);
         builder.show();
     }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
-        super.onActivityResult(requestCode, resultCode, data);
-
-        if (resultCode == RESULT_OK) {
-            loadInstances(); // Refresh the list
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package com.universalyoga.admin;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Joins the pulls of the two collections into one result, or the first failure.
+ * Every way a pull can end reaches the callback exactly once: both last pages stored, a failed page,
+ * or a start that was refused by a full executor or threw before any page was asked for.
+ */
+class CloudPull {
+
+    private static final String TAG = "CloudPull";
+
+    /**
+     * Asks for the first page of each collection, on the executor the pull was started on
+     */
+    interface Starter {
+        void start(CloudPull pull) throws Exception;
+    }
+
+    private final RepositoryCallback<Integer> callback;
+    private final AtomicInteger pending = new AtomicInteger(2);
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger invalid = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    /**
+     * @param callback Receives the number of rows written, or the first failure; called on whichever thread
+     *                 finishes the pull
+     */
+    CloudPull(RepositoryCallback<Integer> callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Start the pulls on an executor
+     * @param executor The executor that stores the pulled pages
+     * @param starter Asks for the first pages
+     */
+    void start(Executor executor, Starter starter) {
+        try {
+            executor.execute(() -> {
+                try {
+                    starter.start(this);
+                } catch (Exception e) {
+                    Log.e(TAG, "Pull failed to start", e);
+                    failed(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Pull rejected, the queue is full", e);
+            failed(e);
+        }
+    }
+
+    void pageApplied(IngestResult result, boolean lastPage) {
+        written.addAndGet(result.getWritten());
+        skipped.addAndGet(result.getSkipped() + result.getUnchanged());
+        invalid.addAndGet(result.getInvalidIds().size());
+        if (lastPage && pending.decrementAndGet() == 0 && finished.compareAndSet(false, true)) {
+            Log.d(TAG, "Pull finished: " + written.get() + " rows written, " + skipped.get() + " unchanged skipped, "
+                    + invalid.get() + " invalid");
+            callback.onSuccess(written.get());
+        }
+    }
+
+    void failed(Exception e) {
+        if (finished.compareAndSet(false, true)) {
+            callback.onFailure(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.universalyoga.admin;
+
+/**
+ * 64-bit FNV-1a hash of a row's synced fields.
+ * Stored next to each row as the hash of what was last uploaded, so an edit that puts a row back
+ * the way it was synced is recognised and not uploaded again.
+ * The fields are hashed in a fixed order and strings carry their length, so "ab", "c" and "a", "bc"
+ * hash differently. Plain Java, no Android dependencies.
+ */
+public final class ContentHash {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private long hash = OFFSET_BASIS;
+
+    /**
+     * @return The hash of the fields a course document holds
+     */
+    public static long of(Course course) {
+        return new ContentHash()
+                .add(course.getName())
+                .add(course.getDayOfWeek())
+                .add(course.getTime())
+                .add(course.getCapacity())
+                .add(course.getDuration())
+                .add(Double.doubleToLongBits(course.getPrice()))
+                .add(course.getType())
+                .add(course.getDescription())
+                .add(course.getDifficulty())
+                .add(course.isEquipmentNeeded() ? 1 : 0)
+                .add(course.getEquipmentDescription())
+                .get();
+    }
+
+    /**
+     * @return The hash of the fields a class instance document holds
+     */
+    public static long of(ClassInstance instance) {
+        return new ContentHash()
+                .add(instance.getCourseId())
+                .add(instance.getDate() != null ? instance.getDate().getTime() : 0)
+                .add(instance.getTeacher())
+                .add(instance.getAdditionalComments())
+                .add(instance.getAvailableSpots())
+                .add(instance.isCancelled() ? 1 : 0)
+                .get();
+    }
+
+    public ContentHash add(long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            addByte((int) (value >>> shift));
+        }
+        return this;
+    }
+
+    public ContentHash add(String value) {
+        if (value == null) {
+            // -1 cannot be the length of a real string
+            return add(-1L);
+        }
+        add(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            addByte(c);
+            addByte(c >>> 8);
+        }
+        return this;
+    }
+
+    public long get() {
+        return hash;
+    }
+
+    private void addByte(int b) {
+        hash ^= b & 0xff;
+        hash *= PRIME;
+    }
+}
@@ -9,7 +9,7 @@ import java.util.List;
  */
 public class Course {
     // Required fields
-    private int id; // Database primary key
+    private long id; // Database primary key
     private String name; // Course name
     private String dayOfWeek; // e.g., "Monday", "Tuesday"
     private String time; // e.g., "10:00", "11:00"
@@ -59,7 +59,7 @@ public class Course {
     /**
      * Constructor with id for database retrieval
      */
-    public Course(int id, String name, String dayOfWeek, String time, int capacity, int duration, double price,
+    public Course(long id, String name, String dayOfWeek, String time, int capacity, int duration, double price,
                   String type, String description, String difficulty,
                   boolean equipmentNeeded, String equipmentDescription) {
         this(name, dayOfWeek, time, capacity, duration, price, type, description,
@@ -69,11 +69,11 @@ public class Course {
 
     // Getters and setters
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
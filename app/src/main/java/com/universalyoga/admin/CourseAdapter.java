@@ -1,93 +1,116 @@
 package com.universalyoga.admin;
 
-import android.content.Context;
-import android.content.Intent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
-
-import java.util.List;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
 
 /**
- * Custom adapter for displaying course items in a ListView
+ * Shows courses in a RecyclerView. A new list is compared with the shown one on a background thread,
+ * and only the rows whose course was added, removed, moved or changed are rebound.
  */
-public class CourseAdapter extends ArrayAdapter<Course> {
-
-    private Context context;
-    private List<Course> courses;
-    private CourseActionListener actionListener;
+public class CourseAdapter extends ListAdapter<Course, CourseAdapter.CourseViewHolder> {
 
     public interface CourseActionListener {
         void onEditCourse(Course course);
         void onManageClasses(Course course);
-        void onDeleteCourse(Course course); // ✅ Add this line
+        void onDeleteCourse(Course course);
     }
 
+    // Rows are the same course when their IDs match, and unchanged when every stored field matches
+    static final DiffUtil.ItemCallback<Course> DIFF_CALLBACK = new DiffUtil.ItemCallback<Course>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Course oldCourse, @NonNull Course newCourse) {
+            return oldCourse.getId() == newCourse.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Course oldCourse, @NonNull Course newCourse) {
+            return ContentHash.of(oldCourse) == ContentHash.of(newCourse);
+        }
+    };
+
+    private final CourseActionListener actionListener;
+    // One listener for the buttons of every row; the row is found from the ViewHolder in the button's tag
+    private final View.OnClickListener buttonClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            CourseViewHolder holder = (CourseViewHolder) v.getTag();
+            int position = holder.getBindingAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || actionListener == null) {
+                return; // The row is being removed
+            }
+            Course course = getItem(position);
+            int id = v.getId();
+            if (id == R.id.btnEditCourse) {
+                actionListener.onEditCourse(course);
+            } else if (id == R.id.btnManageClasses) {
+                actionListener.onManageClasses(course);
+            } else if (id == R.id.btnDeleteCourse) {
+                actionListener.onDeleteCourse(course);
+            }
+        }
+    };
 
-    public CourseAdapter(Context context, List<Course> courses, CourseActionListener listener) {
-        super(context, R.layout.item_course, courses);
-        this.context = context;
-        this.courses = courses;
+    public CourseAdapter(CourseActionListener listener) {
+        super(DIFF_CALLBACK);
         this.actionListener = listener;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
     }
 
     @NonNull
     @Override
-    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-        View listItem = convertView;
-        if (listItem == null) {
-            listItem = LayoutInflater.from(context).inflate(R.layout.item_course, parent, false);
+    public CourseViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View itemView = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_course, parent, false);
+        CourseViewHolder holder = new CourseViewHolder(itemView);
+        for (Button button : new Button[]{holder.btnEditCourse, holder.btnManageClasses, holder.btnDeleteCourse}) {
+            button.setTag(holder);
+            button.setOnClickListener(buttonClickListener);
         }
+        return holder;
+    }
 
-        final Course currentCourse = courses.get(position);
-
-        TextView tvCourseType = listItem.findViewById(R.id.tvCourseType);
-        TextView tvCourseDay = listItem.findViewById(R.id.tvCourseDay);
-        TextView tvCourseTime = listItem.findViewById(R.id.tvCourseTime);
-        TextView tvCoursePrice = listItem.findViewById(R.id.tvCoursePrice);
-        Button btnEditCourse = listItem.findViewById(R.id.btnEditCourse);
-        Button btnManageClasses = listItem.findViewById(R.id.btnManageClasses);
-
-        tvCourseType.setText(currentCourse.getType());
-        tvCourseDay.setText(currentCourse.getDayOfWeek());
-        tvCourseTime.setText(currentCourse.getTime() + " (" + currentCourse.getDuration() + " mins)");
-        tvCoursePrice.setText("£" + String.format("%.2f", currentCourse.getPrice()));
-
-        // Set button click listeners
-        btnEditCourse.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                if (actionListener != null) {
-                    actionListener.onEditCourse(currentCourse);
-                }
-            }
-        });
-
-        btnManageClasses.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                if (actionListener != null) {
-                    actionListener.onManageClasses(currentCourse);
-                }
-            }
-        });
-
-        Button btnDeleteCourse = listItem.findViewById(R.id.btnDeleteCourse);
-        btnDeleteCourse.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                if (actionListener != null) {
-                    actionListener.onDeleteCourse(currentCourse);
-                }
-            }
-        });
+    @Override
+    public void onBindViewHolder(@NonNull CourseViewHolder holder, int position) {
+        Course course = getItem(position);
+        holder.tvCourseType.setText(course.getType());
+        holder.tvCourseDay.setText(course.getDayOfWeek());
+        holder.tvCourseTime.setText(course.getTime() + " (" + course.getDuration() + " mins)");
+        holder.tvCoursePrice.setText("£" + String.format("%.2f", course.getPrice()));
+    }
 
-        return listItem;
+    /**
+     * The views of one course row, looked up once when the row is created
+     */
+    static class CourseViewHolder extends RecyclerView.ViewHolder {
+        final TextView tvCourseType;
+        final TextView tvCourseDay;
+        final TextView tvCourseTime;
+        final TextView tvCoursePrice;
+        final Button btnEditCourse;
+        final Button btnManageClasses;
+        final Button btnDeleteCourse;
+
+        CourseViewHolder(View itemView) {
+            super(itemView);
+            tvCourseType = itemView.findViewById(R.id.tvCourseType);
+            tvCourseDay = itemView.findViewById(R.id.tvCourseDay);
+            tvCourseTime = itemView.findViewById(R.id.tvCourseTime);
+            tvCoursePrice = itemView.findViewById(R.id.tvCoursePrice);
+            btnEditCourse = itemView.findViewById(R.id.btnEditCourse);
+            btnManageClasses = itemView.findViewById(R.id.btnManageClasses);
+            btnDeleteCourse = itemView.findViewById(R.id.btnDeleteCourse);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package com.universalyoga.admin;
+
+import android.database.Cursor;
+
+/**
+ * Maps rows of the courses table to Course objects.
+ * Columns missing from the query's projection are left at their defaults.
+ */
+public class CourseRowMapper implements RowMapper<Course> {
+
+    private final int idIndex;
+    private final int nameIndex;
+    private final int dayOfWeekIndex;
+    private final int timeIndex;
+    private final int capacityIndex;
+    private final int durationIndex;
+    private final int priceIndex;
+    private final int typeIndex;
+    private final int descriptionIndex;
+    private final int difficultyIndex;
+    private final int equipmentNeededIndex;
+    private final int equipmentDescriptionIndex;
+
+    /**
+     * Resolve the column indices of a cursor's projection
+     * @param cursor The cursor the mapper will read from
+     */
+    public CourseRowMapper(Cursor cursor) {
+        idIndex = cursor.getColumnIndex(DatabaseHelper.KEY_ID);
+        nameIndex = cursor.getColumnIndex(DatabaseHelper.KEY_NAME);
+        dayOfWeekIndex = cursor.getColumnIndex(DatabaseHelper.KEY_DAY_OF_WEEK);
+        timeIndex = cursor.getColumnIndex(DatabaseHelper.KEY_TIME);
+        capacityIndex = cursor.getColumnIndex(DatabaseHelper.KEY_CAPACITY);
+        durationIndex = cursor.getColumnIndex(DatabaseHelper.KEY_DURATION);
+        priceIndex = cursor.getColumnIndex(DatabaseHelper.KEY_PRICE);
+        typeIndex = cursor.getColumnIndex(DatabaseHelper.KEY_TYPE);
+        descriptionIndex = cursor.getColumnIndex(DatabaseHelper.KEY_DESCRIPTION);
+        difficultyIndex = cursor.getColumnIndex(DatabaseHelper.KEY_DIFFICULTY);
+        equipmentNeededIndex = cursor.getColumnIndex(DatabaseHelper.KEY_EQUIPMENT_NEEDED);
+        equipmentDescriptionIndex = cursor.getColumnIndex(DatabaseHelper.KEY_EQUIPMENT_DESCRIPTION);
+    }
+
+    @Override
+    public Course map(Cursor cursor) {
+        String type = typeIndex >= 0 ? cursor.getString(typeIndex) : null;
+
+        // Fall back to the type when the course has no name
+        String name = nameIndex >= 0 ? cursor.getString(nameIndex) : null;
+        if (name == null || name.isEmpty()) {
+            name = type;
+        }
+
+        return new Course(
+                idIndex >= 0 ? cursor.getLong(idIndex) : 0,
+                name,
+                dayOfWeekIndex >= 0 ? cursor.getString(dayOfWeekIndex) : null,
+                timeIndex >= 0 ? cursor.getString(timeIndex) : null,
+                capacityIndex >= 0 ? cursor.getInt(capacityIndex) : 0,
+                durationIndex >= 0 ? cursor.getInt(durationIndex) : 0,
+                priceIndex >= 0 ? cursor.getDouble(priceIndex) : 0,
+                type,
+                descriptionIndex >= 0 ? cursor.getString(descriptionIndex) : null,
+                difficultyIndex >= 0 ? cursor.getString(difficultyIndex) : null,
+                equipmentNeededIndex >= 0 && cursor.getInt(equipmentNeededIndex) == 1,
+                equipmentDescriptionIndex >= 0 ? cursor.getString(equipmentDescriptionIndex) : null
+        );
+    }
+}
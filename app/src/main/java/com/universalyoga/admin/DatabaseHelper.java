@@ -3,55 +3,117 @@ package com.universalyoga.admin;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.util.Log;
 
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
 
 /**
  * Database helper class to handle SQLite operations for the Universal Yoga app.
  */
-public class DatabaseHelper extends SQLiteOpenHelper {
+public class DatabaseHelper extends SQLiteOpenHelper implements SyncStateStore {
+
+    private static final String TAG = "DatabaseHelper";
+    private static final int STORED_ROWS_CHUNK = 500; // IDs or buckets per lookup, below SQLite's 999 parameters
+    static final int MAX_RANKED_MATCHES = 1000; // Matches a search can page through, most relevant first
 
     // Database Info
     private static final String DATABASE_NAME = "UniversalYoga.db";
-    private static final int DATABASE_VERSION = 2; // Increased from 1 to 2 to trigger database upgrade
+    private static final int DATABASE_VERSION = 13; // 2 added courses.name, 3 secondary indexes, 4 full-text search, 5 paging index, 6 sync state, 7 change tracking, 8 outbox, 9 field stamps, 10 outbox synced hash, 11 teachers table, 12 digest leaves, 13 teacher_id set on write
 
     // Table Names
-    private static final String TABLE_COURSES = "courses";
-    private static final String TABLE_CLASS_INSTANCES = "class_instances";
+    static final String TABLE_COURSES = "courses";
+    static final String TABLE_CLASS_INSTANCES = "class_instances";
+    static final String TABLE_TEACHERS = "teachers";
+    private static final String TABLE_CLASS_INSTANCES_FTS = "class_instances_fts";
+    private static final String TABLE_SYNC_STATE = "sync_state";
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String TABLE_DIGEST_LEAVES = "digest_leaves";
 
     // Common Column Names
-    private static final String KEY_ID = "id";
+    static final String KEY_ID = "id";
 
     // Courses Table Columns
-    private static final String KEY_NAME = "name";
-    private static final String KEY_DAY_OF_WEEK = "day_of_week";
-    private static final String KEY_TIME = "time";
-    private static final String KEY_CAPACITY = "capacity";
-    private static final String KEY_DURATION = "duration";
-    private static final String KEY_PRICE = "price";
-    private static final String KEY_TYPE = "type";
-    private static final String KEY_DESCRIPTION = "description";
-    private static final String KEY_DIFFICULTY = "difficulty";
-    private static final String KEY_EQUIPMENT_NEEDED = "equipment_needed";
-    private static final String KEY_EQUIPMENT_DESCRIPTION = "equipment_description";
+    static final String KEY_NAME = "name";
+    static final String KEY_DAY_OF_WEEK = "day_of_week";
+    static final String KEY_TIME = "time";
+    static final String KEY_CAPACITY = "capacity";
+    static final String KEY_DURATION = "duration";
+    static final String KEY_PRICE = "price";
+    static final String KEY_TYPE = "type";
+    static final String KEY_DESCRIPTION = "description";
+    static final String KEY_DIFFICULTY = "difficulty";
+    static final String KEY_EQUIPMENT_NEEDED = "equipment_needed";
+    static final String KEY_EQUIPMENT_DESCRIPTION = "equipment_description";
 
     // Class Instances Table Columns
-    private static final String KEY_COURSE_ID = "course_id";
-    private static final String KEY_DATE = "date";
-    private static final String KEY_TEACHER = "teacher";
-    private static final String KEY_ADDITIONAL_COMMENTS = "additional_comments";
-    private static final String KEY_AVAILABLE_SPOTS = "available_spots";
-    private static final String KEY_IS_CANCELLED = "is_cancelled";
+    static final String KEY_COURSE_ID = "course_id";
+    static final String KEY_DATE = "date";
+    static final String KEY_TEACHER = "teacher";
+    static final String KEY_TEACHER_ID = "teacher_id";
+    static final String KEY_ADDITIONAL_COMMENTS = "additional_comments";
+    static final String KEY_AVAILABLE_SPOTS = "available_spots";
+    static final String KEY_IS_CANCELLED = "is_cancelled";
+
+    // Sync State Table Columns
+    static final String KEY_STATE_KEY = "state_key";
+    static final String KEY_STATE_VALUE = "state_value";
+
+    // Outbox Table Columns
+    static final String KEY_COLLECTION = "collection";
+    static final String KEY_DOCUMENT_ID = "document_id";
+    static final String KEY_OPERATION = "operation";
+    static final String KEY_ATTEMPTS = "attempts";
+    static final String KEY_NEXT_ATTEMPT_AT = "next_attempt_at";
+    static final String KEY_ENQUEUED_AT = "enqueued_at";
+
+    // Digest Leaves Table Columns (and collection)
+    static final String KEY_BUCKET = "bucket";
+    static final String KEY_LEAF_VALUE = "leaf_value";
+
+    // Change tracking columns, on both data tables
+    static final String KEY_DIRTY = "dirty"; // 1 while the row has changes that are not uploaded yet
+    static final String KEY_DIRTY_FIELDS = "dirty_fields"; // ChangedFields bits of those changes
+    static final String KEY_LOCAL_VERSION = "local_version"; // Bumped by every change to the row
+    static final String KEY_SYNCED_HASH = "synced_hash"; // ContentHash of the last upload, null if never uploaded
+    static final String KEY_FIELD_STAMPS = "field_stamps"; // HybridLogicalClock stamp of each field, see FieldClockMerger
+    // Set together with synced_hash: the row's MerkleDigest bucket, and what its synced document adds to it
+    static final String KEY_DIGEST_BUCKET = "digest_bucket";
+    static final String KEY_DIGEST_CONTRIBUTION = "digest_contribution"; // null if never uploaded
+
+    // Full-text search table columns (docid is the class instance id)
+    private static final String FTS_TEACHER = "teacher";
+    private static final String FTS_COMMENTS = "comments";
+    private static final String FTS_COURSE_TYPE = "course_type";
+    private static final String FTS_COURSE_NAME = "course_name";
+    private static final String FTS_COURSE_DESCRIPTION = "course_description";
 
     // Table Create Statements
     // Courses table create statement
+    // IDs come from IdGenerator. Databases created before still say AUTOINCREMENT, which makes no difference
+    // since every insert supplies its ID.
     private static final String CREATE_TABLE_COURSES = "CREATE TABLE " + TABLE_COURSES +
             "(" +
-            KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            KEY_ID + " INTEGER PRIMARY KEY," +
             KEY_NAME + " TEXT," +
             KEY_DAY_OF_WEEK + " TEXT NOT NULL," +
             KEY_TIME + " TEXT NOT NULL," +
@@ -62,24 +124,456 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             KEY_DESCRIPTION + " TEXT," +
             KEY_DIFFICULTY + " TEXT," +
             KEY_EQUIPMENT_NEEDED + " INTEGER DEFAULT 0," +
-            KEY_EQUIPMENT_DESCRIPTION + " TEXT" +
+            KEY_EQUIPMENT_DESCRIPTION + " TEXT," +
+            KEY_DIRTY + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_DIRTY_FIELDS + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_LOCAL_VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_SYNCED_HASH + " INTEGER," +
+            KEY_FIELD_STAMPS + " BLOB," +
+            KEY_DIGEST_BUCKET + " INTEGER," +
+            KEY_DIGEST_CONTRIBUTION + " INTEGER" +
             ")";
 
     // Class Instances table create statement
     private static final String CREATE_TABLE_CLASS_INSTANCES = "CREATE TABLE " + TABLE_CLASS_INSTANCES +
             "(" +
-            KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            KEY_ID + " INTEGER PRIMARY KEY," +
             KEY_COURSE_ID + " INTEGER NOT NULL," +
             KEY_DATE + " INTEGER NOT NULL," +  // Store as long (milliseconds since epoch)
             KEY_TEACHER + " TEXT NOT NULL," +
+            KEY_TEACHER_ID + " INTEGER," + // Looked up by every write of the teacher, see TeacherIds
             KEY_ADDITIONAL_COMMENTS + " TEXT," +
             KEY_AVAILABLE_SPOTS + " INTEGER," +
             KEY_IS_CANCELLED + " INTEGER DEFAULT 0," +
-            "FOREIGN KEY (" + KEY_COURSE_ID + ") REFERENCES " + TABLE_COURSES + "(" + KEY_ID + ")" +
+            KEY_DIRTY + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_DIRTY_FIELDS + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_LOCAL_VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_SYNCED_HASH + " INTEGER," +
+            KEY_FIELD_STAMPS + " BLOB," +
+            KEY_DIGEST_BUCKET + " INTEGER," +
+            KEY_DIGEST_CONTRIBUTION + " INTEGER," +
+            "FOREIGN KEY (" + KEY_COURSE_ID + ") REFERENCES " + TABLE_COURSES + "(" + KEY_ID + ")," +
+            "FOREIGN KEY (" + KEY_TEACHER_ID + ") REFERENCES " + TABLE_TEACHERS + "(" + KEY_ID + ")" +
+            ")";
+
+    // One row per distinct teacher. Names are compared without case, and instances spelling a teacher with
+    // different case or surrounding spaces share the row. The instances keep the name as typed, which is what
+    // they sync and show; teacher_id lets lookups by teacher join on an integer key.
+    private static final String CREATE_TABLE_TEACHERS = "CREATE TABLE " + TABLE_TEACHERS +
+            "(" +
+            KEY_ID + " INTEGER PRIMARY KEY," +
+            KEY_NAME + " TEXT NOT NULL UNIQUE COLLATE NOCASE" +
+            ")";
+
+    // Adds the teacher row of a name not seen before; a blank name gets none, and its instances no teacher_id
+    private static final String SQL_ADD_TEACHER = "INSERT OR IGNORE INTO " + TABLE_TEACHERS + "(" + KEY_NAME + ")" +
+            " SELECT trim(?1) WHERE trim(?1) != ''";
+    private static final String SQL_TEACHER_ID = "SELECT " + KEY_ID + " FROM " + TABLE_TEACHERS +
+            " WHERE " + KEY_NAME + " = trim(?1)";
+
+    // Drops a teacher added for a row that then failed its constraints, unless another instance has them
+    private static final String SQL_DROP_TEACHER_IF_UNUSED = "DELETE FROM " + TABLE_TEACHERS +
+            " WHERE " + KEY_ID + " = ?1 AND NOT EXISTS (SELECT 1 FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_TEACHER_ID + " = ?1)";
+
+    // Drops the teacher of instance row "old" once no instance has them
+    private static final String DROP_UNUSED_TEACHER = "DELETE FROM " + TABLE_TEACHERS +
+            " WHERE " + KEY_ID + " = old." + KEY_TEACHER_ID + " AND NOT EXISTS (SELECT 1 FROM " +
+            TABLE_CLASS_INSTANCES + " WHERE " + KEY_TEACHER_ID + " = old." + KEY_TEACHER_ID + ");";
+
+    // Every write sets teacher_id itself, in the same statement as the name; the triggers only drop a teacher
+    // with their last class, whichever write path moved or deleted it
+    private static final String[] CREATE_TEACHER_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS trg_class_instances_teacher_changed AFTER UPDATE OF " + KEY_TEACHER_ID +
+                    " ON " + TABLE_CLASS_INSTANCES + " WHEN old." + KEY_TEACHER_ID + " IS NOT new." + KEY_TEACHER_ID +
+                    " BEGIN " + DROP_UNUSED_TEACHER + " END",
+            "CREATE TRIGGER IF NOT EXISTS trg_class_instances_teacher_delete AFTER DELETE ON " + TABLE_CLASS_INSTANCES +
+                    " BEGIN " + DROP_UNUSED_TEACHER + " END"
+    };
+
+    // Small key/value store for sync progress, e.g. the pull high-water mark of each collection
+    private static final String CREATE_TABLE_SYNC_STATE = "CREATE TABLE IF NOT EXISTS " + TABLE_SYNC_STATE +
+            "(" +
+            KEY_STATE_KEY + " TEXT PRIMARY KEY," +
+            KEY_STATE_VALUE + " TEXT" +
+            ")";
+
+    // Documents waiting to be written to Firestore, one entry per document. Entries are added in the
+    // same transaction as the local change, so no change is lost if the app dies before uploading it.
+    private static final String CREATE_TABLE_OUTBOX = "CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX +
+            "(" +
+            KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            KEY_COLLECTION + " TEXT NOT NULL," +
+            KEY_DOCUMENT_ID + " TEXT NOT NULL," +
+            KEY_OPERATION + " TEXT NOT NULL," +
+            KEY_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_NEXT_ATTEMPT_AT + " INTEGER NOT NULL DEFAULT 0," +
+            KEY_ENQUEUED_AT + " INTEGER NOT NULL," +
+            KEY_SYNCED_HASH + " INTEGER," + // Deletes only: what the cloud held, for the MerkleDigest
+            "UNIQUE (" + KEY_COLLECTION + ", " + KEY_DOCUMENT_ID + ")" +
+            ")";
+
+    // The local MerkleDigest buckets of each collection: the sum of the digest_contribution of the rows in
+    // each bucket, kept by the triggers below so the digest is read without going through the rows.
+    // Every bucket has a row from the start, so the triggers only ever update.
+    private static final String CREATE_TABLE_DIGEST_LEAVES = "CREATE TABLE IF NOT EXISTS " + TABLE_DIGEST_LEAVES +
+            "(" +
+            KEY_COLLECTION + " TEXT NOT NULL," +
+            KEY_BUCKET + " INTEGER NOT NULL," +
+            KEY_LEAF_VALUE + " INTEGER NOT NULL DEFAULT 0," +
+            "PRIMARY KEY (" + KEY_COLLECTION + ", " + KEY_BUCKET + ")" +
             ")";
 
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private static String insertDigestLeaves(String collection) {
+        return "INSERT INTO " + TABLE_DIGEST_LEAVES + "(" + KEY_COLLECTION + ", " + KEY_BUCKET + ")" +
+                " WITH RECURSIVE leaf(n) AS (SELECT 0 UNION ALL SELECT n + 1 FROM leaf WHERE n < " +
+                (MerkleDigest.LEAF_COUNT - 1) + ") SELECT '" + collection + "', n FROM leaf";
+    }
+
+    // Moves the leaf of row "r" by the contribution given
+    private static String moveDigestLeaf(String collection, String r, String change) {
+        return "UPDATE " + TABLE_DIGEST_LEAVES + " SET " + KEY_LEAF_VALUE + " = " + KEY_LEAF_VALUE + " " + change +
+                " WHERE " + KEY_COLLECTION + " = '" + collection + "' AND " + KEY_BUCKET + " = " + r + "." +
+                KEY_DIGEST_BUCKET + ";";
+    }
+
+    // Only rows that reached the cloud have a contribution, so local inserts and edits don't fire these
+    private static String[] digestTriggers(String table, String collection) {
+        return new String[]{
+                "CREATE TRIGGER IF NOT EXISTS trg_" + table + "_digest_insert AFTER INSERT ON " + table +
+                        " WHEN new." + KEY_DIGEST_CONTRIBUTION + " IS NOT NULL" +
+                        " BEGIN " + moveDigestLeaf(collection, "new", "+ new." + KEY_DIGEST_CONTRIBUTION) + " END",
+                "CREATE TRIGGER IF NOT EXISTS trg_" + table + "_digest_update AFTER UPDATE OF " +
+                        KEY_DIGEST_CONTRIBUTION + " ON " + table +
+                        " WHEN new." + KEY_DIGEST_CONTRIBUTION + " IS NOT old." + KEY_DIGEST_CONTRIBUTION +
+                        " BEGIN " + moveDigestLeaf(collection, "old", "- ifnull(old." + KEY_DIGEST_CONTRIBUTION + ", 0)") +
+                        " " + moveDigestLeaf(collection, "new", "+ ifnull(new." + KEY_DIGEST_CONTRIBUTION + ", 0)") + " END",
+                "CREATE TRIGGER IF NOT EXISTS trg_" + table + "_digest_delete AFTER DELETE ON " + table +
+                        " WHEN old." + KEY_DIGEST_CONTRIBUTION + " IS NOT NULL" +
+                        " BEGIN " + moveDigestLeaf(collection, "old", "- old." + KEY_DIGEST_CONTRIBUTION) + " END"
+        };
+    }
+
+    // Full-text search shadow table. It stores its own copy of the searchable text,
+    // including the parent course fields, and is kept in sync by the triggers below.
+    private static final String CREATE_TABLE_CLASS_INSTANCES_FTS = "CREATE VIRTUAL TABLE " + TABLE_CLASS_INSTANCES_FTS +
+            " USING fts4(" +
+            FTS_TEACHER + ", " +
+            FTS_COMMENTS + ", " +
+            FTS_COURSE_TYPE + ", " +
+            FTS_COURSE_NAME + ", " +
+            FTS_COURSE_DESCRIPTION + ", " +
+            "prefix=\"1,2,3\"" + // prefix indexes so short search-as-you-type terms stay cheap
+            ")";
+
+    // Values for one search row, read from the instance row "r" and its course
+    private static String ftsValuesFor(String r) {
+        return r + "." + KEY_ID + ", " +
+                r + "." + KEY_TEACHER + ", " +
+                r + "." + KEY_ADDITIONAL_COMMENTS + ", " +
+                "(SELECT " + KEY_TYPE + " FROM " + TABLE_COURSES + " WHERE " + KEY_ID + " = " + r + "." + KEY_COURSE_ID + "), " +
+                "(SELECT " + KEY_NAME + " FROM " + TABLE_COURSES + " WHERE " + KEY_ID + " = " + r + "." + KEY_COURSE_ID + "), " +
+                "(SELECT " + KEY_DESCRIPTION + " FROM " + TABLE_COURSES + " WHERE " + KEY_ID + " = " + r + "." + KEY_COURSE_ID + ")";
+    }
+
+    private static final String FTS_INSERT_COLUMNS = "INSERT INTO " + TABLE_CLASS_INSTANCES_FTS +
+            "(docid, " + FTS_TEACHER + ", " + FTS_COMMENTS + ", " + FTS_COURSE_TYPE + ", " +
+            FTS_COURSE_NAME + ", " + FTS_COURSE_DESCRIPTION + ")";
+
+    // Copies a course's searchable fields onto the search rows of all its instances
+    private static final String FTS_UPDATE_COURSE_FIELDS = "UPDATE " + TABLE_CLASS_INSTANCES_FTS + " SET " +
+            FTS_COURSE_TYPE + " = new." + KEY_TYPE + ", " +
+            FTS_COURSE_NAME + " = new." + KEY_NAME + ", " +
+            FTS_COURSE_DESCRIPTION + " = new." + KEY_DESCRIPTION +
+            " WHERE docid IN (SELECT " + KEY_ID + " FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_COURSE_ID + " = new." + KEY_ID + ");";
+
+    private static final String[] CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS trg_class_instances_fts_insert AFTER INSERT ON " + TABLE_CLASS_INSTANCES +
+                    " BEGIN " + FTS_INSERT_COLUMNS + " VALUES (" + ftsValuesFor("new") + "); END",
+            "CREATE TRIGGER IF NOT EXISTS trg_class_instances_fts_update AFTER UPDATE OF " +
+                    KEY_ID + ", " + KEY_COURSE_ID + ", " + KEY_TEACHER + ", " + KEY_ADDITIONAL_COMMENTS +
+                    " ON " + TABLE_CLASS_INSTANCES +
+                    " BEGIN DELETE FROM " + TABLE_CLASS_INSTANCES_FTS + " WHERE docid = old." + KEY_ID + "; " +
+                    FTS_INSERT_COLUMNS + " VALUES (" + ftsValuesFor("new") + "); END",
+            "CREATE TRIGGER IF NOT EXISTS trg_class_instances_fts_delete AFTER DELETE ON " + TABLE_CLASS_INSTANCES +
+                    " BEGIN DELETE FROM " + TABLE_CLASS_INSTANCES_FTS + " WHERE docid = old." + KEY_ID + "; END",
+            // Instances can arrive from the cloud before their course, so inserts refresh them too
+            "CREATE TRIGGER IF NOT EXISTS trg_courses_fts_insert AFTER INSERT ON " + TABLE_COURSES +
+                    " BEGIN " + FTS_UPDATE_COURSE_FIELDS + " END",
+            "CREATE TRIGGER IF NOT EXISTS trg_courses_fts_update AFTER UPDATE OF " +
+                    KEY_TYPE + ", " + KEY_NAME + ", " + KEY_DESCRIPTION + " ON " + TABLE_COURSES +
+                    " BEGIN " + FTS_UPDATE_COURSE_FIELDS + " END"
+    };
+
+    // Index Names
+    static final String INDEX_INSTANCES_COURSE_DATE = "idx_class_instances_course_date";
+    static final String INDEX_INSTANCES_DATE = "idx_class_instances_date";
+    // Replaced by INDEX_INSTANCES_TEACHER_DATE in version 11
+    private static final String INDEX_INSTANCES_TEACHER = "idx_class_instances_teacher";
+    static final String INDEX_INSTANCES_TEACHER_DATE = "idx_class_instances_teacher_date";
+    static final String INDEX_COURSES_DAY_TIME = "idx_courses_day_time";
+    static final String INDEX_COURSES_TIME = "idx_courses_time";
+    static final String INDEX_COURSES_DIRTY = "idx_courses_dirty";
+    static final String INDEX_INSTANCES_DIRTY = "idx_class_instances_dirty";
+    static final String INDEX_OUTBOX_NEXT_ATTEMPT = "idx_outbox_next_attempt";
+    static final String INDEX_COURSES_DIGEST_BUCKET = "idx_courses_digest_bucket";
+    static final String INDEX_INSTANCES_DIGEST_BUCKET = "idx_class_instances_digest_bucket";
+
+    // Index create statements
+    // (course_id, date) serves the per-course list and its ORDER BY date without a sort step
+    private static final String CREATE_INDEX_INSTANCES_COURSE_DATE = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_INSTANCES_COURSE_DATE + " ON " + TABLE_CLASS_INSTANCES + "(" + KEY_COURSE_ID + ", " + KEY_DATE + ")";
+    private static final String CREATE_INDEX_INSTANCES_DATE = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_INSTANCES_DATE + " ON " + TABLE_CLASS_INSTANCES + "(" + KEY_DATE + ")";
+    // (teacher_id, date) finds a teacher's classes in date order; course and cancellation are included
+    // so the schedule query reads the index alone. Also what the unused teacher check looks up.
+    private static final String CREATE_INDEX_INSTANCES_TEACHER_DATE = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_INSTANCES_TEACHER_DATE + " ON " + TABLE_CLASS_INSTANCES + "(" + KEY_TEACHER_ID + ", " + KEY_DATE +
+            ", " + KEY_COURSE_ID + ", " + KEY_IS_CANCELLED + ")";
+    private static final String CREATE_INDEX_COURSES_DAY_TIME = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_COURSES_DAY_TIME + " ON " + TABLE_COURSES + "(" + KEY_DAY_OF_WEEK + ", " + KEY_TIME + ")";
+    // (time, id) is the keyset order of the paged course list
+    private static final String CREATE_INDEX_COURSES_TIME = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_COURSES_TIME + " ON " + TABLE_COURSES + "(" + KEY_TIME + ", " + KEY_ID + ")";
+    // Partial indexes holding only the dirty rows, so finding what to upload stays cheap however big the tables get
+    private static final String CREATE_INDEX_COURSES_DIRTY = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_COURSES_DIRTY + " ON " + TABLE_COURSES + "(" + KEY_DIRTY + ") WHERE " + KEY_DIRTY + " = 1";
+    private static final String CREATE_INDEX_INSTANCES_DIRTY = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_INSTANCES_DIRTY + " ON " + TABLE_CLASS_INSTANCES + "(" + KEY_DIRTY + ") WHERE " + KEY_DIRTY + " = 1";
+    // When the next retry is due
+    private static final String CREATE_INDEX_OUTBOX_NEXT_ATTEMPT = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_OUTBOX_NEXT_ATTEMPT + " ON " + TABLE_OUTBOX + "(" + KEY_NEXT_ATTEMPT_AT + ")";
+    // The synced rows of a MerkleDigest bucket, which reconciliation checks against the bucket's documents
+    private static final String CREATE_INDEX_COURSES_DIGEST_BUCKET = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_COURSES_DIGEST_BUCKET + " ON " + TABLE_COURSES + "(" + KEY_DIGEST_BUCKET + ") WHERE " +
+            KEY_DIGEST_CONTRIBUTION + " IS NOT NULL";
+    private static final String CREATE_INDEX_INSTANCES_DIGEST_BUCKET = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_INSTANCES_DIGEST_BUCKET + " ON " + TABLE_CLASS_INSTANCES + "(" + KEY_DIGEST_BUCKET + ") WHERE " +
+            KEY_DIGEST_CONTRIBUTION + " IS NOT NULL";
+
+    // Read queries. Kept as constants so the query plan tests check exactly what the app runs.
+    static final String SQL_COURSE_BY_ID = "SELECT * FROM " + TABLE_COURSES +
+            " WHERE " + KEY_ID + "=?";
+    static final String SQL_ALL_COURSES = "SELECT * FROM " + TABLE_COURSES;
+    // Primary key order, for streaming whole tables out in pages
+    static final String SQL_COURSES_AFTER_ID = "SELECT * FROM " + TABLE_COURSES +
+            " WHERE " + KEY_ID + " > ? ORDER BY " + KEY_ID + " LIMIT ?";
+    static final String SQL_INSTANCES_AFTER_ID = "SELECT * FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_ID + " > ? ORDER BY " + KEY_ID + " LIMIT ?";
+    // The same walk over the rows with changes to upload
+    static final String SQL_DIRTY_COURSES_AFTER_ID = "SELECT * FROM " + TABLE_COURSES +
+            " WHERE " + KEY_DIRTY + " = 1 AND " + KEY_ID + " > ? ORDER BY " + KEY_ID + " LIMIT ?";
+    static final String SQL_DIRTY_INSTANCES_AFTER_ID = "SELECT * FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_DIRTY + " = 1 AND " + KEY_ID + " > ? ORDER BY " + KEY_ID + " LIMIT ?";
+    // Outbox entries in the order they were queued, skipping those waiting for a retry
+    static final String SQL_DUE_OUTBOX_AFTER_ID = "SELECT * FROM " + TABLE_OUTBOX +
+            " WHERE " + KEY_ID + " > ? AND " + KEY_NEXT_ATTEMPT_AT + " <= ? ORDER BY " + KEY_ID + " LIMIT ?";
+    // The largest ID a node generated from a given ID on. Only IDs ahead of the clock matter to the IdGenerator,
+    // so the primary key range starting at the current time is searched, and it is usually empty.
+    static final String SQL_MAX_COURSE_ID_OF_NODE = "SELECT MAX(" + KEY_ID + ") FROM " + TABLE_COURSES +
+            " WHERE " + KEY_ID + " >= CAST(? AS INTEGER) AND (" + KEY_ID + " >> " + IdGenerator.SEQUENCE_BITS + ") & " +
+            IdGenerator.MAX_NODE + " = CAST(? AS INTEGER)";
+    static final String SQL_MAX_INSTANCE_ID_OF_NODE = "SELECT MAX(" + KEY_ID + ") FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_ID + " >= CAST(? AS INTEGER) AND (" + KEY_ID + " >> " + IdGenerator.SEQUENCE_BITS + ") & " +
+            IdGenerator.MAX_NODE + " = CAST(? AS INTEGER)";
+    static final String SQL_DIGEST_LEAVES = "SELECT " + KEY_BUCKET + ", " + KEY_LEAF_VALUE + " FROM " +
+            TABLE_DIGEST_LEAVES + " WHERE " + KEY_COLLECTION + " = ?";
+    static final String SQL_NEXT_OUTBOX_ATTEMPT = "SELECT MIN(" + KEY_NEXT_ATTEMPT_AT + ") FROM " + TABLE_OUTBOX;
+    // Keyset pages: the next rows after the last (time, id) or (date, id) already shown.
+    // "a >= ? AND (a > ? OR id > ?)" keeps the index range usable on SQLite versions without row values.
+    static final String SQL_COURSES_FIRST_PAGE = "SELECT * FROM " + TABLE_COURSES +
+            " ORDER BY " + KEY_TIME + ", " + KEY_ID + " LIMIT ?";
+    static final String SQL_COURSES_PAGE_AFTER = "SELECT * FROM " + TABLE_COURSES +
+            " WHERE " + KEY_TIME + " >= ?1 AND (" + KEY_TIME + " > ?1 OR " + KEY_ID + " > ?2)" +
+            " ORDER BY " + KEY_TIME + ", " + KEY_ID + " LIMIT ?3";
+    static final String SQL_COURSES_BY_DAY = "SELECT * FROM " + TABLE_COURSES +
+            " WHERE " + KEY_DAY_OF_WEEK + "=? ORDER BY " + KEY_TIME + " ASC";
+    static final String SQL_INSTANCE_BY_ID = "SELECT * FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_ID + "=?";
+    static final String SQL_INSTANCES_FOR_COURSE = "SELECT * FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_COURSE_ID + "=? ORDER BY " + KEY_DATE + " ASC";
+    static final String SQL_INSTANCE_TEACHER = "SELECT " + KEY_TEACHER + " FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_ID + "=?";
+    // Found through the course/date index; the teachers are read too, for the teacher index to take the classes from
+    static final String SQL_INSTANCE_IDS_FOR_COURSE = "SELECT " + KEY_ID + ", " + KEY_TEACHER +
+            " FROM " + TABLE_CLASS_INSTANCES + " WHERE " + KEY_COURSE_ID + "=?";
+    // List row pages use a narrow projection: what ClassInstance.toString() and the row click need.
+    static final String SQL_INSTANCE_LIST_ROWS_FIRST_PAGE = "SELECT " + KEY_ID + ", " + KEY_COURSE_ID + ", " +
+            KEY_DATE + ", " + KEY_TEACHER + ", " + KEY_IS_CANCELLED + " FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_COURSE_ID + "=? ORDER BY " + KEY_DATE + ", " + KEY_ID + " LIMIT ?";
+    static final String SQL_INSTANCE_LIST_ROWS_PAGE_AFTER = "SELECT " + KEY_ID + ", " + KEY_COURSE_ID + ", " +
+            KEY_DATE + ", " + KEY_TEACHER + ", " + KEY_IS_CANCELLED + " FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_COURSE_ID + "=?1 AND " + KEY_DATE + " >= ?2 AND (" + KEY_DATE + " > ?2 OR " + KEY_ID + " > ?3)" +
+            " ORDER BY " + KEY_DATE + ", " + KEY_ID + " LIMIT ?4";
+    static final String SQL_INSTANCES_BY_DATE = "SELECT * FROM " + TABLE_CLASS_INSTANCES +
+            " WHERE " + KEY_DATE + " BETWEEN ? AND ? ORDER BY " + KEY_DATE + " ASC";
+    // Each teacher's class count and latest class, for the TeacherIndex, read from the teacher/date index alone
+    static final String SQL_TEACHER_CLASS_COUNTS = "SELECT t." + KEY_NAME + ", COUNT(*), MAX(ci." + KEY_DATE + ")" +
+            " FROM " + TABLE_CLASS_INSTANCES + " ci JOIN " + TABLE_TEACHERS + " t ON t." + KEY_ID + " = ci." + KEY_TEACHER_ID +
+            " GROUP BY ci." + KEY_TEACHER_ID;
+    // A range on the teachers' NOCASE name index, then their instances by teacher_id
+    // LIKE scans the teachers table, one row per distinct name, and CROSS JOIN keeps it the outer loop
+    // so each matching teacher's classes are then read from the teacher/date index
+    static final String SQL_INSTANCES_BY_TEACHER = "SELECT ci.* FROM " + TABLE_TEACHERS + " t" +
+            " CROSS JOIN " + TABLE_CLASS_INSTANCES + " ci ON ci." + KEY_TEACHER_ID + " = t." + KEY_ID +
+            " WHERE t." + KEY_NAME + " LIKE ? ESCAPE '\\'";
+    // Only columns in INDEX_INSTANCES_TEACHER_DATE, the row ID and the teacher's name, so no instance row is read
+    static final String SQL_TEACHER_SCHEDULE = "SELECT ci." + KEY_ID + ", ci." + KEY_COURSE_ID + ", ci." + KEY_DATE +
+            ", ci." + KEY_IS_CANCELLED + ", t." + KEY_NAME + " AS " + KEY_TEACHER +
+            " FROM " + TABLE_TEACHERS + " t" +
+            " JOIN " + TABLE_CLASS_INSTANCES + " ci ON ci." + KEY_TEACHER_ID + " = t." + KEY_ID +
+            " WHERE t." + KEY_NAME + " = trim(?) AND ci." + KEY_DATE + " >= ?" +
+            " ORDER BY ci." + KEY_DATE + " LIMIT ?";
+
+    // Rows written from the cloud remember the remote document's hash, and stay dirty only for the
+    // local values that won the merge
+    private static final String PULLED_TRACKING_13 = KEY_DIRTY + "=(?14 != 0), " + KEY_DIRTY_FIELDS + "=?14, " +
+            KEY_LOCAL_VERSION + "=" + KEY_LOCAL_VERSION + "+1, " + KEY_SYNCED_HASH + "=?13, " + KEY_FIELD_STAMPS + "=?15, " +
+            KEY_DIGEST_BUCKET + "=?16, " + KEY_DIGEST_CONTRIBUTION + "=?17";
+    private static final String PULLED_TRACKING_8 = KEY_DIRTY + "=(?9 != 0), " + KEY_DIRTY_FIELDS + "=?9, " +
+            KEY_LOCAL_VERSION + "=" + KEY_LOCAL_VERSION + "+1, " + KEY_SYNCED_HASH + "=?8, " + KEY_FIELD_STAMPS + "=?10, " +
+            KEY_DIGEST_BUCKET + "=?11, " + KEY_DIGEST_CONTRIBUTION + "=?12";
+
+    // Bulk ingest statements. ?N parameters are bound once and reused in the change check, so an
+    // UPDATE only touches rows whose values or tracking differ.
+    // (Native INSERT ... ON CONFLICT DO UPDATE needs SQLite 3.24, which API 24 devices don't have.)
+    private static final String SQL_UPDATE_COURSE_IF_CHANGED = "UPDATE " + TABLE_COURSES + " SET " +
+            KEY_NAME + "=?1, " + KEY_DAY_OF_WEEK + "=?2, " + KEY_TIME + "=?3, " + KEY_CAPACITY + "=?4, " +
+            KEY_DURATION + "=?5, " + KEY_PRICE + "=?6, " + KEY_TYPE + "=?7, " + KEY_DESCRIPTION + "=?8, " +
+            KEY_DIFFICULTY + "=?9, " + KEY_EQUIPMENT_NEEDED + "=?10, " + KEY_EQUIPMENT_DESCRIPTION + "=?11, " +
+            PULLED_TRACKING_13 +
+            " WHERE " + KEY_ID + "=?12 AND (" +
+            KEY_NAME + " IS NOT ?1 OR " + KEY_DAY_OF_WEEK + " IS NOT ?2 OR " + KEY_TIME + " IS NOT ?3 OR " +
+            KEY_CAPACITY + " IS NOT ?4 OR " + KEY_DURATION + " IS NOT ?5 OR " + KEY_PRICE + " IS NOT ?6 OR " +
+            KEY_TYPE + " IS NOT ?7 OR " + KEY_DESCRIPTION + " IS NOT ?8 OR " + KEY_DIFFICULTY + " IS NOT ?9 OR " +
+            KEY_EQUIPMENT_NEEDED + " IS NOT ?10 OR " + KEY_EQUIPMENT_DESCRIPTION + " IS NOT ?11 OR " +
+            KEY_DIRTY_FIELDS + " IS NOT ?14 OR " + KEY_FIELD_STAMPS + " IS NOT ?15)";
+    private static final String SQL_INSERT_COURSE = "INSERT INTO " + TABLE_COURSES + "(" +
+            KEY_NAME + ", " + KEY_DAY_OF_WEEK + ", " + KEY_TIME + ", " + KEY_CAPACITY + ", " +
+            KEY_DURATION + ", " + KEY_PRICE + ", " + KEY_TYPE + ", " + KEY_DESCRIPTION + ", " +
+            KEY_DIFFICULTY + ", " + KEY_EQUIPMENT_NEEDED + ", " + KEY_EQUIPMENT_DESCRIPTION + ", " + KEY_ID + ", " +
+            KEY_SYNCED_HASH + ", " + KEY_DIRTY_FIELDS + ", " + KEY_FIELD_STAMPS + ", " + KEY_DIGEST_BUCKET + ", " +
+            KEY_DIGEST_CONTRIBUTION + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, ?11, ?12, ?13, ?14, ?15, ?16, ?17)";
+    private static final String SQL_UPDATE_INSTANCE_IF_CHANGED = "UPDATE " + TABLE_CLASS_INSTANCES + " SET " +
+            KEY_COURSE_ID + "=?1, " + KEY_DATE + "=?2, " + KEY_TEACHER + "=?3, " +
+            KEY_ADDITIONAL_COMMENTS + "=?4, " + KEY_AVAILABLE_SPOTS + "=?5, " + KEY_IS_CANCELLED + "=?6, " +
+            PULLED_TRACKING_8 + ", " + KEY_TEACHER_ID + "=?13" +
+            " WHERE " + KEY_ID + "=?7 AND (" +
+            KEY_COURSE_ID + " IS NOT ?1 OR " + KEY_DATE + " IS NOT ?2 OR " + KEY_TEACHER + " IS NOT ?3 OR " +
+            KEY_ADDITIONAL_COMMENTS + " IS NOT ?4 OR " + KEY_AVAILABLE_SPOTS + " IS NOT ?5 OR " +
+            KEY_IS_CANCELLED + " IS NOT ?6 OR " + KEY_DIRTY_FIELDS + " IS NOT ?9 OR " + KEY_FIELD_STAMPS + " IS NOT ?10)";
+    private static final String SQL_INSERT_INSTANCE = "INSERT INTO " + TABLE_CLASS_INSTANCES + "(" +
+            KEY_COURSE_ID + ", " + KEY_DATE + ", " + KEY_TEACHER + ", " + KEY_ADDITIONAL_COMMENTS + ", " +
+            KEY_AVAILABLE_SPOTS + ", " + KEY_IS_CANCELLED + ", " + KEY_ID + ", " + KEY_SYNCED_HASH + ", " +
+            KEY_DIRTY_FIELDS + ", " + KEY_FIELD_STAMPS + ", " + KEY_DIGEST_BUCKET + ", " + KEY_DIGEST_CONTRIBUTION + ", " +
+            KEY_TEACHER_ID + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, ?11, ?12, ?13)";
+
+    // The rows that reached the cloud in some MerkleDigest buckets
+    static String syncedIdsInBucketsSql(String table, int bucketCount) {
+        StringBuilder sql = new StringBuilder("SELECT " + KEY_ID + " FROM " + table + " WHERE " +
+                KEY_DIGEST_CONTRIBUTION + " IS NOT NULL AND " + KEY_DIGEST_BUCKET + " IN (");
+        for (int i = 0; i < bucketCount; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    // What ingest checks before it touches a stored row: the hash of the document the row was last synced with,
+    // its pending local edits and its field stamps. Looked up for a whole page at once, by primary key.
+    private static String storedRowsSql(String table, int idCount) {
+        StringBuilder sql = new StringBuilder("SELECT " + KEY_ID + ", " + KEY_SYNCED_HASH + ", " + KEY_DIRTY_FIELDS +
+                ", " + KEY_FIELD_STAMPS + " FROM " + table + " WHERE " + KEY_ID + " IN (");
+        for (int i = 0; i < idCount; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    // After an upload: remember what the cloud now holds, and clear the dirty flag unless the row changed
+    // again while the upload was running. Then it stays dirty, uploaded fields included, because an edit
+    // may have put one of them back to its old value. (?1 hash, ?2 id, ?3 uploaded version, ?4 uploaded fields,
+    // ?5 digest bucket, ?6 digest contribution)
+    private static String markSyncedSql(String table) {
+        return "UPDATE " + table + " SET " + KEY_SYNCED_HASH + "=?1, " + KEY_DIGEST_BUCKET + "=?5, " +
+                KEY_DIGEST_CONTRIBUTION + "=?6, " +
+                KEY_DIRTY + "=CASE WHEN " + KEY_LOCAL_VERSION + "=?3 THEN 0 ELSE 1 END, " +
+                KEY_DIRTY_FIELDS + "=CASE WHEN " + KEY_LOCAL_VERSION + "=?3 THEN 0 ELSE " + KEY_DIRTY_FIELDS + " | ?4 END" +
+                " WHERE " + KEY_ID + "=?2";
+    }
+
+    // Full-text search over the shadow table alone; ranking is done in Java from matchinfo,
+    // and only the instances of the page shown are read afterwards
+    static final String SQL_SEARCH_INSTANCES = "SELECT docid, matchinfo(" + TABLE_CLASS_INSTANCES_FTS + ", '" +
+            FullTextSearch.MATCHINFO_FORMAT + "') AS match_info" +
+            " FROM " + TABLE_CLASS_INSTANCES_FTS +
+            " WHERE " + TABLE_CLASS_INSTANCES_FTS + " MATCH ?";
+
+    // The instance rows of one page of search results, with the text they were found by
+    private static String searchPageSql(int idCount) {
+        StringBuilder sql = new StringBuilder("SELECT ci.*, " +
+                "ifnull(fts." + FTS_TEACHER + ", '') || ' ' || ifnull(fts." + FTS_COMMENTS + ", '') || ' ' || " +
+                "ifnull(fts." + FTS_COURSE_TYPE + ", '') || ' ' || ifnull(fts." + FTS_COURSE_NAME + ", '') || ' ' || " +
+                "ifnull(fts." + FTS_COURSE_DESCRIPTION + ", '') AS search_text" +
+                " FROM " + TABLE_CLASS_INSTANCES + " ci" +
+                " JOIN " + TABLE_CLASS_INSTANCES_FTS + " fts ON fts.docid = ci." + KEY_ID +
+                " WHERE ci." + KEY_ID + " IN (");
+        for (int i = 0; i < idCount; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    // Search weight of each FTS column, in table order
+    private static final double[] FTS_COLUMN_WEIGHTS = {
+            4.0, // teacher
+            1.0, // comments
+            2.0, // course type
+            2.0, // course name
+            0.5  // course description
+    };
+
+    private static DatabaseHelper instance;
+
+    // Sync state keys of this installation's node ID and of the ID it claims the node with. They describe
+    // the installation rather than the data, so clearing or resetting the database keeps them.
+    private static final String STATE_ID_NODE = "id_generator/node";
+    private static final String STATE_INSTALLATION_ID = "installation/id";
+    private IdGenerator idGenerator; // guarded by this; created on first use
+    private HybridLogicalClock clock; // guarded by this; created on first use
+    private final InvalidationTracker invalidationTracker = new InvalidationTracker();
+    // The classes moved between teachers by the open transaction of each thread, handed over once it commits
+    private final ThreadLocal<TeacherIndex.Changes> teacherChanges = new ThreadLocal<>();
+    // Transactions that recorded teacher changes, from the first change until they were handed over or dropped
+    private final AtomicInteger teacherChangesInFlight = new AtomicInteger();
+    // Whether the innermost transaction of each thread was marked successful, so endTransaction knows its outcome
+    private final ThreadLocal<Boolean> markedSuccessful = new ThreadLocal<>();
+    private volatile TeacherChangeListener teacherChangeListener;
+
+    /**
+     * Get the database shared by the whole process.
+     * The instance lives as long as the process and is never closed: closing a shared helper
+     * while another thread is still reading is what breaks with "already-closed" errors.
+     * Write-ahead logging is on, so reads get their own connections and keep running while
+     * a writer such as the cloud sync holds a transaction; writes are still serialised.
+     * @param context Any context; only the application context is kept
+     * @return The shared database helper
+     */
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor with an explicit database name, used by tests.
+     * A null name opens an in-memory database.
+     */
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // Lets the connection pool open read connections next to the write connection
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -87,11 +581,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         // Create tables
         db.execSQL(CREATE_TABLE_COURSES);
         db.execSQL(CREATE_TABLE_CLASS_INSTANCES);
+        createTeachers(db);
+        createIndexes(db);
+        createFullTextSearch(db);
+        db.execSQL(CREATE_TABLE_SYNC_STATE);
+        db.execSQL(CREATE_INDEX_COURSES_DIRTY);
+        db.execSQL(CREATE_INDEX_INSTANCES_DIRTY);
+        createOutbox(db);
+        createDigestLeaves(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion == 1 && newVersion == 2) {
+        if (oldVersion < 2) {
             // Add the missing name column to existing databases
             try {
                 db.execSQL("ALTER TABLE " + TABLE_COURSES + " ADD COLUMN " + KEY_NAME + " TEXT");
@@ -101,16 +603,163 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             } catch (Exception e) {
                 // Column might already exist in some cases, or other error occurred
                 // Fallback to complete rebuild
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLASS_INSTANCES);
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_COURSES);
+                dropAllTables(db);
                 onCreate(db);
+                return;
             }
-        } else {
-            // Fallback to complete rebuild for more complex upgrades
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLASS_INSTANCES);
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_COURSES);
-            onCreate(db);
         }
+        if (oldVersion < 3) {
+            createIndexes(db);
+        }
+        if (oldVersion < 4) {
+            createFullTextSearch(db);
+            // Index the rows that already exist
+            db.execSQL(FTS_INSERT_COLUMNS + " SELECT " + ftsValuesFor(TABLE_CLASS_INSTANCES) +
+                    " FROM " + TABLE_CLASS_INSTANCES);
+        }
+        if (oldVersion < 5) {
+            db.execSQL(CREATE_INDEX_COURSES_TIME);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(CREATE_TABLE_SYNC_STATE);
+        }
+        if (oldVersion < 7) {
+            addChangeTracking(db, TABLE_COURSES, ChangedFields.ALL_COURSE);
+            addChangeTracking(db, TABLE_CLASS_INSTANCES, ChangedFields.ALL_CLASS_INSTANCE);
+            db.execSQL(CREATE_INDEX_COURSES_DIRTY);
+            db.execSQL(CREATE_INDEX_INSTANCES_DIRTY);
+        }
+        if (oldVersion < 8) {
+            createOutbox(db);
+            // Changes made before the outbox existed still need to go out
+            enqueueDirtyRows(db);
+        }
+        if (oldVersion < 9) {
+            // Existing rows start unstamped, and their pending edits win over unstamped remote values
+            db.execSQL("ALTER TABLE " + TABLE_COURSES + " ADD COLUMN " + KEY_FIELD_STAMPS + " BLOB");
+            db.execSQL("ALTER TABLE " + TABLE_CLASS_INSTANCES + " ADD COLUMN " + KEY_FIELD_STAMPS + " BLOB");
+        }
+        if (oldVersion >= 8 && oldVersion < 10) {
+            // Outboxes created above already have the column
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + KEY_SYNCED_HASH + " INTEGER");
+        }
+        if (oldVersion < 11) {
+            db.execSQL("ALTER TABLE " + TABLE_CLASS_INSTANCES + " ADD COLUMN " + KEY_TEACHER_ID + " INTEGER REFERENCES " +
+                    TABLE_TEACHERS + "(" + KEY_ID + ")");
+            db.execSQL(CREATE_TABLE_TEACHERS);
+            // The first spelling of each name becomes the teacher's; blank names are no teacher
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_TEACHERS + "(" + KEY_NAME + ") SELECT trim(" + KEY_TEACHER +
+                    ") FROM " + TABLE_CLASS_INSTANCES + " WHERE trim(" + KEY_TEACHER + ") != '' ORDER BY " + KEY_ID);
+            db.execSQL("UPDATE " + TABLE_CLASS_INSTANCES + " SET " + KEY_TEACHER_ID + " = (SELECT t." + KEY_ID +
+                    " FROM " + TABLE_TEACHERS + " t WHERE t." + KEY_NAME + " = trim(" + TABLE_CLASS_INSTANCES + "." +
+                    KEY_TEACHER + "))");
+            createTeacherIndexAndTriggers(db);
+            db.execSQL("DROP INDEX IF EXISTS " + INDEX_INSTANCES_TEACHER);
+        }
+        if (oldVersion < 12) {
+            for (String table : new String[]{TABLE_COURSES, TABLE_CLASS_INSTANCES}) {
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + KEY_DIGEST_BUCKET + " INTEGER");
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + KEY_DIGEST_CONTRIBUTION + " INTEGER");
+            }
+            createDigestLeaves(db);
+            // The triggers add the rows synced so far to their leaves
+            fillDigestColumns(db, TABLE_COURSES);
+            fillDigestColumns(db, TABLE_CLASS_INSTANCES);
+        }
+        if (oldVersion >= 11 && oldVersion < 13) {
+            // teacher_id was set by an insert and update trigger, which also gave blank names a teacher row
+            db.execSQL("DROP TRIGGER IF EXISTS trg_class_instances_teacher_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS trg_class_instances_teacher_update");
+            createTeacherIndexAndTriggers(db);
+            db.execSQL("UPDATE " + TABLE_CLASS_INSTANCES + " SET " + KEY_TEACHER_ID + " = NULL WHERE " + KEY_TEACHER_ID +
+                    " IN (SELECT " + KEY_ID + " FROM " + TABLE_TEACHERS + " WHERE " + KEY_NAME + " = '')");
+            db.execSQL("DELETE FROM " + TABLE_TEACHERS + " WHERE " + KEY_NAME + " = ''");
+        }
+    }
+
+    private static void addChangeTracking(SQLiteDatabase db, String table, int allFields) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + KEY_DIRTY + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + KEY_DIRTY_FIELDS + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + KEY_LOCAL_VERSION + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + KEY_SYNCED_HASH + " INTEGER");
+        // Nobody knows whether the existing rows ever reached the cloud, so each is uploaded once in full
+        db.execSQL("UPDATE " + table + " SET " + KEY_DIRTY + "=1, " + KEY_DIRTY_FIELDS + "=" + allFields);
+    }
+
+    private static void createOutbox(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_OUTBOX);
+        db.execSQL(CREATE_INDEX_OUTBOX_NEXT_ATTEMPT);
+    }
+
+    private static void createDigestLeaves(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_DIGEST_LEAVES);
+        db.execSQL(insertDigestLeaves(FirestoreSyncManager.COLLECTION_COURSES));
+        db.execSQL(insertDigestLeaves(FirestoreSyncManager.COLLECTION_CLASS_INSTANCES));
+        db.execSQL(CREATE_INDEX_COURSES_DIGEST_BUCKET);
+        db.execSQL(CREATE_INDEX_INSTANCES_DIGEST_BUCKET);
+        for (String trigger : digestTriggers(TABLE_COURSES, FirestoreSyncManager.COLLECTION_COURSES)) {
+            db.execSQL(trigger);
+        }
+        for (String trigger : digestTriggers(TABLE_CLASS_INSTANCES, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES)) {
+            db.execSQL(trigger);
+        }
+    }
+
+    // The digest columns of the rows synced before they existed; read in full once, during the upgrade
+    private static void fillDigestColumns(SQLiteDatabase db, String table) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " + KEY_DIGEST_BUCKET + "=?1, " +
+                KEY_DIGEST_CONTRIBUTION + "=?2 WHERE " + KEY_ID + "=?3");
+        Cursor cursor = db.rawQuery("SELECT " + KEY_ID + ", " + KEY_SYNCED_HASH + " FROM " + table +
+                " WHERE " + KEY_SYNCED_HASH + " IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                bindDigest(update, 1, cursor.getLong(0), cursor.getLong(1));
+                update.bindLong(3, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+    }
+
+    private void createIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX_INSTANCES_COURSE_DATE);
+        db.execSQL(CREATE_INDEX_INSTANCES_DATE);
+        db.execSQL(CREATE_INDEX_COURSES_DAY_TIME);
+        db.execSQL(CREATE_INDEX_COURSES_TIME);
+    }
+
+    private void createTeachers(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_TEACHERS);
+        createTeacherIndexAndTriggers(db);
+    }
+
+    private void createTeacherIndexAndTriggers(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX_INSTANCES_TEACHER_DATE);
+        for (String trigger : CREATE_TEACHER_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    private void createFullTextSearch(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_CLASS_INSTANCES_FTS);
+        for (String trigger : CREATE_FTS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    private void dropAllTables(SQLiteDatabase db) {
+        // Indexes and triggers are dropped together with their tables
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLASS_INSTANCES_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLASS_INSTANCES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TEACHERS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COURSES);
+        // Without the data the sync marks are meaningless; the next pull starts from scratch
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYNC_STATE);
+        // Nothing local is left to upload
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOX);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DIGEST_LEAVES);
     }
 
     /**
@@ -118,28 +767,190 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      */
     public void resetDatabase() {
         SQLiteDatabase db = getWritableDatabase();
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLASS_INSTANCES);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COURSES);
-        onCreate(db);
+        // One transaction, so readers never see the tables missing
+        db.beginTransactionNonExclusive();
+        try {
+            String node = getSyncState(STATE_ID_NODE);
+            String installation = getSyncState(STATE_INSTALLATION_ID);
+            dropAllTables(db);
+            onCreate(db);
+            putSyncState(STATE_ID_NODE, node);
+            putSyncState(STATE_INSTALLATION_ID, installation);
+            invalidationTracker.tableChanged(TABLE_COURSES);
+            invalidationTracker.tableChanged(TABLE_CLASS_INSTANCES);
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    /**
+     * Run EXPLAIN QUERY PLAN for a query and return the detail line of every plan step
+     * @param sql The query to explain
+     * @param args The query arguments
+     * @return The plan details, e.g. "SEARCH TABLE class_instances USING INDEX ..."
+     */
+    List<String> explainQueryPlan(String sql, String[] args) {
+        List<String> details = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                details.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return details;
+    }
+
+    // Change notification
+
+    /**
+     * @return Where observers register to hear which course and class instance rows were changed
+     */
+    public InvalidationTracker getInvalidationTracker() {
+        return invalidationTracker;
+    }
+
+    /**
+     * Told which teachers each committed write gave classes to or took them from, so a TeacherIndex can follow
+     * without reading the instances again. Called on the writing thread with no transaction open, before the
+     * InvalidationTracker observers; writes that replace whole tables report those tables as changed instead.
+     */
+    public interface TeacherChangeListener {
+        void onTeacherClassesChanged(TeacherIndex.Changes changes);
+    }
+
+    public void setTeacherChangeListener(TeacherChangeListener listener) {
+        teacherChangeListener = listener;
+    }
+
+    /**
+     * @return Whether a write has recorded teacher changes it has not handed to the listener yet.
+     *         A teacher index read while this is true may already hold changes the listener is still to get.
+     */
+    public boolean hasTeacherChangesInFlight() {
+        return teacherChangesInFlight.get() > 0;
+    }
+
+    private void setTransactionSuccessful(SQLiteDatabase db) {
+        db.setTransactionSuccessful();
+        markedSuccessful.set(true);
+    }
+
+    // Ends a transaction; once the outermost one has ended, observers hear about the rows it changed
+    private void endTransaction(SQLiteDatabase db) {
+        boolean successful = Boolean.TRUE.equals(markedSuccessful.get());
+        markedSuccessful.remove();
+        if (!successful) {
+            dropTeacherChanges();
+        }
+        db.endTransaction();
+        flushChanges(db);
+    }
+
+    private void flushChanges(SQLiteDatabase db) {
+        if (!db.inTransaction()) {
+            flushTeacherChanges();
+            invalidationTracker.flush();
+        }
+    }
+
+    private void teacherClassAdded(String teacher, long date) {
+        pendingTeacherChanges().classAdded(teacher, date);
+    }
+
+    private void teacherClassRemoved(String teacher) {
+        pendingTeacherChanges().classRemoved(teacher);
+    }
+
+    private TeacherIndex.Changes pendingTeacherChanges() {
+        TeacherIndex.Changes changes = teacherChanges.get();
+        if (changes == null) {
+            teacherChangesInFlight.incrementAndGet();
+            changes = new TeacherIndex.Changes();
+            teacherChanges.set(changes);
+        }
+        return changes;
+    }
+
+    private void flushTeacherChanges() {
+        TeacherIndex.Changes changes = teacherChanges.get();
+        if (changes == null) {
+            return;
+        }
+        teacherChanges.remove();
+        try {
+            TeacherChangeListener listener = teacherChangeListener;
+            if (listener != null && !changes.isEmpty()) {
+                listener.onTeacherClassesChanged(changes);
+            }
+        } finally {
+            teacherChangesInFlight.decrementAndGet();
+        }
+    }
+
+    // A transaction that rolls back undoes its teacher changes, and with a nested one it is not known which.
+    // They are dropped and the instances count as changed, so the teacher index is read again.
+    private void dropTeacherChanges() {
+        if (teacherChanges.get() != null) {
+            teacherChanges.remove();
+            teacherChangesInFlight.decrementAndGet();
+            invalidationTracker.tableChanged(TABLE_CLASS_INSTANCES);
+        }
     }
 
     // Course CRUD Operations
 
     /**
-     * Add a new course to the database
+     * Add a new course to the database and queue its upload
      * @param course The course to add
-     * @return The ID of the newly inserted course, or -1 if failed
+     * @return The generated ID of the newly inserted course, or -1 if failed
      */
     public long addCourse(Course course) {
         SQLiteDatabase db = getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        // Check if name is null or empty and set a default if needed
-        if (course.getName() == null || course.getName().isEmpty()) {
-            values.put(KEY_NAME, course.getType()); // Use type as name if name is not provided
-        } else {
-            values.put(KEY_NAME, course.getName());
+        ContentValues values = courseValues(asStored(course));
+        // New rows have never been uploaded
+        values.put(KEY_DIRTY, 1);
+        values.put(KEY_DIRTY_FIELDS, ChangedFields.ALL_COURSE);
+        values.put(KEY_LOCAL_VERSION, 1);
+        values.put(KEY_ID, idGenerator().nextId());
+        values.put(KEY_FIELD_STAMPS, newRowStamps(ChangedFields.COURSE_FIELD_COUNT));
+
+        db.beginTransactionNonExclusive();
+        try {
+            // Insert the row
+            long id = db.insert(TABLE_COURSES, null, values);
+            if (id > 0) {
+                course.setId(id);
+                enqueue(db, FirestoreSyncManager.COLLECTION_COURSES, id, OutboxEntry.Operation.UPSERT);
+                invalidationTracker.rowChanged(TABLE_COURSES, id);
+            }
+            setTransactionSuccessful(db);
+            return id;
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    // The column values of a course, as addCourse and updateCourse store them
+    // The course as it is stored: the type stands in for a missing name. The caller's course is left as it is.
+    private static Course asStored(Course course) {
+        if (course.getName() != null && !course.getName().isEmpty()) {
+            return course;
         }
+        return new Course(course.getId(), course.getType(), course.getDayOfWeek(), course.getTime(),
+                course.getCapacity(), course.getDuration(), course.getPrice(), course.getType(),
+                course.getDescription(), course.getDifficulty(), course.isEquipmentNeeded(),
+                course.getEquipmentDescription());
+    }
+
+    // Column values of a course in its stored form, see asStored
+    private static ContentValues courseValues(Course course) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, course.getName());
         values.put(KEY_DAY_OF_WEEK, course.getDayOfWeek());
         values.put(KEY_TIME, course.getTime());
         values.put(KEY_CAPACITY, course.getCapacity());
@@ -150,16 +961,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(KEY_DIFFICULTY, course.getDifficulty());
         values.put(KEY_EQUIPMENT_NEEDED, course.isEquipmentNeeded() ? 1 : 0);
         values.put(KEY_EQUIPMENT_DESCRIPTION, course.getEquipmentDescription());
-
-        // Insert the row
-        long id = db.insert(TABLE_COURSES, null, values);
-
-        if (id > 0) {
-            course.setId((int) id);
-            new FirestoreSyncManager().uploadCourse(course);
-        }
-
-        return id;
+        return values;
     }
 
     /**
@@ -167,23 +969,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @param id The ID of the course to retrieve
      * @return The course, or null if not found
      */
-    public Course getCourse(int id) {
+    public Course getCourse(long id) {
         SQLiteDatabase db = getReadableDatabase();
 
-        Cursor cursor = db.query(
-                TABLE_COURSES,
-                null,
-                KEY_ID + "=?",
-                new String[]{String.valueOf(id)},
-                null, null, null, null);
-
-        Course course = null;
-        if (cursor != null && cursor.moveToFirst()) {
-            course = cursorToCourse(cursor);
-            cursor.close();
-        }
-
-        return course;
+        Cursor cursor = db.rawQuery(SQL_COURSE_BY_ID, new String[]{String.valueOf(id)});
+        return readFirst(cursor, new CourseRowMapper(cursor));
     }
 
     /**
@@ -191,102 +981,193 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @return A list of all courses
      */
     public List<Course> getAllCourses() {
-        List<Course> courses = new ArrayList<>();
-
-        String selectQuery = "SELECT * FROM " + TABLE_COURSES;
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
+        Cursor cursor = db.rawQuery(SQL_ALL_COURSES, null);
+        return readAll(cursor, new CourseRowMapper(cursor));
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                Course course = cursorToCourse(cursor);
-                courses.add(course);
-            } while (cursor.moveToNext());
+    /**
+     * Get one page of courses in (time, id) order
+     * @param afterTime The time of the last course already loaded, or null for the first page
+     * @param afterId The ID of the last course already loaded (ignored for the first page)
+     * @param pageSize The maximum number of courses to return
+     * @return The next courses; fewer than pageSize means there are no more
+     */
+    public List<Course> getCoursesPage(String afterTime, long afterId, int pageSize) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor;
+        if (afterTime == null) {
+            cursor = db.rawQuery(SQL_COURSES_FIRST_PAGE, new String[]{String.valueOf(pageSize)});
+        } else {
+            cursor = db.rawQuery(SQL_COURSES_PAGE_AFTER,
+                    new String[]{afterTime, String.valueOf(afterId), String.valueOf(pageSize)});
         }
+        return readAll(cursor, new CourseRowMapper(cursor));
+    }
 
-        cursor.close();
-        return courses;
+    /**
+     * Get the next courses in ID order, for reading the whole table in pages
+     * @param afterId The ID of the last course already read, or 0 to start
+     * @param limit The maximum number of courses to return
+     * @return The next courses; fewer than limit means there are no more
+     */
+    public List<Course> getCoursesAfterId(long afterId, int limit) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_COURSES_AFTER_ID,
+                new String[]{String.valueOf(afterId), String.valueOf(limit)});
+        return readAll(cursor, new CourseRowMapper(cursor));
     }
 
     /**
-     * Update a course in the database
-     * @param course The course to update
-     * @return The number of rows affected
+     * Get the next courses with changes that are not uploaded yet, in ID order
+     * @param afterId The ID of the last course already read, or 0 to start
+     * @param limit The maximum number of courses to return
+     * @return The next dirty courses; fewer than limit means there are no more
+     */
+    public List<DirtyRow<Course>> getDirtyCoursesAfterId(long afterId, int limit) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_DIRTY_COURSES_AFTER_ID,
+                new String[]{String.valueOf(afterId), String.valueOf(limit)});
+        return readAll(cursor, new DirtyRowMapper<>(cursor, new CourseRowMapper(cursor), ChangedFields.COURSE_FIELD_COUNT));
+    }
+
+    /**
+     * Update a course in the database.
+     * Only the fields that really changed are marked for upload; saving without changes writes nothing.
+     * @param edited The course to update
+     * @return The number of rows matched
      */
-    public int updateCourse(Course course) {
+    public int updateCourse(Course edited) {
         SQLiteDatabase db = getWritableDatabase();
+        // Compared with the stored row in the form it is stored in
+        Course course = asStored(edited);
+        ContentValues values = courseValues(course);
+        String[] args = {String.valueOf(course.getId())};
 
-        ContentValues values = new ContentValues();
-        // Check if name is null or empty and set a default if needed
-        if (course.getName() == null || course.getName().isEmpty()) {
-            values.put(KEY_NAME, course.getType()); // Use type as name if name is not provided
-        } else {
-            values.put(KEY_NAME, course.getName());
-        }
-        values.put(KEY_DAY_OF_WEEK, course.getDayOfWeek());
-        values.put(KEY_TIME, course.getTime());
-        values.put(KEY_CAPACITY, course.getCapacity());
-        values.put(KEY_DURATION, course.getDuration());
-        values.put(KEY_PRICE, course.getPrice());
-        values.put(KEY_TYPE, course.getType());
-        values.put(KEY_DESCRIPTION, course.getDescription());
-        values.put(KEY_DIFFICULTY, course.getDifficulty());
-        values.put(KEY_EQUIPMENT_NEEDED, course.isEquipmentNeeded() ? 1 : 0);
-        values.put(KEY_EQUIPMENT_DESCRIPTION, course.getEquipmentDescription());
+        int rows = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = db.rawQuery(SQL_COURSE_BY_ID, args);
+            int changed = -1;
+            try {
+                if (cursor.moveToFirst()) {
+                    changed = ChangedFields.between(new CourseRowMapper(cursor).map(cursor), course);
+                    putLocalChange(values, cursor, changed, ContentHash.of(course), ChangedFields.COURSE_FIELD_COUNT);
+                }
+            } finally {
+                cursor.close();
+            }
 
-        // Update the row
-        int rows = db.update(TABLE_COURSES, values, KEY_ID + "=?", new String[]{String.valueOf(course.getId())});
-        if (rows > 0) {
-            new FirestoreSyncManager().uploadCourse(course);
+            if (changed > 0) {
+                rows = db.update(TABLE_COURSES, values, KEY_ID + "=?", args);
+                enqueue(db, FirestoreSyncManager.COLLECTION_COURSES, course.getId(), OutboxEntry.Operation.UPSERT);
+                invalidationTracker.rowChanged(TABLE_COURSES, course.getId());
+            } else if (changed == 0) {
+                // Same values as stored: nothing to write or upload
+                rows = 1;
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
         }
         return rows;
     }
 
+    // Tracking values for a local edit of the row under the cursor: dirty with the changed fields
+    // added, unless the edit puts the row back to exactly what was last uploaded. The changed fields
+    // get a clock stamp newer than every stamp the row has, so the edit wins over the values it replaced.
+    private void putLocalChange(ContentValues values, Cursor current, int changedFields, long contentHash,
+                                int fieldCount) {
+        int syncedHashIndex = current.getColumnIndexOrThrow(KEY_SYNCED_HASH);
+        if (!current.isNull(syncedHashIndex) && current.getLong(syncedHashIndex) == contentHash) {
+            values.put(KEY_DIRTY, 0);
+            values.put(KEY_DIRTY_FIELDS, 0);
+        } else {
+            values.put(KEY_DIRTY, 1);
+            values.put(KEY_DIRTY_FIELDS, current.getInt(current.getColumnIndexOrThrow(KEY_DIRTY_FIELDS)) | changedFields);
+        }
+        values.put(KEY_LOCAL_VERSION, current.getLong(current.getColumnIndexOrThrow(KEY_LOCAL_VERSION)) + 1);
+        long[] stamps = FieldClockMerger.fromBlob(
+                current.getBlob(current.getColumnIndexOrThrow(KEY_FIELD_STAMPS)), fieldCount);
+        long stamp = clock().observe(FieldClockMerger.latest(stamps));
+        values.put(KEY_FIELD_STAMPS, FieldClockMerger.toBlob(FieldClockMerger.stamp(stamps, changedFields, stamp)));
+    }
+
     /**
-     * Delete a course from the database
+     * Delete a course and all of its class instances in one transaction, and queue the remote deletes
      * @param courseId The ID of the course to delete
-     * @return The number of rows affected
+     * @return The IDs of the class instances that were deleted with the course
      */
-    public int deleteCourse(int courseId) {
+    public List<Long> deleteCourse(long courseId) {
         SQLiteDatabase db = getWritableDatabase();
-        FirestoreSyncManager syncManager = new FirestoreSyncManager();
+        String[] args = {String.valueOf(courseId)};
+        List<Long> instanceIds = new ArrayList<>();
 
-        // Fetch class instances tied to this course
-        List<ClassInstance> instances = getClassInstancesForCourse(courseId);
-
-        for (ClassInstance instance : instances) {
-            // Delete from Firestore
-            syncManager.deleteClassInstance(instance.getId());
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = db.rawQuery(SQL_INSTANCE_IDS_FOR_COURSE, args);
+            try {
+                while (cursor.moveToNext()) {
+                    instanceIds.add(cursor.getLong(0));
+                    teacherClassRemoved(cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
 
-            // Delete from local DB
-            db.delete(
-                    TABLE_CLASS_INSTANCES,
-                    KEY_ID + "=?",
-                    new String[]{String.valueOf(instance.getId())}
-            );
+            // The remote deletes are queued while the rows still hold their synced hashes
+            enqueueDeletes(db, TABLE_CLASS_INSTANCES, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES,
+                    KEY_COURSE_ID + "=?", args);
+            enqueueDeletes(db, TABLE_COURSES, FirestoreSyncManager.COLLECTION_COURSES, KEY_ID + "=?", args);
+            // One statement for all instances of the course instead of one delete per row
+            db.delete(TABLE_CLASS_INSTANCES, KEY_COURSE_ID + "=?", args);
+            if (db.delete(TABLE_COURSES, KEY_ID + "=?", args) > 0) {
+                invalidationTracker.rowChanged(TABLE_COURSES, courseId);
+            }
+            invalidationTracker.rowsChanged(TABLE_CLASS_INSTANCES, instanceIds);
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
         }
-
-        // Delete the course from Firestore
-        syncManager.deleteCourse(courseId);
-
-        // Delete from local DB
-        return db.delete(
-                TABLE_COURSES,
-                KEY_ID + "=?",
-                new String[]{String.valueOf(courseId)}
-        );
+        return instanceIds;
     }
 
     // Class Instance CRUD Operations
 
     /**
-     * Add a new class instance to the database
+     * Add a new class instance to the database and queue its upload
      * @param instance The class instance to add
-     * @return The ID of the newly inserted class instance, or -1 if failed
+     * @return The generated ID of the newly inserted class instance, or -1 if failed
      */
     public long addClassInstance(ClassInstance instance) {
         SQLiteDatabase db = getWritableDatabase();
 
+        ContentValues values = classInstanceValues(instance);
+        values.put(KEY_DIRTY, 1);
+        values.put(KEY_DIRTY_FIELDS, ChangedFields.ALL_CLASS_INSTANCE);
+        values.put(KEY_LOCAL_VERSION, 1);
+        values.put(KEY_ID, idGenerator().nextId());
+        values.put(KEY_FIELD_STAMPS, newRowStamps(ChangedFields.CLASS_INSTANCE_FIELD_COUNT));
+
+        db.beginTransactionNonExclusive();
+        try {
+            putTeacherId(db, values, instance.getTeacher());
+            // Insert the row
+            long id = db.insert(TABLE_CLASS_INSTANCES, null, values);
+            if (id == -1) {
+                dropTeacherIfUnused(db, values);
+            } else {
+                instance.setId(id);
+                enqueue(db, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, id, OutboxEntry.Operation.UPSERT);
+                invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, id);
+                teacherClassAdded(instance.getTeacher(), instance.getDate().getTime());
+            }
+            setTransactionSuccessful(db);
+            return id;
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    private static ContentValues classInstanceValues(ClassInstance instance) {
         ContentValues values = new ContentValues();
         values.put(KEY_COURSE_ID, instance.getCourseId());
         values.put(KEY_DATE, instance.getDate().getTime());  // Store as milliseconds
@@ -294,16 +1175,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(KEY_ADDITIONAL_COMMENTS, instance.getAdditionalComments());
         values.put(KEY_AVAILABLE_SPOTS, instance.getAvailableSpots());
         values.put(KEY_IS_CANCELLED, instance.isCancelled() ? 1 : 0);
-
-        // Insert the row
-        long id = db.insert(TABLE_CLASS_INSTANCES, null, values);
-
-        if (id > 0) {
-            instance.setId((int) id);
-            new FirestoreSyncManager().uploadClassInstance(instance);
-        }
-
-        return id;
+        return values;
     }
 
     /**
@@ -311,23 +1183,36 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @param id The ID of the class instance to retrieve
      * @return The class instance, or null if not found
      */
-    public ClassInstance getClassInstance(int id) {
+    public ClassInstance getClassInstance(long id) {
         SQLiteDatabase db = getReadableDatabase();
 
-        Cursor cursor = db.query(
-                TABLE_CLASS_INSTANCES,
-                null,
-                KEY_ID + "=?",
-                new String[]{String.valueOf(id)},
-                null, null, null, null);
+        Cursor cursor = db.rawQuery(SQL_INSTANCE_BY_ID, new String[]{String.valueOf(id)});
+        return readFirst(cursor, new ClassInstanceRowMapper(cursor));
+    }
 
-        ClassInstance instance = null;
-        if (cursor != null && cursor.moveToFirst()) {
-            instance = cursorToClassInstance(cursor);
-            cursor.close();
-        }
+    /**
+     * Get the next class instances in ID order, for reading the whole table in pages
+     * @param afterId The ID of the last instance already read, or 0 to start
+     * @param limit The maximum number of instances to return
+     * @return The next instances; fewer than limit means there are no more
+     */
+    public List<ClassInstance> getClassInstancesAfterId(long afterId, int limit) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_INSTANCES_AFTER_ID,
+                new String[]{String.valueOf(afterId), String.valueOf(limit)});
+        return readAll(cursor, new ClassInstanceRowMapper(cursor));
+    }
 
-        return instance;
+    /**
+     * Get the next class instances with changes that are not uploaded yet, in ID order
+     * @param afterId The ID of the last instance already read, or 0 to start
+     * @param limit The maximum number of instances to return
+     * @return The next dirty instances; fewer than limit means there are no more
+     */
+    public List<DirtyRow<ClassInstance>> getDirtyClassInstancesAfterId(long afterId, int limit) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_DIRTY_INSTANCES_AFTER_ID,
+                new String[]{String.valueOf(afterId), String.valueOf(limit)});
+        return readAll(cursor, new DirtyRowMapper<>(cursor, new ClassInstanceRowMapper(cursor),
+                ChangedFields.CLASS_INSTANCE_FIELD_COUNT));
     }
 
     /**
@@ -335,278 +1220,357 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * @param courseId The ID of the course
      * @return A list of class instances for the course
      */
-    public List<ClassInstance> getClassInstancesForCourse(int courseId) {
-        List<ClassInstance> instances = new ArrayList<>();
-
+    public List<ClassInstance> getClassInstancesForCourse(long courseId) {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(
-                TABLE_CLASS_INSTANCES,
-                null,
-                KEY_COURSE_ID + "=?",
-                new String[]{String.valueOf(courseId)},
-                null, null, KEY_DATE + " ASC");
+        Cursor cursor = db.rawQuery(SQL_INSTANCES_FOR_COURSE, new String[]{String.valueOf(courseId)});
+        return readAll(cursor, new ClassInstanceRowMapper(cursor));
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                ClassInstance instance = cursorToClassInstance(cursor);
-                instances.add(instance);
-            } while (cursor.moveToNext());
+    /**
+     * Get one page of a course's class instance list rows in (date, id) order
+     * @param courseId The ID of the course
+     * @param after The last row already loaded, or null for the first page
+     * @param pageSize The maximum number of rows to return
+     * @return The next rows; fewer than pageSize means there are no more
+     */
+    public List<ClassInstance> getClassInstanceListRowsPage(long courseId, ClassInstance after, int pageSize) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor;
+        if (after == null) {
+            cursor = db.rawQuery(SQL_INSTANCE_LIST_ROWS_FIRST_PAGE,
+                    new String[]{String.valueOf(courseId), String.valueOf(pageSize)});
+        } else {
+            cursor = db.rawQuery(SQL_INSTANCE_LIST_ROWS_PAGE_AFTER, new String[]{
+                    String.valueOf(courseId),
+                    String.valueOf(after.getDate().getTime()),
+                    String.valueOf(after.getId()),
+                    String.valueOf(pageSize)});
         }
-
-        cursor.close();
-        return instances;
+        return readAll(cursor, new ClassInstanceRowMapper(cursor));
     }
 
     /**
-     * Update a class instance in the database
+     * Update a class instance in the database, marking only the changed fields for upload
      * @param instance The class instance to update
-     * @return The number of rows affected
+     * @return The number of rows matched
      */
     public int updateClassInstance(ClassInstance instance) {
         SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = classInstanceValues(instance);
+        String[] args = {String.valueOf(instance.getId())};
 
-        ContentValues values = new ContentValues();
-        values.put(KEY_COURSE_ID, instance.getCourseId());
-        values.put(KEY_DATE, instance.getDate().getTime());
-        values.put(KEY_TEACHER, instance.getTeacher());
-        values.put(KEY_ADDITIONAL_COMMENTS, instance.getAdditionalComments());
-        values.put(KEY_AVAILABLE_SPOTS, instance.getAvailableSpots());
-        values.put(KEY_IS_CANCELLED, instance.isCancelled() ? 1 : 0);
+        int rows = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = db.rawQuery(SQL_INSTANCE_BY_ID, args);
+            int changed = -1;
+            ClassInstance stored = null;
+            try {
+                if (cursor.moveToFirst()) {
+                    stored = new ClassInstanceRowMapper(cursor).map(cursor);
+                    changed = ChangedFields.between(stored, instance);
+                    putLocalChange(values, cursor, changed, ContentHash.of(instance),
+                            ChangedFields.CLASS_INSTANCE_FIELD_COUNT);
+                }
+            } finally {
+                cursor.close();
+            }
 
-        // Update the row
-        int rows = db.update(TABLE_CLASS_INSTANCES, values, KEY_ID + "=?", new String[]{String.valueOf(instance.getId())});
-        if (rows > 0) {
-            new FirestoreSyncManager().uploadClassInstance(instance);
+            if (changed > 0) {
+                putTeacherId(db, values, instance.getTeacher());
+                rows = db.update(TABLE_CLASS_INSTANCES, values, KEY_ID + "=?", args);
+                enqueue(db, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, instance.getId(), OutboxEntry.Operation.UPSERT);
+                invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, instance.getId());
+                teacherClassRemoved(stored.getTeacher());
+                teacherClassAdded(instance.getTeacher(), instance.getDate().getTime());
+            } else if (changed == 0) {
+                // Same values as stored: nothing to write or upload
+                rows = 1;
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
         }
         return rows;
     }
 
     /**
-     * Delete a class instance from the database
+     * Delete a class instance from the database and queue the remote delete
      * @param instanceId The ID of the class instance to delete
      * @return The number of rows affected
      */
-    public int deleteClassInstance(int instanceId) {
-        int rows = getWritableDatabase().delete(TABLE_CLASS_INSTANCES, KEY_ID + "=?", new String[]{String.valueOf(instanceId)});
-        if (rows > 0) {
-            new FirestoreSyncManager().deleteClassInstance(instanceId);
+    public int deleteClassInstance(long instanceId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            String[] args = {String.valueOf(instanceId)};
+            enqueueDeletes(db, TABLE_CLASS_INSTANCES, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES,
+                    KEY_ID + "=?", args);
+            String teacher = storedTeacher(db, instanceId);
+            int rows = db.delete(TABLE_CLASS_INSTANCES, KEY_ID + "=?", args);
+            if (rows > 0) {
+                invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, instanceId);
+                teacherClassRemoved(teacher);
+            }
+            setTransactionSuccessful(db);
+            return rows;
+        } finally {
+            endTransaction(db);
         }
-        return rows;
     }
 
     /**
      * Search for class instances by teacher name
-     * @param teacherName The teacher name to search for (partial match)
+     * @param keyword Any part of the teacher name (case-insensitive)
      * @return A list of class instances with matching teacher name
      */
     public List<ClassInstance> searchClassInstancesByTeacher(String keyword) {
-        List<ClassInstance> list = new ArrayList<>();
-
         SQLiteDatabase db = this.getReadableDatabase();
         Cursor cursor = db.rawQuery(
-                "SELECT * FROM class_instances WHERE teacher LIKE ?",
-                new String[]{"%" + keyword + "%"}
+                SQL_INSTANCES_BY_TEACHER,
+                new String[]{"%" + escapeLike(keyword) + "%"}
         );
+        return readAll(cursor, new ClassInstanceRowMapper(cursor));
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                ClassInstance instance = new ClassInstance(
-                        cursor.getInt(cursor.getColumnIndexOrThrow("course_id")),
-                        new Date(cursor.getLong(cursor.getColumnIndexOrThrow("date"))),
-                        cursor.getString(cursor.getColumnIndexOrThrow("teacher")),
-                        cursor.getString(cursor.getColumnIndexOrThrow("additional_comments")),
-                        cursor.getInt(cursor.getColumnIndexOrThrow("available_spots")),
-                        cursor.getInt(cursor.getColumnIndexOrThrow("is_cancelled")) == 1
-                );
-                instance.setId(cursor.getInt(cursor.getColumnIndexOrThrow("id")));
-                list.add(instance);
-            } while (cursor.moveToNext());
-        }
+    // Matches % and _ in the keyword literally, with the ESCAPE character of SQL_INSTANCES_BY_TEACHER
+    static String escapeLike(String keyword) {
+        return keyword.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
 
-        cursor.close();
-        db.close();
-        return list;
+    /**
+     * A teacher's classes from a given time on, earliest first, read from the teacher/date index alone.
+     * @param teacher The teacher's name, in any case
+     * @param from The earliest class date, in milliseconds
+     * @param limit The most classes to return
+     * @return The classes, or an empty list if nobody of that name teaches
+     */
+    public List<TeacherScheduleEntry> getTeacherSchedule(String teacher, long from, int limit) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_TEACHER_SCHEDULE,
+                new String[]{teacher, String.valueOf(from), String.valueOf(limit)});
+        // Columns in the order SQL_TEACHER_SCHEDULE selects them
+        return readAll(cursor, row -> new TeacherScheduleEntry(row.getLong(0), row.getLong(1),
+                new Date(row.getLong(2)), row.getInt(3) == 1, row.getString(4)));
     }
 
     /**
-     * Search for class instances by date
-     * @param date The date to search for
-     * @return A list of class instances on the specified date
+     * Build a teacher index from the class count and latest class of every teacher
+     * @return The index, not shared with anyone yet
      */
-    public List<ClassInstance> searchClassInstancesByDate(Date date) {
-        List<ClassInstance> instances = new ArrayList<>();
-
-        // Get start and end of the day in milliseconds
-        long startOfDay = date.getTime();
-        startOfDay = startOfDay - (startOfDay % (24 * 60 * 60 * 1000));
-        long endOfDay = startOfDay + (24 * 60 * 60 * 1000) - 1;
-
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(
-                TABLE_CLASS_INSTANCES,
-                null,
-                KEY_DATE + " BETWEEN ? AND ?",
-                new String[]{String.valueOf(startOfDay), String.valueOf(endOfDay)},
-                null, null, KEY_DATE + " ASC");
-
-        if (cursor.moveToFirst()) {
-            do {
-                ClassInstance instance = cursorToClassInstance(cursor);
-                instances.add(instance);
-            } while (cursor.moveToNext());
+    public TeacherIndex loadTeacherIndex() {
+        TeacherIndex index = new TeacherIndex();
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_TEACHER_CLASS_COUNTS, null);
+        try {
+            while (cursor.moveToNext()) {
+                index.addTeacher(cursor.getString(0), cursor.getInt(1), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
         }
-
-        cursor.close();
-        return instances;
+        return index;
     }
 
     /**
-     * Search for courses by day of the week
-     * @param dayOfWeek The day of the week to search for
-     * @return A list of courses on the specified day
+     * Full-text search over teacher, comments and the parent course's type, name and description.
+     * Every word in the query is matched as a prefix, so "ann yin" finds "Anna" teaching "Yin Yoga".
+     * @param query The text typed by the user
+     * @param limit The maximum number of results
+     * @return Matching class instances, most relevant first
      */
-    public List<Course> searchCoursesByDayOfWeek(String dayOfWeek) {
-        List<Course> courses = new ArrayList<>();
-
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(
-                TABLE_COURSES,
-                null,
-                KEY_DAY_OF_WEEK + "=?",
-                new String[]{dayOfWeek},
-                null, null, KEY_TIME + " ASC");
-
-        if (cursor.moveToFirst()) {
-            do {
-                Course course = cursorToCourse(cursor);
-                courses.add(course);
-            } while (cursor.moveToNext());
-        }
-
-        cursor.close();
-        return courses;
+    public List<ClassInstance> searchClassInstances(String query, int limit) {
+        return searchClassInstances(query, limit, null).getResults();
     }
 
-    // Helper methods to convert Cursor to objects
+    /**
+     * Full-text search that ranks the most relevant {@value #MAX_RANKED_MATCHES} matches but reads only
+     * the first page of instances. Further pages are read with {@link #loadSearchPage}.
+     * @param query The text typed by the user
+     * @param pageSize The most instances to read now
+     * @param signal Cancels the search while it runs, when the user typed on; may be null
+     * @return The search with its first page loaded
+     * @throws android.os.OperationCanceledException If the signal was cancelled
+     */
+    public InstanceSearch searchClassInstances(String query, int pageSize, CancellationSignal signal) {
+        return loadSearchPage(rankSearchMatches(query, signal), pageSize, signal);
+    }
 
-    private Course cursorToCourse(Cursor cursor) {
-        int id = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ID));
+    /**
+     * Read the next page of a search's results
+     * @param search The search so far
+     * @param pageSize The most instances to read
+     * @param signal Cancels the read; may be null
+     * @return The search with the page appended
+     */
+    public InstanceSearch loadSearchPage(InstanceSearch search, int pageSize, CancellationSignal signal) {
+        long[] pageIds = search.nextPageIds(pageSize);
+        if (pageIds.length == 0) {
+            return search;
+        }
+        String[] args = new String[pageIds.length];
+        Map<Long, Integer> rank = new HashMap<>();
+        for (int i = 0; i < pageIds.length; i++) {
+            args[i] = String.valueOf(pageIds[i]);
+            rank.put(pageIds[i], i);
+        }
 
-        // Try to get name, but fall back to type if name doesn't exist
-        String name;
+        // Read in primary key order, then put back in ranked order
+        ClassInstance[] byRank = new ClassInstance[pageIds.length];
+        String[] textByRank = new String[pageIds.length];
+        Cursor cursor = getReadableDatabase().rawQuery(searchPageSql(pageIds.length), args, signal);
         try {
-            name = cursor.getString(cursor.getColumnIndexOrThrow(KEY_NAME));
-            if (name == null || name.isEmpty()) {
-                name = cursor.getString(cursor.getColumnIndexOrThrow(KEY_TYPE));
+            int textIndex = cursor.getColumnIndexOrThrow("search_text");
+            ClassInstanceRowMapper mapper = new ClassInstanceRowMapper(cursor);
+            while (cursor.moveToNext()) {
+                ClassInstance instance = mapper.map(cursor);
+                int position = rank.get(instance.getId());
+                byRank[position] = instance;
+                textByRank[position] = cursor.getString(textIndex);
             }
-        } catch (IllegalArgumentException e) {
-            // If the name column doesn't exist, use type instead
-            name = cursor.getString(cursor.getColumnIndexOrThrow(KEY_TYPE));
+        } finally {
+            cursor.close();
         }
 
-        String dayOfWeek = cursor.getString(cursor.getColumnIndexOrThrow(KEY_DAY_OF_WEEK));
-        String time = cursor.getString(cursor.getColumnIndexOrThrow(KEY_TIME));
-        int capacity = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_CAPACITY));
-        int duration = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_DURATION));
-        double price = cursor.getDouble(cursor.getColumnIndexOrThrow(KEY_PRICE));
-        String type = cursor.getString(cursor.getColumnIndexOrThrow(KEY_TYPE));
+        List<ClassInstance> page = new ArrayList<>(pageIds.length);
+        List<String> pageText = new ArrayList<>(pageIds.length);
+        for (int i = 0; i < pageIds.length; i++) {
+            if (byRank[i] != null) { // Deleted since the search ranked it
+                page.add(byRank[i]);
+                pageText.add(textByRank[i]);
+            }
+        }
+        return search.withPage(pageIds, page, pageText);
+    }
 
-        String description = null;
-        try {
-            description = cursor.getString(cursor.getColumnIndexOrThrow(KEY_DESCRIPTION));
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
+    // The most relevant matches of a query, best first, found with a bounded heap: each match costs its
+    // matchinfo score and at most a log(MAX_RANKED_MATCHES) heap step, and only the kept IDs are held
+    private InstanceSearch rankSearchMatches(String query, CancellationSignal signal) {
+        String matchQuery = FullTextSearch.toMatchQuery(query);
+        if (matchQuery == null) {
+            return new InstanceSearch(query, new long[0]);
         }
 
-        String difficulty = null;
+        // Worst kept match at the head; on equal scores the later found goes first, so ties keep table order
+        PriorityQueue<ScoredMatch> best = new PriorityQueue<>(64, (a, b) -> a.score != b.score
+                ? Double.compare(a.score, b.score) : Integer.compare(b.order, a.order));
+        FullTextSearch.Scorer scorer = new FullTextSearch.Scorer(FTS_COLUMN_WEIGHTS);
+        int matchCount = 0;
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_SEARCH_INSTANCES, new String[]{matchQuery}, signal);
         try {
-            difficulty = cursor.getString(cursor.getColumnIndexOrThrow(KEY_DIFFICULTY));
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
+            int matchInfoIndex = cursor.getColumnIndexOrThrow("match_info");
+            while (cursor.moveToNext()) {
+                double score = scorer.score(cursor.getBlob(matchInfoIndex));
+                if (best.size() < MAX_RANKED_MATCHES) {
+                    best.add(new ScoredMatch(cursor.getLong(0), score, matchCount));
+                } else if (score > best.peek().score) {
+                    best.poll();
+                    best.add(new ScoredMatch(cursor.getLong(0), score, matchCount));
+                }
+                matchCount++;
+            }
+        } finally {
+            cursor.close();
         }
 
-        boolean equipmentNeeded = false;
-        try {
-            equipmentNeeded = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_EQUIPMENT_NEEDED)) == 1;
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
+        long[] ranked = new long[best.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            ranked[i] = best.poll().id;
         }
+        return new InstanceSearch(query, ranked, matchCount);
+    }
 
-        String equipmentDescription = null;
-        try {
-            equipmentDescription = cursor.getString(cursor.getColumnIndexOrThrow(KEY_EQUIPMENT_DESCRIPTION));
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
+    // One match kept while ranking a search
+    private static final class ScoredMatch {
+        private final long id;
+        private final double score;
+        private final int order; // Position among the matches as SQLite returned them
+
+        ScoredMatch(long id, double score, int order) {
+            this.id = id;
+            this.score = score;
+            this.order = order;
         }
+    }
 
-        Course course = new Course(
-                id, name, dayOfWeek, time, capacity, duration, price, type,
-                description, difficulty, equipmentNeeded, equipmentDescription
-        );
+    /**
+     * Search for class instances by date
+     * @param date The date to search for
+     * @return A list of class instances on the specified date
+     */
+    public List<ClassInstance> searchClassInstancesByDate(Date date) {
+        // Get start and end of the day in milliseconds
+        long startOfDay = date.getTime();
+        startOfDay = startOfDay - (startOfDay % (24 * 60 * 60 * 1000));
+        long endOfDay = startOfDay + (24 * 60 * 60 * 1000) - 1;
 
-        return course;
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(SQL_INSTANCES_BY_DATE,
+                new String[]{String.valueOf(startOfDay), String.valueOf(endOfDay)});
+        return readAll(cursor, new ClassInstanceRowMapper(cursor));
     }
 
-    private ClassInstance cursorToClassInstance(Cursor cursor) {
-        int id = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ID));
-        int courseId = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_COURSE_ID));
-        long dateMillis = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_DATE));
-        String teacher = cursor.getString(cursor.getColumnIndexOrThrow(KEY_TEACHER));
+    /**
+     * Search for courses by day of the week
+     * @param dayOfWeek The day of the week to search for
+     * @return A list of courses on the specified day
+     */
+    public List<Course> searchCoursesByDayOfWeek(String dayOfWeek) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(SQL_COURSES_BY_DAY, new String[]{dayOfWeek});
+        return readAll(cursor, new CourseRowMapper(cursor));
+    }
 
-        String additionalComments = null;
-        try {
-            additionalComments = cursor.getString(cursor.getColumnIndexOrThrow(KEY_ADDITIONAL_COMMENTS));
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
-        }
+    // Helper methods to convert Cursor to objects
 
-        int availableSpots = 0;
+    /**
+     * Map every row of a cursor and close it
+     * @param cursor The query result
+     * @param mapper A mapper created for this cursor
+     * @return The mapped rows, in cursor order
+     */
+    private static <T> List<T> readAll(Cursor cursor, RowMapper<T> mapper) {
         try {
-            availableSpots = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_AVAILABLE_SPOTS));
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
+            List<T> rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                rows.add(mapper.map(cursor));
+            }
+            return rows;
+        } finally {
+            cursor.close();
         }
+    }
 
-        boolean isCancelled = false;
+    /**
+     * Map the first row of a cursor and close it
+     * @return The mapped row, or null if the cursor is empty
+     */
+    private static <T> T readFirst(Cursor cursor, RowMapper<T> mapper) {
         try {
-            isCancelled = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_IS_CANCELLED)) == 1;
-        } catch (IllegalArgumentException e) {
-            // Handle missing column gracefully
+            return cursor.moveToFirst() ? mapper.map(cursor) : null;
+        } finally {
+            cursor.close();
         }
-
-        Date date = new Date(dateMillis);
-
-        return new ClassInstance(
-                id, courseId, date, teacher, additionalComments, availableSpots, isCancelled
-        );
     }
 
+    // Store a course from the cloud; an unchanged row is not rewritten, see bulkUpsertCourses
     public void insertOrUpdateCourse(Course course) {
-        if (getCourseById(course.getId()) == null) {
-            insertCourse(course);
-        } else {
-            updateCourse(course);
-        }
+        bulkUpsertCourses(Collections.singletonList(course));
     }
 
+    // Store a class instance from the cloud; an unchanged row is not rewritten
     public void insertOrUpdateClassInstance(ClassInstance instance) {
-        if (getClassInstanceById(instance.getId()) == null) {
-            insertClassInstance(instance);
-        } else {
-            updateClassInstance(instance);
-        }
+        bulkUpsertClassInstances(Collections.singletonList(instance));
     }
-    // Get course by ID (support for insertOrUpdate)
-    public Course getCourseById(int id) {
+    // Get course by ID
+    public Course getCourseById(long id) {
         return getCourse(id); // đã có sẵn hàm getCourse
     }
 
     // Get class instance by ID
-    public ClassInstance getClassInstanceById(int id) {
+    public ClassInstance getClassInstanceById(long id) {
         return getClassInstance(id); // đã có sẵn hàm getClassInstance
     }
 
-    // Insert course without Firestore sync (used by insertOrUpdate)
+    // Insert course without Firestore sync
     public long insertCourse(Course course) {
         SQLiteDatabase db = getWritableDatabase();
 
@@ -624,10 +1588,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(KEY_EQUIPMENT_NEEDED, course.isEquipmentNeeded() ? 1 : 0);
         values.put(KEY_EQUIPMENT_DESCRIPTION, course.getEquipmentDescription());
 
-        return db.insert(TABLE_COURSES, null, values);
+        long id = db.insert(TABLE_COURSES, null, values);
+        if (id != -1) {
+            invalidationTracker.rowChanged(TABLE_COURSES, id);
+            flushChanges(db);
+        }
+        return id;
     }
 
-    // Insert class instance without Firestore sync (used by insertOrUpdate)
+    // Insert class instance without Firestore sync
     public long insertClassInstance(ClassInstance instance) {
         SQLiteDatabase db = getWritableDatabase();
 
@@ -640,33 +1609,929 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(KEY_AVAILABLE_SPOTS, instance.getAvailableSpots());
         values.put(KEY_IS_CANCELLED, instance.isCancelled() ? 1 : 0);
 
-        return db.insert(TABLE_CLASS_INSTANCES, null, values);
+        // A transaction, so the teacher change is recorded before the row is visible
+        db.beginTransactionNonExclusive();
+        try {
+            putTeacherId(db, values, instance.getTeacher());
+            long id = db.insert(TABLE_CLASS_INSTANCES, null, values);
+            if (id == -1) {
+                dropTeacherIfUnused(db, values);
+            } else {
+                invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, id);
+                teacherClassAdded(instance.getTeacher(), instance.getDate().getTime());
+            }
+            setTransactionSuccessful(db);
+            return id;
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    /**
+     * Insert or update many courses in a single transaction, e.g. everything pulled from the cloud.
+     * Rows keep the IDs they already have, and nothing is uploaded to Firestore.
+     * @param courses The courses to store
+     * @return How many rows were inserted, updated or already up to date
+     */
+    public IngestResult bulkUpsertCourses(Collection<Course> courses) {
+        return bulkUpsertCourses(new ArrayList<>(courses), null);
+    }
+
+    /**
+     * Insert or update pulled courses in a single transaction, merging each one into the local row field by field
+     * with FieldClockMerger. Local values that win stay marked for upload and are queued in the outbox.
+     * A clean row that was last synced with a document of the same ContentHash and stamps is skipped without being
+     * read or written, so a pull in which little changed writes little.
+     * A row that breaks a NOT NULL or CHECK constraint is left out and reported as invalid; the rest are still stored.
+     * @param courses The courses to store
+     * @param stamps The field stamps of each course, in the same order; null, or a null entry, for unstamped documents
+     * @return How many rows were inserted, updated or already up to date
+     */
+    public IngestResult bulkUpsertCourses(List<Course> courses, List<long[]> stamps) {
+        IngestResult result = new IngestResult();
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_COURSE_IF_CHANGED);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_COURSE);
+
+        db.beginTransactionNonExclusive();
+        try {
+            List<Long> ids = new ArrayList<>(courses.size());
+            for (Course course : courses) {
+                ids.add(course.getId());
+            }
+            Map<Long, StoredRow> stored = readStoredRows(db, TABLE_COURSES, ChangedFields.COURSE_FIELD_COUNT, ids);
+            for (int i = 0; i < courses.size(); i++) {
+                Course remote = courses.get(i);
+                long remoteHash = ContentHash.of(remote);
+                long[] remoteStamps = stampsAt(stamps, i, ChangedFields.COURSE_FIELD_COUNT);
+                StoredRow row = stored.get(remote.getId());
+                if (row == null) {
+                    bindCourse(insert, remote, remoteHash, 0, remoteStamps);
+                    if (!executeValid(insert, remote.getId(), result)) {
+                        continue;
+                    }
+                    invalidationTracker.rowChanged(TABLE_COURSES, remote.getId());
+                    stored.put(remote.getId(), new StoredRow(remoteHash, 0, remoteStamps));
+                    result.addInserted();
+                    continue;
+                }
+                if (row.holds(remoteHash, remoteStamps)) {
+                    result.addSkipped();
+                    continue;
+                }
+                Cursor cursor = db.rawQuery(SQL_COURSE_BY_ID, new String[]{String.valueOf(remote.getId())});
+                DirtyRow<Course> local = readFirst(cursor,
+                        new DirtyRowMapper<>(cursor, new CourseRowMapper(cursor), ChangedFields.COURSE_FIELD_COUNT));
+                FieldClockMerger.Result merge = FieldClockMerger.merge(
+                        local.getFieldStamps(), local.getDirtyFields(), remoteStamps);
+                Course merged = local.getRow();
+                ChangedFields.copy(remote, merged, merge.getRemoteFields());
+                bindCourse(update, merged, remoteHash, merge.getDirtyFields(), merge.getStamps());
+                int changed;
+                try {
+                    changed = update.executeUpdateDelete();
+                } catch (SQLiteConstraintException e) {
+                    invalidRow(remote.getId(), e, result);
+                    continue;
+                }
+                if (changed == 0) {
+                    result.addUnchanged();
+                    continue;
+                }
+                result.addUpdated();
+                invalidationTracker.rowChanged(TABLE_COURSES, remote.getId());
+                if (merge.getDirtyFields() != 0 && local.getDirtyFields() == 0) {
+                    // The cloud holds an older value than this device; send ours again
+                    enqueue(db, FirestoreSyncManager.COLLECTION_COURSES, remote.getId(), OutboxEntry.Operation.UPSERT);
+                }
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+            update.close();
+            insert.close();
+        }
+        return result;
+    }
+
+    /**
+     * Insert or update many class instances in a single transaction.
+     * Instances without a date, or that break another constraint, can't be stored and are reported as invalid.
+     * @param instances The class instances to store
+     * @return How many rows were inserted, updated or already up to date
+     */
+    public IngestResult bulkUpsertClassInstances(Collection<ClassInstance> instances) {
+        return bulkUpsertClassInstances(new ArrayList<>(instances), null);
+    }
+
+    /**
+     * Insert or update pulled class instances in a single transaction, merging them like {@link #bulkUpsertCourses}.
+     * Instances without a date, or that break another constraint, can't be stored and are reported as invalid.
+     * @param instances The class instances to store
+     * @param stamps The field stamps of each instance, in the same order; null, or a null entry, for unstamped documents
+     * @return How many rows were inserted, updated or already up to date
+     */
+    public IngestResult bulkUpsertClassInstances(List<ClassInstance> instances, List<long[]> stamps) {
+        IngestResult result = new IngestResult();
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_INSTANCE_IF_CHANGED);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_INSTANCE);
+        TeacherIds teacherIds = new TeacherIds(db);
+
+        db.beginTransactionNonExclusive();
+        try {
+            List<Long> ids = new ArrayList<>(instances.size());
+            for (ClassInstance instance : instances) {
+                ids.add(instance.getId());
+            }
+            Map<Long, StoredRow> stored = readStoredRows(db, TABLE_CLASS_INSTANCES,
+                    ChangedFields.CLASS_INSTANCE_FIELD_COUNT, ids);
+            for (int i = 0; i < instances.size(); i++) {
+                ClassInstance remote = instances.get(i);
+                if (remote.getDate() == null) {
+                    Log.w(TAG, "Skipping class instance without a date: " + remote.getId());
+                    result.addInvalid(remote.getId());
+                    continue;
+                }
+                long remoteHash = ContentHash.of(remote);
+                long[] remoteStamps = stampsAt(stamps, i, ChangedFields.CLASS_INSTANCE_FIELD_COUNT);
+                StoredRow row = stored.get(remote.getId());
+                if (row == null) {
+                    Long teacherId = teacherIds.of(remote.getTeacher());
+                    bindClassInstance(insert, remote, remoteHash, 0, remoteStamps, teacherId);
+                    if (!executeValid(insert, remote.getId(), result)) {
+                        teacherIds.dropIfUnused(teacherId);
+                        continue;
+                    }
+                    invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, remote.getId());
+                    teacherClassAdded(remote.getTeacher(), remote.getDate().getTime());
+                    stored.put(remote.getId(), new StoredRow(remoteHash, 0, remoteStamps));
+                    result.addInserted();
+                    continue;
+                }
+                if (row.holds(remoteHash, remoteStamps)) {
+                    result.addSkipped();
+                    continue;
+                }
+                Cursor cursor = db.rawQuery(SQL_INSTANCE_BY_ID, new String[]{String.valueOf(remote.getId())});
+                DirtyRow<ClassInstance> local = readFirst(cursor, new DirtyRowMapper<>(cursor,
+                        new ClassInstanceRowMapper(cursor), ChangedFields.CLASS_INSTANCE_FIELD_COUNT));
+                FieldClockMerger.Result merge = FieldClockMerger.merge(
+                        local.getFieldStamps(), local.getDirtyFields(), remoteStamps);
+                ClassInstance merged = local.getRow();
+                String localTeacher = merged.getTeacher();
+                ChangedFields.copy(remote, merged, merge.getRemoteFields());
+                Long teacherId = teacherIds.of(merged.getTeacher());
+                bindClassInstance(update, merged, remoteHash, merge.getDirtyFields(), merge.getStamps(), teacherId);
+                int changed;
+                try {
+                    changed = update.executeUpdateDelete();
+                } catch (SQLiteConstraintException e) {
+                    invalidRow(remote.getId(), e, result);
+                    teacherIds.dropIfUnused(teacherId);
+                    continue;
+                }
+                if (changed == 0) {
+                    result.addUnchanged();
+                    continue;
+                }
+                result.addUpdated();
+                invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, remote.getId());
+                teacherClassRemoved(localTeacher);
+                teacherClassAdded(merged.getTeacher(), merged.getDate().getTime());
+                if (merge.getDirtyFields() != 0 && local.getDirtyFields() == 0) {
+                    enqueue(db, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, remote.getId(),
+                            OutboxEntry.Operation.UPSERT);
+                }
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+            update.close();
+            insert.close();
+            teacherIds.close();
+        }
+        return result;
+    }
+
+    // Insert one pulled row. A row that breaks a NOT NULL or CHECK constraint is reported and left out;
+    // SQLite undoes only the failed statement, so the rest of the batch is still stored.
+    private static boolean executeValid(SQLiteStatement insert, long id, IngestResult result) {
+        try {
+            insert.executeInsert();
+            return true;
+        } catch (SQLiteConstraintException e) {
+            invalidRow(id, e, result);
+            return false;
+        }
+    }
+
+    private static void invalidRow(long id, SQLiteConstraintException e, IngestResult result) {
+        Log.w(TAG, "Skipping invalid row " + id + ": " + e.getMessage());
+        result.addInvalid(id);
+    }
+
+    // The ingest check of one stored row, see storedRowsSql
+    private static final class StoredRow {
+        private final Long syncedHash; // null if the row was never synced
+        private final int dirtyFields;
+        private final long[] fieldStamps;
+
+        StoredRow(Long syncedHash, int dirtyFields, long[] fieldStamps) {
+            this.syncedHash = syncedHash;
+            this.dirtyFields = dirtyFields;
+            this.fieldStamps = fieldStamps;
+        }
+
+        // A clean row holds exactly what it was last synced with, so a document with that hash and the same
+        // stamps would merge to the row as it is
+        boolean holds(long remoteHash, long[] remoteStamps) {
+            return dirtyFields == 0 && syncedHash != null && syncedHash == remoteHash
+                    && Arrays.equals(fieldStamps, remoteStamps);
+        }
+    }
+
+    // Look up the ingest check of the stored rows among the IDs, in chunks that stay below
+    // SQLite's limit of 999 bound parameters
+    private static Map<Long, StoredRow> readStoredRows(SQLiteDatabase db, String table, int fieldCount,
+                                                       List<Long> ids) {
+        Map<Long, StoredRow> rows = new HashMap<>(ids.size() * 2);
+        for (int from = 0; from < ids.size(); from += STORED_ROWS_CHUNK) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + STORED_ROWS_CHUNK));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+            Cursor cursor = db.rawQuery(storedRowsSql(table, args.length), args);
+            try {
+                while (cursor.moveToNext()) {
+                    Long syncedHash = cursor.isNull(1) ? null : cursor.getLong(1);
+                    rows.put(cursor.getLong(0), new StoredRow(syncedHash, cursor.getInt(2),
+                            FieldClockMerger.fromBlob(cursor.getBlob(3), fieldCount)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    private static long[] stampsAt(List<long[]> stamps, int index, int fieldCount) {
+        long[] entry = stamps != null ? stamps.get(index) : null;
+        return entry != null ? entry : FieldClockMerger.unstamped(fieldCount);
+    }
+
+    // Bind ?1..?17 of the bulk course statements
+    private static void bindCourse(SQLiteStatement statement, Course course, long remoteHash,
+                                   int dirtyFields, long[] stamps) {
+        bindStringOrNull(statement, 1, course.getName());
+        bindStringOrNull(statement, 2, course.getDayOfWeek());
+        bindStringOrNull(statement, 3, course.getTime());
+        statement.bindLong(4, course.getCapacity());
+        statement.bindLong(5, course.getDuration());
+        statement.bindDouble(6, course.getPrice());
+        bindStringOrNull(statement, 7, course.getType());
+        bindStringOrNull(statement, 8, course.getDescription());
+        bindStringOrNull(statement, 9, course.getDifficulty());
+        statement.bindLong(10, course.isEquipmentNeeded() ? 1 : 0);
+        bindStringOrNull(statement, 11, course.getEquipmentDescription());
+        statement.bindLong(12, course.getId());
+        statement.bindLong(13, remoteHash);
+        statement.bindLong(14, dirtyFields);
+        statement.bindBlob(15, FieldClockMerger.toBlob(stamps));
+        bindDigest(statement, 16, course.getId(), remoteHash);
+    }
+
+    // Bind ?1..?12 of the bulk class instance statements
+    private static void bindClassInstance(SQLiteStatement statement, ClassInstance instance, long remoteHash,
+                                          int dirtyFields, long[] stamps, Long teacherId) {
+        statement.bindLong(1, instance.getCourseId());
+        statement.bindLong(2, instance.getDate().getTime());
+        bindStringOrNull(statement, 3, instance.getTeacher());
+        bindStringOrNull(statement, 4, instance.getAdditionalComments());
+        statement.bindLong(5, instance.getAvailableSpots());
+        statement.bindLong(6, instance.isCancelled() ? 1 : 0);
+        statement.bindLong(7, instance.getId());
+        statement.bindLong(8, remoteHash);
+        statement.bindLong(9, dirtyFields);
+        statement.bindBlob(10, FieldClockMerger.toBlob(stamps));
+        bindDigest(statement, 11, instance.getId(), remoteHash);
+        if (teacherId == null) {
+            statement.bindNull(13);
+        } else {
+            statement.bindLong(13, teacherId);
+        }
+    }
+
+    // The teacher of a stored instance, read before it is deleted; null if there is no such instance
+    private static String storedTeacher(SQLiteDatabase db, long instanceId) {
+        Cursor cursor = db.rawQuery(SQL_INSTANCE_TEACHER, new String[]{String.valueOf(instanceId)});
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Set teacher_id in the values of a single instance write; bulk writes keep one TeacherIds open instead
+    private static void putTeacherId(SQLiteDatabase db, ContentValues values, String teacher) {
+        TeacherIds teacherIds = new TeacherIds(db);
+        try {
+            values.put(KEY_TEACHER_ID, teacherIds.of(teacher));
+        } finally {
+            teacherIds.close();
+        }
+    }
+
+    // Undo putTeacherId for a row that was not inserted
+    private static void dropTeacherIfUnused(SQLiteDatabase db, ContentValues values) {
+        Long teacherId = values.getAsLong(KEY_TEACHER_ID);
+        if (teacherId != null) {
+            db.execSQL(SQL_DROP_TEACHER_IF_UNUSED, new Object[]{teacherId});
+        }
+    }
+
+    /**
+     * Looks up the teachers row of each name written to an instance, adding one for a new name,
+     * so teacher_id goes into the same INSERT or UPDATE as the name instead of being patched in after it.
+     */
+    private static class TeacherIds {
+        private final SQLiteStatement add;
+        private final SQLiteStatement find;
+        private final SQLiteStatement drop;
+
+        TeacherIds(SQLiteDatabase db) {
+            add = db.compileStatement(SQL_ADD_TEACHER);
+            find = db.compileStatement(SQL_TEACHER_ID);
+            drop = db.compileStatement(SQL_DROP_TEACHER_IF_UNUSED);
+        }
+
+        // The teacher's row ID, or null for a blank name
+        Long of(String name) {
+            if (name == null) {
+                return null;
+            }
+            add.bindString(1, name);
+            add.executeInsert();
+            find.bindString(1, name);
+            try {
+                return find.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return null;
+            }
+        }
+
+        // Called when the row the ID was looked up for failed its constraints, so a name first seen in an
+        // invalid row leaves no teacher behind
+        void dropIfUnused(Long teacherId) {
+            if (teacherId != null) {
+                drop.bindLong(1, teacherId);
+                drop.executeUpdateDelete();
+            }
+        }
+
+        void close() {
+            add.close();
+            find.close();
+            drop.close();
+        }
+    }
+
+    // Bind the MerkleDigest bucket and contribution of a row synced with the given hash, from index on
+    private static void bindDigest(SQLiteStatement statement, int index, long id, long syncedHash) {
+        String documentId = String.valueOf(id);
+        statement.bindLong(index, MerkleDigest.bucketOf(documentId));
+        statement.bindLong(index + 1, MerkleDigest.contribution(documentId, syncedHash));
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
     public void deleteAllCoursesAndClasses() {
         SQLiteDatabase db = getWritableDatabase();
 
-        // Step 1: Get all class instances and delete from Firestore
-        Cursor classCursor = db.query(TABLE_CLASS_INSTANCES, new String[]{KEY_ID}, null, null, null, null, null);
-        if (classCursor.moveToFirst()) {
-            do {
-                int instanceId = classCursor.getInt(classCursor.getColumnIndexOrThrow(KEY_ID));
-            } while (classCursor.moveToNext());
+        // Delete all records from both tables locally
+        db.beginTransactionNonExclusive();
+        try {
+            db.delete(TABLE_CLASS_INSTANCES, null, null);
+            db.delete(TABLE_TEACHERS, null, null); // The delete trigger has emptied it already; in case of strays
+            db.delete(TABLE_COURSES, null, null);
+            db.delete(TABLE_SYNC_STATE, KEY_STATE_KEY + " NOT IN (?, ?)",
+                    new String[]{STATE_ID_NODE, STATE_INSTALLATION_ID});
+            db.delete(TABLE_OUTBOX, null, null);
+            invalidationTracker.tableChanged(TABLE_COURSES);
+            invalidationTracker.tableChanged(TABLE_CLASS_INSTANCES);
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    // Change tracking
+
+    /**
+     * Record that uploaded courses reached the cloud. Rows edited again since they were read stay dirty.
+     * A row deleted while its upload was in flight is now in the cloud after all, so its delete is queued.
+     * @param rows The rows as they were read for the upload
+     */
+    public void markCoursesSynced(List<DirtyRow<Course>> rows) {
+        markSynced(TABLE_COURSES, FirestoreSyncManager.COLLECTION_COURSES, rows, ChangedFields.ALL_COURSE,
+                Course::getId, ContentHash::of);
+    }
+
+    /**
+     * Record that uploaded class instances reached the cloud, like {@link #markCoursesSynced}
+     * @param rows The rows as they were read for the upload
+     */
+    public void markClassInstancesSynced(List<DirtyRow<ClassInstance>> rows) {
+        markSynced(TABLE_CLASS_INSTANCES, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, rows,
+                ChangedFields.ALL_CLASS_INSTANCE, ClassInstance::getId, ContentHash::of);
+    }
+
+    private <T> void markSynced(String table, String collection, List<DirtyRow<T>> rows, int allFields,
+                                ToLongFunction<T> id, ToLongFunction<T> hash) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(markSyncedSql(table));
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (DirtyRow<T> row : rows) {
+                statement.bindLong(1, hash.applyAsLong(row.getRow()));
+                statement.bindLong(2, id.applyAsLong(row.getRow()));
+                statement.bindLong(3, row.getLocalVersion());
+                // Rows never synced before were written whole
+                statement.bindLong(4, row.isEverSynced() ? row.getDirtyFields() : allFields);
+                bindDigest(statement, 5, id.applyAsLong(row.getRow()), hash.applyAsLong(row.getRow()));
+                if (statement.executeUpdateDelete() == 0) {
+                    // Deleted while the upload was in flight: the document exists now, so it has to go too
+                    enqueueDelete(db, collection, id.applyAsLong(row.getRow()), hash.applyAsLong(row.getRow()));
+                }
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+            statement.close();
+        }
+    }
+
+    /**
+     * Get a row's pending changes for upload
+     * @param id The ID of the course
+     * @return The course with its change tracking, or null if it is gone or has nothing to upload
+     */
+    public DirtyRow<Course> getDirtyCourse(long id) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_COURSE_BY_ID, new String[]{String.valueOf(id)});
+        DirtyRow<Course> row = readFirst(cursor,
+                new DirtyRowMapper<>(cursor, new CourseRowMapper(cursor), ChangedFields.COURSE_FIELD_COUNT));
+        return row != null && row.getDirtyFields() != 0 ? row : null;
+    }
+
+    /**
+     * Get a class instance's pending changes for upload, like {@link #getDirtyCourse}
+     */
+    public DirtyRow<ClassInstance> getDirtyClassInstance(long id) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_INSTANCE_BY_ID, new String[]{String.valueOf(id)});
+        DirtyRow<ClassInstance> row = readFirst(cursor, new DirtyRowMapper<>(cursor, new ClassInstanceRowMapper(cursor),
+                ChangedFields.CLASS_INSTANCE_FIELD_COUNT));
+        return row != null && row.getDirtyFields() != 0 ? row : null;
+    }
+
+    // Outbox
+
+    // Queue a document write. Replaces any entry for the same document, so repeated edits are sent once,
+    // and resets its retry state. Called inside the transaction that makes the local change.
+    private static void enqueue(SQLiteDatabase db, String collection, long id, OutboxEntry.Operation operation) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_COLLECTION, collection);
+        values.put(KEY_DOCUMENT_ID, String.valueOf(id));
+        values.put(KEY_OPERATION, operation.name());
+        values.put(KEY_ENQUEUED_AT, System.currentTimeMillis());
+        db.insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // Queue the remote delete of every synced row matching the condition, replacing any pending upsert. Each entry
+    // remembers the row's synced hash, so the upload can take the document out of the MerkleDigest.
+    // A row that was never synced has no document to delete: its pending upsert is dropped instead. Should that
+    // upsert be in flight already, markSynced queues the delete once it lands.
+    private static void enqueueDeletes(SQLiteDatabase db, String table, String collection, String where,
+                                       String[] whereArgs) {
+        Object[] dropArgs = new Object[1 + whereArgs.length];
+        dropArgs[0] = collection;
+        System.arraycopy(whereArgs, 0, dropArgs, 1, whereArgs.length);
+        db.execSQL("DELETE FROM " + TABLE_OUTBOX + " WHERE " + KEY_COLLECTION + " = ? AND " + KEY_DOCUMENT_ID +
+                " IN (SELECT CAST(" + KEY_ID + " AS TEXT) FROM " + table + " WHERE (" + where + ") AND " +
+                KEY_SYNCED_HASH + " IS NULL)", dropArgs);
+
+        Object[] args = new Object[3 + whereArgs.length];
+        args[0] = collection;
+        args[1] = OutboxEntry.Operation.DELETE.name();
+        args[2] = System.currentTimeMillis();
+        System.arraycopy(whereArgs, 0, args, 3, whereArgs.length);
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_OUTBOX + "(" + KEY_COLLECTION + ", " + KEY_DOCUMENT_ID + ", " +
+                KEY_OPERATION + ", " + KEY_ENQUEUED_AT + ", " + KEY_SYNCED_HASH + ")" +
+                " SELECT ?, " + KEY_ID + ", ?, ?, " + KEY_SYNCED_HASH + " FROM " + table +
+                " WHERE (" + where + ") AND " + KEY_SYNCED_HASH + " IS NOT NULL", args);
+    }
+
+    // Queue the remote delete of one document the cloud holds with the given hash
+    private static void enqueueDelete(SQLiteDatabase db, String collection, long id, long syncedHash) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_COLLECTION, collection);
+        values.put(KEY_DOCUMENT_ID, String.valueOf(id));
+        values.put(KEY_OPERATION, OutboxEntry.Operation.DELETE.name());
+        values.put(KEY_ENQUEUED_AT, System.currentTimeMillis());
+        values.put(KEY_SYNCED_HASH, syncedHash);
+        db.insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Queue an upload for every row with changes that are not in the outbox yet
+     */
+    public void enqueueDirtyRows() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            enqueueDirtyRows(db);
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    private static void enqueueDirtyRows(SQLiteDatabase db) {
+        String[][] tables = {
+                {TABLE_COURSES, FirestoreSyncManager.COLLECTION_COURSES},
+                {TABLE_CLASS_INSTANCES, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES}
+        };
+        for (String[] table : tables) {
+            // OR IGNORE keeps entries that are already queued, with their retry state
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_OUTBOX + "(" + KEY_COLLECTION + ", " + KEY_DOCUMENT_ID + ", " +
+                            KEY_OPERATION + ", " + KEY_ENQUEUED_AT + ")" +
+                            " SELECT ?, " + KEY_ID + ", ?, ? FROM " + table[0] + " WHERE " + KEY_DIRTY + " = 1",
+                    new Object[]{table[1], OutboxEntry.Operation.UPSERT.name(), System.currentTimeMillis()});
+        }
+    }
+
+    /**
+     * Get the next outbox entries that are due, in the order they were queued
+     * @param afterId The ID of the last entry already read, or 0 to start
+     * @param now The current time; entries waiting for a later retry are skipped
+     * @param limit The maximum number of entries to return
+     * @return The next due entries; fewer than limit means there are no more
+     */
+    public List<OutboxEntry> getDueOutboxEntries(long afterId, long now, int limit) {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_DUE_OUTBOX_AFTER_ID,
+                new String[]{String.valueOf(afterId), String.valueOf(now), String.valueOf(limit)});
+        try {
+            int idIndex = cursor.getColumnIndexOrThrow(KEY_ID);
+            int collectionIndex = cursor.getColumnIndexOrThrow(KEY_COLLECTION);
+            int documentIdIndex = cursor.getColumnIndexOrThrow(KEY_DOCUMENT_ID);
+            int operationIndex = cursor.getColumnIndexOrThrow(KEY_OPERATION);
+            int attemptsIndex = cursor.getColumnIndexOrThrow(KEY_ATTEMPTS);
+            int syncedHashIndex = cursor.getColumnIndexOrThrow(KEY_SYNCED_HASH);
+            List<OutboxEntry> entries = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                entries.add(new OutboxEntry(
+                        cursor.getLong(idIndex),
+                        cursor.getString(collectionIndex),
+                        cursor.getString(documentIdIndex),
+                        OutboxEntry.Operation.valueOf(cursor.getString(operationIndex)),
+                        cursor.getInt(attemptsIndex),
+                        cursor.isNull(syncedHashIndex) ? null : cursor.getLong(syncedHashIndex)));
+            }
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove entries that were sent. An entry replaced by a newer change meanwhile has a new ID and stays.
+     * @param entries The entries as they were read
+     */
+    public void removeOutboxEntries(List<OutboxEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (OutboxEntry entry : entries) {
+                db.delete(TABLE_OUTBOX, KEY_ID + "=?", new String[]{String.valueOf(entry.getId())});
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    /**
+     * Count a failed attempt for each entry and schedule its next one
+     * @param entries The entries as they were read
+     * @param backoff How long to wait after the attempts so far
+     * @param now The current time
+     */
+    public void retryOutboxEntriesLater(List<OutboxEntry> entries, Backoff backoff, long now) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (OutboxEntry entry : entries) {
+                int attempts = entry.getAttempts() + 1;
+                ContentValues values = new ContentValues();
+                values.put(KEY_ATTEMPTS, attempts);
+                values.put(KEY_NEXT_ATTEMPT_AT, now + backoff.delayMillis(attempts));
+                db.update(TABLE_OUTBOX, values, KEY_ID + "=?", new String[]{String.valueOf(entry.getId())});
+            }
+            setTransactionSuccessful(db);
+        } finally {
+            endTransaction(db);
+        }
+    }
+
+    /**
+     * @return How many documents are waiting to be written to Firestore
+     */
+    public long getOutboxDepth() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_OUTBOX);
+    }
+
+    /**
+     * @return When the earliest outbox entry may be sent, or -1 if the outbox is empty
+     */
+    public long getNextOutboxAttemptAt() {
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_NEXT_OUTBOX_ATTEMPT, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Merkle digest
+
+    /**
+     * Get the local side of the MerkleDigest: every row that reached the cloud counts with the hash of
+     * what the cloud held at its last sync, and rows never uploaded are left out, like documents the cloud
+     * does not have. Reads the leaves kept up to date by the digest triggers, not the rows.
+     * @param collection The collection whose digest to read
+     * @return The value of each bucket
+     */
+    public long[] getDigestLeaves(String collection) {
+        long[] leaves = new long[MerkleDigest.LEAF_COUNT];
+        Cursor cursor = getReadableDatabase().rawQuery(SQL_DIGEST_LEAVES, new String[]{collection});
+        try {
+            while (cursor.moveToNext()) {
+                leaves[cursor.getInt(0)] = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        return leaves;
+    }
+
+    /**
+     * Get the rows that reached the cloud and fall in some MerkleDigest buckets, through the digest bucket index
+     * @param collection The collection whose rows to read
+     * @param buckets The buckets
+     * @return The IDs of the rows
+     */
+    public List<Long> getSyncedIdsInBuckets(String collection, Set<Integer> buckets) {
+        String table = tableFor(collection);
+        List<Integer> all = new ArrayList<>(buckets);
+        List<Long> ids = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += STORED_ROWS_CHUNK) {
+            List<Integer> chunk = all.subList(from, Math.min(all.size(), from + STORED_ROWS_CHUNK));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+            Cursor cursor = getReadableDatabase().rawQuery(syncedIdsInBucketsSql(table, args.length), args);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ids;
+    }
+
+    private static String tableFor(String collection) {
+        if (FirestoreSyncManager.COLLECTION_COURSES.equals(collection)) {
+            return TABLE_COURSES;
+        }
+        if (FirestoreSyncManager.COLLECTION_CLASS_INSTANCES.equals(collection)) {
+            return TABLE_CLASS_INSTANCES;
+        }
+        throw new IllegalArgumentException("Unknown collection: " + collection);
+    }
+
+    // Row IDs and clock stamps
+
+    /**
+     * Get this installation's node ID, shared by the IdGenerator and the HybridLogicalClock.
+     * Picked at random on first use; kept when the database is cleared or reset.
+     * @return The node ID
+     */
+    public synchronized int getIdNode() {
+        String stored = getSyncState(STATE_ID_NODE);
+        if (stored != null) {
+            return Integer.parseInt(stored);
+        }
+        int node = new SecureRandom().nextInt(IdGenerator.MAX_NODE + 1);
+        putSyncState(STATE_ID_NODE, String.valueOf(node));
+        return node;
+    }
+
+    /**
+     * Give up a node ID that another installation claimed, and pick another one at random.
+     * Rows created from now on get IDs and clock stamps of the new node.
+     * @param taken The node ID that is taken
+     * @return The new node ID
+     */
+    public synchronized int moveToNewIdNode(int taken) {
+        int node;
+        do {
+            node = new SecureRandom().nextInt(IdGenerator.MAX_NODE + 1);
+        } while (node == taken);
+        putSyncState(STATE_ID_NODE, String.valueOf(node));
+        idGenerator = null;
+        clock = null;
+        return node;
+    }
+
+    /**
+     * Get a random ID for this installation, with which it claims its node ID.
+     * Made on first use; kept when the database is cleared or reset.
+     * @return The installation ID
+     */
+    public synchronized String getInstallationId() {
+        String stored = getSyncState(STATE_INSTALLATION_ID);
+        if (stored != null) {
+            return stored;
+        }
+        String installation = UUID.randomUUID().toString();
+        putSyncState(STATE_INSTALLATION_ID, installation);
+        return installation;
+    }
+
+    // The generator of the IDs of new rows. It starts after the largest ID it generated before,
+    // in case the clock has gone back since.
+    private synchronized IdGenerator idGenerator() {
+        if (idGenerator == null) {
+            int node = getIdNode();
+            IdGenerator generator = new IdGenerator(node, System::currentTimeMillis);
+            String[] args = {String.valueOf(IdGenerator.firstIdAt(System.currentTimeMillis())), String.valueOf(node)};
+            for (String sql : new String[]{SQL_MAX_COURSE_ID_OF_NODE, SQL_MAX_INSTANCE_ID_OF_NODE}) {
+                Cursor cursor = getReadableDatabase().rawQuery(sql, args);
+                try {
+                    if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                        generator.advancePast(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            idGenerator = generator;
+        }
+        return idGenerator;
+    }
+
+    // The clock that stamps local edits. It needs no saved state: every edit observes the stamps of
+    // the row it changes, so it comes after them even if the wall clock has gone back.
+    private synchronized HybridLogicalClock clock() {
+        if (clock == null) {
+            clock = new HybridLogicalClock(getIdNode(), System::currentTimeMillis);
+        }
+        return clock;
+    }
+
+    // The field_stamps value of a new row, whose fields were all just edited
+    private byte[] newRowStamps(int fieldCount) {
+        long[] stamps = FieldClockMerger.stamp(
+                FieldClockMerger.unstamped(fieldCount), (1 << fieldCount) - 1, clock().tick());
+        return FieldClockMerger.toBlob(stamps);
+    }
+
+    // Sync state
+
+    /**
+     * Read a sync state value
+     * @param key The state key
+     * @return The stored value, or null if there is none
+     */
+    @Override
+    public String getSyncState(String key) {
+        Cursor cursor = getReadableDatabase().query(TABLE_SYNC_STATE, new String[]{KEY_STATE_VALUE},
+                KEY_STATE_KEY + "=?", new String[]{key}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Store a sync state value, replacing the previous one
+     * @param key The state key
+     * @param value The value, or null to remove it
+     */
+    @Override
+    public void putSyncState(String key, String value) {
+        SQLiteDatabase db = getWritableDatabase();
+        if (value == null) {
+            db.delete(TABLE_SYNC_STATE, KEY_STATE_KEY + "=?", new String[]{key});
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(KEY_STATE_KEY, key);
+        values.put(KEY_STATE_VALUE, value);
+        db.insertWithOnConflict(TABLE_SYNC_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Get the pull high-water mark of a Firestore collection
+     * @param collection The collection name
+     * @return The time (ms) up to which every write has been pulled, or 0 if the collection was never pulled
+     */
+    public long getHighWaterMark(String collection) {
+        String value = getSyncState(highWaterMarkKey(collection));
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    private static String highWaterMarkKey(String collection) {
+        return "high_water_mark/" + collection;
+    }
+
+    // Earlier pages can be ordered by document ID rather than by time, so only a finished pull moves the mark
+    private void putHighWaterMark(PulledChanges<?> changes, String collection) {
+        if (changes.isLastPage()) {
+            putSyncState(highWaterMarkKey(collection), String.valueOf(changes.getHighWaterMark()));
         }
-        classCursor.close();
+    }
 
-        // Step 2: Get all courses and delete from Firestore
-        Cursor courseCursor = db.query(TABLE_COURSES, new String[]{KEY_ID}, null, null, null, null, null);
-        if (courseCursor.moveToFirst()) {
-            do {
-                int courseId = courseCursor.getInt(courseCursor.getColumnIndexOrThrow(KEY_ID));
-            } while (courseCursor.moveToNext());
+    /**
+     * Apply one page of a pull of the courses collection: store the changed courses, delete the removed ones
+     * together with their class instances, and on the last page move the high-water mark, all in one transaction.
+     * @param changes The pulled page
+     * @param collection The collection the changes came from, which owns the high-water mark
+     * @return How many rows were inserted, updated, deleted or already up to date
+     */
+    public IngestResult applyPulledCourses(PulledChanges<Course> changes, String collection) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            IngestResult result = bulkUpsertCourses(changes.getChanged(), changes.getChangedStamps());
+            for (long courseId : changes.getDeletedIds()) {
+                String[] args = {String.valueOf(courseId)};
+                if (db.delete(TABLE_CLASS_INSTANCES, KEY_COURSE_ID + "=?", args) > 0) {
+                    // The IDs of the instances are not read first, so the whole table counts as changed
+                    invalidationTracker.tableChanged(TABLE_CLASS_INSTANCES);
+                }
+                if (db.delete(TABLE_COURSES, KEY_ID + "=?", args) > 0) {
+                    invalidationTracker.rowChanged(TABLE_COURSES, courseId);
+                    result.addDeleted();
+                }
+            }
+            putHighWaterMark(changes, collection);
+            setTransactionSuccessful(db);
+            return result;
+        } finally {
+            endTransaction(db);
         }
-        courseCursor.close();
+    }
 
-        // Step 3: Delete all records from both tables locally
-        db.delete(TABLE_CLASS_INSTANCES, null, null);
-        db.delete(TABLE_COURSES, null, null);
+    /**
+     * Apply one page of a pull of the class instances collection in one transaction, like {@link #applyPulledCourses}
+     * @param changes The pulled page
+     * @param collection The collection the changes came from, which owns the high-water mark
+     * @return How many rows were inserted, updated, deleted or already up to date
+     */
+    public IngestResult applyPulledClassInstances(PulledChanges<ClassInstance> changes, String collection) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            IngestResult result = bulkUpsertClassInstances(changes.getChanged(), changes.getChangedStamps());
+            for (long instanceId : changes.getDeletedIds()) {
+                String teacher = storedTeacher(db, instanceId);
+                if (db.delete(TABLE_CLASS_INSTANCES, KEY_ID + "=?", new String[]{String.valueOf(instanceId)}) > 0) {
+                    invalidationTracker.rowChanged(TABLE_CLASS_INSTANCES, instanceId);
+                    teacherClassRemoved(teacher);
+                    result.addDeleted();
+                }
+            }
+            putHighWaterMark(changes, collection);
+            setTransactionSuccessful(db);
+            return result;
+        } finally {
+            endTransaction(db);
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,408 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Checks that the local database and Firestore hold the same documents of a collection without downloading it.
+ * The local MerkleDigest tree is compared with the remote one from the root down, so only the digest documents
+ * of differing subtrees are read, and then only the buckets that differ are fetched and applied like a pull.
+ * When the two sides agree, this reads a single digest document.
+ * <p>
+ * Uploads keep the remote tree current with increments committed in the same batch as the documents, computed
+ * from what the uploading device believes the document held before. A write the device did not know about,
+ * such as a concurrent merge from another device or a write by an old app version, leaves the tree slightly off;
+ * the fetched buckets are used to correct it.
+ * The first run on a collection without a tree builds it from a scan of the whole collection, and gives older
+ * documents their bucket field.
+ * Blocks until it is finished; call it on a background thread.
+ * @param <T> Course or ClassInstance
+ */
+public class DigestReconciliation<T> {
+
+    /**
+     * What one run of the reconciliation did
+     */
+    public static class Result {
+        private boolean built; // The remote tree did not exist and was built from a full scan
+        private int digestDocumentsRead;
+        private int divergentBuckets;
+        private int documentsFetched;
+        private int rowsWritten; // Local rows inserted, updated or deleted from the fetched documents
+        private int rowsGone; // Synced local rows whose document is gone without a tombstone, deleted here too
+        private int bucketsCorrected; // Remote bucket values that were off and were corrected
+
+        public boolean isBuilt() {
+            return built;
+        }
+
+        public int getDigestDocumentsRead() {
+            return digestDocumentsRead;
+        }
+
+        public int getDivergentBuckets() {
+            return divergentBuckets;
+        }
+
+        public int getDocumentsFetched() {
+            return documentsFetched;
+        }
+
+        public int getRowsWritten() {
+            return rowsWritten;
+        }
+
+        public int getRowsGone() {
+            return rowsGone;
+        }
+
+        public int getBucketsCorrected() {
+            return bucketsCorrected;
+        }
+
+        /**
+         * @return Whether both sides already held the same documents
+         */
+        public boolean isInSync() {
+            return divergentBuckets == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "built=" + built + ", digestDocumentsRead=" + digestDocumentsRead +
+                    ", divergentBuckets=" + divergentBuckets + ", documentsFetched=" + documentsFetched +
+                    ", rowsWritten=" + rowsWritten + ", rowsGone=" + rowsGone +
+                    ", bucketsCorrected=" + bucketsCorrected;
+        }
+    }
+
+    private final RemoteStore store;
+    private final DatabaseHelper dbHelper;
+    private final String collection;
+    private final int pageSize;
+    private final BiFunction<String, Map<String, Object>, T> decoder;
+    private final Function<Map<String, Object>, long[]> stampDecoder;
+    private final ToLongFunction<T> hasher;
+    private final BiFunction<PulledChanges<T>, String, IngestResult> applier;
+
+    private DigestReconciliation(RemoteStore store, DatabaseHelper dbHelper, String collection, int pageSize,
+                                 BiFunction<String, Map<String, Object>, T> decoder,
+                                 Function<Map<String, Object>, long[]> stampDecoder, ToLongFunction<T> hasher,
+                                 BiFunction<PulledChanges<T>, String, IngestResult> applier) {
+        if (pageSize < 1 || pageSize > RemoteStore.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + RemoteStore.MAX_BATCH_SIZE);
+        }
+        this.store = store;
+        this.dbHelper = dbHelper;
+        this.collection = collection;
+        this.pageSize = pageSize;
+        this.decoder = decoder;
+        this.stampDecoder = stampDecoder;
+        this.hasher = hasher;
+        this.applier = applier;
+    }
+
+    /**
+     * @param store The store holding the courses
+     * @param dbHelper The local database
+     * @param pageSize Documents read per page
+     * @return A reconciliation of the courses collection
+     */
+    public static DigestReconciliation<Course> forCourses(RemoteStore store, DatabaseHelper dbHelper, int pageSize) {
+        return new DigestReconciliation<>(store, dbHelper, FirestoreSyncManager.COLLECTION_COURSES, pageSize,
+                FirestoreCodec::decodeCourse, FirestoreCodec::decodeCourseStamps, ContentHash::of,
+                dbHelper::applyPulledCourses);
+    }
+
+    /**
+     * @param store The store holding the class instances
+     * @param dbHelper The local database
+     * @param pageSize Documents read per page
+     * @return A reconciliation of the class instances collection
+     */
+    public static DigestReconciliation<ClassInstance> forClassInstances(RemoteStore store, DatabaseHelper dbHelper,
+                                                                        int pageSize) {
+        return new DigestReconciliation<>(store, dbHelper, FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, pageSize,
+                FirestoreCodec::decodeClassInstance, FirestoreCodec::decodeClassInstanceStamps, ContentHash::of,
+                dbHelper::applyPulledClassInstances);
+    }
+
+    /**
+     * Compare the two sides and bring the differing buckets in line.
+     * Local changes still waiting in the outbox show up as differences, so drain it first.
+     * @return What this run did
+     * @throws ExecutionException If a read or write failed; nothing is lost, and the next run starts over
+     * @throws InterruptedException If interrupted while waiting for the store
+     */
+    public Result run() throws ExecutionException, InterruptedException {
+        Result result = new Result();
+        long[] localLeaves = dbHelper.getDigestLeaves(collection);
+
+        Map<Integer, Map<String, Object>> root = fetchNodes(0, Collections.singletonList(0), result);
+        if (root.get(0) == null || root.get(0).get(MerkleDigest.FIELD_BUILT_AT) == null) {
+            build(result);
+            localLeaves = dbHelper.getDigestLeaves(collection);
+            root = fetchNodes(0, Collections.singletonList(0), result);
+        }
+
+        // Walk down the subtrees whose values differ; remoteLeaves ends up with the differing buckets
+        Map<Integer, Map<String, Object>> nodes = root;
+        Map<Integer, Long> remoteLeaves = new HashMap<>();
+        for (int level = 0; level < MerkleDigest.DEPTH; level++) {
+            long[] localChildren = MerkleDigest.sumsAt(localLeaves, level + 1);
+            List<Integer> divergent = new ArrayList<>();
+            for (Map.Entry<Integer, Map<String, Object>> node : nodes.entrySet()) {
+                int first = node.getKey() * MerkleDigest.FANOUT;
+                long[] local = new long[MerkleDigest.FANOUT];
+                System.arraycopy(localChildren, first, local, 0, MerkleDigest.FANOUT);
+                long[] remote = MerkleDigest.readNode(node.getValue());
+                for (int child : MerkleDigest.divergentChildren(local, remote)) {
+                    divergent.add(first + child);
+                    remoteLeaves.put(first + child, remote[child]);
+                }
+            }
+            if (divergent.isEmpty()) {
+                return result;
+            }
+            if (level < MerkleDigest.DEPTH - 1) {
+                nodes = fetchNodes(level + 1, divergent, result);
+                remoteLeaves.clear();
+            }
+        }
+
+        result.divergentBuckets = remoteLeaves.size();
+        // How far each remote bucket value is from the documents actually in the bucket
+        Map<Integer, Long> corrections = new HashMap<>();
+        Map<Integer, Set<String>> seen = new HashMap<>();
+        for (Map.Entry<Integer, Long> leaf : remoteLeaves.entrySet()) {
+            Set<String> ids = new HashSet<>();
+            long actual = fetchBucket(leaf.getKey(), ids, result);
+            seen.put(leaf.getKey(), ids);
+            corrections.put(leaf.getKey(), actual - leaf.getValue());
+        }
+
+        // Rows the cloud has no document for at all: check by ID, since a document written by an old app version
+        // has no bucket field. A synced row with neither a document nor a tombstone was deleted for good in the
+        // cloud, e.g. from the console, so it is deleted here like a pulled tombstone rather than uploaded back.
+        List<String> missing = new ArrayList<>();
+        for (long id : dbHelper.getSyncedIdsInBuckets(collection, remoteLeaves.keySet())) {
+            String documentId = String.valueOf(id);
+            if (!seen.get(MerkleDigest.bucketOf(documentId)).contains(documentId)) {
+                missing.add(documentId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<RemoteDocument> unbucketed = fetchDocuments(collection, missing);
+            Map<Integer, Long> found = new HashMap<>();
+            apply(unbucketed, found, result);
+            for (Map.Entry<Integer, Long> bucket : found.entrySet()) {
+                corrections.merge(bucket.getKey(), bucket.getValue(), Long::sum);
+            }
+            for (RemoteDocument document : unbucketed) {
+                missing.remove(document.getId());
+            }
+            PulledChanges<T> gone = new PulledChanges<>(0);
+            for (String documentId : missing) {
+                gone.addDeleted(Long.parseLong(documentId));
+            }
+            result.rowsWritten += applier.apply(gone, collection).getWritten();
+            result.rowsGone = missing.size();
+        }
+
+        MerkleDigest.Deltas deltas = new MerkleDigest.Deltas();
+        for (Map.Entry<Integer, Long> correction : corrections.entrySet()) {
+            if (correction.getValue() != 0) {
+                deltas.add(collection, correction.getKey(), correction.getValue());
+                result.bucketsCorrected++;
+            }
+        }
+        commitAll(deltas.toWriteOps());
+        return result;
+    }
+
+    // Fetch one bucket, apply its documents, and return the bucket's actual value
+    private long fetchBucket(int bucket, Set<String> ids, Result result) throws ExecutionException, InterruptedException {
+        long actual = 0;
+        String afterId = null;
+        List<RemoteDocument> page;
+        do {
+            page = fetchWhereEqual((long) bucket, afterId);
+            for (RemoteDocument document : page) {
+                ids.add(document.getId());
+            }
+            actual += apply(page, new HashMap<>(), result);
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == pageSize);
+        return actual;
+    }
+
+    // Apply fetched documents like a pull page, without moving the high-water mark, and return the sum of
+    // their contributions; the contributions are also added to their buckets in byBucket
+    private long apply(List<RemoteDocument> documents, Map<Integer, Long> byBucket, Result result)
+            throws ExecutionException, InterruptedException {
+        PulledChanges<T> changes = new PulledChanges<>(0);
+        List<WriteOp> backfill = new ArrayList<>();
+        long sum = 0;
+        for (RemoteDocument document : documents) {
+            result.documentsFetched++;
+            Map<String, Object> data = document.getData();
+            String documentId = document.getId();
+            if (data.get(FirestoreCodec.FIELD_DIGEST_BUCKET) == null) {
+                backfill.add(bucketBackfill(documentId));
+            }
+            long id;
+            try {
+                id = Long.parseLong(documentId);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (Boolean.TRUE.equals(data.get(FirestoreSyncManager.FIELD_DELETED))) {
+                changes.addDeleted(id);
+                continue;
+            }
+            T decoded;
+            try {
+                decoded = decoder.apply(documentId, data);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            changes.addChanged(decoded, stampDecoder.apply(data));
+            long contribution = MerkleDigest.contribution(documentId, hasher.applyAsLong(decoded));
+            byBucket.merge(MerkleDigest.bucketOf(documentId), contribution, Long::sum);
+            sum += contribution;
+        }
+        result.rowsWritten += applier.apply(changes, collection).getWritten();
+        commitAll(backfill);
+        return sum;
+    }
+
+    // Scan the whole collection, apply it, and write the tree from scratch. Documents without a bucket field
+    // get one. Increments from uploads that commit during the scan can be lost; later runs correct them.
+    private void build(Result result) throws ExecutionException, InterruptedException {
+        result.built = true;
+        long[] leaves = new long[MerkleDigest.LEAF_COUNT];
+        String afterId = null;
+        List<RemoteDocument> page;
+        do {
+            page = fetchPage(afterId);
+            Map<Integer, Long> byBucket = new HashMap<>();
+            apply(page, byBucket, result);
+            for (Map.Entry<Integer, Long> bucket : byBucket.entrySet()) {
+                leaves[bucket.getKey()] += bucket.getValue();
+            }
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == pageSize);
+
+        List<WriteOp> tree = new ArrayList<>();
+        for (int level = 0; level < MerkleDigest.DEPTH; level++) {
+            long[] children = MerkleDigest.sumsAt(leaves, level + 1);
+            for (int node = 0; node * MerkleDigest.FANOUT < children.length; node++) {
+                long[] values = new long[MerkleDigest.FANOUT];
+                System.arraycopy(children, node * MerkleDigest.FANOUT, values, 0, MerkleDigest.FANOUT);
+                Map<String, Object> data = MerkleDigest.writeNode(values);
+                if (level == 0) {
+                    data.put(MerkleDigest.FIELD_BUILT_AT, System.currentTimeMillis());
+                }
+                tree.add(WriteOp.set(MerkleDigest.COLLECTION_DIGESTS,
+                        MerkleDigest.nodeDocumentId(collection, level, node), data));
+            }
+        }
+        commitAll(tree);
+    }
+
+    // Incrementing the missing field from 0 writes the bucket without stamping the document, so other devices
+    // don't pull it again, and without touching a tombstone's deleted flag
+    private WriteOp bucketBackfill(String documentId) {
+        return WriteOp.increment(collection, documentId, Collections.<String, Object>singletonMap(
+                FirestoreCodec.FIELD_DIGEST_BUCKET, (long) MerkleDigest.bucketOf(documentId)));
+    }
+
+    // The digest documents of some nodes of a level, by node index; nodes without a document are null
+    private Map<Integer, Map<String, Object>> fetchNodes(int level, List<Integer> indexes, Result result)
+            throws ExecutionException, InterruptedException {
+        List<String> ids = new ArrayList<>(indexes.size());
+        Map<String, Integer> indexById = new HashMap<>();
+        for (int index : indexes) {
+            String id = MerkleDigest.nodeDocumentId(collection, level, index);
+            ids.add(id);
+            indexById.put(id, index);
+        }
+        Map<Integer, Map<String, Object>> nodes = new HashMap<>();
+        for (int index : indexes) {
+            nodes.put(index, null);
+        }
+        for (RemoteDocument document : fetchDocuments(MerkleDigest.COLLECTION_DIGESTS, ids)) {
+            nodes.put(indexById.get(document.getId()), document.getData());
+            result.digestDocumentsRead++;
+        }
+        return nodes;
+    }
+
+    private List<RemoteDocument> fetchDocuments(String fromCollection, List<String> ids)
+            throws ExecutionException, InterruptedException {
+        CompletableFuture<List<RemoteDocument>> documents = new CompletableFuture<>();
+        store.fetchDocuments(fromCollection, ids, pageCallback(documents));
+        return documents.get();
+    }
+
+    private List<RemoteDocument> fetchWhereEqual(long bucket, String afterId)
+            throws ExecutionException, InterruptedException {
+        CompletableFuture<List<RemoteDocument>> page = new CompletableFuture<>();
+        store.fetchWhereEqual(collection, FirestoreCodec.FIELD_DIGEST_BUCKET, bucket, afterId, pageSize,
+                pageCallback(page));
+        return page.get();
+    }
+
+    private List<RemoteDocument> fetchPage(String afterId) throws ExecutionException, InterruptedException {
+        CompletableFuture<List<RemoteDocument>> page = new CompletableFuture<>();
+        store.fetchPage(collection, afterId, pageSize, pageCallback(page));
+        return page.get();
+    }
+
+    private static RemoteStore.PageCallback pageCallback(CompletableFuture<List<RemoteDocument>> future) {
+        return new RemoteStore.PageCallback() {
+            @Override
+            public void onSuccess(List<RemoteDocument> documents) {
+                future.complete(documents);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+
+    private void commitAll(List<WriteOp> ops) throws ExecutionException, InterruptedException {
+        for (int from = 0; from < ops.size(); from += RemoteStore.MAX_BATCH_SIZE) {
+            List<WriteOp> batch = ops.subList(from, Math.min(ops.size(), from + RemoteStore.MAX_BATCH_SIZE));
+            CompletableFuture<Void> commit = new CompletableFuture<>();
+            store.commit(new ArrayList<>(batch), new RemoteStore.CommitCallback() {
+                @Override
+                public void onSuccess() {
+                    commit.complete(null);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    commit.completeExceptionally(e);
+                }
+            });
+            commit.get();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.universalyoga.admin;
+
+/**
+ * A local row that changed since its last upload, with what is needed to upload just the change
+ * and to mark it clean afterwards.
+ * @param <T> Course or ClassInstance
+ */
+public class DirtyRow<T> {
+    private final T row;
+    private final int dirtyFields;
+    private final long localVersion;
+    private final Long syncedHash;
+    private final long[] fieldStamps;
+
+    public DirtyRow(T row, int dirtyFields, long localVersion, Long syncedHash, long[] fieldStamps) {
+        this.row = row;
+        this.dirtyFields = dirtyFields;
+        this.localVersion = localVersion;
+        this.syncedHash = syncedHash;
+        this.fieldStamps = fieldStamps;
+    }
+
+    public T getRow() {
+        return row;
+    }
+
+    // ChangedFields bits of the fields edited since the last upload
+    public int getDirtyFields() {
+        return dirtyFields;
+    }
+
+    // Bumped by every local change; the row is only marked clean if it is still at this version
+    public long getLocalVersion() {
+        return localVersion;
+    }
+
+    // False for rows that were never uploaded, which need the whole document written
+    public boolean isEverSynced() {
+        return syncedHash != null;
+    }
+
+    // ContentHash of what the cloud held after the last sync, or null if the row was never uploaded
+    public Long getSyncedHash() {
+        return syncedHash;
+    }
+
+    // HybridLogicalClock stamp of each field's last edit, by ChangedFields bit position; 0 if never stamped
+    public long[] getFieldStamps() {
+        return fieldStamps;
+    }
+}
@@ -0,0 +1,42 @@
+package com.universalyoga.admin;
+
+import android.database.Cursor;
+
+/**
+ * Maps a full course or class instance row together with its change tracking columns.
+ * @param <T> The type the wrapped mapper produces
+ */
+public class DirtyRowMapper<T> implements RowMapper<DirtyRow<T>> {
+
+    private final RowMapper<T> rowMapper;
+    private final int dirtyFieldsIndex;
+    private final int localVersionIndex;
+    private final int syncedHashIndex;
+    private final int fieldStampsIndex;
+    private final int fieldCount;
+
+    /**
+     * @param cursor The cursor the mapper will read from; it must select the tracking columns
+     * @param rowMapper Maps the row itself
+     * @param fieldCount How many synced fields the row has, e.g. ChangedFields.COURSE_FIELD_COUNT
+     */
+    public DirtyRowMapper(Cursor cursor, RowMapper<T> rowMapper, int fieldCount) {
+        this.rowMapper = rowMapper;
+        this.fieldCount = fieldCount;
+        dirtyFieldsIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.KEY_DIRTY_FIELDS);
+        localVersionIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.KEY_LOCAL_VERSION);
+        syncedHashIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.KEY_SYNCED_HASH);
+        fieldStampsIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.KEY_FIELD_STAMPS);
+    }
+
+    @Override
+    public DirtyRow<T> map(Cursor cursor) {
+        return new DirtyRow<>(
+                rowMapper.map(cursor),
+                cursor.getInt(dirtyFieldsIndex),
+                cursor.getLong(localVersionIndex),
+                cursor.isNull(syncedHashIndex) ? null : cursor.getLong(syncedHashIndex),
+                FieldClockMerger.fromBlob(cursor.getBlob(fieldStampsIndex), fieldCount)
+        );
+    }
+}
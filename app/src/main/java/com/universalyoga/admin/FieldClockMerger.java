@@ -0,0 +1,142 @@
+package com.universalyoga.admin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resolves a conflict between a local row and the pulled remote document, one field at a time.
+ * Every field carries the HybridLogicalClock stamp of its last edit; 0 means it was never stamped.
+ * For each field the larger stamp wins. When the stamps are equal, the remote value wins unless the field has a
+ * local edit that was not uploaded yet, which only happens for edits made before fields were stamped.
+ * Every device applies the same rule, so all of them end up with the same values whatever order they pull in.
+ * A local value that wins stays marked for upload, which repairs remote documents that an upload of an older
+ * edit overwrote. Plain Java, no Android dependencies.
+ */
+public final class FieldClockMerger {
+
+    private static final int STAMP_BYTES = 8;
+
+    /**
+     * The outcome of merging one row
+     */
+    public static class Result {
+        private final int remoteFields;
+        private final int dirtyFields;
+        private final long[] stamps;
+
+        Result(int remoteFields, int dirtyFields, long[] stamps) {
+            this.remoteFields = remoteFields;
+            this.dirtyFields = dirtyFields;
+            this.stamps = stamps;
+        }
+
+        // ChangedFields bits of the fields that take the remote value
+        public int getRemoteFields() {
+            return remoteFields;
+        }
+
+        // ChangedFields bits of the local values that won and have to be uploaded
+        public int getDirtyFields() {
+            return dirtyFields;
+        }
+
+        // The stamp of each field's winning value
+        public long[] getStamps() {
+            return stamps;
+        }
+    }
+
+    private FieldClockMerger() {
+    }
+
+    /**
+     * Merge a pulled document into a local row
+     * @param local The stamps of the local row, by ChangedFields bit position
+     * @param localDirty ChangedFields bits of the local edits that were not uploaded yet
+     * @param remote The stamps of the remote document, by ChangedFields bit position
+     * @return Which side wins each field
+     */
+    public static Result merge(long[] local, int localDirty, long[] remote) {
+        if (local.length != remote.length) {
+            throw new IllegalArgumentException("Stamps for " + local.length + " and " + remote.length + " fields");
+        }
+        int remoteFields = 0;
+        int dirtyFields = 0;
+        long[] stamps = new long[local.length];
+        for (int i = 0; i < local.length; i++) {
+            int field = 1 << i;
+            boolean dirty = (localDirty & field) != 0;
+            if (remote[i] > local[i] || (remote[i] == local[i] && !dirty)) {
+                remoteFields |= field;
+                stamps[i] = remote[i];
+            } else {
+                dirtyFields |= field;
+                stamps[i] = local[i];
+            }
+        }
+        return new Result(remoteFields, dirtyFields, stamps);
+    }
+
+    /**
+     * @param stamps The current stamps of a row
+     * @param fields ChangedFields bits of the fields that were edited
+     * @param stamp The stamp of the edit
+     * @return A copy of the stamps with the edited fields carrying the new stamp
+     */
+    public static long[] stamp(long[] stamps, int fields, long stamp) {
+        long[] stamped = stamps.clone();
+        for (int i = 0; i < stamped.length; i++) {
+            if ((fields & (1 << i)) != 0) {
+                stamped[i] = stamp;
+            }
+        }
+        return stamped;
+    }
+
+    /**
+     * @return The largest of the stamps, or 0 if none is stamped
+     */
+    public static long latest(long[] stamps) {
+        long latest = 0;
+        for (long stamp : stamps) {
+            latest = Math.max(latest, stamp);
+        }
+        return latest;
+    }
+
+    /**
+     * Pack stamps for the field_stamps column
+     * @param stamps The stamps, by ChangedFields bit position
+     * @return Eight big-endian bytes per field
+     */
+    public static byte[] toBlob(long[] stamps) {
+        ByteBuffer buffer = ByteBuffer.allocate(stamps.length * STAMP_BYTES);
+        for (long stamp : stamps) {
+            buffer.putLong(stamp);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Unpack the field_stamps column
+     * @param blob The column value, or null for a row that was never stamped
+     * @param fieldCount How many fields the row has
+     * @return The stamps, by ChangedFields bit position; fields missing from the blob are 0
+     */
+    public static long[] fromBlob(byte[] blob, int fieldCount) {
+        long[] stamps = new long[fieldCount];
+        if (blob != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            for (int i = 0; i < fieldCount && buffer.remaining() >= STAMP_BYTES; i++) {
+                stamps[i] = buffer.getLong();
+            }
+        }
+        return stamps;
+    }
+
+    /**
+     * @return Stamps for a row that was never stamped
+     */
+    public static long[] unstamped(int fieldCount) {
+        return new long[fieldCount];
+    }
+}
@@ -0,0 +1,229 @@
+package com.universalyoga.admin;
+
+import com.google.firebase.Timestamp;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps courses and class instances to and from Firestore document fields by hand, without reflection.
+ * Reads every shape older app versions wrote: dates as Timestamps, epoch milliseconds or Date.toString() strings,
+ * and the property names of the reflective mapper ("additionalComments", "cancelled").
+ */
+public final class FirestoreCodec {
+
+    // Course fields
+    static final String FIELD_NAME = "name";
+    static final String FIELD_DAY_OF_WEEK = "dayOfWeek";
+    static final String FIELD_TIME = "time";
+    static final String FIELD_CAPACITY = "capacity";
+    static final String FIELD_DURATION = "duration";
+    static final String FIELD_PRICE = "price";
+    static final String FIELD_TYPE = "type";
+    static final String FIELD_DESCRIPTION = "description";
+    static final String FIELD_DIFFICULTY = "difficulty";
+    static final String FIELD_EQUIPMENT_NEEDED = "equipmentNeeded";
+    static final String FIELD_EQUIPMENT_DESCRIPTION = "equipmentDescription";
+
+    // Class instance fields
+    static final String FIELD_COURSE_ID = "courseId";
+    static final String FIELD_TEACHER = "teacher";
+    static final String FIELD_DATE = "date"; // Epoch milliseconds
+    static final String FIELD_COMMENTS = "comments";
+    static final String FIELD_AVAILABLE_SPOTS = "availableSpots";
+    static final String FIELD_IS_CANCELLED = "isCancelled";
+    // Written with the date; version 1 stores it as epoch milliseconds
+    static final String FIELD_SCHEMA_VERSION = "schemaVersion";
+    static final long SCHEMA_VERSION = 1;
+    // Field names by ChangedFields bit position
+    private static final String[] COURSE_FIELDS = {FIELD_NAME, FIELD_DAY_OF_WEEK, FIELD_TIME, FIELD_CAPACITY,
+            FIELD_DURATION, FIELD_PRICE, FIELD_TYPE, FIELD_DESCRIPTION, FIELD_DIFFICULTY, FIELD_EQUIPMENT_NEEDED,
+            FIELD_EQUIPMENT_DESCRIPTION};
+    private static final String[] CLASS_INSTANCE_FIELDS = {FIELD_COURSE_ID, FIELD_DATE, FIELD_TEACHER, FIELD_COMMENTS,
+            FIELD_AVAILABLE_SPOTS, FIELD_IS_CANCELLED};
+    // Each field's HybridLogicalClock stamp is stored next to it, under this prefix and the field name
+    static final String STAMP_PREFIX = "hlc_";
+    // The MerkleDigest bucket of the document, so reconciliation can fetch one bucket at a time
+    static final String FIELD_DIGEST_BUCKET = "digestBucket";
+    // The same class instance fields as named by the reflective mapper
+    private static final String LEGACY_FIELD_COMMENTS = "additionalComments";
+    private static final String LEGACY_FIELD_IS_CANCELLED = "cancelled";
+
+    private FirestoreCodec() {
+    }
+
+    /**
+     * Get the document fields of a course
+     * @param course The course
+     * @param fields The fields to include, as a ChangedFields mask
+     * @return The fields, by document field name
+     */
+    public static Map<String, Object> encodeCourse(Course course, int fields) {
+        Map<String, Object> data = new HashMap<>();
+        if ((fields & ChangedFields.COURSE_NAME) != 0) data.put(FIELD_NAME, course.getName());
+        if ((fields & ChangedFields.COURSE_DAY_OF_WEEK) != 0) data.put(FIELD_DAY_OF_WEEK, course.getDayOfWeek());
+        if ((fields & ChangedFields.COURSE_TIME) != 0) data.put(FIELD_TIME, course.getTime());
+        if ((fields & ChangedFields.COURSE_CAPACITY) != 0) data.put(FIELD_CAPACITY, course.getCapacity());
+        if ((fields & ChangedFields.COURSE_DURATION) != 0) data.put(FIELD_DURATION, course.getDuration());
+        if ((fields & ChangedFields.COURSE_PRICE) != 0) data.put(FIELD_PRICE, course.getPrice());
+        if ((fields & ChangedFields.COURSE_TYPE) != 0) data.put(FIELD_TYPE, course.getType());
+        if ((fields & ChangedFields.COURSE_DESCRIPTION) != 0) data.put(FIELD_DESCRIPTION, course.getDescription());
+        if ((fields & ChangedFields.COURSE_DIFFICULTY) != 0) data.put(FIELD_DIFFICULTY, course.getDifficulty());
+        if ((fields & ChangedFields.COURSE_EQUIPMENT_NEEDED) != 0) data.put(FIELD_EQUIPMENT_NEEDED, course.isEquipmentNeeded());
+        if ((fields & ChangedFields.COURSE_EQUIPMENT_DESCRIPTION) != 0) {
+            data.put(FIELD_EQUIPMENT_DESCRIPTION, course.getEquipmentDescription());
+        }
+        return data;
+    }
+
+    /**
+     * Get the document fields of a class instance
+     * @param instance The class instance
+     * @param fields The fields to include, as a ChangedFields mask
+     * @return The fields, by document field name
+     */
+    public static Map<String, Object> encodeClassInstance(ClassInstance instance, int fields) {
+        Map<String, Object> data = new HashMap<>();
+        if ((fields & ChangedFields.INSTANCE_COURSE_ID) != 0) data.put(FIELD_COURSE_ID, instance.getCourseId());
+        if ((fields & ChangedFields.INSTANCE_TEACHER) != 0) data.put(FIELD_TEACHER, instance.getTeacher());
+        if ((fields & ChangedFields.INSTANCE_DATE) != 0) {
+            data.put(FIELD_DATE, instance.getDate().getTime());
+            data.put(FIELD_SCHEMA_VERSION, SCHEMA_VERSION);
+        }
+        if ((fields & ChangedFields.INSTANCE_COMMENTS) != 0) data.put(FIELD_COMMENTS, instance.getAdditionalComments());
+        if ((fields & ChangedFields.INSTANCE_AVAILABLE_SPOTS) != 0) data.put(FIELD_AVAILABLE_SPOTS, instance.getAvailableSpots());
+        if ((fields & ChangedFields.INSTANCE_IS_CANCELLED) != 0) data.put(FIELD_IS_CANCELLED, instance.isCancelled());
+        return data;
+    }
+
+    /**
+     * Read a course document
+     * @param id The document ID
+     * @param data The document fields
+     * @return The course
+     * @throws IllegalArgumentException If the document ID is not a number
+     */
+    public static Course decodeCourse(String id, Map<String, Object> data) {
+        return new Course(Long.parseLong(id),
+                string(data.get(FIELD_NAME)),
+                string(data.get(FIELD_DAY_OF_WEEK)),
+                string(data.get(FIELD_TIME)),
+                intValue(data.get(FIELD_CAPACITY)),
+                intValue(data.get(FIELD_DURATION)),
+                doubleValue(data.get(FIELD_PRICE)),
+                string(data.get(FIELD_TYPE)),
+                string(data.get(FIELD_DESCRIPTION)),
+                string(data.get(FIELD_DIFFICULTY)),
+                Boolean.TRUE.equals(data.get(FIELD_EQUIPMENT_NEEDED)),
+                string(data.get(FIELD_EQUIPMENT_DESCRIPTION)));
+    }
+
+    /**
+     * Read a class instance document
+     * @param id The document ID
+     * @param data The document fields
+     * @return The class instance
+     * @throws IllegalArgumentException If the document ID is not a number, or the date is missing or unreadable
+     */
+    public static ClassInstance decodeClassInstance(String id, Map<String, Object> data) {
+        Object comments = data.containsKey(FIELD_COMMENTS) ? data.get(FIELD_COMMENTS) : data.get(LEGACY_FIELD_COMMENTS);
+        Object cancelled = data.containsKey(FIELD_IS_CANCELLED)
+                ? data.get(FIELD_IS_CANCELLED) : data.get(LEGACY_FIELD_IS_CANCELLED);
+        return new ClassInstance(Long.parseLong(id),
+                longValue(data.get(FIELD_COURSE_ID)),
+                date(data.get(FIELD_DATE)),
+                string(data.get(FIELD_TEACHER)),
+                string(comments),
+                intValue(data.get(FIELD_AVAILABLE_SPOTS)),
+                Boolean.TRUE.equals(cancelled));
+    }
+
+    /**
+     * Add the clock stamps of some course fields to document fields. Unstamped fields are left out.
+     * @param data The document fields to add to
+     * @param stamps The stamps, by ChangedFields bit position
+     * @param fields The fields whose stamps to add, as a ChangedFields mask
+     */
+    public static void putCourseStamps(Map<String, Object> data, long[] stamps, int fields) {
+        putStamps(data, COURSE_FIELDS, stamps, fields);
+    }
+
+    /**
+     * Add the clock stamps of some class instance fields to document fields, like {@link #putCourseStamps}
+     */
+    public static void putClassInstanceStamps(Map<String, Object> data, long[] stamps, int fields) {
+        putStamps(data, CLASS_INSTANCE_FIELDS, stamps, fields);
+    }
+
+    /**
+     * Read the clock stamps of a course document
+     * @param data The document fields
+     * @return The stamps, by ChangedFields bit position; 0 for fields without one
+     */
+    public static long[] decodeCourseStamps(Map<String, Object> data) {
+        return decodeStamps(data, COURSE_FIELDS);
+    }
+
+    /**
+     * Read the clock stamps of a class instance document, like {@link #decodeCourseStamps}
+     */
+    public static long[] decodeClassInstanceStamps(Map<String, Object> data) {
+        return decodeStamps(data, CLASS_INSTANCE_FIELDS);
+    }
+
+    private static void putStamps(Map<String, Object> data, String[] names, long[] stamps, int fields) {
+        for (int i = 0; i < names.length; i++) {
+            if ((fields & (1 << i)) != 0 && stamps[i] != 0) {
+                data.put(STAMP_PREFIX + names[i], stamps[i]);
+            }
+        }
+    }
+
+    private static long[] decodeStamps(Map<String, Object> data, String[] names) {
+        long[] stamps = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            stamps[i] = longValue(data.get(STAMP_PREFIX + names[i]));
+        }
+        return stamps;
+    }
+
+    // A date in any of the shapes it was ever stored in
+    static Date date(Object value) {
+        if (value instanceof Number) {
+            return new Date(((Number) value).longValue());
+        }
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toDate();
+        }
+        if (value instanceof Date) {
+            return (Date) value;
+        }
+        if (value instanceof String) {
+            try {
+                return new Date(LegacyDateParser.parse((String) value));
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Unreadable date: " + value, e);
+            }
+        }
+        throw new IllegalArgumentException("No date");
+    }
+
+    private static String string(Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    // Firestore hands back whole numbers as Long and others as Double
+    private static int intValue(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    private static long longValue(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double doubleValue(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+}
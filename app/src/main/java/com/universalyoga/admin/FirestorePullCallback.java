@@ -0,0 +1,7 @@
+package com.universalyoga.admin;
+
+public interface FirestorePullCallback<T> {
+    // One page of the pull; the next page is only requested once this returns
+    void onPage(PulledChanges<T> page);
+    void onFailure(Exception e);
+}
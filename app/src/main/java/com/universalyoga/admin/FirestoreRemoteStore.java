@@ -0,0 +1,212 @@
+package com.universalyoga.admin;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * RemoteStore backed by Firestore write batches and queries.
+ * Every write is stamped with the server time, and deletes are written as tombstones,
+ * so incremental pulls on other devices see them. Rewrites are the exception: they are not stamped.
+ */
+public class FirestoreRemoteStore implements RemoteStore {
+
+    // Completion callbacks run on Firestore's own thread instead of the main thread
+    private static final Executor DIRECT = Runnable::run;
+    // Most values an "in" filter accepts
+    private static final int MAX_IN_VALUES = 10;
+
+    private final FirebaseFirestore firestore;
+
+    public FirestoreRemoteStore(FirebaseFirestore firestore) {
+        this.firestore = firestore;
+    }
+
+    // The set calls of a WriteBatch or a Transaction, which share no interface
+    private interface DocumentWriter {
+        void set(DocumentReference document, Map<String, Object> data, SetOptions options);
+    }
+
+    @Override
+    public void commit(List<WriteOp> ops, CommitCallback callback) {
+        WriteBatch batch = firestore.batch();
+        write(ops, (document, data, options) -> {
+            if (options != null) {
+                batch.set(document, data, options);
+            } else {
+                batch.set(document, data);
+            }
+        });
+        batch.commit()
+                .addOnSuccessListener(DIRECT, unused -> callback.onSuccess())
+                .addOnFailureListener(DIRECT, callback::onFailure);
+    }
+
+    @Override
+    public void commitIfUnchanged(Map<String, List<RemoteDocument>> read, List<WriteOp> ops, CommitCallback callback) {
+        AtomicReference<String> changed = new AtomicReference<>();
+        firestore.runTransaction(transaction -> {
+            // A transaction reads everything before it writes
+            for (Map.Entry<String, List<RemoteDocument>> collection : read.entrySet()) {
+                for (RemoteDocument expected : collection.getValue()) {
+                    DocumentSnapshot current = transaction.get(
+                            firestore.collection(collection.getKey()).document(expected.getId()));
+                    Map<String, Object> data = current.exists() ? current.getData() : Collections.emptyMap();
+                    if (!expected.getData().equals(data)) {
+                        changed.set(collection.getKey() + "/" + expected.getId());
+                        // Not a FirebaseFirestoreException, which could make the transaction retry
+                        throw new IllegalStateException("Changed since read: " + changed.get());
+                    }
+                }
+            }
+            write(ops, (document, data, options) -> {
+                if (options != null) {
+                    transaction.set(document, data, options);
+                } else {
+                    transaction.set(document, data);
+                }
+            });
+            return null;
+        })
+                .addOnSuccessListener(DIRECT, unused -> callback.onSuccess())
+                .addOnFailureListener(DIRECT, e -> callback.onFailure(changed.get() != null
+                        ? new ConflictException("Changed since read: " + changed.get()) : e));
+    }
+
+    private void write(List<WriteOp> ops, DocumentWriter writer) {
+        for (WriteOp op : ops) {
+            DocumentReference document = firestore.collection(op.getCollection()).document(op.getDocumentId());
+            switch (op.getType()) {
+                case SET:
+                    writer.set(document, stamped(op.getData(), false), null);
+                    break;
+                case MERGE:
+                    writer.set(document, stamped(op.getData(), false), SetOptions.merge());
+                    break;
+                case DELETE:
+                    writer.set(document, stamped(op.getData(), true), SetOptions.merge());
+                    break;
+                case INCREMENT:
+                    Map<String, Object> increments = new HashMap<>();
+                    for (Map.Entry<String, Object> delta : op.getData().entrySet()) {
+                        increments.put(delta.getKey(), FieldValue.increment((Long) delta.getValue()));
+                    }
+                    writer.set(document, increments, SetOptions.merge());
+                    break;
+                case REWRITE:
+                    writer.set(document, op.getData(), SetOptions.merge());
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void fetchPage(String collection, String afterDocumentId, int limit, PageCallback callback) {
+        Query query = firestore.collection(collection).orderBy(FieldPath.documentId()).limit(limit);
+        if (afterDocumentId != null) {
+            query = query.startAfter(afterDocumentId);
+        }
+        query.get()
+                .addOnSuccessListener(DIRECT, snapshots -> {
+                    List<RemoteDocument> documents = new ArrayList<>(snapshots.size());
+                    for (DocumentSnapshot doc : snapshots) {
+                        documents.add(document(doc));
+                    }
+                    callback.onSuccess(documents);
+                })
+                .addOnFailureListener(DIRECT, callback::onFailure);
+    }
+
+    @Override
+    public void fetchChangedSince(String collection, long sinceMillis, RemoteDocument after, int limit,
+                                  PageCallback callback) {
+        // Firestore needs a range filter's field to come first in the order
+        Query query = firestore.collection(collection)
+                .whereGreaterThanOrEqualTo(FirestoreSyncManager.FIELD_UPDATED_AT, new Timestamp(new Date(sinceMillis)))
+                .orderBy(FirestoreSyncManager.FIELD_UPDATED_AT)
+                .orderBy(FieldPath.documentId())
+                .limit(limit);
+        if (after != null) {
+            // The snapshot holds the exact server time; a whole batch shares it, so milliseconds would not do
+            query = query.startAfter((DocumentSnapshot) after.getCursor());
+        }
+        query.get()
+                .addOnSuccessListener(DIRECT, snapshots -> {
+                    List<RemoteDocument> documents = new ArrayList<>(snapshots.size());
+                    for (DocumentSnapshot doc : snapshots) {
+                        documents.add(document(doc));
+                    }
+                    callback.onSuccess(documents);
+                })
+                .addOnFailureListener(DIRECT, callback::onFailure);
+    }
+
+    @Override
+    public void fetchDocuments(String collection, List<String> documentIds, PageCallback callback) {
+        fetchDocuments(collection, documentIds, 0, new ArrayList<>(documentIds.size()), callback);
+    }
+
+    // An "in" filter takes a limited number of values, so the IDs are read a chunk at a time
+    private void fetchDocuments(String collection, List<String> documentIds, int from, List<RemoteDocument> found,
+                                PageCallback callback) {
+        if (from >= documentIds.size()) {
+            callback.onSuccess(found);
+            return;
+        }
+        List<String> chunk = documentIds.subList(from, Math.min(documentIds.size(), from + MAX_IN_VALUES));
+        firestore.collection(collection).whereIn(FieldPath.documentId(), new ArrayList<>(chunk)).get()
+                .addOnSuccessListener(DIRECT, snapshots -> {
+                    for (DocumentSnapshot doc : snapshots) {
+                        found.add(document(doc));
+                    }
+                    fetchDocuments(collection, documentIds, from + MAX_IN_VALUES, found, callback);
+                })
+                .addOnFailureListener(DIRECT, callback::onFailure);
+    }
+
+    @Override
+    public void fetchWhereEqual(String collection, String field, Object value, String afterDocumentId, int limit,
+                                PageCallback callback) {
+        Query query = firestore.collection(collection).whereEqualTo(field, value)
+                .orderBy(FieldPath.documentId()).limit(limit);
+        if (afterDocumentId != null) {
+            query = query.startAfter(afterDocumentId);
+        }
+        query.get()
+                .addOnSuccessListener(DIRECT, snapshots -> {
+                    List<RemoteDocument> documents = new ArrayList<>(snapshots.size());
+                    for (DocumentSnapshot doc : snapshots) {
+                        documents.add(document(doc));
+                    }
+                    callback.onSuccess(documents);
+                })
+                .addOnFailureListener(DIRECT, callback::onFailure);
+    }
+
+    private static RemoteDocument document(DocumentSnapshot doc) {
+        Timestamp updatedAt = doc.getTimestamp(FirestoreSyncManager.FIELD_UPDATED_AT);
+        return new RemoteDocument(doc.getId(), doc.getData(), updatedAt != null ? updatedAt.toDate().getTime() : 0, doc);
+    }
+
+    private static Map<String, Object> stamped(Map<String, Object> data, boolean deleted) {
+        Map<String, Object> fields = new HashMap<>(data);
+        fields.put(FirestoreSyncManager.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+        fields.put(FirestoreSyncManager.FIELD_DELETED, deleted);
+        return fields;
+    }
+}
@@ -1,138 +1,474 @@
 package com.universalyoga.admin;
 
 import android.util.Log;
-import androidx.annotation.NonNull;
 
-import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class FirestoreSyncManager {
 
     private static final String TAG = "FirestoreSync";
-    private final FirebaseFirestore firestore;
+
+    static final String COLLECTION_COURSES = "courses";
+    static final String COLLECTION_CLASS_INSTANCES = "class_instances";
+    // Server time of the last write, and whether that write was a delete
+    static final String FIELD_UPDATED_AT = "updatedAt";
+    static final String FIELD_DELETED = "deleted";
+
+    // The lowest high-water mark of a finished full pull: only stamped documents can be new after it
+    private static final long PULLED_WITHOUT_STAMPS = 1;
+    private static final long PULL_OVERLAP_MILLIS = 60_000;
+    // Rows read from SQLite per page during a bulk upload
+    private static final int UPLOAD_PAGE_SIZE = 500;
+    // Batches a bulk upload may have committing at the same time
+    private static final int UPLOAD_MAX_IN_FLIGHT = 4;
+    // Documents read and rewritten per batch by the legacy date migration
+    private static final int MIGRATION_PAGE_SIZE = 400;
+    // Documents fetched per page while reconciling a divergent bucket or building the digest
+    private static final int RECONCILE_PAGE_SIZE = 400;
+
+    private final RemoteStore remoteStore;
 
     public FirestoreSyncManager() {
-        firestore = FirebaseFirestore.getInstance();
-    }
-
-    // Upload a single course to Firestore
-    public void uploadCourse(@NonNull Course course) {
-        Map<String, Object> data = new HashMap<>();
-        data.put("name", course.getName());
-        data.put("dayOfWeek", course.getDayOfWeek());
-        data.put("time", course.getTime());
-        data.put("capacity", course.getCapacity());
-        data.put("duration", course.getDuration());
-        data.put("price", course.getPrice());
-        data.put("type", course.getType());
-        data.put("description", course.getDescription());
-        data.put("difficulty", course.getDifficulty());
-        data.put("equipmentNeeded", course.isEquipmentNeeded());
-        data.put("equipmentDescription", course.getEquipmentDescription());
-
-        firestore.collection("courses")
-                .document(String.valueOf(course.getId()))
-                .set(data)
-                .addOnSuccessListener(unused -> Log.d(TAG, "Course synced: " + course.getId()))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to sync course", e));
-    }
-
-    // Delete a course from Firestore
-    public void deleteCourse(int courseId) {
-        firestore.collection("courses")
-                .document(String.valueOf(courseId))
-                .delete()
-                .addOnSuccessListener(unused -> Log.d(TAG, "Course deleted in Firestore: " + courseId))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to delete course", e));
-    }
-
-    // Upload a class instance to Firestore
-    public void uploadClassInstance(@NonNull ClassInstance instance) {
-        Map<String, Object> data = new HashMap<>();
-        data.put("courseId", instance.getCourseId());
-        data.put("teacher", instance.getTeacher());
-        data.put("date", instance.getDate().getTime());
-        data.put("comments", instance.getAdditionalComments());
-        data.put("availableSpots", instance.getAvailableSpots());
-        data.put("isCancelled", instance.isCancelled());
-
-        firestore.collection("class_instances")
-                .document(String.valueOf(instance.getId()))
-                .set(data)
-                .addOnSuccessListener(unused -> Log.d(TAG, "Class instance synced: " + instance.getId()))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to sync class instance", e));
-    }
-
-    // Delete a class instance from Firestore
-    public void deleteClassInstance(int instanceId) {
-        firestore.collection("class_instances")
-                .document(String.valueOf(instanceId))
-                .delete()
-                .addOnSuccessListener(unused -> Log.d(TAG, "Class instance deleted: " + instanceId))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to delete class instance", e));
-    }
-
-    // Fetch all courses from Firestore
-    public void fetchCourses(FirestoreFetchCallback<Course> callback) {
-        Log.d(TAG, "[fetchCourses] Fetching courses from Firestore...");
-
-        firestore.collection("courses")
-                .get()
-                .addOnSuccessListener(snapshots -> {
-                    Log.d(TAG, "[fetchCourses] Fetch success: " + snapshots.size() + " documents");
-
-                    if (snapshots.isEmpty()) {
-                        Log.w(TAG, "[fetchCourses] No documents found in 'courses' collection.");
-                    }
-
-                    List<Course> courses = new ArrayList<>();
-                    for (DocumentSnapshot doc : snapshots) {
-                        Log.d(TAG, "[fetchCourses] Document ID: " + doc.getId() + ", Data: " + doc.getData());
-
-                        Course course = doc.toObject(Course.class);
-                        if (course != null) {
-                            try {
-                                course.setId(Integer.parseInt(doc.getId()));
-                            } catch (NumberFormatException e) {
-                                Log.w(TAG, "[fetchCourses] Invalid course ID format: " + doc.getId(), e);
-                            }
-                            courses.add(course);
-                        } else {
-                            Log.w(TAG, "[fetchCourses] Failed to map document to Course: " + doc.getId());
-                        }
-                    }
-
-                    callback.onSuccess(courses);
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "[fetchCourses] Firestore fetch failed", e);
+        this(new FirestoreRemoteStore(FirebaseFirestore.getInstance()));
+    }
+
+    /**
+     * @param remoteStore Where documents are pulled from and uploaded to, such as an InMemoryRemoteStore
+     *                    for load tests and benchmarks that have no network
+     */
+    public FirestoreSyncManager(RemoteStore remoteStore) {
+        this.remoteStore = remoteStore;
+    }
+
+    /**
+     * Send the due outbox entries to Firestore in write batches.
+     * An upsert sends the row as it is now: the whole document if it was never uploaded, otherwise a merge
+     * of just the fields changed since the last upload. Each batch also moves the remote MerkleDigest of its
+     * documents. A committed batch removes its entries and marks its rows clean; a failed batch keeps its
+     * entries and schedules each one's retry with the backoff.
+     * Blocks until every batch has completed; call it on a background thread.
+     * @param dbHelper The local database, which holds the outbox
+     * @param now Entries whose retry is due by this time are sent; Long.MAX_VALUE sends everything
+     * @param backoff How long failed entries wait before their next attempt
+     * @param listener Told about each committed or failed batch, or null
+     * @return What was committed and what failed
+     * @throws InterruptedException If interrupted while waiting for the batches
+     */
+    public UploadResult drainOutbox(DatabaseHelper dbHelper, long now, Backoff backoff,
+                                    BatchUploader.Listener listener) throws InterruptedException {
+        OutboxDrain drain = new OutboxDrain(dbHelper, backoff, listener);
+        BatchUploader.Session upload = new BatchUploader(remoteStore, RemoteStore.MAX_BATCH_SIZE, UPLOAD_MAX_IN_FLIGHT)
+                .start(drain, drain);
+
+        List<OutboxEntry> entries;
+        long lastEntryId = 0;
+        do {
+            entries = dbHelper.getDueOutboxEntries(lastEntryId, now, UPLOAD_PAGE_SIZE);
+            List<OutboxEntry> nothingToSend = new ArrayList<>();
+            for (OutboxEntry entry : entries) {
+                lastEntryId = entry.getId();
+                SentEntry sent = prepare(dbHelper, entry);
+                if (sent == null) {
+                    nothingToSend.add(entry);
+                    continue;
+                }
+                // Registered before it is added, since adding can complete a batch right away
+                drain.inFlight.put(sent.op, sent);
+                upload.add(sent.op);
+            }
+            dbHelper.removeOutboxEntries(nothingToSend);
+        } while (entries.size() == UPLOAD_PAGE_SIZE);
+
+        return upload.finish();
+    }
+
+    // The write for an outbox entry, or null if there is nothing left to send
+    private static SentEntry prepare(DatabaseHelper dbHelper, OutboxEntry entry) {
+        String collection = entry.getCollection();
+        String documentId = entry.getDocumentId();
+        if (entry.getOperation() == OutboxEntry.Operation.DELETE) {
+            return new SentEntry(entry, WriteOp.delete(collection, documentId, bucketField(documentId)), null, null);
+        }
+        long id;
+        try {
+            id = Long.parseLong(documentId);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Dropping outbox entry with an invalid ID: " + entry, e);
+            return null;
+        }
+        // A row that is gone was deleted or pulled away since; a clean row was already uploaded
+        if (COLLECTION_COURSES.equals(collection)) {
+            DirtyRow<Course> row = dbHelper.getDirtyCourse(id);
+            if (row == null) {
+                return null;
+            }
+            int fields = row.isEverSynced() ? row.getDirtyFields() : ChangedFields.ALL_COURSE;
+            Map<String, Object> data = FirestoreCodec.encodeCourse(row.getRow(), fields);
+            FirestoreCodec.putCourseStamps(data, row.getFieldStamps(), fields);
+            data.putAll(bucketField(documentId));
+            WriteOp op = row.isEverSynced()
+                    ? WriteOp.merge(collection, documentId, data)
+                    : WriteOp.set(collection, documentId, data);
+            return new SentEntry(entry, op, row, null);
+        }
+        if (COLLECTION_CLASS_INSTANCES.equals(collection)) {
+            DirtyRow<ClassInstance> row = dbHelper.getDirtyClassInstance(id);
+            if (row == null) {
+                return null;
+            }
+            int fields = row.isEverSynced() ? row.getDirtyFields() : ChangedFields.ALL_CLASS_INSTANCE;
+            Map<String, Object> data = FirestoreCodec.encodeClassInstance(row.getRow(), fields);
+            FirestoreCodec.putClassInstanceStamps(data, row.getFieldStamps(), fields);
+            data.putAll(bucketField(documentId));
+            WriteOp op = row.isEverSynced()
+                    ? WriteOp.merge(collection, documentId, data)
+                    : WriteOp.set(collection, documentId, data);
+            return new SentEntry(entry, op, null, row);
+        }
+        Log.w(TAG, "Dropping outbox entry for an unknown collection: " + entry);
+        return null;
+    }
+
+    // Every write gives the document its MerkleDigest bucket, so reconciliation can find it
+    private static Map<String, Object> bucketField(String documentId) {
+        return Collections.<String, Object>singletonMap(FirestoreCodec.FIELD_DIGEST_BUCKET,
+                (long) MerkleDigest.bucketOf(documentId));
+    }
+
+    // An outbox entry on its way, with the row version it sends
+    private static class SentEntry {
+        final OutboxEntry entry;
+        final WriteOp op;
+        final DirtyRow<Course> course;
+        final DirtyRow<ClassInstance> instance;
+
+        SentEntry(OutboxEntry entry, WriteOp op, DirtyRow<Course> course, DirtyRow<ClassInstance> instance) {
+            this.entry = entry;
+            this.op = op;
+            this.course = course;
+            this.instance = instance;
+        }
+    }
+
+    // Settles the outbox entries of each finished batch. Only entries of batches still in flight are held.
+    // Each batch also carries the increments that move its documents' contributions in the remote MerkleDigest,
+    // so the tree changes exactly when the documents do.
+    private static class OutboxDrain implements BatchUploader.Listener, BatchUploader.Extras {
+        private final DatabaseHelper dbHelper;
+        private final Backoff backoff;
+        private final BatchUploader.Listener listener;
+        // Keyed by the WriteOp itself; ops are compared by identity
+        final Map<WriteOp, SentEntry> inFlight = new ConcurrentHashMap<>();
+        // The digest increments of the batch being filled
+        private MerkleDigest.Deltas digest = new MerkleDigest.Deltas();
+
+        OutboxDrain(DatabaseHelper dbHelper, Backoff backoff, BatchUploader.Listener listener) {
+            this.dbHelper = dbHelper;
+            this.backoff = backoff;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onBatchCommitted(int batchIndex, List<WriteOp> ops, UploadResult progress) {
+            List<OutboxEntry> entries = new ArrayList<>(ops.size());
+            List<DirtyRow<Course>> courses = new ArrayList<>();
+            List<DirtyRow<ClassInstance>> instances = new ArrayList<>();
+            for (WriteOp op : ops) {
+                SentEntry sent = inFlight.remove(op);
+                entries.add(sent.entry);
+                if (sent.course != null) {
+                    courses.add(sent.course);
+                } else if (sent.instance != null) {
+                    instances.add(sent.instance);
+                }
+            }
+            dbHelper.markCoursesSynced(courses);
+            dbHelper.markClassInstancesSynced(instances);
+            dbHelper.removeOutboxEntries(entries);
+            if (listener != null) {
+                listener.onBatchCommitted(batchIndex, ops, progress);
+            }
+        }
+
+        // Move the document's contribution in the remote MerkleDigest, from what the cloud held at the last sync
+        // to what the write sends
+        @Override
+        public void add(WriteOp op) {
+            addToDigest(digest, inFlight.get(op));
+        }
+
+        @Override
+        public int size() {
+            return digest.size();
+        }
+
+        // A document moves one node on each level of the tree
+        @Override
+        public int maxPerWrite() {
+            return MerkleDigest.DEPTH;
+        }
+
+        @Override
+        public List<WriteOp> drain() {
+            List<WriteOp> increments = digest.toWriteOps();
+            digest = new MerkleDigest.Deltas();
+            return increments;
+        }
+
+        private static void addToDigest(MerkleDigest.Deltas digest, SentEntry sent) {
+            String collection = sent.op.getCollection();
+            String documentId = sent.op.getDocumentId();
+            if (sent.course != null) {
+                digest.replace(collection, documentId, contribution(documentId, sent.course.getSyncedHash()),
+                        MerkleDigest.contribution(documentId, ContentHash.of(sent.course.getRow())));
+            } else if (sent.instance != null) {
+                digest.replace(collection, documentId, contribution(documentId, sent.instance.getSyncedHash()),
+                        MerkleDigest.contribution(documentId, ContentHash.of(sent.instance.getRow())));
+            } else {
+                digest.replace(collection, documentId, contribution(documentId, sent.entry.getSyncedHash()), 0);
+            }
+        }
+
+        // What the document contributed when it was last synced; 0 if the cloud never had it
+        private static long contribution(String documentId, Long syncedHash) {
+            return syncedHash != null ? MerkleDigest.contribution(documentId, syncedHash) : 0;
+        }
+
+        @Override
+        public void onBatchFailed(int batchIndex, List<WriteOp> ops, Exception e, UploadResult progress) {
+            List<OutboxEntry> entries = new ArrayList<>(ops.size());
+            for (WriteOp op : ops) {
+                entries.add(inFlight.remove(op).entry);
+            }
+            dbHelper.retryOutboxEntriesLater(entries, backoff, System.currentTimeMillis());
+            if (listener != null) {
+                listener.onBatchFailed(batchIndex, ops, e, progress);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the class instance documents that still store their date in an old form, once for all devices.
+     * An interrupted run continues from the checkpoint kept in Firestore the next time; after a complete run,
+     * on any device, this only reads the checkpoint. Blocks until it is finished; call it on a background thread.
+     * @return What this run did
+     * @throws ExecutionException If a page could not be read or written
+     * @throws InterruptedException If interrupted while waiting for Firestore
+     */
+    public LegacyDateMigration.Result migrateLegacyDates() throws ExecutionException, InterruptedException {
+        return new LegacyDateMigration(remoteStore, MIGRATION_PAGE_SIZE).run();
+    }
+
+    /**
+     * Make sure no other installation uses this one's IdGenerator node, moving to a new node while one does.
+     * Blocks until it is finished; call it on a background thread.
+     * @param dbHelper The local database, which keeps the node ID and the installation ID
+     * @return The node ID this installation holds
+     * @throws ExecutionException If a claim could not be read or written; the node is kept until the next try
+     * @throws InterruptedException If interrupted while waiting for Firestore
+     */
+    public int claimIdNode(DatabaseHelper dbHelper) throws ExecutionException, InterruptedException {
+        IdNodeClaim claim = new IdNodeClaim(remoteStore);
+        String installation = dbHelper.getInstallationId();
+        int node = dbHelper.getIdNode();
+        while (!claim.claim(node, installation)) {
+            Log.w(TAG, "[claimIdNode] Node " + node + " belongs to another installation");
+            node = dbHelper.moveToNewIdNode(node);
+        }
+        return node;
+    }
+
+    /**
+     * Compare the courses and class instances in the local database with Firestore through their MerkleDigest
+     * trees, and fetch only the buckets that differ. Send the outbox first, so local edits are not counted as
+     * differences. Blocks until it is finished; call it on a background thread.
+     * @param dbHelper The local database
+     * @return What the run did for the courses and for the class instances, in that order
+     * @throws ExecutionException If a digest document or bucket could not be read or written
+     * @throws InterruptedException If interrupted while waiting for Firestore
+     */
+    public List<DigestReconciliation.Result> reconcile(DatabaseHelper dbHelper)
+            throws ExecutionException, InterruptedException {
+        List<DigestReconciliation.Result> results = new ArrayList<>(2);
+        // Courses first, so the instances fetched next find their course
+        results.add(DigestReconciliation.forCourses(remoteStore, dbHelper, RECONCILE_PAGE_SIZE).run());
+        results.add(DigestReconciliation.forClassInstances(remoteStore, dbHelper, RECONCILE_PAGE_SIZE).run());
+        return results;
+    }
+
+    /**
+     * Pull the courses that changed since the last pull, one page at a time.
+     * With no high-water mark yet the whole collection is downloaded.
+     * @param executor Where the documents are parsed and the callback runs, normally a background thread
+     * @param highWaterMark The mark stored after the previous pull, or 0 for a full pull
+     * @param pageSize The most documents fetched and held in memory at once
+     * @param callback Receives each page of changed courses and deleted course IDs
+     */
+    public void pullCourses(Executor executor, long highWaterMark, int pageSize, FirestorePullCallback<Course> callback) {
+        Log.d(TAG, "[pullCourses] Pulling courses changed since " + highWaterMark);
+        new PagedPull<>(COLLECTION_COURSES, highWaterMark, pageSize, executor,
+                FirestoreCodec::decodeCourse, FirestoreCodec::decodeCourseStamps, callback)
+                .start(highWaterMark);
+    }
+
+    /**
+     * Pull the class instances that changed since the last pull, one page at a time.
+     * Dates are read whether they were stored as Timestamps, epoch milliseconds or old Date.toString() strings.
+     * @param executor Where the documents are parsed and the callback runs, normally a background thread
+     * @param highWaterMark The mark stored after the previous pull, or 0 for a full pull
+     * @param pageSize The most documents fetched and held in memory at once
+     * @param callback Receives each page of changed class instances and deleted instance IDs
+     */
+    public void pullClassInstances(Executor executor, long highWaterMark, int pageSize,
+                                   FirestorePullCallback<ClassInstance> callback) {
+        Log.d(TAG, "[pullClassInstances] Pulling class instances changed since " + highWaterMark);
+        new PagedPull<>(COLLECTION_CLASS_INSTANCES, highWaterMark, pageSize, executor,
+                FirestoreCodec::decodeClassInstance, FirestoreCodec::decodeClassInstanceStamps, callback)
+                .start(highWaterMark);
+    }
+
+    // Reads the fields of a live (non-tombstone) document; throws IllegalArgumentException if it can't
+    private interface Decoder<T> {
+        T decode(String id, Map<String, Object> data);
+    }
+
+    // Reads the clock stamps of a document's fields
+    private interface StampDecoder {
+        long[] decode(Map<String, Object> data);
+    }
+
+    // Fetches a collection page by page, handing each page over before it asks for the next one
+    private class PagedPull<T> {
+        private final String collection;
+        private final long since; // Earliest write time to fetch, or -1 to fetch everything by ID
+        private final int pageSize;
+        private final Executor executor;
+        private final Decoder<T> decoder;
+        private final StampDecoder stampDecoder;
+        private final FirestorePullCallback<T> callback;
+
+        PagedPull(String collection, long highWaterMark, int pageSize, Executor executor,
+                  Decoder<T> decoder, StampDecoder stampDecoder, FirestorePullCallback<T> callback) {
+            this.collection = collection;
+            this.since = changedSince(highWaterMark);
+            this.pageSize = pageSize;
+            this.executor = executor;
+            this.decoder = decoder;
+            this.stampDecoder = stampDecoder;
+            this.callback = callback;
+        }
+
+        // Fetch the first page. A full pull reads in ID order, so a document written during the pull may sit on a
+        // page already read while later pages carry newer stamps: its mark is the time it started instead, less
+        // the overlap for writes still in flight. An incremental pull reads in write order, so it keeps the
+        // latest stamp it saw.
+        void start(long highWaterMark) {
+            if (since < 0) {
+                fetch(null, Math.max(System.currentTimeMillis() - PULL_OVERLAP_MILLIS, PULLED_WITHOUT_STAMPS));
+            } else {
+                fetch(null, Math.max(highWaterMark, PULLED_WITHOUT_STAMPS));
+            }
+        }
+
+        // Fetch the page after the given document
+        private void fetch(RemoteDocument after, long highWaterMark) {
+            RemoteStore.PageCallback pageCallback = new RemoteStore.PageCallback() {
+                @Override
+                public void onSuccess(List<RemoteDocument> documents) {
+                    onExecutor(() -> receive(documents, highWaterMark), null);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    onExecutor(() -> callback.onFailure(e), e);
+                }
+            };
+            if (since < 0) {
+                remoteStore.fetchPage(collection, after != null ? after.getId() : null, pageSize, pageCallback);
+            } else {
+                remoteStore.fetchChangedSince(collection, since, after, pageSize, pageCallback);
+            }
+        }
+
+        private void receive(List<RemoteDocument> documents, long highWaterMark) {
+            PulledChanges<T> page = new PulledChanges<>(highWaterMark);
+            for (RemoteDocument document : documents) {
+                if (since >= 0 && document.getUpdatedAt() > 0) {
+                    page.observeUpdatedAt(document.getUpdatedAt());
+                }
+                if (readTombstone(document, page)) {
+                    continue;
+                }
+                try {
+                    page.addChanged(decoder.decode(document.getId(), document.getData()),
+                            stampDecoder.decode(document.getData()));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Skipping unreadable document " + collection + "/" + document.getId(), e);
+                }
+            }
+            // A short page is the last one; a full one may be followed by an empty last page
+            RemoteDocument cursor = documents.size() < pageSize ? null : documents.get(documents.size() - 1);
+            if (cursor == null) {
+                page.setLastPage();
+            }
+            try {
+                callback.onPage(page);
+            } catch (RuntimeException e) {
+                callback.onFailure(e);
+                return;
+            }
+            if (cursor != null) {
+                fetch(cursor, page.getHighWaterMark());
+            }
+        }
+
+        // Store callbacks arrive on the store's threads; pages are parsed and handed over on the executor.
+        // A full executor ends the pull with a failure, reported from the store's thread, so the callback
+        // always hears how the pull ended. storeFailure is the error the work was to report, if any.
+        private void onExecutor(Runnable work, Exception storeFailure) {
+            try {
+                executor.execute(work);
+            } catch (RejectedExecutionException e) {
+                if (storeFailure != null) {
+                    storeFailure.addSuppressed(e);
+                    callback.onFailure(storeFailure);
+                } else {
                     callback.onFailure(e);
-                });
-    }
-
-    // Fetch all class instances from Firestore
-    public void fetchClassInstances(FirestoreFetchCallback<ClassInstance> callback) {
-        firestore.collection("class_instances")
-                .get()
-                .addOnSuccessListener(snapshots -> {
-                    List<ClassInstance> instances = new ArrayList<>();
-                    for (DocumentSnapshot doc : snapshots) {
-                        ClassInstance instance = doc.toObject(ClassInstance.class);
-                        if (instance != null) {
-                            instance.setId(Integer.parseInt(doc.getId()));
-                            instances.add(instance);
-                            Map<String, Object> data = new HashMap<>();
-                            data.put("date", instance.getDate()); // <-- giữ nguyên Date object
-
-                        }
-                    }
-                    callback.onSuccess(instances);
-                })
-                .addOnFailureListener(callback::onFailure);
+                }
+            }
+        }
+    }
+
+    // The earliest write time a pull has to fetch, or -1 for a full pull of the collection in ID order
+    private static long changedSince(long highWaterMark) {
+        if (highWaterMark > PULLED_WITHOUT_STAMPS) {
+            // Writes still in flight during the last pull can commit with a slightly older server time,
+            // so each pull overlaps the previous one a little. Re-applying a document is harmless.
+            return Math.max(0, highWaterMark - PULL_OVERLAP_MILLIS);
+        }
+        // After a full pull that found no stamps, only stamped documents can be new
+        return highWaterMark == PULLED_WITHOUT_STAMPS ? 0 : -1;
+    }
+
+    // Returns true (after noting the ID) if the document is a tombstone
+    private static boolean readTombstone(RemoteDocument document, PulledChanges<?> changes) {
+        if (!Boolean.TRUE.equals(document.getData().get(FIELD_DELETED))) {
+            return false;
+        }
+        try {
+            changes.addDeleted(Long.parseLong(document.getId()));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid ID on deleted document: " + document.getId(), e);
+        }
+        return true;
     }
 }
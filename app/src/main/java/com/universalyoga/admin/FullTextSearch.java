@@ -0,0 +1,204 @@
+package com.universalyoga.admin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers for the SQLite full-text search over class instances.
+ * Builds MATCH expressions from user input and ranks rows from their matchinfo() blob.
+ */
+public final class FullTextSearch {
+
+    /**
+     * matchinfo() format used by the search query:
+     * p = phrases, c = columns, n = rows in the table, x = hit counts per phrase and column
+     */
+    public static final String MATCHINFO_FORMAT = "pcnx";
+
+    // Runs of letters and digits, the same characters the FTS "simple" tokenizer keeps
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    private FullTextSearch() {
+    }
+
+    /**
+     * Turn free text into an FTS MATCH expression where every word is a prefix term.
+     * Each term is quoted so words like "or" and "not" are never read as operators.
+     * @param text The text typed by the user
+     * @return The MATCH expression, or null if the text has no searchable words
+     */
+    public static String toMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        Matcher matcher = WORD.matcher(text);
+        while (matcher.find()) {
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(matcher.group()).append("*\"");
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    /**
+     * Whether every result of one query is also a result of another, as when a word was typed on:
+     * each word of the earlier query is a prefix of a word of the later one.
+     * @param previous The earlier query
+     * @param next The later query
+     * @return True if the results of next are among those of previous
+     */
+    public static boolean narrows(String previous, String next) {
+        List<String> previousWords = wordsOf(previous);
+        List<String> nextWords = wordsOf(next);
+        if (previousWords.isEmpty() || nextWords.isEmpty()) {
+            return false;
+        }
+        for (String word : previousWords) {
+            if (!hasWordStartingWith(nextWords, word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Match text against a query the way the FTS "simple" tokenizer does: the text is split at ASCII characters
+     * other than letters and digits, ASCII letters are compared case-insensitively, and every word of the query
+     * has to start a word of the text.
+     * @param text The searchable text of a row
+     * @param query The text typed by the user
+     * @return True if the row is a result of the query
+     */
+    public static boolean matches(String text, String query) {
+        List<String> queryWords = wordsOf(query);
+        if (queryWords.isEmpty() || text == null) {
+            return false;
+        }
+        List<String> textWords = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && isTokenChar(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                textWords.add(foldAscii(text.substring(start, i)));
+                start = -1;
+            }
+        }
+        for (String word : queryWords) {
+            if (!hasWordStartingWith(textWords, word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The words of a query as the MATCH expression has them, folded like the tokenizer folds them
+    private static List<String> wordsOf(String query) {
+        List<String> words = new ArrayList<>();
+        if (query != null) {
+            Matcher matcher = WORD.matcher(query);
+            while (matcher.find()) {
+                words.add(foldAscii(matcher.group()));
+            }
+        }
+        return words;
+    }
+
+    private static boolean hasWordStartingWith(List<String> words, String prefix) {
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The simple tokenizer keeps ASCII letters and digits and every non-ASCII character
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    // The simple tokenizer lowercases ASCII letters only
+    private static String foldAscii(String word) {
+        StringBuilder folded = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            folded.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+        return folded.toString();
+    }
+
+    /**
+     * Score one result row from its matchinfo blob (format {@link #MATCHINFO_FORMAT}).
+     * Each hit counts with diminishing returns, scaled by how rare the term is and by the column weight.
+     * @param matchInfo The matchinfo() value for the row
+     * @param columnWeights The weight of each FTS column, in table order
+     * @return The relevance score, higher is better
+     */
+    public static double score(byte[] matchInfo, double[] columnWeights) {
+        return new Scorer(columnWeights).score(matchInfo);
+    }
+
+    /**
+     * Scores the rows of one query. The row count and each term's document counts in matchinfo are the same
+     * for every row of a query, so the weight of each phrase and column is worked out from the first row,
+     * and every row after that only reads its own hit counts.
+     */
+    public static final class Scorer {
+
+        private final double[] columnWeights;
+        // Column weight times term rarity, per phrase and column; null until the first row
+        private double[] hitWeights;
+
+        /**
+         * @param columnWeights The weight of each FTS column, in table order
+         */
+        public Scorer(double[] columnWeights) {
+            this.columnWeights = columnWeights;
+        }
+
+        /**
+         * @param matchInfo The matchinfo() value for a row of this scorer's query
+         * @return The relevance score, higher is better
+         */
+        public double score(byte[] matchInfo) {
+            // SQLite writes matchinfo as unsigned 32-bit integers in native byte order
+            IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+            int cells = info.get(0) * info.get(1);
+            if (hitWeights == null) {
+                hitWeights = hitWeights(info);
+            }
+
+            double score = 0;
+            for (int cell = 0; cell < cells; cell++) {
+                int hitsInRow = info.get(3 + 3 * cell);
+                if (hitsInRow > 0) {
+                    score += hitWeights[cell] * hitsInRow / (hitsInRow + 1.2);
+                }
+            }
+            return score;
+        }
+
+        private double[] hitWeights(IntBuffer info) {
+            int phrases = info.get(0);
+            int columns = info.get(1);
+            int rows = info.get(2);
+            double[] weights = new double[phrases * columns];
+            for (int cell = 0; cell < weights.length; cell++) {
+                int column = cell % columns;
+                int rowsWithHits = info.get(3 + 3 * cell + 2);
+                double weight = column < columnWeights.length ? columnWeights[column] : 1.0;
+                weights[cell] = weight * Math.log(1.0 + (double) rows / Math.max(1, rowsWithHits));
+            }
+            return weights;
+        }
+    }
+}
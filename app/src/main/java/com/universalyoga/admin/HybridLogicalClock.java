@@ -0,0 +1,97 @@
+package com.universalyoga.admin;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Hybrid logical clock that stamps every local edit of a course or class instance field.
+ * A stamp is one positive long: 41 bits of milliseconds since {@link IdGenerator#EPOCH_MILLIS}, a 9-bit counter
+ * and the 13-bit node ID of the device, so comparing two stamps as numbers orders them by time, then by counter,
+ * then by device. The time part follows the wall clock but never goes back, and it moves past every stamp the
+ * clock has observed, so an edit made after seeing another one always gets the larger stamp, even if this
+ * device's clock is behind. Two stamps are only equal if one device made them in one event.
+ * Plain Java and thread-safe.
+ */
+public class HybridLogicalClock {
+
+    static final int COUNTER_BITS = 9;
+    static final int NODE_BITS = IdGenerator.NODE_BITS;
+    private static final long MAX_COUNTER = (1 << COUNTER_BITS) - 1;
+
+    private final long node;
+    private final LongSupplier clock;
+    private long lastMillis; // Time part of the last stamp; guarded by this
+    private long counter; // guarded by this
+
+    /**
+     * @param node This device's node ID, from 0 to {@link IdGenerator#MAX_NODE}
+     * @param clock The current time in milliseconds since the Unix epoch
+     */
+    public HybridLogicalClock(int node, LongSupplier clock) {
+        if (node < 0 || node > IdGenerator.MAX_NODE) {
+            throw new IllegalArgumentException("node must be between 0 and " + IdGenerator.MAX_NODE);
+        }
+        this.node = node;
+        this.clock = clock;
+    }
+
+    /**
+     * @return A stamp for a local event, larger than every stamp this clock returned or observed before
+     */
+    public long tick() {
+        return observe(0);
+    }
+
+    /**
+     * Stamp an event that follows one stamped elsewhere, e.g. an edit of a field that was pulled from
+     * another device
+     * @param stamp The stamp of the earlier event, or 0 for none
+     * @return A stamp larger than that stamp and than every stamp this clock returned or observed before
+     */
+    public synchronized long observe(long stamp) {
+        long now = Math.max(0, clock.getAsLong() - IdGenerator.EPOCH_MILLIS);
+        long otherMillis = millisOf(stamp);
+        long millis = Math.max(now, Math.max(lastMillis, otherMillis));
+        long next;
+        if (millis == lastMillis && millis == otherMillis) {
+            next = Math.max(counter, counterOf(stamp)) + 1;
+        } else if (millis == lastMillis) {
+            next = counter + 1;
+        } else if (millis == otherMillis) {
+            next = counterOf(stamp) + 1;
+        } else {
+            next = 0;
+        }
+        if (next > MAX_COUNTER) {
+            // Borrow the next millisecond rather than wrap; the wall clock catches up with it soon enough
+            millis++;
+            next = 0;
+        }
+        lastMillis = millis;
+        counter = next;
+        return (millis << (COUNTER_BITS + NODE_BITS)) | (next << NODE_BITS) | node;
+    }
+
+    /**
+     * @param stamp A stamp from any device
+     * @return When it was made, in milliseconds since the Unix epoch (as far as the clocks knew)
+     */
+    static long timeOf(long stamp) {
+        return millisOf(stamp) + IdGenerator.EPOCH_MILLIS;
+    }
+
+    /**
+     * @param stamp A stamp from any device
+     * @return The node ID of the device that made it
+     */
+    static int nodeOf(long stamp) {
+        return (int) stamp & IdGenerator.MAX_NODE;
+    }
+
+    private static long millisOf(long stamp) {
+        return stamp >>> (COUNTER_BITS + NODE_BITS);
+    }
+
+    private static long counterOf(long stamp) {
+        return (stamp >>> NODE_BITS) & MAX_COUNTER;
+    }
+}
@@ -0,0 +1,98 @@
+package com.universalyoga.admin;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Generates 64-bit row IDs on the device, without asking the server or any other device.
+ * An ID is, from the high bits down: a zero sign bit, 41 bits of milliseconds since {@link #EPOCH_MILLIS},
+ * 13 bits of node ID and a 9-bit sequence within the millisecond. IDs from one generator always increase,
+ * and IDs from different generators sort roughly by creation time.
+ * Two devices can only produce the same ID if they picked the same node ID, and then only for rows created
+ * in the same millisecond. {@link IdNodeClaim} makes an installation move off a node another one holds, but
+ * the claim is made in the background after start-up and is retried on the next start when offline; rows
+ * created before it succeeds carry an unverified node and may, rarely, collide with another device's rows.
+ * If the clock goes back, the generator keeps counting from the last time it used instead of repeating IDs;
+ * the same happens when the 512 IDs of a millisecond run out.
+ * Plain Java and thread-safe.
+ */
+public class IdGenerator {
+
+    static final long EPOCH_MILLIS = 1_704_067_200_000L; // 2024-01-01T00:00:00Z, good for about 69 years
+    static final int NODE_BITS = 13;
+    static final int SEQUENCE_BITS = 9;
+    static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+    private final long node;
+    private final LongSupplier clock;
+    private long lastMillis = -1; // Milliseconds since EPOCH_MILLIS of the last ID; guarded by this
+    private long sequence; // guarded by this
+
+    /**
+     * @param node This device's node ID, from 0 to {@link #MAX_NODE}
+     * @param clock The current time in milliseconds since the Unix epoch
+     */
+    public IdGenerator(int node, LongSupplier clock) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE);
+        }
+        this.node = node;
+        this.clock = clock;
+    }
+
+    /**
+     * @return A new ID, larger than every ID this generator returned before
+     */
+    public synchronized long nextId() {
+        long millis = clock.getAsLong() - EPOCH_MILLIS;
+        if (millis > lastMillis) {
+            lastMillis = millis;
+            sequence = 0;
+        } else if (sequence < MAX_SEQUENCE) {
+            sequence++;
+        } else {
+            // Borrow the next millisecond; the clock catches up with it soon enough
+            lastMillis++;
+            sequence = 0;
+        }
+        return (lastMillis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Make every later ID larger than an ID this node handed out before, e.g. in an earlier run of the app
+     * whose clock was ahead of the current one
+     * @param id An ID generated before
+     */
+    public synchronized void advancePast(long id) {
+        long millis = id >>> (NODE_BITS + SEQUENCE_BITS);
+        long idSequence = id & MAX_SEQUENCE;
+        if (millis > lastMillis || (millis == lastMillis && idSequence > sequence)) {
+            lastMillis = millis;
+            sequence = idSequence;
+        }
+    }
+
+    /**
+     * @param millis A time in milliseconds since the Unix epoch
+     * @return The smallest ID any generator can make at that time
+     */
+    static long firstIdAt(long millis) {
+        return (millis - EPOCH_MILLIS) << (NODE_BITS + SEQUENCE_BITS);
+    }
+
+    /**
+     * @param id An ID from any generator
+     * @return The time it was generated, in milliseconds since the Unix epoch
+     */
+    static long timeOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+    }
+
+    /**
+     * @param id An ID from any generator
+     * @return The node ID of the generator
+     */
+    static int nodeOf(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+}
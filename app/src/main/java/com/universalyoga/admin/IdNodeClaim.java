@@ -0,0 +1,98 @@
+package com.universalyoga.admin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Detects two installations using the same IdGenerator node. Nodes are picked at random from 8,192, so among
+ * a hundred devices a shared one is likely. Each installation claims its node in a bookkeeping document,
+ * id_nodes/{node}, that holds its installation ID. The document is created in a conditional commit, so two
+ * installations can't both claim one node. Only IDs generated after a successful claim are covered; an
+ * installation that can't reach the store keeps its unverified node until a later claim gets through.
+ * Plain Java, so it can be run against InMemoryRemoteStore.
+ */
+public class IdNodeClaim {
+
+    static final String COLLECTION_ID_NODES = "id_nodes";
+    static final String FIELD_INSTALLATION = "installation";
+
+    private final RemoteStore store;
+
+    /**
+     * @param store The store that holds the claims
+     */
+    public IdNodeClaim(RemoteStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Claim a node for an installation, unless another installation holds it.
+     * Blocks until the store has answered; call it on a background thread.
+     * @param node The node ID
+     * @param installationId The ID of the installation that uses the node
+     * @return Whether the node is the installation's, now or from before; false if another one holds it
+     * @throws ExecutionException If the claim could not be read or written
+     * @throws InterruptedException If interrupted while waiting for the store
+     */
+    public boolean claim(int node, String installationId) throws ExecutionException, InterruptedException {
+        String documentId = String.valueOf(node);
+        while (true) {
+            RemoteDocument current = read(documentId);
+            Object holder = current.getData().get(FIELD_INSTALLATION);
+            if (holder != null) {
+                return installationId.equals(holder);
+            }
+            Map<String, Object> claim = new HashMap<>();
+            claim.put(FIELD_INSTALLATION, installationId);
+            try {
+                commitIfUnchanged(current, WriteOp.rewrite(COLLECTION_ID_NODES, documentId, claim));
+                return true;
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof RemoteStore.ConflictException)) {
+                    throw e;
+                }
+                // Another installation claimed the node meanwhile; the next read says which
+            }
+        }
+    }
+
+    // The claim document, or one with no fields if the node was never claimed
+    private RemoteDocument read(String documentId) throws ExecutionException, InterruptedException {
+        CompletableFuture<List<RemoteDocument>> found = new CompletableFuture<>();
+        store.fetchDocuments(COLLECTION_ID_NODES, Collections.singletonList(documentId), new RemoteStore.PageCallback() {
+            @Override
+            public void onSuccess(List<RemoteDocument> documents) {
+                found.complete(documents);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                found.completeExceptionally(e);
+            }
+        });
+        List<RemoteDocument> documents = found.get();
+        return !documents.isEmpty() ? documents.get(0)
+                : new RemoteDocument(documentId, Collections.<String, Object>emptyMap(), 0, null);
+    }
+
+    private void commitIfUnchanged(RemoteDocument read, WriteOp op) throws ExecutionException, InterruptedException {
+        CompletableFuture<Void> commit = new CompletableFuture<>();
+        store.commitIfUnchanged(Collections.singletonMap(COLLECTION_ID_NODES, Collections.singletonList(read)),
+                Collections.singletonList(op), new RemoteStore.CommitCallback() {
+                    @Override
+                    public void onSuccess() {
+                        commit.complete(null);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        commit.completeExceptionally(e);
+                    }
+                });
+        commit.get();
+    }
+}
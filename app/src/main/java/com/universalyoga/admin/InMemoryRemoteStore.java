@@ -0,0 +1,412 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A RemoteStore that keeps the documents in memory, for tests and offline benchmarks.
+ * Requests complete asynchronously after a round-trip latency. Writes are stamped, deletes leave tombstones
+ * and conditional commits check their documents the same way the Firestore store does, so the whole sync
+ * pipeline can run against it.
+ * A bad network can be imitated with a failure rate and a throughput limit. Which requests fail is
+ * decided by a seeded random source when they are issued, so a run issuing requests from one thread
+ * fails the same requests every time.
+ */
+public class InMemoryRemoteStore implements RemoteStore {
+
+    // Oldest change first, then by ID, like a Firestore query ordered by updatedAt and document ID
+    private static final Comparator<RemoteDocument> BY_STAMP_THEN_ID =
+            Comparator.comparingLong(RemoteDocument::getUpdatedAt).thenComparing(RemoteDocument::getId);
+
+    // collection -> document ID, in order -> fields; guarded by this
+    private final Map<String, TreeMap<String, Map<String, Object>>> collections = new HashMap<>();
+    private long lastStamp; // guarded by this
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "in-memory-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long latencyMillis;
+    private final Clock clock;
+
+    // Bad network settings
+    private final Object linkLock = new Object();
+    private long linkFreeAt; // guarded by linkLock
+    private volatile int documentsPerSecond;
+    private volatile double failureRate;
+    private Random failures = new Random(); // guarded by this
+
+    private final AtomicInteger commits = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger failuresToInject = new AtomicInteger();
+
+    public InMemoryRemoteStore() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis How long each request's round trip takes
+     */
+    public InMemoryRemoteStore(long latencyMillis) {
+        this(latencyMillis, Clock.SYSTEM);
+    }
+
+    /**
+     * @param latencyMillis How long each request's round trip takes
+     * @param clock What the round trips and the link are timed with
+     */
+    InMemoryRemoteStore(long latencyMillis, Clock clock) {
+        this.latencyMillis = latencyMillis;
+        this.clock = clock;
+    }
+
+    // The time source of the network imitation, so tests can check the waits without sleeping
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public void sleep(long millis) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        };
+
+        long currentTimeMillis();
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * Make a share of the requests fail
+     * @param rate The chance that a request fails, from 0 to 1
+     * @param seed Seed of the random source that picks the failing requests
+     * @return This store
+     */
+    public InMemoryRemoteStore setFailureRate(double rate, long seed) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("rate must be between 0 and 1");
+        }
+        synchronized (this) {
+            failures = new Random(seed);
+        }
+        failureRate = rate;
+        return this;
+    }
+
+    /**
+     * Limit how fast documents travel. Requests share the link, so concurrent requests queue for it.
+     * @param documentsPerSecond Documents written or read per second, or 0 for no limit
+     * @return This store
+     */
+    public InMemoryRemoteStore setThroughput(int documentsPerSecond) {
+        if (documentsPerSecond < 0) {
+            throw new IllegalArgumentException("documentsPerSecond must not be negative");
+        }
+        this.documentsPerSecond = documentsPerSecond;
+        return this;
+    }
+
+    @Override
+    public void commit(List<WriteOp> ops, CommitCallback callback) {
+        commit(null, ops, callback);
+    }
+
+    @Override
+    public void commitIfUnchanged(Map<String, List<RemoteDocument>> read, List<WriteOp> ops, CommitCallback callback) {
+        commit(read, ops, callback);
+    }
+
+    // read is null for an unconditional commit
+    private void commit(Map<String, List<RemoteDocument>> read, List<WriteOp> ops, CommitCallback callback) {
+        if (ops.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch of " + ops.size() + " writes is over the limit of " + MAX_BATCH_SIZE);
+        }
+        boolean fail = pickFailure();
+        executor.execute(() -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Exception failure = null;
+            try {
+                travel(ops.size());
+                if (fail || failuresToInject.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    failure = new IllegalStateException("Injected commit failure");
+                } else {
+                    apply(read, ops);
+                    commits.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            } catch (ConflictException e) {
+                failure = e;
+            }
+            // Finished before the caller hears about it, so a commit it starts in response is not counted twice
+            inFlight.decrementAndGet();
+            if (failure != null) {
+                callback.onFailure(failure);
+            } else {
+                callback.onSuccess();
+            }
+        });
+    }
+
+    // The whole batch is checked and applied under the lock with one stamp, so readers never see half of it
+    private synchronized void apply(Map<String, List<RemoteDocument>> read, List<WriteOp> ops)
+            throws ConflictException {
+        if (read != null) {
+            for (Map.Entry<String, List<RemoteDocument>> collection : read.entrySet()) {
+                TreeMap<String, Map<String, Object>> documents = collections.get(collection.getKey());
+                for (RemoteDocument expected : collection.getValue()) {
+                    Map<String, Object> current = documents != null ? documents.get(expected.getId()) : null;
+                    if (!expected.getData().equals(current != null ? current : Collections.emptyMap())) {
+                        throw new ConflictException("Changed since read: " + collection.getKey() + "/" + expected.getId());
+                    }
+                }
+            }
+        }
+        lastStamp = Math.max(System.currentTimeMillis(), lastStamp + 1);
+        for (WriteOp op : ops) {
+            TreeMap<String, Map<String, Object>> documents = collections.get(op.getCollection());
+            if (documents == null) {
+                documents = new TreeMap<>();
+                collections.put(op.getCollection(), documents);
+            }
+            Map<String, Object> existing = documents.get(op.getDocumentId());
+            Map<String, Object> document;
+            if (op.getType() == WriteOp.Type.REWRITE) {
+                document = existing != null ? new HashMap<>(existing) : new HashMap<>();
+                document.putAll(op.getData());
+                documents.put(op.getDocumentId(), document);
+                continue;
+            }
+            if (op.getType() == WriteOp.Type.INCREMENT) {
+                document = existing != null ? new HashMap<>(existing) : new HashMap<>();
+                for (Map.Entry<String, Object> delta : op.getData().entrySet()) {
+                    Object value = document.get(delta.getKey());
+                    document.put(delta.getKey(), (value instanceof Long ? (Long) value : 0) + (Long) delta.getValue());
+                }
+                documents.put(op.getDocumentId(), document);
+                continue;
+            }
+            switch (op.getType()) {
+                case SET:
+                    document = new HashMap<>(op.getData());
+                    document.put(FirestoreSyncManager.FIELD_DELETED, false);
+                    break;
+                case MERGE:
+                    document = existing != null ? new HashMap<>(existing) : new HashMap<>();
+                    document.putAll(op.getData());
+                    document.put(FirestoreSyncManager.FIELD_DELETED, false);
+                    break;
+                default:
+                    document = existing != null ? new HashMap<>(existing) : new HashMap<>();
+                    document.putAll(op.getData());
+                    document.put(FirestoreSyncManager.FIELD_DELETED, true);
+                    break;
+            }
+            document.put(FirestoreSyncManager.FIELD_UPDATED_AT, lastStamp);
+            documents.put(op.getDocumentId(), document);
+        }
+    }
+
+    @Override
+    public void fetchPage(String collection, String afterDocumentId, int limit, PageCallback callback) {
+        fetch(() -> page(collection, afterDocumentId, limit), callback);
+    }
+
+    @Override
+    public void fetchChangedSince(String collection, long sinceMillis, RemoteDocument after, int limit,
+                                  PageCallback callback) {
+        fetch(() -> changedSince(collection, sinceMillis, after, limit), callback);
+    }
+
+    @Override
+    public void fetchDocuments(String collection, List<String> documentIds, PageCallback callback) {
+        fetch(() -> byIds(collection, documentIds), callback);
+    }
+
+    @Override
+    public void fetchWhereEqual(String collection, String field, Object value, String afterDocumentId, int limit,
+                                PageCallback callback) {
+        fetch(() -> whereEqual(collection, field, value, afterDocumentId, limit), callback);
+    }
+
+    private void fetch(Supplier<List<RemoteDocument>> query, PageCallback callback) {
+        boolean fail = pickFailure();
+        executor.execute(() -> {
+            List<RemoteDocument> documents = query.get();
+            try {
+                travel(documents.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callback.onFailure(e);
+                return;
+            }
+            if (fail) {
+                callback.onFailure(new IllegalStateException("Injected read failure"));
+            } else {
+                callback.onSuccess(documents);
+            }
+        });
+    }
+
+    private synchronized List<RemoteDocument> page(String collection, String afterDocumentId, int limit) {
+        List<RemoteDocument> page = new ArrayList<>();
+        TreeMap<String, Map<String, Object>> documents = collections.get(collection);
+        if (documents == null) {
+            return page;
+        }
+        Map<String, Map<String, Object>> after = afterDocumentId != null
+                ? documents.tailMap(afterDocumentId, false) : documents;
+        for (Map.Entry<String, Map<String, Object>> document : after.entrySet()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(document(document.getKey(), document.getValue()));
+        }
+        return page;
+    }
+
+    private synchronized List<RemoteDocument> byIds(String collection, List<String> documentIds) {
+        List<RemoteDocument> found = new ArrayList<>();
+        TreeMap<String, Map<String, Object>> documents = collections.get(collection);
+        if (documents == null) {
+            return found;
+        }
+        for (String id : documentIds) {
+            Map<String, Object> data = documents.get(id);
+            if (data != null) {
+                found.add(document(id, data));
+            }
+        }
+        return found;
+    }
+
+    // Scans the rest of the collection; fine for the sizes tests and benchmarks use
+    private synchronized List<RemoteDocument> whereEqual(String collection, String field, Object value,
+                                                         String afterDocumentId, int limit) {
+        List<RemoteDocument> page = new ArrayList<>();
+        TreeMap<String, Map<String, Object>> documents = collections.get(collection);
+        if (documents == null) {
+            return page;
+        }
+        Map<String, Map<String, Object>> after = afterDocumentId != null
+                ? documents.tailMap(afterDocumentId, false) : documents;
+        for (Map.Entry<String, Map<String, Object>> document : after.entrySet()) {
+            if (page.size() == limit) {
+                break;
+            }
+            if (value.equals(document.getValue().get(field))) {
+                page.add(document(document.getKey(), document.getValue()));
+            }
+        }
+        return page;
+    }
+
+    // Scans the whole collection; fine for the sizes tests and benchmarks use
+    private synchronized List<RemoteDocument> changedSince(String collection, long sinceMillis,
+                                                           RemoteDocument after, int limit) {
+        List<RemoteDocument> changed = new ArrayList<>();
+        TreeMap<String, Map<String, Object>> documents = collections.get(collection);
+        if (documents == null) {
+            return changed;
+        }
+        for (Map.Entry<String, Map<String, Object>> entry : documents.entrySet()) {
+            Object stamp = entry.getValue().get(FirestoreSyncManager.FIELD_UPDATED_AT);
+            if (stamp instanceof Long && (Long) stamp >= sinceMillis) {
+                RemoteDocument document = document(entry.getKey(), entry.getValue());
+                if (after == null || BY_STAMP_THEN_ID.compare(document, after) > 0) {
+                    changed.add(document);
+                }
+            }
+        }
+        changed.sort(BY_STAMP_THEN_ID);
+        return changed.size() > limit ? new ArrayList<>(changed.subList(0, limit)) : changed;
+    }
+
+    private static RemoteDocument document(String id, Map<String, Object> data) {
+        Object stamp = data.get(FirestoreSyncManager.FIELD_UPDATED_AT);
+        return new RemoteDocument(id, new HashMap<>(data), stamp instanceof Long ? (Long) stamp : 0, null);
+    }
+
+    private boolean pickFailure() {
+        if (failureRate == 0) {
+            return false;
+        }
+        synchronized (this) {
+            return failures.nextDouble() < failureRate;
+        }
+    }
+
+    // Waits for the round trip, plus the documents' turn on the link when the throughput is limited
+    private void travel(int documents) throws InterruptedException {
+        long now = clock.currentTimeMillis();
+        long arrival = now + latencyMillis;
+        int rate = documentsPerSecond;
+        if (rate > 0) {
+            synchronized (linkLock) {
+                linkFreeAt = Math.max(now, linkFreeAt) + documents * 1000L / rate;
+                arrival = linkFreeAt + latencyMillis;
+            }
+        }
+        if (arrival > now) {
+            clock.sleep(arrival - now);
+        }
+    }
+
+    /**
+     * Store a document directly, the way another app version or device may have written it.
+     * It is returned by change queries only if its fields include an updatedAt stamp (a Long).
+     * @param collection The collection
+     * @param documentId The document ID
+     * @param data The document fields
+     */
+    public synchronized void putDocument(String collection, String documentId, Map<String, Object> data) {
+        collections.computeIfAbsent(collection, name -> new TreeMap<>()).put(documentId, new HashMap<>(data));
+    }
+
+    /**
+     * Make the next commits fail instead of being applied
+     * @param count How many commits should fail
+     */
+    public void failNextCommits(int count) {
+        failuresToInject.set(count);
+    }
+
+    /**
+     * @return A copy of a stored document, or null if there is none
+     */
+    public synchronized Map<String, Object> getDocument(String collection, String documentId) {
+        TreeMap<String, Map<String, Object>> documents = collections.get(collection);
+        Map<String, Object> document = documents != null ? documents.get(documentId) : null;
+        return document != null ? new HashMap<>(document) : null;
+    }
+
+    public synchronized int getDocumentCount(String collection) {
+        TreeMap<String, Map<String, Object>> documents = collections.get(collection);
+        return documents != null ? documents.size() : 0;
+    }
+
+    // Number of batches applied successfully
+    public int getCommitCount() {
+        return commits.get();
+    }
+
+    // Most commits that were running at the same time
+    public int getMaxConcurrentCommits() {
+        return maxInFlight.get();
+    }
+}
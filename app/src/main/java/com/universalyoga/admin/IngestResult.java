@@ -0,0 +1,85 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Counts of what a bulk ingest did to the local database.
+ */
+public class IngestResult {
+    private int inserted; // Rows that did not exist before
+    private int updated; // Existing rows whose values changed
+    private int unchanged; // Existing rows that were merged but already had the same values
+    private int skipped; // Existing rows whose stored hash and stamps matched, so they were neither read nor written
+    private int deleted; // Rows removed because they were deleted remotely
+    private final List<Long> invalidIds = new ArrayList<>(); // Rows the schema refused, e.g. a missing date
+
+    void addInserted() {
+        inserted++;
+    }
+
+    void addUpdated() {
+        updated++;
+    }
+
+    void addUnchanged() {
+        unchanged++;
+    }
+
+    void addSkipped() {
+        skipped++;
+    }
+
+    void addDeleted() {
+        deleted++;
+    }
+
+    void addInvalid(long id) {
+        invalidIds.add(id);
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getUpdated() {
+        return updated;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return The IDs of the rows that were not stored because they broke a constraint of the schema
+     */
+    public List<Long> getInvalidIds() {
+        return Collections.unmodifiableList(invalidIds);
+    }
+
+    /**
+     * @return The number of rows that were actually written
+     */
+    public int getWritten() {
+        return inserted + updated + deleted;
+    }
+
+    public int getTotal() {
+        return inserted + updated + unchanged + skipped + deleted + invalidIds.size();
+    }
+
+    @Override
+    public String toString() {
+        return "inserted=" + inserted + ", updated=" + updated + ", unchanged=" + unchanged + ", skipped=" + skipped +
+                ", deleted=" + deleted + ", invalid=" + invalidIds;
+    }
+}
@@ -0,0 +1,105 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The class instance rows a course screen has loaded: the first rows, kept up to date by an observed read, and the
+ * pages loaded after them while scrolling. A read of the first rows replaces everything; a page requested before
+ * that read is dropped when it arrives, as it no longer follows the rows on screen.
+ * Plain Java and used on the main thread only.
+ */
+class InstanceListPages {
+
+    private final int pageSize;
+    private List<ClassInstance> rows = Collections.emptyList();
+    private boolean hasMore;
+    private boolean loadingMore;
+    // Bumped on every read of the first rows, so pages requested before it are dropped
+    private int generation;
+
+    /**
+     * @param pageSize How many rows each further page asks for
+     */
+    InstanceListPages(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return The rows loaded so far, in list order; never changed, a later read or page gives a new list
+     */
+    List<ClassInstance> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return Whether the last read or page was full, so there may be rows after it
+     */
+    boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Replace the rows with a read of the first ones; pages loaded before it are part of it
+     * @param rows The rows read
+     * @param limit How many rows the read asked for
+     */
+    void reloaded(List<ClassInstance> rows, int limit) {
+        generation++;
+        loadingMore = false;
+        hasMore = rows.size() == limit;
+        this.rows = rows;
+    }
+
+    /**
+     * Start loading the page after the last row, unless one is loading already or there are no more rows
+     * @return The ticket to hand back with the page, or -1 if no page should be loaded
+     */
+    int startLoadingMore() {
+        if (loadingMore || !hasMore || rows.isEmpty()) {
+            return -1;
+        }
+        loadingMore = true;
+        return generation;
+    }
+
+    /**
+     * @return The row a new page starts after
+     */
+    ClassInstance getLast() {
+        return rows.get(rows.size() - 1);
+    }
+
+    /**
+     * Add a loaded page after the rows
+     * @param ticket What startLoadingMore returned for the page
+     * @param page The rows of the page
+     * @return Whether the rows changed; false for an empty page or one the rows were read again since
+     */
+    boolean pageLoaded(int ticket, List<ClassInstance> page) {
+        if (ticket != generation) {
+            return false;
+        }
+        loadingMore = false;
+        hasMore = page.size() == pageSize;
+        if (page.isEmpty()) {
+            return false;
+        }
+        List<ClassInstance> more = new ArrayList<>(rows.size() + page.size());
+        more.addAll(rows);
+        more.addAll(page);
+        rows = more;
+        return true;
+    }
+
+    /**
+     * Allow the page to be asked for again
+     * @param ticket What startLoadingMore returned for the page
+     */
+    void pageFailed(int ticket) {
+        if (ticket == generation) {
+            loadingMore = false;
+        }
+    }
+}
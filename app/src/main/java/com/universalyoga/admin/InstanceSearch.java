@@ -0,0 +1,157 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The results of one full-text search over class instances, loaded a page at a time.
+ * The search ranks the matches once and keeps only the IDs of the most relevant; the instances themselves are read
+ * page by page as the list is scrolled, so a short query that matches most of the table stays cheap.
+ * Each loaded instance keeps its searchable text, so a longer query typed on from this one can be
+ * answered from the loaded rows at once, while the database is asked in the background.
+ * Immutable; plain Java, no Android dependencies.
+ */
+public class InstanceSearch {
+
+    private final String query;
+    // The matches that can be loaded, most relevant first
+    private final long[] rankedIds;
+    // Every match, ranked or not
+    private final int matchCount;
+    // How many of rankedIds were read; rows deleted since the search are skipped, so results can be shorter
+    private final int loadedIdCount;
+    private final List<ClassInstance> results;
+    private final List<String> searchText;
+    private final boolean provisional;
+    // Provisional results only: whether the search they were narrowed from had every match loaded
+    private final boolean narrowedFromComplete;
+
+    /**
+     * A search that matched the given rows, none of them loaded yet
+     * @param query The text typed by the user
+     * @param rankedIds The IDs of all matching instances, most relevant first
+     */
+    public InstanceSearch(String query, long[] rankedIds) {
+        this(query, rankedIds, rankedIds.length);
+    }
+
+    /**
+     * A search that matched more rows than it ranked, none of them loaded yet
+     * @param query The text typed by the user
+     * @param rankedIds The IDs of the most relevant matching instances, most relevant first
+     * @param matchCount How many instances matched in all
+     */
+    public InstanceSearch(String query, long[] rankedIds, int matchCount) {
+        this(query, rankedIds, matchCount, 0, Collections.<ClassInstance>emptyList(),
+                Collections.<String>emptyList(), false, false);
+    }
+
+    private InstanceSearch(String query, long[] rankedIds, int matchCount, int loadedIdCount,
+                           List<ClassInstance> results, List<String> searchText, boolean provisional,
+                           boolean narrowedFromComplete) {
+        this.query = query;
+        this.rankedIds = rankedIds;
+        this.matchCount = matchCount;
+        this.loadedIdCount = loadedIdCount;
+        this.results = results;
+        this.searchText = searchText;
+        this.provisional = provisional;
+        this.narrowedFromComplete = narrowedFromComplete;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return The instances loaded so far, most relevant first
+     */
+    public List<ClassInstance> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return How many instances matched in all, loaded or not; more than can be loaded when the
+     * search ranked only the most relevant
+     */
+    public int getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * @return Whether more matches can be loaded with {@link #nextPageIds(int)}
+     */
+    public boolean hasMore() {
+        return loadedIdCount < rankedIds.length;
+    }
+
+    /**
+     * @return Whether these results were filtered from an earlier search, and the database has not answered yet.
+     * Their order is that of the earlier search, and when it was not fully loaded, matches may be missing.
+     */
+    public boolean isProvisional() {
+        return provisional;
+    }
+
+    /**
+     * @param pageSize The most IDs to return
+     * @return The IDs of the next matches to load, most relevant first
+     */
+    public long[] nextPageIds(int pageSize) {
+        return Arrays.copyOfRange(rankedIds, loadedIdCount, Math.min(rankedIds.length, loadedIdCount + pageSize));
+    }
+
+    /**
+     * @param pageIds The IDs that were loaded, as returned by {@link #nextPageIds(int)}
+     * @param page The instances read for them, in the same order; rows deleted meanwhile are left out
+     * @param pageText The searchable text of each instance in page
+     * @return These results with the page appended
+     */
+    public InstanceSearch withPage(long[] pageIds, List<ClassInstance> page, List<String> pageText) {
+        List<ClassInstance> moreResults = new ArrayList<>(results.size() + page.size());
+        moreResults.addAll(results);
+        moreResults.addAll(page);
+        List<String> moreText = new ArrayList<>(searchText.size() + pageText.size());
+        moreText.addAll(searchText);
+        moreText.addAll(pageText);
+        return new InstanceSearch(query, rankedIds, matchCount, loadedIdCount + pageIds.length, moreResults,
+                moreText, provisional, narrowedFromComplete);
+    }
+
+    /**
+     * Answer a longer query from these results, without the database.
+     * Every result of the longer query is a result of this one, so filtering the loaded rows finds all of its
+     * results among them; when every match was loaded, that is all of its results.
+     * @param nextQuery The query typed on from this one
+     * @return The provisional results, or null if nextQuery does not narrow this query
+     */
+    public InstanceSearch narrowTo(String nextQuery) {
+        if (!FullTextSearch.narrows(query, nextQuery)) {
+            return null;
+        }
+        List<ClassInstance> narrowed = new ArrayList<>();
+        List<String> narrowedText = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (FullTextSearch.matches(searchText.get(i), nextQuery)) {
+                narrowed.add(results.get(i));
+                narrowedText.add(searchText.get(i));
+            }
+        }
+        long[] ids = new long[narrowed.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = narrowed.get(i).getId();
+        }
+        return new InstanceSearch(nextQuery, ids, ids.length, ids.length, narrowed, narrowedText, true,
+                isComplete());
+    }
+
+    /**
+     * @return Whether the results are known to be all the matches: every match of the search was ranked and
+     * loaded, or they were narrowed from a search that was
+     */
+    public boolean isComplete() {
+        return provisional ? narrowedFromComplete : !hasMore() && matchCount == rankedIds.length;
+    }
+}
@@ -0,0 +1,188 @@
+package com.universalyoga.admin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tells observers which tables, and which rows in them, a write changed.
+ * DatabaseHelper records every row it inserts, updates or deletes while a transaction is open; when the outermost
+ * transaction of the thread ends, the recorded changes are handed to the observers of the changed tables at once.
+ * A write that turns out to change nothing, such as saving an unchanged course or pulling a document that is
+ * already stored, records nothing, so observers hear only about actual changes.
+ * A transaction that rolls back may still be reported; observers only read again, so that costs a query.
+ * Plain Java, no Android dependencies.
+ */
+public class InvalidationTracker {
+
+    /**
+     * Notified after a write changed one of the tables it observes.
+     * Called on the thread that wrote, with no transaction open; hand any work to another thread.
+     */
+    public interface Observer {
+        void onInvalidated(Invalidation invalidation);
+    }
+
+    /**
+     * The tables and rows changed by one write transaction
+     */
+    public static class Invalidation {
+        // table -> changed row IDs, or null when any row of the table may have changed
+        private final Map<String, Set<Long>> rows;
+
+        Invalidation(Map<String, Set<Long>> rows) {
+            this.rows = rows;
+        }
+
+        public Set<String> getTables() {
+            return Collections.unmodifiableSet(rows.keySet());
+        }
+
+        /**
+         * @param table A table
+         * @return Whether the table changed at all
+         */
+        public boolean isTableChanged(String table) {
+            return rows.containsKey(table);
+        }
+
+        /**
+         * @param table A table
+         * @param rowId A row ID in it
+         * @return Whether the row may have changed: it was written, or the whole table was
+         */
+        public boolean isRowChanged(String table, long rowId) {
+            if (!rows.containsKey(table)) {
+                return false;
+            }
+            Set<Long> ids = rows.get(table);
+            return ids == null || ids.contains(rowId);
+        }
+
+        /**
+         * @param table A table
+         * @return The IDs of its changed rows; null if any row may have changed, empty if the table did not change
+         */
+        public Set<Long> getRowIds(String table) {
+            if (!rows.containsKey(table)) {
+                return Collections.emptySet();
+            }
+            Set<Long> ids = rows.get(table);
+            return ids != null ? Collections.unmodifiableSet(ids) : null;
+        }
+
+        @Override
+        public String toString() {
+            return "Invalidation" + rows;
+        }
+    }
+
+    // Past this many rows in one table the rows are not listed and the whole table counts as changed
+    static final int MAX_TRACKED_ROWS = 1000;
+
+    private static class Registration {
+        final Observer observer;
+        final Set<String> tables;
+
+        Registration(Observer observer, Set<String> tables) {
+            this.observer = observer;
+            this.tables = tables;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+    // Changes recorded by the open transaction of each thread
+    private final ThreadLocal<Map<String, Set<Long>>> pending = new ThreadLocal<>();
+
+    /**
+     * @param observer Notified when one of the tables changes
+     * @param tables The tables the observer depends on
+     */
+    public void addObserver(Observer observer, String... tables) {
+        Set<String> observed = new HashSet<>();
+        Collections.addAll(observed, tables);
+        registrations.add(new Registration(observer, observed));
+    }
+
+    public void removeObserver(Observer observer) {
+        for (Registration registration : registrations) {
+            if (registration.observer == observer) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Record that a row changed in the current transaction
+     * @param table The table
+     * @param rowId The row's ID
+     */
+    public void rowChanged(String table, long rowId) {
+        Map<String, Set<Long>> changes = pendingChanges();
+        if (changes.containsKey(table) && changes.get(table) == null) {
+            return;
+        }
+        Set<Long> ids = changes.get(table);
+        if (ids == null) {
+            ids = new HashSet<>();
+            changes.put(table, ids);
+        }
+        ids.add(rowId);
+        if (ids.size() > MAX_TRACKED_ROWS) {
+            changes.put(table, null);
+        }
+    }
+
+    /**
+     * Record that rows changed in the current transaction
+     * @param table The table
+     * @param rowIds The rows' IDs
+     */
+    public void rowsChanged(String table, Collection<Long> rowIds) {
+        for (long rowId : rowIds) {
+            rowChanged(table, rowId);
+        }
+    }
+
+    /**
+     * Record that any row of a table may have changed in the current transaction
+     * @param table The table
+     */
+    public void tableChanged(String table) {
+        pendingChanges().put(table, null);
+    }
+
+    /**
+     * Notify the observers of what this thread recorded since the last flush.
+     * Call it once the outermost transaction has ended, so observers that read again see the changes.
+     */
+    public void flush() {
+        Map<String, Set<Long>> changes = pending.get();
+        if (changes == null) {
+            return;
+        }
+        pending.remove();
+        Invalidation invalidation = new Invalidation(changes);
+        for (Registration registration : registrations) {
+            for (String table : registration.tables) {
+                if (changes.containsKey(table)) {
+                    registration.observer.onInvalidated(invalidation);
+                    break;
+                }
+            }
+        }
+    }
+
+    private Map<String, Set<Long>> pendingChanges() {
+        Map<String, Set<Long>> changes = pending.get();
+        if (changes == null) {
+            changes = new HashMap<>();
+            pending.set(changes);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,211 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One-time rewrite of the class instance documents whose date is not stored as epoch milliseconds,
+ * such as the Date.toString() strings of old app versions, to the numeric date of the current schema.
+ * The collection is scanned page by page in document ID order. The checkpoint, the last document ID done, lives
+ * in a bookkeeping document in the store, so every device shares one run and a local reset doesn't start it over.
+ * Each page's rewrites and the move of the checkpoint are committed together, only if neither the rewritten
+ * documents nor the checkpoint changed since they were read; otherwise the page is read again. So an edit made
+ * meanwhile is never overwritten, and two devices running at once don't both do the same page.
+ * The rewrites are not stamped: the date keeps its value, so other devices need not pull the documents again.
+ * Plain Java, so it can be run against InMemoryRemoteStore.
+ */
+public class LegacyDateMigration {
+
+    static final String COLLECTION_MIGRATIONS = "migrations";
+    static final String DOCUMENT_ID = "legacy_dates";
+    static final String FIELD_AFTER_ID = "afterId";
+    static final String FIELD_DONE = "done";
+
+    /**
+     * What one run of the migration did
+     */
+    public static class Result {
+        private int scanned; // Documents read
+        private int rewritten; // Documents given a numeric date
+        private int unreadable; // Documents whose date could not be read, left as they are
+        private int conflicts; // Pages read again because a document or the checkpoint changed meanwhile
+
+        public int getScanned() {
+            return scanned;
+        }
+
+        public int getRewritten() {
+            return rewritten;
+        }
+
+        public int getUnreadable() {
+            return unreadable;
+        }
+
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + ", rewritten=" + rewritten + ", unreadable=" + unreadable +
+                    ", conflicts=" + conflicts;
+        }
+    }
+
+    private final RemoteStore store;
+    private final int pageSize;
+
+    /**
+     * @param store The store holding the class instances and the checkpoint
+     * @param pageSize Documents read per page, and so the most rewritten per batch besides the checkpoint
+     */
+    public LegacyDateMigration(RemoteStore store, int pageSize) {
+        if (pageSize < 1 || pageSize >= RemoteStore.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + (RemoteStore.MAX_BATCH_SIZE - 1));
+        }
+        this.store = store;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return Whether a run, on this device or another, has already gone through the whole collection
+     * @throws ExecutionException If the checkpoint could not be read
+     * @throws InterruptedException If interrupted while waiting for the store
+     */
+    public boolean isDone() throws ExecutionException, InterruptedException {
+        return Boolean.TRUE.equals(readCheckpoint().getData().get(FIELD_DONE));
+    }
+
+    /**
+     * Run the migration, or continue it from its checkpoint. Once it is done this only reads the checkpoint.
+     * Blocks until it is finished; call it on a background thread.
+     * @return What this run did
+     * @throws ExecutionException If a page could not be read or written; the next run continues from the checkpoint
+     * @throws InterruptedException If interrupted while waiting for the store
+     */
+    public Result run() throws ExecutionException, InterruptedException {
+        Result result = new Result();
+        while (true) {
+            RemoteDocument checkpoint = readCheckpoint();
+            if (Boolean.TRUE.equals(checkpoint.getData().get(FIELD_DONE))) {
+                return result;
+            }
+            List<RemoteDocument> page = fetchPage((String) checkpoint.getData().get(FIELD_AFTER_ID));
+            List<RemoteDocument> rewritten = new ArrayList<>();
+            List<WriteOp> ops = new ArrayList<>();
+            int unreadable = 0;
+            for (RemoteDocument document : page) {
+                WriteOp rewrite;
+                try {
+                    rewrite = rewrite(document);
+                } catch (IllegalArgumentException e) {
+                    unreadable++;
+                    continue;
+                }
+                if (rewrite != null) {
+                    rewritten.add(document);
+                    ops.add(rewrite);
+                }
+            }
+            boolean lastPage = page.size() < pageSize;
+            Map<String, Object> next = new HashMap<>();
+            if (lastPage) {
+                next.put(FIELD_DONE, true);
+            } else {
+                next.put(FIELD_AFTER_ID, page.get(page.size() - 1).getId());
+            }
+            ops.add(WriteOp.rewrite(COLLECTION_MIGRATIONS, DOCUMENT_ID, next));
+
+            Map<String, List<RemoteDocument>> read = new HashMap<>();
+            read.put(FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, rewritten);
+            read.put(COLLECTION_MIGRATIONS, Collections.singletonList(checkpoint));
+            try {
+                commitIfUnchanged(read, ops);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof RemoteStore.ConflictException)) {
+                    throw e;
+                }
+                // Edited meanwhile, or another device moved the checkpoint: read both again
+                result.conflicts++;
+                continue;
+            }
+            result.scanned += page.size();
+            result.rewritten += rewritten.size();
+            result.unreadable += unreadable;
+            if (lastPage) {
+                return result;
+            }
+        }
+    }
+
+    // The write that gives a document its numeric date, or null if it needs none.
+    // Throws IllegalArgumentException if the date can't be read.
+    private static WriteOp rewrite(RemoteDocument document) {
+        Map<String, Object> data = document.getData();
+        // Tombstones are left alone; a write would bring them back to life
+        if (Boolean.TRUE.equals(data.get(FirestoreSyncManager.FIELD_DELETED))) {
+            return null;
+        }
+        Object date = data.get(FirestoreCodec.FIELD_DATE);
+        if (date instanceof Number) {
+            return null;
+        }
+        long millis = FirestoreCodec.date(date).getTime();
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(FirestoreCodec.FIELD_DATE, millis);
+        fields.put(FirestoreCodec.FIELD_SCHEMA_VERSION, FirestoreCodec.SCHEMA_VERSION);
+        return WriteOp.rewrite(FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, document.getId(), fields);
+    }
+
+    // The checkpoint document, or one with no fields if the migration never committed a page
+    private RemoteDocument readCheckpoint() throws ExecutionException, InterruptedException {
+        CompletableFuture<List<RemoteDocument>> found = new CompletableFuture<>();
+        store.fetchDocuments(COLLECTION_MIGRATIONS, Collections.singletonList(DOCUMENT_ID), pageCallback(found));
+        List<RemoteDocument> documents = found.get();
+        return !documents.isEmpty() ? documents.get(0)
+                : new RemoteDocument(DOCUMENT_ID, Collections.<String, Object>emptyMap(), 0, null);
+    }
+
+    private List<RemoteDocument> fetchPage(String afterId) throws ExecutionException, InterruptedException {
+        CompletableFuture<List<RemoteDocument>> page = new CompletableFuture<>();
+        store.fetchPage(FirestoreSyncManager.COLLECTION_CLASS_INSTANCES, afterId, pageSize, pageCallback(page));
+        return page.get();
+    }
+
+    private static RemoteStore.PageCallback pageCallback(CompletableFuture<List<RemoteDocument>> result) {
+        return new RemoteStore.PageCallback() {
+            @Override
+            public void onSuccess(List<RemoteDocument> documents) {
+                result.complete(documents);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(e);
+            }
+        };
+    }
+
+    private void commitIfUnchanged(Map<String, List<RemoteDocument>> read, List<WriteOp> ops)
+            throws ExecutionException, InterruptedException {
+        CompletableFuture<Void> commit = new CompletableFuture<>();
+        store.commitIfUnchanged(read, ops, new RemoteStore.CommitCallback() {
+            @Override
+            public void onSuccess() {
+                commit.complete(null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                commit.completeExceptionally(e);
+            }
+        });
+        commit.get();
+    }
+}
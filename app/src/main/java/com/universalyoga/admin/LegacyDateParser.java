@@ -0,0 +1,132 @@
+package com.universalyoga.admin;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Parses the Date.toString() strings, such as "Tue Oct 17 10:00:00 GMT+01:00 2023", that old app versions
+ * stored as class instance dates. Safe to call from any thread.
+ * Dates in GMT or UTC, with or without an offset, are read by hand without allocating anything.
+ * Zone names such as "BST" fall back to a SimpleDateFormat kept per thread, since SimpleDateFormat is not thread-safe.
+ * Neither path rolls an impossible date such as "Oct 32" over into the next month; it is rejected.
+ */
+public final class LegacyDateParser {
+
+    static final String PATTERN = "EEE MMM dd HH:mm:ss z yyyy";
+
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+    private static final long NOT_PARSED = Long.MIN_VALUE;
+    private static final int NO_OFFSET = Integer.MIN_VALUE;
+
+    private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat(PATTERN, Locale.ENGLISH);
+            format.setLenient(false);
+            return format;
+        }
+    };
+
+    private LegacyDateParser() {
+    }
+
+    /**
+     * Parse a date written by Date.toString()
+     * @param text The date string
+     * @return The time in milliseconds since the epoch
+     * @throws ParseException If the text is not such a date
+     */
+    public static long parse(String text) throws ParseException {
+        long millis = parseUtcOffset(text);
+        return millis != NOT_PARSED ? millis : FORMAT.get().parse(text).getTime();
+    }
+
+    // "EEE MMM dd HH:mm:ss " takes the first 20 characters, followed by the zone, a space and the year
+    private static long parseUtcOffset(String text) {
+        int length = text.length();
+        int yearStart = text.lastIndexOf(' ') + 1;
+        if (length < 25 || yearStart < 22 || text.charAt(3) != ' ' || text.charAt(7) != ' ' || text.charAt(10) != ' '
+                || text.charAt(13) != ':' || text.charAt(16) != ':' || text.charAt(19) != ' ') {
+            return NOT_PARSED;
+        }
+        int month = month(text, 4);
+        int day = digits(text, 8, 10);
+        int hour = digits(text, 11, 13);
+        int minute = digits(text, 14, 16);
+        int second = digits(text, 17, 19);
+        int year = digits(text, yearStart, length);
+        int offsetMinutes = offsetMinutes(text, 20, yearStart - 1);
+        if (month < 0 || day < 1 || day > daysInMonth(year, month + 1) || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || year < 0 || offsetMinutes == NO_OFFSET) {
+            return NOT_PARSED;
+        }
+        long minutes = (daysSinceEpoch(year, month + 1, day) * 24 + hour) * 60 + minute - offsetMinutes;
+        return minutes * 60_000 + second * 1000L;
+    }
+
+    // 0 for January, or -1
+    private static int month(String text, int start) {
+        for (int i = 0; i < 12; i++) {
+            if (text.regionMatches(start, MONTHS, i * 3, 3)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The decimal number in [start, end), or -1 if there is anything else there
+    private static int digits(String text, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // The offset of "GMT", "UTC", "GMT+01:00" or "UTC-05:30" in [start, end), or NO_OFFSET for any other zone
+    private static int offsetMinutes(String text, int start, int end) {
+        if (!text.regionMatches(start, "GMT", 0, 3) && !text.regionMatches(start, "UTC", 0, 3)) {
+            return NO_OFFSET;
+        }
+        if (end == start + 3) {
+            return 0;
+        }
+        if (end != start + 9 || text.charAt(start + 6) != ':') {
+            return NO_OFFSET;
+        }
+        char sign = text.charAt(start + 3);
+        int hours = digits(text, start + 4, start + 6);
+        int minutes = digits(text, start + 7, start + 9);
+        if ((sign != '+' && sign != '-') || hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+            return NO_OFFSET;
+        }
+        int offset = hours * 60 + minutes;
+        return sign == '+' ? offset : -offset;
+    }
+
+    // The length of the month (1 for January) of the proleptic Gregorian calendar
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // Days from 1970-01-01 to the given date of the proleptic Gregorian calendar
+    static long daysSinceEpoch(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+}
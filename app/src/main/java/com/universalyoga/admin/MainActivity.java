@@ -9,21 +9,18 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.ListView;
 import android.widget.Toast;
 import androidx.appcompat.widget.Toolbar;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.firebase.FirebaseApp;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FirebaseFirestore;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity implements CourseAdapter.CourseActionListener {
 
@@ -31,11 +28,24 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
     private static final int REQUEST_EDIT_COURSE = 2;
     private static final String PREFS_NAME = "AppPrefs";
     private static final String KEY_FIRST_LAUNCH = "isFirstLaunch";
-
-    private DatabaseHelper dbHelper;
-    private ListView courseListView;
+    private static final int PAGE_SIZE = 50;
+    // Load the next page when the user scrolls this close to the end of the list
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private YogaRepository repository;
+    // Drops the pending requests of this screen when it is destroyed
+    private final RequestScope scope = new RequestScope();
+    private RecyclerView courseListView;
+    private LinearLayoutManager courseLayoutManager;
     private CourseAdapter courseAdapter;
+    // The courses on screen, read again whenever a course changes
+    private ObservableQuery<List<Course>> coursesQuery;
+    // The list last handed to the adapter; never changed afterwards, each update submits a new one
     private List<Course> courseList;
+    private boolean hasMoreCourses;
+    private boolean isLoadingMore;
+    // Bumped on every reload of the list so pages requested before it are dropped
+    private int listGeneration;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,11 +59,37 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
             getSupportActionBar().setTitle("Universal Yoga Courses");
         }
 
-        dbHelper = new DatabaseHelper(this);
+        repository = YogaRepository.getInstance(this);
         courseListView = findViewById(R.id.courseListView);
+        courseLayoutManager = new LinearLayoutManager(this);
+        courseListView.setLayoutManager(courseLayoutManager);
+        courseListView.setHasFixedSize(true);
+        courseListView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
         courseList = new ArrayList<>();
-        courseAdapter = new CourseAdapter(this, courseList, this);
+        courseAdapter = new CourseAdapter(this);
         courseListView.setAdapter(courseAdapter);
+        courseListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = courseAdapter.getItemCount();
+                if (hasMoreCourses && totalItemCount > 0
+                        && courseLayoutManager.findLastVisibleItemPosition() >= totalItemCount - 1 - PREFETCH_DISTANCE) {
+                    loadMoreCourses();
+                }
+            }
+        });
+
+        coursesQuery = repository.observeCourses(PAGE_SIZE, scope, new RepositoryCallback<List<Course>>() {
+            @Override
+            public void onSuccess(List<Course> courses) {
+                showCourses(courses);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(MainActivity.this, "Error loading courses", Toast.LENGTH_SHORT).show();
+            }
+        });
 
         FloatingActionButton fab = findViewById(R.id.fabAddCourse);
         fab.setOnClickListener(view -> openAddCourseActivity());
@@ -62,88 +98,91 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
     }
 
     private void syncFromCloud() {
-        dbHelper.deleteAllCoursesAndClasses();
-
-        FirebaseFirestore firestore = FirebaseFirestore.getInstance();
         Log.d("MainActivity", "Fetching data from Firestore...");
+        repository.syncFromCloud(scope, new RepositoryCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer changed) {
+                // The courses query reads the changed rows again by itself
+                if (changed > 0) {
+                    Toast.makeText(MainActivity.this, "Synced from cloud", Toast.LENGTH_SHORT).show();
+                }
+            }
 
-        firestore.collection("courses")
-                .get()
-                .addOnSuccessListener(courseSnapshots -> {
-                    for (DocumentSnapshot doc : courseSnapshots) {
-                        Course course = doc.toObject(Course.class);
-                        if (course != null) {
-                            try {
-                                course.setId(Integer.parseInt(doc.getId()));
-                                dbHelper.insertOrUpdateCourse(course);
-                            } catch (Exception e) {
-                                Log.w("MainActivity", "Invalid course ID: " + doc.getId(), e);
-                            }
-                        }
-                    }
-
-                    firestore.collection("class_instances")
-                            .get()
-                            .addOnSuccessListener(instanceSnapshots -> {
-                                Log.d("MainActivity", "Fetched " + instanceSnapshots.size() + " class_instances documents");
-                                for (DocumentSnapshot doc : instanceSnapshots) {
-                                    try {
-                                        ClassInstance instance = doc.toObject(ClassInstance.class);
-                                        if (instance != null) {
-                                            instance.setId(Integer.parseInt(doc.getId()));
-                                            dbHelper.insertOrUpdateClassInstance(instance);
-                                            Log.d("MainActivity", "Synced instance: " + doc.getId());
-                                        }
-                                    } catch (Exception ex) {
-                                        // Fallback for String date
-                                        try {
-                                            int courseId = ((Long) doc.get("courseId")).intValue();
-                                            String teacher = doc.getString("teacher");
-                                            String dateStr = doc.getString("date");
-                                            Date parsedDate = new SimpleDateFormat("EEE MMM dd HH:mm:ss z yyyy", Locale.ENGLISH).parse(dateStr);
-                                            String comments = doc.getString("comments");
-                                            long spots = doc.getLong("availableSpots") != null ? doc.getLong("availableSpots") : 0;
-                                            boolean isCancelled = Boolean.TRUE.equals(doc.getBoolean("isCancelled"));
-
-                                            ClassInstance fallback = new ClassInstance(courseId, parsedDate, teacher, comments, (int) spots, isCancelled);
-                                            fallback.setId(Integer.parseInt(doc.getId()));
-                                            dbHelper.insertOrUpdateClassInstance(fallback);
-                                            Log.d("MainActivity", "Fallback inserted instance: " + doc.getId());
-                                        } catch (ParseException pe) {
-                                            Log.e("MainActivity", "Date parse failed for doc: " + doc.getId(), pe);
-                                        } catch (Exception e) {
-                                            Log.e("MainActivity", "Failed to process instance: " + doc.getId(), e);
-                                        }
-                                    }
-                                }
-                                loadCourses();
-                                Toast.makeText(MainActivity.this, "Synced from cloud", Toast.LENGTH_SHORT).show();
-                            })
-                            .addOnFailureListener(e -> {
-                                Log.e("MainActivity", "Failed to fetch class instances", e);
-                                Toast.makeText(MainActivity.this, "Failed to sync class instances", Toast.LENGTH_SHORT).show();
-                            });
-                })
-                .addOnFailureListener(e -> {
-                    Log.e("MainActivity", "Failed to fetch courses", e);
-                    Toast.makeText(MainActivity.this, "Failed to sync courses", Toast.LENGTH_SHORT).show();
-                });
+            @Override
+            public void onFailure(Exception e) {
+                Log.e("MainActivity", "Cloud sync failed", e);
+                Toast.makeText(MainActivity.this, "Failed to sync from cloud", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Reads the courses only the first time, or if they changed while the screen was hidden
+        coursesQuery.start();
+    }
+
+    @Override
+    protected void onStop() {
+        coursesQuery.stop();
+        super.onStop();
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        loadCourses();
+    protected void onDestroy() {
+        coursesQuery.close();
+        scope.cancel();
+        super.onDestroy();
     }
 
-    private void loadCourses() {
-        courseList.clear();
-        courseList.addAll(dbHelper.getAllCourses());
-        courseAdapter.notifyDataSetChanged();
+    private void showCourses(List<Course> courses) {
+        // Pages loaded before this read are part of it, and pages still on their way no longer fit
+        listGeneration++;
+        isLoadingMore = false;
+        hasMoreCourses = courses.size() == coursesQuery.getDeliveredLimit();
+        // Diffed against the rows on screen, so only the rows that changed are rebound
+        courseList = courses;
+        courseAdapter.submitList(courseList);
 
         if (courseList.isEmpty()) {
-            Toast.makeText(this, "No courses found. Add a course to get started.", Toast.LENGTH_LONG).show();
+            Toast.makeText(MainActivity.this, "No courses found. Add a course to get started.", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void loadMoreCourses() {
+        if (isLoadingMore) {
+            return;
         }
+        isLoadingMore = true;
+        int generation = listGeneration;
+        Course last = courseList.get(courseList.size() - 1);
+        repository.getCoursesPage(last.getTime(), last.getId(), PAGE_SIZE, scope, new RepositoryCallback<List<Course>>() {
+            @Override
+            public void onSuccess(List<Course> page) {
+                if (generation != listGeneration) {
+                    return; // The list was reloaded meanwhile, this page no longer follows it
+                }
+                isLoadingMore = false;
+                hasMoreCourses = page.size() == PAGE_SIZE;
+                if (!page.isEmpty()) {
+                    List<Course> more = new ArrayList<>(courseList.size() + page.size());
+                    more.addAll(courseList);
+                    more.addAll(page);
+                    courseList = more;
+                    courseAdapter.submitList(courseList);
+                    // Later reads keep the loaded pages
+                    coursesQuery.setLimit(courseList.size());
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (generation == listGeneration) {
+                    isLoadingMore = false;
+                }
+            }
+        });
     }
 
     private void openAddCourseActivity() {
@@ -168,15 +207,17 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
                 .setTitle("Delete Course")
                 .setMessage("Are you sure you want to delete the course \"" + course.getType() + " - " + course.getDayOfWeek() + "\"? This will also delete all class instances.")
                 .setPositiveButton("Delete", (dialog, which) -> {
-                    dbHelper.deleteCourse(course.getId());
-                    FirestoreSyncManager syncManager = new FirestoreSyncManager();
-                    syncManager.deleteCourse(course.getId());
-                    List<ClassInstance> instances = dbHelper.getClassInstancesForCourse(course.getId());
-                    for (ClassInstance instance : instances) {
-                        syncManager.deleteClassInstance(instance.getId());
-                    }
-                    loadCourses();
-                    Toast.makeText(MainActivity.this, "Course deleted", Toast.LENGTH_SHORT).show();
+                    repository.deleteCourse(course.getId(), scope, new RepositoryCallback<Integer>() {
+                        @Override
+                        public void onSuccess(Integer rows) {
+                            Toast.makeText(MainActivity.this, "Course deleted", Toast.LENGTH_SHORT).show();
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            Toast.makeText(MainActivity.this, "Error deleting course", Toast.LENGTH_SHORT).show();
+                        }
+                    });
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
@@ -187,9 +228,18 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
                 .setTitle("Reset Database")
                 .setMessage("Are you sure you want to reset the database? This will delete all courses and class instances.")
                 .setPositiveButton("Reset", (dialog, which) -> {
-                    dbHelper.resetDatabase();
-                    loadCourses();
-                    Toast.makeText(MainActivity.this, "Database reset", Toast.LENGTH_SHORT).show();
+                    repository.resetDatabase(scope, new RepositoryCallback<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {
+                            coursesQuery.setLimit(PAGE_SIZE);
+                            Toast.makeText(MainActivity.this, "Database reset", Toast.LENGTH_SHORT).show();
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            Toast.makeText(MainActivity.this, "Error resetting database", Toast.LENGTH_SHORT).show();
+                        }
+                    });
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
@@ -202,15 +252,25 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
 
     private void uploadToCloud() {
         Toast.makeText(this, "Uploading data to cloud...", Toast.LENGTH_SHORT).show();
-        FirestoreSyncManager syncManager = new FirestoreSyncManager();
-        List<Course> courses = dbHelper.getAllCourses();
-        for (Course course : courses) {
-            syncManager.uploadCourse(course);
-            List<ClassInstance> instances = dbHelper.getClassInstancesForCourse(course.getId());
-            for (ClassInstance instance : instances) {
-                syncManager.uploadClassInstance(instance);
+        repository.uploadChanges(scope, new RepositoryCallback<UploadResult>() {
+            @Override
+            public void onSuccess(UploadResult result) {
+                Log.d("MainActivity", "Upload finished: " + result);
+                if (result.getFailedOps() > 0) {
+                    Toast.makeText(MainActivity.this, "Uploaded " + result.getCommittedOps() + " items, "
+                            + result.getFailedOps() + " failed and will be retried", Toast.LENGTH_LONG).show();
+                } else if (result.getCommittedOps() == 0) {
+                    Toast.makeText(MainActivity.this, "Everything is already uploaded", Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(MainActivity.this, "Uploaded " + result.getCommittedOps() + " items", Toast.LENGTH_SHORT).show();
+                }
             }
-        }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(MainActivity.this, "Error uploading to cloud", Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     @Override
@@ -239,7 +299,7 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
         int id = item.getItemId();
 
         if (id == R.id.action_refresh) {
-            loadCourses();
+            coursesQuery.refresh();
             return true;
         } else if (id == R.id.action_reset_db) {
             resetDatabase();
@@ -260,7 +320,6 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
         super.onActivityResult(requestCode, resultCode, data);
         if (resultCode == RESULT_OK) {
             if (requestCode == REQUEST_ADD_COURSE || requestCode == REQUEST_EDIT_COURSE) {
-                loadCourses();
                 Toast.makeText(this, "Course saved successfully", Toast.LENGTH_SHORT).show();
             }
         }
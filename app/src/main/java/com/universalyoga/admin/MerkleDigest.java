@@ -0,0 +1,211 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hash tree over the documents of a collection, used to find which documents differ between the local
+ * database and Firestore without downloading either side.
+ * Every document falls into one of {@link #LEAF_COUNT} buckets picked by a hash of its ID, and stores the bucket
+ * in its {@link FirestoreCodec#FIELD_DIGEST_BUCKET} field so a bucket can be fetched on its own. A bucket's value
+ * is the sum of its documents' {@link #contribution}s, and every node above holds the sum of its
+ * {@link #FANOUT} children, so the tree can be kept up to date remotely with increments alone.
+ * The remote tree is stored in {@link #COLLECTION_DIGESTS}, one document per inner node holding the values of
+ * its children. Plain Java, no Android dependencies.
+ */
+public final class MerkleDigest {
+
+    static final String COLLECTION_DIGESTS = "sync_digests";
+    static final int FANOUT = 16;
+    static final int DEPTH = 3; // Inner node levels; the buckets are the level below the last one
+    static final int LEAF_COUNT = 4096; // FANOUT ^ DEPTH
+
+    // Contributions are kept to 40 bits, so the root's values cannot overflow below 8 million documents
+    private static final int CONTRIBUTION_SHIFT = 24;
+    private static final String FIELD_PREFIX = "s";
+    // Set on the root when the tree was built from a scan of the whole collection. Increments alone create
+    // the documents too, so a root without it does not cover the documents written before.
+    static final String FIELD_BUILT_AT = "builtAt";
+
+    private MerkleDigest() {
+    }
+
+    /**
+     * @param documentId The document ID
+     * @return The bucket the document belongs to, from 0 to LEAF_COUNT - 1
+     */
+    public static int bucketOf(String documentId) {
+        return (int) (mix(new ContentHash().add(documentId).get()) >>> 52);
+    }
+
+    /**
+     * @param documentId The document ID
+     * @param contentHash The ContentHash of the document's fields
+     * @return What the document adds to its bucket's value; 0 stands for no document
+     */
+    public static long contribution(String documentId, long contentHash) {
+        return (mix(new ContentHash().add(documentId).add(contentHash).get()) >>> CONTRIBUTION_SHIFT) | 1;
+    }
+
+    /**
+     * @param leaves The bucket values
+     * @param level The level whose node values to return: 0 is the root alone, DEPTH the buckets themselves
+     * @return The value of every node at the level, the sum of the buckets below it
+     */
+    public static long[] sumsAt(long[] leaves, int level) {
+        int width = pow(FANOUT, DEPTH - level);
+        long[] sums = new long[LEAF_COUNT / width];
+        for (int leaf = 0; leaf < LEAF_COUNT; leaf++) {
+            sums[leaf / width] += leaves[leaf];
+        }
+        return sums;
+    }
+
+    /**
+     * @param collection The collection the tree covers
+     * @param level The inner node's level, from 0 for the root to DEPTH - 1
+     * @param index The node's index within its level
+     * @return The ID of the digest document that holds the node's children
+     */
+    public static String nodeDocumentId(String collection, int level, int index) {
+        return collection + "-" + level + "-" + index;
+    }
+
+    /**
+     * @param data The fields of a digest document, or null if it does not exist yet
+     * @return The values of the node's children; children never written are 0
+     */
+    public static long[] readNode(Map<String, Object> data) {
+        long[] children = new long[FANOUT];
+        if (data == null) {
+            return children;
+        }
+        for (int child = 0; child < FANOUT; child++) {
+            Object value = data.get(FIELD_PREFIX + child);
+            if (value instanceof Number) {
+                children[child] = ((Number) value).longValue();
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @param children The values of a node's children
+     * @return The fields of the node's digest document
+     */
+    public static Map<String, Object> writeNode(long[] children) {
+        Map<String, Object> data = new HashMap<>();
+        for (int child = 0; child < FANOUT; child++) {
+            data.put(FIELD_PREFIX + child, children[child]);
+        }
+        return data;
+    }
+
+    /**
+     * @param local The children of a node in the local tree
+     * @param remote The children of the same node in the remote tree
+     * @return The positions of the children whose values differ
+     */
+    public static List<Integer> divergentChildren(long[] local, long[] remote) {
+        List<Integer> divergent = new ArrayList<>();
+        for (int child = 0; child < FANOUT; child++) {
+            if (local[child] != remote[child]) {
+                divergent.add(child);
+            }
+        }
+        return divergent;
+    }
+
+    // FNV's high bits barely change between short, similar IDs, so spread every bit over them first
+    // (the SplitMix64 finalizer)
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    private static int pow(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Collects changes to bucket values and turns them into increments of every node above them,
+     * one write per digest document
+     */
+    public static class Deltas {
+        // digest document ID -> child field -> change
+        private final Map<String, Map<String, Object>> increments = new HashMap<>();
+
+        /**
+         * Record that a document's contribution changed
+         * @param collection The document's collection
+         * @param documentId The document ID
+         * @param before The contribution before the write, 0 if there was no document
+         * @param after The contribution after the write, 0 for a delete
+         */
+        public void replace(String collection, String documentId, long before, long after) {
+            add(collection, bucketOf(documentId), after - before);
+        }
+
+        /**
+         * @param collection The collection the tree covers
+         * @param leaf The bucket
+         * @param delta How much the bucket's value changes
+         */
+        public void add(String collection, int leaf, long delta) {
+            if (delta == 0) {
+                return;
+            }
+            for (int level = DEPTH - 1; level >= 0; level--) {
+                int width = pow(FANOUT, DEPTH - 1 - level); // Buckets under each child of a node at this level
+                int child = leaf / width;
+                String documentId = nodeDocumentId(collection, level, child / FANOUT);
+                Map<String, Object> fields = increments.get(documentId);
+                if (fields == null) {
+                    fields = new HashMap<>();
+                    increments.put(documentId, fields);
+                }
+                String field = FIELD_PREFIX + (child % FANOUT);
+                Object sum = fields.get(field);
+                fields.put(field, (sum != null ? (Long) sum : 0) + delta);
+            }
+        }
+
+        public boolean isEmpty() {
+            return increments.isEmpty();
+        }
+
+        /**
+         * @return How many digest documents the changes touched, at least {@code toWriteOps().size()}
+         */
+        public int size() {
+            return increments.size();
+        }
+
+        /**
+         * @return One increment per digest document whose values changed, at most 1 + FANOUT + FANOUT^2 per
+         * collection; changes that cancelled out are left out
+         */
+        public List<WriteOp> toWriteOps() {
+            List<WriteOp> ops = new ArrayList<>(increments.size());
+            for (Map.Entry<String, Map<String, Object>> entry : increments.entrySet()) {
+                Map<String, Object> fields = new HashMap<>();
+                for (Map.Entry<String, Object> field : entry.getValue().entrySet()) {
+                    if ((Long) field.getValue() != 0) {
+                        fields.put(field.getKey(), field.getValue());
+                    }
+                }
+                if (!fields.isEmpty()) {
+                    ops.add(WriteOp.increment(COLLECTION_DIGESTS, entry.getKey(), fields));
+                }
+            }
+            return ops;
+        }
+    }
+}
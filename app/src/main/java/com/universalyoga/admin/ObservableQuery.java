@@ -0,0 +1,161 @@
+package com.universalyoga.admin;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * A repository query that delivers its result again whenever a write changed the rows it depends on.
+ * Obtained from YogaRepository; all methods are called on the main thread, and results arrive there.
+ * While stopped, changes only mark the result stale, and it is read again once the query is started;
+ * changes that come in while a read is running are picked up by one more read after it.
+ * The result is delivered as read; screens compare it with what they show, e.g. with DiffUtil,
+ * to update only what changed.
+ * @param <T> The result type
+ */
+public class ObservableQuery<T> implements InvalidationTracker.Observer {
+
+    private final YogaRepository repository;
+    private final InvalidationTracker tracker;
+    private final RequestScope scope;
+    private final IntFunction<T> query;
+    private final Predicate<InvalidationTracker.Invalidation> dependsOn;
+    private final RepositoryCallback<T> callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Main thread only
+    private int limit;
+    private int deliveredLimit;
+    private boolean started;
+    private boolean stale = true;
+    private boolean reading;
+    private boolean closed;
+
+    /**
+     * @param query Reads the result with the current limit
+     * @param limit The most rows to read at first
+     * @param dependsOn Whether a change affects the result; only called for changes to the tables observed
+     * @param tables The tables the query reads
+     */
+    ObservableQuery(YogaRepository repository, InvalidationTracker tracker, RequestScope scope, IntFunction<T> query,
+                    int limit, Predicate<InvalidationTracker.Invalidation> dependsOn, RepositoryCallback<T> callback,
+                    String... tables) {
+        this.repository = repository;
+        this.tracker = tracker;
+        this.scope = scope;
+        this.query = query;
+        this.limit = limit;
+        this.dependsOn = dependsOn;
+        this.callback = callback;
+        tracker.addObserver(this, tables);
+    }
+
+    /**
+     * Start delivering results: read now if nothing was read yet or the rows changed while stopped.
+     * Call it from onStart or onResume.
+     */
+    public void start() {
+        started = true;
+        if (stale) {
+            read();
+        }
+    }
+
+    /**
+     * Stop reading on changes until started again; call it from onStop or onPause
+     */
+    public void stop() {
+        started = false;
+    }
+
+    /**
+     * Stop observing for good; call it from onDestroy
+     */
+    public void close() {
+        closed = true;
+        started = false;
+        tracker.removeObserver(this);
+    }
+
+    /**
+     * Set how many rows the next reads return, e.g. after a screen loaded further pages on its own,
+     * so a refresh keeps them. Does not read by itself.
+     * @param limit The most rows to read
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return The limit the result being delivered was read with; a result shorter than it holds every row
+     */
+    public int getDeliveredLimit() {
+        return deliveredLimit;
+    }
+
+    /**
+     * Read again now, even if nothing changed
+     */
+    public void refresh() {
+        stale = true;
+        if (started) {
+            read();
+        }
+    }
+
+    // Called on the writing thread
+    @Override
+    public void onInvalidated(InvalidationTracker.Invalidation invalidation) {
+        if (!dependsOn.test(invalidation)) {
+            return;
+        }
+        mainHandler.post(() -> {
+            if (closed) {
+                return;
+            }
+            stale = true;
+            if (started) {
+                read();
+            }
+        });
+    }
+
+    private void read() {
+        if (reading) {
+            return; // The read in flight is followed by another, since stale stays set
+        }
+        reading = true;
+        stale = false;
+        int readLimit = limit;
+        repository.readForQuery(scope, () -> query.apply(readLimit), new RepositoryCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                reading = false;
+                if (closed) {
+                    return;
+                }
+                deliveredLimit = readLimit;
+                callback.onSuccess(result);
+                readAgainIfStale();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                reading = false;
+                if (closed) {
+                    return;
+                }
+                callback.onFailure(e);
+                readAgainIfStale();
+            }
+        });
+    }
+
+    private void readAgainIfStale() {
+        if (stale && started) {
+            read();
+        }
+    }
+}
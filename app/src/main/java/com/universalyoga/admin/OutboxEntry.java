@@ -0,0 +1,63 @@
+package com.universalyoga.admin;
+
+/**
+ * A document waiting in the outbox to be written to Firestore.
+ * There is at most one entry per document: a later change to the same document replaces it,
+ * and an upsert is sent with the row's state at the time it is drained.
+ */
+public class OutboxEntry {
+
+    public enum Operation {
+        UPSERT, DELETE
+    }
+
+    private final long id;
+    private final String collection;
+    private final String documentId;
+    private final Operation operation;
+    private final int attempts;
+    private final Long syncedHash;
+
+    public OutboxEntry(long id, String collection, String documentId, Operation operation, int attempts,
+                       Long syncedHash) {
+        this.id = id;
+        this.collection = collection;
+        this.documentId = documentId;
+        this.operation = operation;
+        this.attempts = attempts;
+        this.syncedHash = syncedHash;
+    }
+
+    // Changes whenever the entry is replaced by a newer change to the same document
+    public long getId() {
+        return id;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    // Failed attempts so far
+    public int getAttempts() {
+        return attempts;
+    }
+
+    // For a delete, the ContentHash of what the cloud held when the row was deleted; null otherwise,
+    // or if the row never reached the cloud
+    public Long getSyncedHash() {
+        return syncedHash;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + collection + "/" + documentId + " (attempts=" + attempts + ")";
+    }
+}
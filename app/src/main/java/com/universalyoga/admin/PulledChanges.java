@@ -0,0 +1,76 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a pull of a Firestore collection: the documents that were added or changed,
+ * the IDs of the documents that were deleted (tombstones), and the high-water mark so far.
+ * The mark is only stored with the last page, so an interrupted pull starts over from the old mark.
+ */
+public class PulledChanges<T> {
+    private final List<T> changed = new ArrayList<>();
+    private final List<long[]> changedStamps = new ArrayList<>();
+    private final List<Long> deletedIds = new ArrayList<>();
+    private long highWaterMark;
+    private boolean lastPage;
+
+    /**
+     * @param highWaterMark The mark of the previous page, or the one the pull started from; it only moves forward
+     */
+    public PulledChanges(long highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    public List<T> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return The field stamps of each changed document, in the order of {@link #getChanged()};
+     * null for a document without stamps
+     */
+    public List<long[]> getChangedStamps() {
+        return changedStamps;
+    }
+
+    public List<Long> getDeletedIds() {
+        return deletedIds;
+    }
+
+    /**
+     * @return The time (ms) up to which every write has been pulled once this page is stored: the latest
+     * updatedAt seen for a pull in write order, the pull's start time less an overlap for a full pull
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return Whether this is the last page of the pull, after which the high-water mark can be stored
+     */
+    public boolean isLastPage() {
+        return lastPage;
+    }
+
+    void setLastPage() {
+        lastPage = true;
+    }
+
+    void addChanged(T item) {
+        addChanged(item, null);
+    }
+
+    void addChanged(T item, long[] fieldStamps) {
+        changed.add(item);
+        changedStamps.add(fieldStamps);
+    }
+
+    void addDeleted(long id) {
+        deletedIds.add(id);
+    }
+
+    void observeUpdatedAt(long updatedAtMillis) {
+        highWaterMark = Math.max(highWaterMark, updatedAtMillis);
+    }
+}
@@ -0,0 +1,49 @@
+package com.universalyoga.admin;
+
+import java.util.Map;
+
+/**
+ * A document read from a RemoteStore: its ID and its fields, tombstone fields included.
+ */
+public final class RemoteDocument {
+
+    private final String id;
+    private final Map<String, Object> data;
+    private final long updatedAt;
+    private final Object cursor;
+
+    /**
+     * @param id The document ID
+     * @param data The document fields
+     * @param updatedAt The time of the document's last write (ms), or 0 if it was never stamped
+     * @param cursor Whatever the store needs to continue a query after this document, or null
+     */
+    public RemoteDocument(String id, Map<String, Object> data, long updatedAt, Object cursor) {
+        this.id = id;
+        this.data = data;
+        this.updatedAt = updatedAt;
+        this.cursor = cursor;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Map<String, Object> getData() {
+        return data;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    // Only meaningful to the store that returned the document
+    Object getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + data;
+    }
+}
@@ -0,0 +1,91 @@
+package com.universalyoga.admin;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The remote document store the sync code reads and writes: Firestore in the app, an in-memory stand-in offline.
+ * Deletes are writes too: a {@link WriteOp#delete} leaves a tombstone that change queries return.
+ */
+public interface RemoteStore {
+
+    // Largest batch a store has to accept, Firestore's per-batch limit
+    int MAX_BATCH_SIZE = 500;
+
+    interface CommitCallback {
+        void onSuccess();
+        void onFailure(Exception e);
+    }
+
+    interface PageCallback {
+        void onSuccess(List<RemoteDocument> documents);
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Fails a {@link #commitIfUnchanged} whose documents changed after they were read
+     */
+    class ConflictException extends Exception {
+        public ConflictException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Apply a batch of writes atomically. Returns at once; the callback may run on any thread.
+     * @param ops At most {@link #MAX_BATCH_SIZE} writes
+     * @param callback Told whether the whole batch was applied
+     */
+    void commit(List<WriteOp> ops, CommitCallback callback);
+
+    /**
+     * Apply a batch of writes atomically if none of the given documents changed since they were read,
+     * like a transaction that read them. Returns at once; the callback may run on any thread.
+     * @param read Collection -> the documents as they were read; one that did not exist is given with no fields
+     * @param ops At most {@link #MAX_BATCH_SIZE} writes
+     * @param callback Told whether the whole batch was applied; a changed document fails it with a ConflictException
+     */
+    void commitIfUnchanged(Map<String, List<RemoteDocument>> read, List<WriteOp> ops, CommitCallback callback);
+
+    /**
+     * Read a page of a collection in document ID order, tombstones included.
+     * Returns at once; the callback may run on any thread.
+     * @param collection The collection to read
+     * @param afterDocumentId The page starts after this document ID, or at the start if null
+     * @param limit The most documents to return; fewer means there are no more
+     * @param callback Receives the documents
+     */
+    void fetchPage(String collection, String afterDocumentId, int limit, PageCallback callback);
+
+    /**
+     * Read a page of the documents written at or after a time, oldest write first, tombstones included.
+     * Documents that were never stamped are not returned. Returns at once; the callback may run on any thread.
+     * @param collection The collection to read
+     * @param sinceMillis The earliest write time to return
+     * @param after The last document of the previous page, as returned by this method, or null for the first page
+     * @param limit The most documents to return; fewer means there are no more
+     * @param callback Receives the documents
+     */
+    void fetchChangedSince(String collection, long sinceMillis, RemoteDocument after, int limit, PageCallback callback);
+
+    /**
+     * Read documents by ID. Returns at once; the callback may run on any thread.
+     * @param collection The collection to read
+     * @param documentIds The IDs of the documents
+     * @param callback Receives the documents that exist, in no particular order
+     */
+    void fetchDocuments(String collection, List<String> documentIds, PageCallback callback);
+
+    /**
+     * Read a page of the documents whose field has a value, in document ID order, tombstones included.
+     * Returns at once; the callback may run on any thread.
+     * @param collection The collection to read
+     * @param field The field to match
+     * @param value The value to match, such as a Long
+     * @param afterDocumentId The page starts after this document ID, or at the start if null
+     * @param limit The most documents to return; fewer means there are no more
+     * @param callback Receives the documents
+     */
+    void fetchWhereEqual(String collection, String field, Object value, String afterDocumentId, int limit,
+                         PageCallback callback);
+}
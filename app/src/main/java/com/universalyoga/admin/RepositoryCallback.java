@@ -0,0 +1,9 @@
+package com.universalyoga.admin;
+
+/**
+ * Result of an asynchronous YogaRepository call, delivered on the main thread.
+ */
+public interface RepositoryCallback<T> {
+    void onSuccess(T result);
+    void onFailure(Exception e);
+}
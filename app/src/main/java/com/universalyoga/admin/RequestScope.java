@@ -0,0 +1,52 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Groups the repository requests made by one screen so they can be dropped together.
+ * Create one per activity and call {@link #cancel()} from onDestroy: queued reads are
+ * cancelled and no further callbacks are delivered. Writes still run to completion,
+ * only their callbacks are dropped, so leaving a screen never loses a save.
+ */
+public class RequestScope {
+
+    private final List<Future<?>> pendingReads = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancel all pending reads and stop delivering callbacks
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (pendingReads) {
+            for (Future<?> future : pendingReads) {
+                future.cancel(false);
+            }
+            pendingReads.clear();
+        }
+    }
+
+    void trackRead(Future<?> future) {
+        synchronized (pendingReads) {
+            if (cancelled) {
+                future.cancel(false);
+                return;
+            }
+            // Forget reads that already finished so the list stays short
+            Iterator<Future<?>> iterator = pendingReads.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isDone()) {
+                    iterator.remove();
+                }
+            }
+            pendingReads.add(future);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.universalyoga.admin;
+
+import android.database.Cursor;
+
+/**
+ * Converts the current row of a cursor into an object.
+ * Implementations look up their column indices once, when they are created for a cursor,
+ * so mapping a row is only a series of indexed reads.
+ */
+public interface RowMapper<T> {
+    T map(Cursor cursor);
+}
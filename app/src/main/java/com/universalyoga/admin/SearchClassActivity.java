@@ -2,29 +2,57 @@ package com.universalyoga.admin;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
-import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class SearchClassActivity extends AppCompatActivity {
 
-    private EditText etSearchTeacher;
+    // Results read per page; further pages are read while scrolling
+    private static final int PAGE_SIZE = 50;
+    // Start loading the next page this many rows before the end of the list
+    private static final int PREFETCH_DISTANCE = 10;
+    // The search runs once typing pauses this long
+    private static final long DEBOUNCE_MILLIS = 250;
+
+    private AutoCompleteTextView etSearchTeacher;
     private Button btnSearch;
     private ListView lvSearchResults;
+    private TextView tvNoResults;
     private ImageView btnBack;
 
-    private DatabaseHelper dbHelper;
-    private List<ClassInstance> results;
+    private YogaRepository repository;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable runPendingSearch = this::runSearch;
+
+    // The results shown; the adapter's list is updated in place
+    private InstanceSearch shownSearch;
+    private final List<ClassInstance> results = new ArrayList<>();
+    private ArrayAdapter<ClassInstance> adapter;
+    // The query typed, searched for once typing pauses
+    private String pendingQuery = "";
+    // The search or page read in flight; replaced, and cancelled, by each new query and when the screen is destroyed
+    private RequestScope searchScope;
+    private CancellationSignal searchSignal;
+    private boolean isLoadingMore;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -36,13 +64,19 @@ public class SearchClassActivity extends AppCompatActivity {
             getSupportActionBar().hide();
         }
 
-        // Initialize database helper
-        dbHelper = new DatabaseHelper(this);
+        repository = YogaRepository.getInstance(this);
 
         // Initialize UI elements
         etSearchTeacher = findViewById(R.id.etSearchTeacher);
+        // Picking a suggested teacher fills in the name, which searches like typing it
+        etSearchTeacher.setAdapter(new TeacherSuggestionAdapter(this, repository));
         btnSearch = findViewById(R.id.btnSearch);
         lvSearchResults = findViewById(R.id.lvSearchResults);
+        tvNoResults = findViewById(R.id.tvNoResults);
+
+        adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, results);
+        lvSearchResults.setAdapter(adapter);
+        lvSearchResults.setEmptyView(tvNoResults);
 
         // Set up back button - this is the key part!
         btnBack = findViewById(R.id.btnBack);
@@ -53,30 +87,45 @@ public class SearchClassActivity extends AppCompatActivity {
             }
         });
 
+        // Search as the user types
+        etSearchTeacher.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                onQueryChanged(s.toString().trim());
+            }
+        });
+
+        // Search right away, without waiting for the pause
         btnSearch.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                String query = etSearchTeacher.getText().toString().trim();
-                if (query.isEmpty()) {
-                    Toast.makeText(SearchClassActivity.this, "Please enter a teacher name", Toast.LENGTH_SHORT).show();
+                if (pendingQuery.isEmpty()) {
+                    Toast.makeText(SearchClassActivity.this, "Please enter a teacher, course or comment", Toast.LENGTH_SHORT).show();
                     return;
                 }
+                mainHandler.removeCallbacks(runPendingSearch);
+                runSearch();
+            }
+        });
 
-                try {
-                    results = dbHelper.searchClassInstancesByTeacher(query);
-
-                    if (results.isEmpty()) {
-                        Toast.makeText(SearchClassActivity.this, "No results found", Toast.LENGTH_SHORT).show();
-                    }
+        // Load further pages while scrolling
+        lvSearchResults.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
 
-                    ArrayAdapter<ClassInstance> adapter = new ArrayAdapter<>(
-                            SearchClassActivity.this,
-                            android.R.layout.simple_list_item_1,
-                            results
-                    );
-                    lvSearchResults.setAdapter(adapter);
-                } catch (Exception e) {
-                    Toast.makeText(SearchClassActivity.this, "Error searching database", Toast.LENGTH_SHORT).show();
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+                    loadMoreResults();
                 }
             }
         });
@@ -88,7 +137,7 @@ public class SearchClassActivity extends AppCompatActivity {
                 ClassInstance selectedClass = results.get(position);
 
                 // Get the course ID for this class instance
-                int courseId = selectedClass.getCourseId();
+                long courseId = selectedClass.getCourseId();
 
                 // Create intent to open ClassInstancesActivity
                 Intent intent = new Intent(SearchClassActivity.this, ClassInstancesActivity.class);
@@ -101,4 +150,94 @@ public class SearchClassActivity extends AppCompatActivity {
             }
         });
     }
-}
\ No newline at end of file
+
+    // Called on every keystroke: show what is known at once, and search once typing pauses
+    private void onQueryChanged(String query) {
+        if (query.equals(pendingQuery)) {
+            return;
+        }
+        pendingQuery = query;
+        cancelSearch();
+        if (FullTextSearch.toMatchQuery(query) == null) {
+            showResults(null);
+            return;
+        }
+
+        // A query typed on from the shown one only narrows it, so the shown rows still matching are results
+        InstanceSearch narrowed = shownSearch != null ? shownSearch.narrowTo(query) : null;
+        if (narrowed != null) {
+            showResults(narrowed);
+            if (narrowed.isComplete() && narrowed.getResults().isEmpty()) {
+                return; // Nothing matched the shorter query that this one could match
+            }
+        }
+        mainHandler.postDelayed(runPendingSearch, DEBOUNCE_MILLIS);
+    }
+
+    private void runSearch() {
+        cancelSearch();
+        String query = pendingQuery;
+        searchScope = new RequestScope();
+        searchSignal = new CancellationSignal();
+        repository.searchClassInstances(query, PAGE_SIZE, searchSignal, searchScope,
+                new RepositoryCallback<InstanceSearch>() {
+                    @Override
+                    public void onSuccess(InstanceSearch search) {
+                        showResults(search);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        Toast.makeText(SearchClassActivity.this, "Error searching database", Toast.LENGTH_SHORT).show();
+                    }
+                });
+    }
+
+    private void loadMoreResults() {
+        if (isLoadingMore || shownSearch == null || shownSearch.isProvisional() || !shownSearch.hasMore()) {
+            return;
+        }
+        isLoadingMore = true;
+        repository.loadMoreSearchResults(shownSearch, PAGE_SIZE, searchSignal, searchScope,
+                new RepositoryCallback<InstanceSearch>() {
+                    @Override
+                    public void onSuccess(InstanceSearch search) {
+                        isLoadingMore = false;
+                        showResults(search);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        isLoadingMore = false;
+                    }
+                });
+    }
+
+    // Stop the search or page read in flight, and the search waiting for typing to pause;
+    // their callbacks are dropped with the scope
+    private void cancelSearch() {
+        mainHandler.removeCallbacks(runPendingSearch);
+        if (searchScope != null) {
+            searchScope.cancel();
+            searchSignal.cancel();
+        }
+        isLoadingMore = false;
+    }
+
+    // The same adapter is updated in place, so the list keeps its views
+    private void showResults(InstanceSearch search) {
+        shownSearch = search;
+        results.clear();
+        if (search != null) {
+            results.addAll(search.getResults());
+        }
+        tvNoResults.setText(search != null ? "No results found" : "");
+        adapter.notifyDataSetChanged();
+    }
+
+    @Override
+    protected void onDestroy() {
+        cancelSearch();
+        super.onDestroy();
+    }
+}
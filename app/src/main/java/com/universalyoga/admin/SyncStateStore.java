@@ -0,0 +1,19 @@
+package com.universalyoga.admin;
+
+/**
+ * Small string values that sync jobs keep between runs, such as high-water marks and checkpoints.
+ */
+public interface SyncStateStore {
+
+    /**
+     * @param key The state key
+     * @return The stored value, or null if there is none
+     */
+    String getSyncState(String key);
+
+    /**
+     * @param key The state key
+     * @param value The value to store, or null to remove it
+     */
+    void putSyncState(String key, String value);
+}
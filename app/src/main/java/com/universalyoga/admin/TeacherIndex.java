@@ -0,0 +1,328 @@
+package com.universalyoga.admin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The distinct teacher names of the class instances, in a trie for autocomplete.
+ * A name is found by the start of any of its words, case-insensitively, so "smi" suggests "Anna Smith".
+ * Suggestions are ranked by how many classes a teacher has, weighted down the longer ago their latest class was.
+ * The index is filled with one entry per teacher, their class count and latest class, and then follows the
+ * writes through the Changes each one made: a class added to one teacher and taken from another.
+ * Not thread-safe; plain Java, no Android dependencies.
+ */
+public class TeacherIndex {
+
+    // The weight of a teacher's classes halves for every this many days since their latest class
+    static final long RECENCY_HALF_LIFE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The classes one write transaction added to and took from each teacher, to {@link #apply} to an index
+     */
+    public static class Changes {
+        private final Map<String, Change> byKey = new HashMap<>();
+
+        /**
+         * @param teacher The teacher of a class that was stored or moved to them
+         * @param date The class date, in milliseconds
+         */
+        public void classAdded(String teacher, long date) {
+            Change change = changeOf(teacher);
+            if (change != null) {
+                if (date >= change.latestDate) {
+                    change.name = teacher.trim();
+                    change.latestDate = date;
+                }
+                change.classes++;
+            }
+        }
+
+        /**
+         * @param teacher The teacher of a class that was deleted or moved away from them
+         */
+        public void classRemoved(String teacher) {
+            Change change = changeOf(teacher);
+            if (change != null) {
+                change.classes--;
+            }
+        }
+
+        public boolean isEmpty() {
+            return byKey.isEmpty();
+        }
+
+        private Change changeOf(String teacher) {
+            String key = keyOf(teacher);
+            if (key.isEmpty()) {
+                return null;
+            }
+            Change change = byKey.get(key);
+            if (change == null) {
+                change = new Change();
+                byKey.put(key, change);
+            }
+            return change;
+        }
+    }
+
+    // What one write did to one teacher; name and latestDate are only set once a class was added
+    private static class Change {
+        String name;
+        int classes;
+        long latestDate = Long.MIN_VALUE;
+    }
+
+    /**
+     * One distinct name, spelled as in their latest class
+     */
+    private static class Teacher {
+        final String key;
+        String name;
+        int classCount;
+        long latestDate = Long.MIN_VALUE;
+
+        Teacher(String key) {
+            this.key = key;
+        }
+
+        double weight(long now) {
+            long age = Math.max(0, now - latestDate); // Upcoming classes count as current
+            return classCount * Math.pow(0.5, (double) age / RECENCY_HALF_LIFE_MILLIS);
+        }
+    }
+
+    /**
+     * A match with its weight computed once per suggest(), ordered weakest first
+     */
+    private static class Ranked implements Comparable<Ranked> {
+        final Teacher teacher;
+        final double weight;
+
+        Ranked(Teacher teacher, double weight) {
+            this.teacher = teacher;
+            this.weight = weight;
+        }
+
+        // Ties go to the name first in order
+        @Override
+        public int compareTo(Ranked other) {
+            int byWeight = Double.compare(weight, other.weight);
+            return byWeight != 0 ? byWeight : other.teacher.key.compareTo(teacher.key);
+        }
+    }
+
+    /**
+     * Children are kept in two parallel arrays sorted by character, which takes far less memory
+     * than a map per node for the few children a node of a name trie has.
+     */
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        // The teachers with a word starting exactly here; usually none
+        List<Teacher> teachers;
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node childOrCreate(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = new Node();
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+    }
+
+    private final Node root = new Node();
+    private final Map<String, Teacher> teachersByKey = new HashMap<>();
+
+    /**
+     * Add a teacher's classes; spellings differing only in case or spacing add up to one teacher
+     * @param name The teacher as stored
+     * @param classCount How many classes they have under that spelling
+     * @param latestDate The date of their latest class, in milliseconds
+     */
+    public void addTeacher(String name, int classCount, long latestDate) {
+        String key = keyOf(name);
+        if (key.isEmpty() || classCount <= 0) {
+            return;
+        }
+        Teacher teacher = teachersByKey.get(key);
+        if (teacher == null) {
+            teacher = new Teacher(key);
+            teachersByKey.put(key, teacher);
+            addToTrie(teacher);
+        }
+        if (teacher.name == null || latestDate >= teacher.latestDate) {
+            teacher.name = name.trim();
+        }
+        teacher.classCount += classCount;
+        teacher.latestDate = Math.max(teacher.latestDate, latestDate);
+    }
+
+    /**
+     * Follow a write: teachers gain and lose classes, new teachers are added and those left without classes go.
+     * The latest class of a teacher does not move back when it is deleted; only the next full build finds the one
+     * before it.
+     * @param changes What the write did
+     */
+    public void apply(Changes changes) {
+        for (Map.Entry<String, Change> entry : changes.byKey.entrySet()) {
+            Change change = entry.getValue();
+            Teacher teacher = teachersByKey.get(entry.getKey());
+            if (teacher == null) {
+                if (change.classes > 0) {
+                    addTeacher(change.name, change.classes, change.latestDate);
+                }
+                continue;
+            }
+            if (change.name != null && change.latestDate >= teacher.latestDate) {
+                teacher.name = change.name;
+            }
+            teacher.classCount += change.classes;
+            teacher.latestDate = Math.max(teacher.latestDate, change.latestDate);
+            if (teacher.classCount <= 0) {
+                teachersByKey.remove(teacher.key);
+                removeFromTrie(teacher);
+            }
+        }
+    }
+
+    /**
+     * @return How many distinct teachers there are
+     */
+    public int size() {
+        return teachersByKey.size();
+    }
+
+    /**
+     * @param prefix The start of a teacher's first name, last name or any other word of their name
+     * @param limit The most names to return
+     * @param now The current time in milliseconds, for the recency weight
+     * @return Matching teacher names, most classes and most recent first
+     */
+    public List<String> suggest(String prefix, int limit, long now) {
+        String key = keyOf(prefix);
+        if (key.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        if (node == null) {
+            return Collections.emptyList();
+        }
+
+        // A name can be found twice below the prefix, e.g. "ann" finds both words of "Ann Annis"
+        Set<Teacher> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        collect(node, found);
+        // Only the best limit are kept, weakest on top, so the matches are never sorted in full
+        PriorityQueue<Ranked> best = new PriorityQueue<>(Math.min(limit, found.size()) + 1);
+        for (Teacher teacher : found) {
+            best.add(new Ranked(teacher, teacher.weight(now)));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        String[] names = new String[best.size()];
+        for (int i = names.length - 1; i >= 0; i--) {
+            names[i] = best.poll().teacher.name;
+        }
+        return Arrays.asList(names);
+    }
+
+    private static void collect(Node node, Set<Teacher> found) {
+        if (node.teachers != null) {
+            found.addAll(node.teachers);
+        }
+        for (Node child : node.children) {
+            collect(child, found);
+        }
+    }
+
+    // A name is filed under the rest of the name from the start of each of its words
+    private void addToTrie(Teacher teacher) {
+        for (int start : wordStarts(teacher.key)) {
+            Node node = root;
+            for (int i = start; i < teacher.key.length(); i++) {
+                node = node.childOrCreate(teacher.key.charAt(i));
+            }
+            if (node.teachers == null) {
+                node.teachers = new ArrayList<>(1);
+            }
+            node.teachers.add(teacher);
+        }
+    }
+
+    private void removeFromTrie(Teacher teacher) {
+        for (int start : wordStarts(teacher.key)) {
+            removeFromTrie(root, teacher, start);
+        }
+    }
+
+    // Returns whether the node is left empty, so its parent drops it
+    private static boolean removeFromTrie(Node node, Teacher teacher, int depth) {
+        if (depth == teacher.key.length()) {
+            if (node.teachers != null) {
+                node.teachers.remove(teacher);
+                if (node.teachers.isEmpty()) {
+                    node.teachers = null;
+                }
+            }
+        } else {
+            char c = teacher.key.charAt(depth);
+            int index = Arrays.binarySearch(node.keys, c);
+            if (index >= 0 && removeFromTrie(node.children[index], teacher, depth + 1)) {
+                char[] newKeys = new char[node.keys.length - 1];
+                Node[] newChildren = new Node[node.children.length - 1];
+                System.arraycopy(node.keys, 0, newKeys, 0, index);
+                System.arraycopy(node.children, 0, newChildren, 0, index);
+                System.arraycopy(node.keys, index + 1, newKeys, index, newKeys.length - index);
+                System.arraycopy(node.children, index + 1, newChildren, index, newChildren.length - index);
+                node.keys = newKeys;
+                node.children = newChildren;
+            }
+        }
+        return node.teachers == null && node.keys.length == 0;
+    }
+
+    private static List<Integer> wordStarts(String key) {
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != ' ' && (i == 0 || key.charAt(i - 1) == ' ')) {
+                starts.add(i);
+            }
+        }
+        return starts;
+    }
+
+    // Names differing only in case or spacing are the same teacher
+    static String keyOf(String name) {
+        if (name == null) {
+            return "";
+        }
+        return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,43 @@
+package com.universalyoga.admin;
+
+import java.util.Date;
+
+/**
+ * One class in a teacher's schedule: only what the teacher/date index holds, so it is read without
+ * touching the instance row. Open the full ClassInstance by its ID for comments and spots.
+ */
+public class TeacherScheduleEntry {
+    private final long instanceId;
+    private final long courseId;
+    private final Date date;
+    private final boolean cancelled;
+    private final String teacher; // Spelled as in the teachers table
+
+    public TeacherScheduleEntry(long instanceId, long courseId, Date date, boolean cancelled, String teacher) {
+        this.instanceId = instanceId;
+        this.courseId = courseId;
+        this.date = date;
+        this.cancelled = cancelled;
+        this.teacher = teacher;
+    }
+
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    public long getCourseId() {
+        return courseId;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public String getTeacher() {
+        return teacher;
+    }
+}
@@ -0,0 +1,57 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+import android.widget.ArrayAdapter;
+import android.widget.Filter;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Suggests teacher names in an AutoCompleteTextView from the repository's in-memory teacher index.
+ * The widget runs the filter on a background thread, so the first suggestion can load the index there;
+ * every later keystroke is answered from memory.
+ */
+public class TeacherSuggestionAdapter extends ArrayAdapter<String> {
+
+    // Suggestions shown in the drop-down
+    private static final int MAX_SUGGESTIONS = 8;
+
+    private final YogaRepository repository;
+    private final Filter filter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            FilterResults results = new FilterResults();
+            List<String> names = constraint == null
+                    ? new ArrayList<>()
+                    : repository.suggestTeachers(constraint.toString(), MAX_SUGGESTIONS);
+            results.values = names;
+            results.count = names.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            setNotifyOnChange(false);
+            clear();
+            if (results.values != null) {
+                addAll((List<String>) results.values);
+            }
+            notifyDataSetChanged();
+        }
+    };
+
+    public TeacherSuggestionAdapter(Context context, YogaRepository repository) {
+        super(context, android.R.layout.simple_dropdown_item_1line, new ArrayList<>());
+        this.repository = repository;
+    }
+
+    @NonNull
+    @Override
+    public Filter getFilter() {
+        return filter;
+    }
+}
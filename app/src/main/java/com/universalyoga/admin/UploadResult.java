@@ -0,0 +1,43 @@
+package com.universalyoga.admin;
+
+/**
+ * Counts of what a batched upload sent. Updated from the store's callback threads.
+ */
+public class UploadResult {
+    private int committedBatches;
+    private int committedOps;
+    private int failedBatches;
+    private int failedOps;
+
+    synchronized void addCommitted(int ops) {
+        committedBatches++;
+        committedOps += ops;
+    }
+
+    synchronized void addFailed(int ops) {
+        failedBatches++;
+        failedOps += ops;
+    }
+
+    public synchronized int getCommittedBatches() {
+        return committedBatches;
+    }
+
+    public synchronized int getCommittedOps() {
+        return committedOps;
+    }
+
+    public synchronized int getFailedBatches() {
+        return failedBatches;
+    }
+
+    public synchronized int getFailedOps() {
+        return failedOps;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "committed=" + committedOps + " in " + committedBatches + " batches, failed=" + failedOps +
+                " in " + failedBatches + " batches";
+    }
+}
@@ -0,0 +1,79 @@
+package com.universalyoga.admin;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One document write for a RemoteStore batch: replace a document, merge fields into it, delete it,
+ * add to number fields, or store fields in a new form without stamping the document.
+ */
+public final class WriteOp {
+
+    public enum Type {
+        SET, MERGE, DELETE, INCREMENT, REWRITE
+    }
+
+    private final Type type;
+    private final String collection;
+    private final String documentId;
+    private final Map<String, Object> data;
+
+    private WriteOp(Type type, String collection, String documentId, Map<String, Object> data) {
+        this.type = type;
+        this.collection = collection;
+        this.documentId = documentId;
+        this.data = data;
+    }
+
+    // Replace the whole document with data
+    public static WriteOp set(String collection, String documentId, Map<String, Object> data) {
+        return new WriteOp(Type.SET, collection, documentId, data);
+    }
+
+    // Write only the given fields and keep the rest of the document
+    public static WriteOp merge(String collection, String documentId, Map<String, Object> data) {
+        return new WriteOp(Type.MERGE, collection, documentId, data);
+    }
+
+    public static WriteOp delete(String collection, String documentId) {
+        return delete(collection, documentId, Collections.<String, Object>emptyMap());
+    }
+
+    // Delete, writing the given fields into the tombstone
+    public static WriteOp delete(String collection, String documentId, Map<String, Object> data) {
+        return new WriteOp(Type.DELETE, collection, documentId, data);
+    }
+
+    // Add each Long value to its field, a missing field counting as 0. Neither stamped nor a tombstone,
+    // so it is meant for bookkeeping documents rather than synced ones.
+    public static WriteOp increment(String collection, String documentId, Map<String, Object> deltas) {
+        return new WriteOp(Type.INCREMENT, collection, documentId, deltas);
+    }
+
+    // Merge fields without stamping the document, so incremental pulls don't fetch it again. Meant for writes
+    // that change how a value is stored but not the value, and for bookkeeping documents.
+    public static WriteOp rewrite(String collection, String documentId, Map<String, Object> data) {
+        return new WriteOp(Type.REWRITE, collection, documentId, data);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public Map<String, Object> getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + collection + "/" + documentId;
+    }
+}
@@ -0,0 +1,585 @@
+package com.universalyoga.admin;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous access to the local database and Firestore for the activities.
+ * Reads run on a small pool, writes on a single thread so they apply in the order they were made,
+ * and long cloud uploads on a thread of their own.
+ * Local changes reach Firestore through the outbox, which is drained after every change and
+ * again whenever a failed entry's retry is due.
+ * Both queues are bounded: when one is full the request fails instead of piling up work.
+ * Every callback is delivered on the main thread, and only while its RequestScope is not cancelled.
+ */
+public class YogaRepository {
+
+    private static final String TAG = "YogaRepository";
+    private static final int READ_THREADS = 2;
+    private static final int READ_QUEUE_CAPACITY = 64;
+    private static final int WRITE_QUEUE_CAPACITY = 256;
+    private static final int SYNC_QUEUE_CAPACITY = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // Documents per page of a cloud pull, and so the most of each collection held in memory at once
+    private static final int PULL_PAGE_SIZE = 300;
+    // Outbox retries back off from a few seconds up to ten minutes
+    private static final long RETRY_BASE_MILLIS = 5_000;
+    private static final long RETRY_MAX_MILLIS = 10 * 60_000;
+
+    private static YogaRepository instance;
+
+    private final DatabaseHelper dbHelper;
+    private final FirestoreSyncManager syncManager;
+    private final ThreadPoolExecutor readExecutor;
+    private final ThreadPoolExecutor writeExecutor;
+    private final ThreadPoolExecutor syncExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Backoff backoff = new Backoff(RETRY_BASE_MILLIS, RETRY_MAX_MILLIS, new Random());
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable retryDrain = this::scheduleDrain;
+    // Teacher names for autocomplete, built on the read pool on first use and then kept up to date with the
+    // teacher changes of each write. The lock guards only these fields and is never held while the database is read.
+    private final Object teacherIndexLock = new Object();
+    // The latest built index, with the changes since applied; null until first use
+    private TeacherIndex teacherIndex;
+    // The build in progress, if any, and whether instances were written since it started reading
+    private CompletableFuture<TeacherIndex> teacherIndexBuild;
+    private boolean teacherIndexStale;
+
+    /**
+     * Get the repository shared by the whole app
+     * @param context Any context; only the application context is kept
+     * @return The repository
+     */
+    public static synchronized YogaRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new YogaRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private YogaRepository(Context context) {
+        dbHelper = DatabaseHelper.getInstance(context);
+        syncManager = new FirestoreSyncManager();
+        readExecutor = newExecutor("yoga-read", READ_THREADS, READ_QUEUE_CAPACITY);
+        writeExecutor = newExecutor("yoga-write", 1, WRITE_QUEUE_CAPACITY);
+        syncExecutor = newExecutor("yoga-sync", 1, SYNC_QUEUE_CAPACITY);
+        dbHelper.setTeacherChangeListener(this::applyTeacherChanges);
+        dbHelper.getInvalidationTracker().addObserver(this::rebuildTeacherIndex, DatabaseHelper.TABLE_CLASS_INSTANCES);
+        // Send whatever the outbox still holds from before the app was last stopped
+        scheduleDrain();
+        migrateLegacyDates();
+        claimIdNode();
+    }
+
+    private static ThreadPoolExecutor newExecutor(String name, int threads, int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), factory);
+        // Idle threads go away so the app holds no threads while nothing is happening
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Courses
+
+    public void getCourse(long id, RequestScope scope, RepositoryCallback<Course> callback) {
+        read(scope, () -> dbHelper.getCourse(id), callback);
+    }
+
+    public void getCoursesPage(String afterTime, long afterId, int pageSize,
+                               RequestScope scope, RepositoryCallback<List<Course>> callback) {
+        read(scope, () -> dbHelper.getCoursesPage(afterTime, afterId, pageSize), callback);
+    }
+
+    /**
+     * Observe the first courses in list order. The courses are read again whenever one is added, changed or
+     * deleted, whether on this device or by a sync.
+     * @param limit The most courses to read; screens that load further pages raise it with setLimit
+     * @param callback Receives the courses on every read
+     * @return The query; start it to get the first result
+     */
+    public ObservableQuery<List<Course>> observeCourses(int limit, RequestScope scope,
+                                                        RepositoryCallback<List<Course>> callback) {
+        return new ObservableQuery<>(this, dbHelper.getInvalidationTracker(), scope,
+                rows -> dbHelper.getCoursesPage(null, 0, rows), limit, invalidation -> true, callback,
+                DatabaseHelper.TABLE_COURSES);
+    }
+
+    /**
+     * Observe one course; it is read again only when that course's row changes
+     * @param callback Receives the course on every read, or null once it is gone
+     * @return The query; start it to get the first result
+     */
+    public ObservableQuery<Course> observeCourse(long id, RequestScope scope, RepositoryCallback<Course> callback) {
+        return new ObservableQuery<>(this, dbHelper.getInvalidationTracker(), scope,
+                rows -> dbHelper.getCourse(id), 1,
+                invalidation -> invalidation.isRowChanged(DatabaseHelper.TABLE_COURSES, id), callback,
+                DatabaseHelper.TABLE_COURSES);
+    }
+
+    /**
+     * Save a new course locally, then upload it in the background
+     * @param course The course to add; its ID is set once it is saved
+     */
+    public void addCourse(Course course, RequestScope scope, RepositoryCallback<Long> callback) {
+        write(scope, () -> {
+            long id = dbHelper.addCourse(course);
+            if (id > 0) {
+                scheduleDrain();
+            }
+            return id;
+        }, callback);
+    }
+
+    public void updateCourse(Course course, RequestScope scope, RepositoryCallback<Integer> callback) {
+        write(scope, () -> {
+            int rows = dbHelper.updateCourse(course);
+            if (rows > 0) {
+                scheduleDrain();
+            }
+            return rows;
+        }, callback);
+    }
+
+    /**
+     * Delete a course and its class instances, locally and in Firestore
+     * @param callback Receives the number of class instances deleted with the course
+     */
+    public void deleteCourse(long courseId, RequestScope scope, RepositoryCallback<Integer> callback) {
+        write(scope, () -> {
+            List<Long> instanceIds = dbHelper.deleteCourse(courseId);
+            scheduleDrain();
+            return instanceIds.size();
+        }, callback);
+    }
+
+    // Class instances
+
+    public void getClassInstance(long id, RequestScope scope, RepositoryCallback<ClassInstance> callback) {
+        read(scope, () -> dbHelper.getClassInstance(id), callback);
+    }
+
+    public void getClassInstanceListRowsPage(long courseId, ClassInstance after, int pageSize,
+                                             RequestScope scope, RepositoryCallback<List<ClassInstance>> callback) {
+        read(scope, () -> dbHelper.getClassInstanceListRowsPage(courseId, after, pageSize), callback);
+    }
+
+    /**
+     * Observe the first class instances of a course in list order. They are read again whenever a class
+     * instance changes; a changed row's course is not known without reading it, so any change counts.
+     * @param limit The most instances to read; screens that load further pages raise it with setLimit
+     * @param callback Receives the instances on every read
+     * @return The query; start it to get the first result
+     */
+    public ObservableQuery<List<ClassInstance>> observeClassInstanceListRows(
+            long courseId, int limit, RequestScope scope, RepositoryCallback<List<ClassInstance>> callback) {
+        return new ObservableQuery<>(this, dbHelper.getInvalidationTracker(), scope,
+                rows -> dbHelper.getClassInstanceListRowsPage(courseId, null, rows), limit, invalidation -> true,
+                callback, DatabaseHelper.TABLE_CLASS_INSTANCES);
+    }
+
+    /**
+     * Full-text search over class instances, reading the first page of results
+     * @param signal Cancel it to stop the search while it runs; cancel the scope as well to drop the callback
+     * @param callback Receives the search, to load further pages with loadMoreSearchResults
+     */
+    public void searchClassInstances(String query, int pageSize, CancellationSignal signal,
+                                     RequestScope scope, RepositoryCallback<InstanceSearch> callback) {
+        read(scope, () -> dbHelper.searchClassInstances(query, pageSize, signal), callback);
+    }
+
+    /**
+     * Read the next page of a search's results
+     * @param callback Receives the search with the page appended
+     */
+    public void loadMoreSearchResults(InstanceSearch search, int pageSize, CancellationSignal signal,
+                                      RequestScope scope, RepositoryCallback<InstanceSearch> callback) {
+        read(scope, () -> dbHelper.loadSearchPage(search, pageSize, signal), callback);
+    }
+
+    /**
+     * Teacher names with a word starting with the given text, for autocomplete.
+     * Answered from memory without a query; only the first call waits for the teachers to be read,
+     * so call it off the main thread, e.g. from a Filter.
+     * @param prefix The text typed so far
+     * @param limit The most names to return
+     * @return Matching names, teachers with more and more recent classes first
+     */
+    public List<String> suggestTeachers(String prefix, int limit) {
+        CompletableFuture<TeacherIndex> build;
+        synchronized (teacherIndexLock) {
+            if (teacherIndex != null) {
+                return teacherIndex.suggest(prefix, limit, System.currentTimeMillis());
+            }
+            build = buildTeacherIndex();
+        }
+        try {
+            build.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Teacher index could not be built", e.getCause());
+            return Collections.emptyList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+        synchronized (teacherIndexLock) {
+            return teacherIndex.suggest(prefix, limit, System.currentTimeMillis());
+        }
+    }
+
+    // Called on the writing thread after each write that moved classes between teachers; only memory is touched.
+    // Changes made while a build reads may or may not be in what it reads, so that build is followed by another.
+    private void applyTeacherChanges(TeacherIndex.Changes changes) {
+        synchronized (teacherIndexLock) {
+            if (teacherIndexBuild != null) {
+                teacherIndexStale = true;
+            } else if (teacherIndex != null) {
+                teacherIndex.apply(changes);
+            }
+        }
+    }
+
+    // Writes that replace whole tables, such as a reset or a pulled course deletion, don't list their teacher
+    // changes, so the index is read again for them
+    private void rebuildTeacherIndex(InvalidationTracker.Invalidation invalidation) {
+        if (invalidation.getRowIds(DatabaseHelper.TABLE_CLASS_INSTANCES) != null) {
+            return;
+        }
+        synchronized (teacherIndexLock) {
+            if (teacherIndexBuild != null) {
+                teacherIndexStale = true;
+            } else if (teacherIndex != null) {
+                buildTeacherIndex();
+            }
+        }
+    }
+
+    // Called holding teacherIndexLock; starts a build on the read pool unless one is already running
+    private CompletableFuture<TeacherIndex> buildTeacherIndex() {
+        if (teacherIndexBuild != null) {
+            return teacherIndexBuild;
+        }
+        CompletableFuture<TeacherIndex> build = new CompletableFuture<>();
+        teacherIndexBuild = build;
+        teacherIndexStale = false;
+        try {
+            readExecutor.execute(() -> runTeacherIndexBuild(build));
+        } catch (RejectedExecutionException e) {
+            // The last index stays in use, and the next write or first use tries again
+            teacherIndexBuild = null;
+            build.completeExceptionally(e);
+        }
+        return build;
+    }
+
+    private void runTeacherIndexBuild(CompletableFuture<TeacherIndex> build) {
+        TeacherIndex index;
+        boolean changesInFlight;
+        try {
+            index = dbHelper.loadTeacherIndex();
+            // A write that committed before the read may hand over its changes only after this index is published
+            changesInFlight = dbHelper.hasTeacherChangesInFlight();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Teacher index build failed, the last one stays in use", e);
+            synchronized (teacherIndexLock) {
+                teacherIndexBuild = null;
+            }
+            build.completeExceptionally(e);
+            return;
+        }
+        synchronized (teacherIndexLock) {
+            teacherIndex = index;
+            teacherIndexBuild = null;
+            if (teacherIndexStale || changesInFlight) {
+                // The read may have missed a write made while it ran, or counted one twice
+                buildTeacherIndex();
+            }
+        }
+        build.complete(index);
+    }
+
+    /**
+     * Save a new class instance locally, then upload it in the background
+     * @param instance The class instance to add; its ID is set once it is saved
+     */
+    public void addClassInstance(ClassInstance instance, RequestScope scope, RepositoryCallback<Long> callback) {
+        write(scope, () -> {
+            long id = dbHelper.addClassInstance(instance);
+            if (id > 0) {
+                scheduleDrain();
+            }
+            return id;
+        }, callback);
+    }
+
+    public void updateClassInstance(ClassInstance instance, RequestScope scope, RepositoryCallback<Integer> callback) {
+        write(scope, () -> {
+            int rows = dbHelper.updateClassInstance(instance);
+            if (rows > 0) {
+                scheduleDrain();
+            }
+            return rows;
+        }, callback);
+    }
+
+    public void deleteClassInstance(long instanceId, RequestScope scope, RepositoryCallback<Integer> callback) {
+        write(scope, () -> {
+            int rows = dbHelper.deleteClassInstance(instanceId);
+            if (rows > 0) {
+                scheduleDrain();
+            }
+            return rows;
+        }, callback);
+    }
+
+    // Whole database
+
+    public void resetDatabase(RequestScope scope, RepositoryCallback<Void> callback) {
+        write(scope, () -> {
+            dbHelper.resetDatabase();
+            return null;
+        }, callback);
+    }
+
+    /**
+     * Pull what changed in Firestore since the last pull into the local database.
+     * Local data stays in place meanwhile; the first pull downloads everything.
+     * Both collections are fetched at the same time, page by page, and each page is stored as soon as it arrives,
+     * so memory use depends on the page size and not on the size of the collections.
+     * The documents are parsed and stored on the write thread, so the main thread only gets the result.
+     * Documents that match what is stored are skipped without a write, so the count is 0 when nothing changed
+     * and the UI doesn't need to refresh.
+     * @param callback Receives the number of local rows that were inserted, updated or deleted
+     */
+    public void syncFromCloud(RequestScope scope, RepositoryCallback<Integer> callback) {
+        CloudPull pull = new CloudPull(new RepositoryCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer written) {
+                deliver(scope, callback, written, null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                deliver(scope, callback, null, e);
+            }
+        });
+        pull.start(writeExecutor, started -> {
+            long courseMark = dbHelper.getHighWaterMark(FirestoreSyncManager.COLLECTION_COURSES);
+            syncManager.pullCourses(writeExecutor, courseMark, PULL_PAGE_SIZE, new FirestorePullCallback<Course>() {
+                @Override
+                public void onPage(PulledChanges<Course> page) {
+                    IngestResult result = dbHelper.applyPulledCourses(page, FirestoreSyncManager.COLLECTION_COURSES);
+                    Log.d(TAG, "Courses page synced: " + result);
+                    started.pageApplied(result, page.isLastPage());
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Log.e(TAG, "Failed to pull courses", e);
+                    started.failed(e);
+                }
+            });
+            long instanceMark = dbHelper.getHighWaterMark(FirestoreSyncManager.COLLECTION_CLASS_INSTANCES);
+            syncManager.pullClassInstances(writeExecutor, instanceMark, PULL_PAGE_SIZE,
+                    new FirestorePullCallback<ClassInstance>() {
+                        @Override
+                        public void onPage(PulledChanges<ClassInstance> page) {
+                            IngestResult result = dbHelper.applyPulledClassInstances(page,
+                                    FirestoreSyncManager.COLLECTION_CLASS_INSTANCES);
+                            Log.d(TAG, "Class instances page synced: " + result);
+                            started.pageApplied(result, page.isLastPage());
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            Log.e(TAG, "Failed to pull class instances", e);
+                            started.failed(e);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Upload every local change that is not in Firestore yet, now, without waiting for pending retries
+     * @param callback Receives how many documents were committed and how many failed
+     */
+    public void uploadChanges(RequestScope scope, RepositoryCallback<UploadResult> callback) {
+        sync(scope, () -> {
+            dbHelper.enqueueDirtyRows();
+            return drainOutbox(Long.MAX_VALUE);
+        }, callback);
+    }
+
+    /**
+     * Make sure the local database and Firestore hold the same courses and class instances, without downloading
+     * them: local changes are uploaded first, then the two sides are compared through their digests and only the
+     * documents of buckets that differ are fetched. Catches what incremental pulls miss, such as documents
+     * written without an updatedAt stamp.
+     * @param callback Receives what the run did for the courses and for the class instances
+     */
+    public void reconcileWithCloud(RequestScope scope, RepositoryCallback<List<DigestReconciliation.Result>> callback) {
+        sync(scope, () -> {
+            dbHelper.enqueueDirtyRows();
+            drainOutbox(Long.MAX_VALUE);
+            List<DigestReconciliation.Result> results = syncManager.reconcile(dbHelper);
+            Log.d(TAG, "Reconciled courses: " + results.get(0) + "; class instances: " + results.get(1));
+            return results;
+        }, callback);
+    }
+
+    /**
+     * @param callback Receives how many documents are waiting to be written to Firestore
+     */
+    public void getOutboxDepth(RequestScope scope, RepositoryCallback<Long> callback) {
+        read(scope, dbHelper::getOutboxDepth, callback);
+    }
+
+    // Old class instance documents get numeric dates once across all devices; an interrupted run continues
+    // on the next start of any of them
+    private void migrateLegacyDates() {
+        sync(new RequestScope(), () -> {
+            LegacyDateMigration.Result result = syncManager.migrateLegacyDates();
+            if (result.getScanned() > 0) {
+                Log.d(TAG, "Legacy date migration: " + result);
+            }
+            return null;
+        }, null);
+    }
+
+    // Move off the IdGenerator node if another installation holds it; retried on the next start if offline
+    private void claimIdNode() {
+        sync(new RequestScope(), () -> syncManager.claimIdNode(dbHelper), null);
+    }
+
+    // Drain the outbox after a local change. Changes in quick succession share one drain: while one is
+    // waiting to start, no other is queued, and the one that runs picks up every change made until then.
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        // Nobody waits for the result; failed entries stay in the outbox until their retry
+        Future<?> drain = submit(syncExecutor, new RequestScope(), () -> {
+            drainScheduled.set(false);
+            return drainOutbox(System.currentTimeMillis());
+        }, null);
+        if (drain == null) {
+            drainScheduled.set(false);
+        }
+    }
+
+    private UploadResult drainOutbox(long now) throws InterruptedException {
+        UploadResult result = syncManager.drainOutbox(dbHelper, now, backoff, new BatchUploader.Listener() {
+            @Override
+            public void onBatchCommitted(int batchIndex, List<WriteOp> ops, UploadResult progress) {
+                Log.d(TAG, "Upload batch " + batchIndex + " committed: " + progress);
+            }
+
+            @Override
+            public void onBatchFailed(int batchIndex, List<WriteOp> ops, Exception e, UploadResult progress) {
+                Log.e(TAG, "Upload batch " + batchIndex + " of " + ops.size() + " documents failed", e);
+            }
+        });
+        scheduleRetry();
+        return result;
+    }
+
+    // Wake up again when the earliest entry left in the outbox is due
+    private void scheduleRetry() {
+        long nextAttemptAt = dbHelper.getNextOutboxAttemptAt();
+        if (nextAttemptAt < 0) {
+            return;
+        }
+        long delay = Math.max(0, nextAttemptAt - System.currentTimeMillis());
+        Log.d(TAG, dbHelper.getOutboxDepth() + " documents left in the outbox, next attempt in " + delay + " ms");
+        mainHandler.removeCallbacks(retryDrain);
+        mainHandler.postDelayed(retryDrain, delay);
+    }
+
+    // Scheduling
+
+    private <T> void read(RequestScope scope, Callable<T> work, RepositoryCallback<T> callback) {
+        Future<?> future = submit(readExecutor, scope, work, callback);
+        if (future != null) {
+            scope.trackRead(future);
+        }
+    }
+
+    // Reads of an ObservableQuery
+    <T> void readForQuery(RequestScope scope, Callable<T> work, RepositoryCallback<T> callback) {
+        read(scope, work, callback);
+    }
+
+    // Writes are not tracked by the scope: once accepted they always run
+    private <T> void write(RequestScope scope, Callable<T> work, RepositoryCallback<T> callback) {
+        submit(writeExecutor, scope, work, callback);
+    }
+
+    // Long-running cloud jobs get their own thread so they hold up neither reads nor saves.
+    // Like writes, they are not cancelled with the scope.
+    private <T> void sync(RequestScope scope, Callable<T> work, RepositoryCallback<T> callback) {
+        submit(syncExecutor, scope, work, callback);
+    }
+
+    private <T> Future<?> submit(ExecutorService executor, RequestScope scope,
+                                 Callable<T> work, RepositoryCallback<T> callback) {
+        try {
+            return executor.submit(() -> {
+                T result;
+                try {
+                    result = work.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "Repository request failed", e);
+                    deliver(scope, callback, null, e);
+                    return;
+                }
+                deliver(scope, callback, result, null);
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Repository queue is full, request rejected", e);
+            deliver(scope, callback, null, e);
+            return null;
+        }
+    }
+
+    private <T> void deliver(RequestScope scope, RepositoryCallback<T> callback, T result, Exception error) {
+        if (callback == null || scope.isCancelled()) {
+            return;
+        }
+        mainHandler.post(() -> {
+            // The screen may have gone away while the message was queued
+            if (scope.isCancelled()) {
+                return;
+            }
+            if (error != null) {
+                callback.onFailure(error);
+            } else {
+                callback.onSuccess(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,36 @@
+package android.util;
+
+/**
+ * Stands in for the framework's Log in JVM tests, which run the sync code against InMemoryRemoteStore.
+ * Only the calls that code makes are here; any other framework call still fails as not mocked.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg, tr);
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr) {
+        System.out.println(level + "/" + tag + ": " + msg + (tr != null ? "\n" + tr : ""));
+        return 0;
+    }
+}
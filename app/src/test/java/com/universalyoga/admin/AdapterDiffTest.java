@@ -0,0 +1,56 @@
+package com.universalyoga.admin;
+
+import androidx.recyclerview.widget.DiffUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The list adapters diff a reload against the rows on screen by ID and stored fields.
+ */
+@RunWith(Parameterized.class)
+public class AdapterDiffTest {
+
+    // A row with the given ID; rows of the same ID differ in a shown field when their variant does
+    interface Rows {
+        Object row(long id, int variant);
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> adapters() {
+        return Arrays.asList(
+                new Object[]{"CourseAdapter", CourseAdapter.DIFF_CALLBACK, (Rows) (id, variant) ->
+                        new Course(id, "Course " + id, "Monday", "10:00", 20, 60, 10.0 + variant,
+                                "Flow Yoga", null, "Beginner", false, null)},
+                new Object[]{"ClassInstanceAdapter", ClassInstanceAdapter.DIFF_CALLBACK, (Rows) (id, variant) ->
+                        new ClassInstance(id, 1, new Date(1_700_000_000_000L), "Teacher " + variant, null, 20,
+                                false)});
+    }
+
+    @Parameterized.Parameter(0)
+    public String adapter;
+    @Parameterized.Parameter(1)
+    public DiffUtil.ItemCallback<Object> diff;
+    @Parameterized.Parameter(2)
+    public Rows rows;
+
+    @Test
+    public void sameId_isTheSameRow() {
+        assertTrue(diff.areItemsTheSame(rows.row(7, 0), rows.row(7, 1)));
+        assertFalse(diff.areItemsTheSame(rows.row(7, 0), rows.row(8, 0)));
+    }
+
+    @Test
+    public void reloadedRow_isUnchangedUntilAFieldChanges() {
+        // A reload reads new objects; equal fields must not rebind the row
+        assertTrue(diff.areContentsTheSame(rows.row(7, 0), rows.row(7, 0)));
+        assertFalse(diff.areContentsTheSame(rows.row(7, 0), rows.row(7, 1)));
+    }
+}
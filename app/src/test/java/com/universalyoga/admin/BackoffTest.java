@@ -0,0 +1,48 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void ceiling_doublesUpToTheMaximum() {
+        Backoff backoff = new Backoff(1_000, 5_000, new Random(1));
+
+        assertEquals(1_000, backoff.ceilingMillis(1));
+        assertEquals(2_000, backoff.ceilingMillis(2));
+        assertEquals(4_000, backoff.ceilingMillis(3));
+        assertEquals(5_000, backoff.ceilingMillis(4));
+        assertEquals(5_000, backoff.ceilingMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void delay_isBetweenHalfTheCeilingAndTheCeiling() {
+        Backoff backoff = new Backoff(1_000, 60_000, new Random(42));
+        for (int attempts = 1; attempts <= 10; attempts++) {
+            long ceiling = backoff.ceilingMillis(attempts);
+            for (int i = 0; i < 100; i++) {
+                long delay = backoff.delayMillis(attempts);
+                assertTrue(delay >= ceiling / 2);
+                assertTrue(delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void delay_isRepeatableWithTheSameSeed() {
+        Backoff first = new Backoff(1_000, 60_000, new Random(7));
+        Backoff second = new Backoff(1_000, 60_000, new Random(7));
+        for (int attempts = 1; attempts <= 8; attempts++) {
+            assertEquals(first.delayMillis(attempts), second.delayMillis(attempts));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaximumBelowBase() {
+        new Backoff(1_000, 500, new Random());
+    }
+}
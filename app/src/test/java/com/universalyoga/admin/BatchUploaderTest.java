@@ -0,0 +1,256 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BatchUploaderTest {
+
+    private static final String COLLECTION = "class_instances";
+
+    @Test
+    public void upload_splitsIntoFullBatches() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+        UploadResult result = upload(new BatchUploader(store, 500, 4), 1201, new RecordingListener(batchSizes, null));
+
+        assertEquals(3, result.getCommittedBatches());
+        assertEquals(1201, result.getCommittedOps());
+        Collections.sort(batchSizes);
+        assertEquals(List.of(201, 500, 500), batchSizes);
+        assertEquals(1201, store.getDocumentCount(COLLECTION));
+        assertEquals(7L, store.getDocument(COLLECTION, "7").get("value"));
+    }
+
+    @Test
+    public void upload_neverExceedsInFlightCap() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore(20);
+
+        UploadResult result = upload(new BatchUploader(store, 10, 2), 200, null);
+
+        assertEquals(20, result.getCommittedBatches());
+        assertTrue("Max concurrent commits was " + store.getMaxConcurrentCommits(), store.getMaxConcurrentCommits() <= 2);
+    }
+
+    @Test
+    public void upload_reportsFailedBatchesAndContinues() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        store.failNextCommits(1);
+        List<List<WriteOp>> failed = new CopyOnWriteArrayList<>();
+
+        UploadResult result = upload(new BatchUploader(store, 100, 1), 300, new RecordingListener(null, failed));
+
+        assertEquals(1, result.getFailedBatches());
+        assertEquals(100, result.getFailedOps());
+        assertEquals(200, result.getCommittedOps());
+        assertEquals(1, failed.size());
+        assertEquals(100, failed.get(0).size());
+    }
+
+    @Test
+    public void extras_commitWithTheirBatch_andKeepItWithinTheBatchSize() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        store.failNextCommits(1);
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        BatchUploader.Session session = new BatchUploader(store, 10, 1)
+                .start(new RecordingListener(batchSizes, null), new CountingExtras());
+        for (long i = 0; i < 20; i++) {
+            session.add(WriteOp.set(COLLECTION, String.valueOf(i), Collections.<String, Object>singletonMap("value", i)));
+        }
+
+        UploadResult result = session.finish();
+
+        // Nine writes and the count in each full batch; the count of the failed first batch went with it
+        assertEquals(9, result.getFailedOps());
+        assertEquals(List.of(9, 2), batchSizes);
+        assertEquals(11, store.getDocumentCount(COLLECTION));
+        assertEquals(11L, store.getDocument("counters", "writes").get("count"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsBatchesOverTheLimit() {
+        new BatchUploader(new InMemoryRemoteStore(), RemoteStore.MAX_BATCH_SIZE + 1, 1);
+    }
+
+    @Test
+    public void upload_keepsExactlyTheCapInFlight_andSendsBatchesInOrder() throws Exception {
+        HeldCommitStore store = new HeldCommitStore();
+        BatchUploader.Session session = new BatchUploader(store, 10, 2).start(null);
+        AtomicReference<UploadResult> result = new AtomicReference<>();
+        Thread adder = new Thread(() -> {
+            try {
+                for (long i = 0; i < 45; i++) {
+                    session.add(WriteOp.set(COLLECTION, String.valueOf(i), Collections.<String, Object>singletonMap("value", i)));
+                }
+                result.set(session.finish());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "adder");
+        adder.start();
+
+        // Two batches go out, and the third waits for a slot
+        store.awaitHeld(2);
+        awaitBlocked(adder);
+        assertEquals(2, store.held.size());
+
+        List<String> firstIds = new ArrayList<>();
+        for (int batch = 0; batch < 5; batch++) {
+            store.awaitHeld(1);
+            firstIds.add(store.releaseOldest().get(0).getDocumentId());
+            assertTrue("In flight: " + store.held.size(), store.held.size() <= 2);
+        }
+        adder.join(5_000);
+        assertFalse(adder.isAlive());
+
+        assertEquals(Arrays.asList("0", "10", "20", "30", "40"), firstIds);
+        assertEquals(Arrays.asList(10, 10, 10, 10, 5), store.releasedSizes);
+        assertEquals(5, result.get().getCommittedBatches());
+        assertEquals(45, result.get().getCommittedOps());
+    }
+
+    // Waits until the thread is parked, here on a batch slot
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("Thread never blocked", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static UploadResult upload(BatchUploader uploader, int count, BatchUploader.Listener listener) throws Exception {
+        BatchUploader.Session session = uploader.start(listener);
+        for (long i = 0; i < count; i++) {
+            session.add(WriteOp.set(COLLECTION, String.valueOf(i), Collections.<String, Object>singletonMap("value", i)));
+        }
+        return session.finish();
+    }
+
+    // Holds every commit until the test completes it, so what is in flight is known exactly
+    private static class HeldCommitStore implements RemoteStore {
+        private final BlockingDeque<Held> held = new LinkedBlockingDeque<>();
+        private final List<Integer> releasedSizes = new CopyOnWriteArrayList<>();
+
+        private static class Held {
+            final List<WriteOp> ops;
+            final CommitCallback callback;
+
+            Held(List<WriteOp> ops, CommitCallback callback) {
+                this.ops = ops;
+                this.callback = callback;
+            }
+        }
+
+        @Override
+        public void commit(List<WriteOp> ops, CommitCallback callback) {
+            held.add(new Held(ops, callback));
+        }
+
+        void awaitHeld(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (held.size() < count) {
+                assertTrue("Only " + held.size() + " commits arrived", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+
+        List<WriteOp> releaseOldest() {
+            Held oldest = held.poll();
+            releasedSizes.add(oldest.ops.size());
+            oldest.callback.onSuccess();
+            return oldest.ops;
+        }
+
+        @Override
+        public void commitIfUnchanged(Map<String, List<RemoteDocument>> read, List<WriteOp> ops,
+                                      CommitCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void fetchPage(String collection, String afterDocumentId, int limit, PageCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void fetchChangedSince(String collection, long sinceMillis, RemoteDocument after, int limit,
+                                      PageCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void fetchDocuments(String collection, List<String> documentIds, PageCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void fetchWhereEqual(String collection, String field, Object value, String afterDocumentId, int limit,
+                                    PageCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Counts the writes of each batch into one counter document
+    private static class CountingExtras implements BatchUploader.Extras {
+        private long count;
+
+        @Override
+        public void add(WriteOp op) {
+            count++;
+        }
+
+        @Override
+        public int size() {
+            return count > 0 ? 1 : 0;
+        }
+
+        // The counter is one write, added with the first write of a batch
+        @Override
+        public int maxPerWrite() {
+            return count > 0 ? 0 : 1;
+        }
+
+        @Override
+        public List<WriteOp> drain() {
+            List<WriteOp> ops = Collections.singletonList(
+                    WriteOp.increment("counters", "writes", Collections.<String, Object>singletonMap("count", count)));
+            count = 0;
+            return ops;
+        }
+    }
+
+    private static class RecordingListener implements BatchUploader.Listener {
+        private final List<Integer> committed;
+        private final List<List<WriteOp>> failed;
+
+        RecordingListener(List<Integer> committed, List<List<WriteOp>> failed) {
+            this.committed = committed;
+            this.failed = failed;
+        }
+
+        @Override
+        public void onBatchCommitted(int batchIndex, List<WriteOp> ops, UploadResult progress) {
+            if (committed != null) {
+                committed.add(ops.size());
+            }
+        }
+
+        @Override
+        public void onBatchFailed(int batchIndex, List<WriteOp> ops, Exception e, UploadResult progress) {
+            if (failed != null) {
+                failed.add(ops);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class ChangeTrackingTest {
+
+    @Test
+    public void contentHash_isStableForEqualContent() {
+        assertEquals(ContentHash.of(course("Flow", 10.0)), ContentHash.of(course("Flow", 10.0)));
+        assertEquals(ContentHash.of(instance("Ann", 5)), ContentHash.of(instance("Ann", 5)));
+    }
+
+    @Test
+    public void contentHash_changesWithAnyField() {
+        long base = ContentHash.of(course("Flow", 10.0));
+        assertNotEquals(base, ContentHash.of(course("Flow", 10.5)));
+        assertNotEquals(base, ContentHash.of(course("Flows", 10.0)));
+        assertNotEquals(ContentHash.of(instance("Ann", 5)), ContentHash.of(instance("Ann", 4)));
+    }
+
+    @Test
+    public void contentHash_tellsNullEmptyAndShiftedStringsApart() {
+        assertNotEquals(new ContentHash().add((String) null).get(), new ContentHash().add("").get());
+        assertNotEquals(new ContentHash().add("ab").add("c").get(), new ContentHash().add("a").add("bc").get());
+    }
+
+    @Test
+    public void changedFields_namesOnlyTheChangedCourseFields() {
+        Course before = course("Flow", 10.0);
+        Course after = course("Flow", 12.0);
+        after.setDescription("New");
+
+        assertEquals(ChangedFields.COURSE_PRICE | ChangedFields.COURSE_DESCRIPTION, ChangedFields.between(before, after));
+        assertEquals(0, ChangedFields.between(before, course("Flow", 10.0)));
+    }
+
+    @Test
+    public void changedFields_namesOnlyTheChangedInstanceFields() {
+        ClassInstance before = instance("Ann", 5);
+        ClassInstance after = instance("Bob", 5);
+        after.setCancelled(true);
+
+        assertEquals(ChangedFields.INSTANCE_TEACHER | ChangedFields.INSTANCE_IS_CANCELLED,
+                ChangedFields.between(before, after));
+    }
+
+    private static Course course(String name, double price) {
+        return new Course(1, name, "Monday", "10:00", 20, 60, price, "Flow Yoga", null, "Beginner", false, null);
+    }
+
+    private static ClassInstance instance(String teacher, int spots) {
+        return new ClassInstance(1, 1, new Date(1_700_000_000_000L), teacher, null, spots, false);
+    }
+}
@@ -0,0 +1,34 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.*;
+
+public class ClassInstanceAdapterTest {
+
+    private static final Date MARCH_5 = new GregorianCalendar(2024, Calendar.MARCH, 5, 10, 0).getTime();
+
+    @Test
+    public void row_showsTheDateAndTeacher_andMarksACancelledClass() {
+        ClassInstance instance = new ClassInstance(7, 1, MARCH_5, "Anna Smith", null, 20, false);
+
+        assertEquals("05/03/2024 - Teacher: Anna Smith", instance.toString());
+        instance.setCancelled(true);
+        assertEquals("05/03/2024 - Teacher: Anna Smith (CANCELLED)", instance.toString());
+    }
+
+    @Test
+    public void cancellingOrMovingAClass_rebindsItsRow() {
+        ClassInstance instance = new ClassInstance(7, 1, MARCH_5, "Anna", null, 20, false);
+        ClassInstance cancelled = new ClassInstance(7, 1, MARCH_5, "Anna", null, 20, true);
+        ClassInstance moved = new ClassInstance(7, 1, new Date(MARCH_5.getTime() + 24L * 60 * 60 * 1000),
+                "Anna", null, 20, false);
+
+        assertFalse(ClassInstanceAdapter.DIFF_CALLBACK.areContentsTheSame(instance, cancelled));
+        assertFalse(ClassInstanceAdapter.DIFF_CALLBACK.areContentsTheSame(instance, moved));
+    }
+}
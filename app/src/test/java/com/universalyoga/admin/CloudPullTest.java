@@ -0,0 +1,98 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CloudPullTest {
+
+    @Test
+    public void fullWriteQueue_endsThePullWithAFailure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor writes = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1));
+        try {
+            // One write runs and one waits, so the queue is full
+            writes.execute(() -> await(release));
+            writes.execute(() -> { });
+            Result result = new Result();
+            AtomicInteger started = new AtomicInteger();
+
+            new CloudPull(result).start(writes, pull -> started.incrementAndGet());
+
+            assertTrue(result.done.await(5, TimeUnit.SECONDS));
+            assertTrue(result.failure instanceof RejectedExecutionException);
+            assertEquals(0, started.get());
+        } finally {
+            release.countDown();
+            writes.shutdown();
+        }
+    }
+
+    @Test
+    public void startThatThrows_endsThePullWithItsFailure() throws Exception {
+        Result result = new Result();
+        IllegalStateException error = new IllegalStateException("no database");
+
+        new CloudPull(result).start(Runnable::run, pull -> {
+            throw error;
+        });
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertSame(error, result.failure);
+    }
+
+    @Test
+    public void bothLastPages_deliverTheRowsWrittenOnce_andALaterFailureIsDropped() throws Exception {
+        Result result = new Result();
+        IngestResult page = new IngestResult();
+        page.addInserted();
+        page.addSkipped();
+
+        new CloudPull(result).start(Runnable::run, pull -> {
+            pull.pageApplied(page, true);
+            pull.pageApplied(page, true);
+            pull.failed(new Exception("too late"));
+        });
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertNull(result.failure);
+        assertEquals(Integer.valueOf(2), result.written);
+        assertEquals(1, result.calls.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Result implements RepositoryCallback<Integer> {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        volatile Integer written;
+        volatile Exception failure;
+
+        @Override
+        public void onSuccess(Integer result) {
+            written = result;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failure = e;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FieldClockMergerTest {
+
+    private static final long NOW = 1_760_000_000_000L;
+
+    @Test
+    public void newerStamp_winsEachFieldOnItsOwn() {
+        long[] local = {10, 30, 20};
+        long[] remote = {20, 10, 20};
+
+        FieldClockMerger.Result merge = FieldClockMerger.merge(local, 0, remote);
+
+        assertEquals(0b101, merge.getRemoteFields());
+        // The local value of field 1 is newer than the cloud's, so it goes out again
+        assertEquals(0b010, merge.getDirtyFields());
+        assertArrayEquals(new long[]{20, 30, 20}, merge.getStamps());
+    }
+
+    @Test
+    public void equalStamps_keepAPendingLocalEdit() {
+        long[] unstamped = FieldClockMerger.unstamped(2);
+
+        FieldClockMerger.Result merge = FieldClockMerger.merge(unstamped, 0b01, unstamped);
+
+        assertEquals(0b10, merge.getRemoteFields());
+        assertEquals(0b01, merge.getDirtyFields());
+    }
+
+    @Test
+    public void pendingLocalEdit_losesToANewerRemoteEdit() {
+        FieldClockMerger.Result merge = FieldClockMerger.merge(new long[]{10}, 0b1, new long[]{11});
+
+        assertEquals(0b1, merge.getRemoteFields());
+        assertEquals(0, merge.getDirtyFields());
+    }
+
+    @Test
+    public void devices_convergeWhateverOrderTheyMerge() {
+        HybridLogicalClock tabletA = new HybridLogicalClock(1, () -> NOW);
+        HybridLogicalClock tabletB = new HybridLogicalClock(2, () -> NOW - 5_000);
+        long[] base = FieldClockMerger.unstamped(3);
+        // A edits fields 0 and 1, B edits fields 1 and 2, without seeing each other's edits
+        long[] a = FieldClockMerger.stamp(base, 0b011, tabletA.tick());
+        long[] b = FieldClockMerger.stamp(base, 0b110, tabletB.tick());
+
+        FieldClockMerger.Result atA = FieldClockMerger.merge(a, 0b011, b);
+        FieldClockMerger.Result atB = FieldClockMerger.merge(b, 0b110, a);
+
+        assertArrayEquals(atA.getStamps(), atB.getStamps());
+        // A's clock is ahead, so its edit of the shared field 1 wins on both tablets
+        assertEquals(0b100, atA.getRemoteFields());
+        assertEquals(0b011, atB.getRemoteFields());
+    }
+
+    @Test
+    public void stamp_setsOnlyTheEditedFields() {
+        assertArrayEquals(new long[]{1, 9, 3}, FieldClockMerger.stamp(new long[]{1, 2, 3}, 0b010, 9));
+        assertEquals(9, FieldClockMerger.latest(new long[]{1, 9, 3}));
+    }
+
+    @Test
+    public void blob_roundTrips() {
+        long[] stamps = {0, Long.MAX_VALUE, 42};
+
+        assertArrayEquals(stamps, FieldClockMerger.fromBlob(FieldClockMerger.toBlob(stamps), 3));
+        assertArrayEquals(new long[3], FieldClockMerger.fromBlob(null, 3));
+        // A row stamped before a field was added reads 0 for it
+        assertArrayEquals(new long[]{0, Long.MAX_VALUE, 0}, FieldClockMerger.fromBlob(FieldClockMerger.toBlob(
+                new long[]{0, Long.MAX_VALUE}), 3));
+    }
+}
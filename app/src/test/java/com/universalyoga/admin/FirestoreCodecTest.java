@@ -0,0 +1,185 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class FirestoreCodecTest {
+
+    private static final long TIME = 1_697_536_800_000L; // 2023-10-17 10:00:00 UTC
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @Test
+    public void course_roundTrips() {
+        Course course = new Course(7, "Morning Flow", "Tuesday", "10:00", 20, 60, 12.5,
+                "Flow Yoga", "Gentle", "Beginner", true, "Mat");
+
+        Course decoded = FirestoreCodec.decodeCourse("7", FirestoreCodec.encodeCourse(course, ChangedFields.ALL_COURSE));
+
+        assertEquals(ContentHash.of(course), ContentHash.of(decoded));
+        assertEquals(7, decoded.getId());
+    }
+
+    @Test
+    public void classInstance_roundTrips() {
+        ClassInstance instance = new ClassInstance(3, 7, new Date(TIME), "Ann", "Bring water", 5, true);
+
+        ClassInstance decoded = FirestoreCodec.decodeClassInstance("3",
+                FirestoreCodec.encodeClassInstance(instance, ChangedFields.ALL_CLASS_INSTANCE));
+
+        assertEquals(ContentHash.of(instance), ContentHash.of(decoded));
+    }
+
+    @Test
+    public void encode_includesOnlyTheMaskedFields() {
+        Map<String, Object> data = FirestoreCodec.encodeCourse(new Course(), ChangedFields.COURSE_PRICE);
+        assertEquals(1, data.size());
+        assertTrue(data.containsKey(FirestoreCodec.FIELD_PRICE));
+    }
+
+    @Test
+    public void stamps_travelWithTheirFields() {
+        long[] stamps = {11, 0, 33, 44, 55, 66};
+        Map<String, Object> data = FirestoreCodec.encodeClassInstance(
+                new ClassInstance(7, new Date(TIME), "Ann"), ChangedFields.INSTANCE_TEACHER | ChangedFields.INSTANCE_DATE);
+
+        FirestoreCodec.putClassInstanceStamps(data, stamps, ChangedFields.INSTANCE_TEACHER | ChangedFields.INSTANCE_DATE);
+
+        assertEquals(33L, data.get(FirestoreCodec.STAMP_PREFIX + FirestoreCodec.FIELD_TEACHER));
+        // The date was never stamped, so no stamp is written for it
+        assertFalse(data.containsKey(FirestoreCodec.STAMP_PREFIX + FirestoreCodec.FIELD_DATE));
+        assertArrayEquals(new long[]{0, 0, 33, 0, 0, 0}, FirestoreCodec.decodeClassInstanceStamps(data));
+    }
+
+    @Test
+    public void classInstance_readsReflectiveMapperNames() {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FirestoreCodec.FIELD_COURSE_ID, 7L);
+        data.put(FirestoreCodec.FIELD_DATE, new Date(TIME));
+        data.put("additionalComments", "Old comment");
+        data.put("cancelled", true);
+
+        ClassInstance decoded = FirestoreCodec.decodeClassInstance("3", data);
+
+        assertEquals("Old comment", decoded.getAdditionalComments());
+        assertTrue(decoded.isCancelled());
+        assertEquals(TIME, decoded.getDate().getTime());
+    }
+
+    @Test
+    public void date_readsEveryStoredShape() {
+        assertEquals(TIME, FirestoreCodec.date(TIME).getTime());
+        assertEquals(TIME, FirestoreCodec.date(new Date(TIME)).getTime());
+        assertEquals(TIME, FirestoreCodec.date("Tue Oct 17 10:00:00 GMT 2023").getTime());
+        assertEquals(TIME, FirestoreCodec.date("Tue Oct 17 11:00:00 GMT+01:00 2023").getTime());
+        assertEquals(TIME, FirestoreCodec.date("Tue Oct 17 11:00:00 BST 2023").getTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void classInstance_withoutDate_isRejected() {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FirestoreCodec.FIELD_COURSE_ID, 7L);
+        FirestoreCodec.decodeClassInstance("3", data);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void course_withInvalidId_isRejected() {
+        FirestoreCodec.decodeCourse("abc", new HashMap<>());
+    }
+
+    @Test
+    public void legacyDateParser_agreesWithSimpleDateFormat() throws Exception {
+        Random random = new Random(1);
+        String[] zones = {"UTC", "GMT", "GMT+05:30", "GMT-03:00", "Europe/London", "America/New_York"};
+        for (String zone : zones) {
+            SimpleDateFormat format = new SimpleDateFormat(LegacyDateParser.PATTERN, Locale.ENGLISH);
+            format.setTimeZone(TimeZone.getTimeZone(zone));
+            for (int i = 0; i < 200; i++) {
+                // Whole seconds between 1990 and 2060
+                long millis = (631_152_000L + (long) (random.nextDouble() * 2_208_988_800L)) * 1000;
+                String text = format.format(new Date(millis));
+
+                assertEquals(text, format.parse(text).getTime(), LegacyDateParser.parse(text));
+            }
+        }
+    }
+
+    @Test(expected = java.text.ParseException.class)
+    public void legacyDateParser_rejectsOtherText() throws Exception {
+        LegacyDateParser.parse("17/10/2023");
+    }
+
+    @Test(expected = java.text.ParseException.class)
+    public void legacyDateParser_rejectsADayPastTheEndOfTheMonth() throws Exception {
+        LegacyDateParser.parse("Wed Oct 32 10:00:00 GMT 2023");
+    }
+
+    @Test
+    public void legacyDateParser_rejectsImpossibleDates_inEveryZone() {
+        String[] texts = {"Wed Oct 32 10:00:00 GMT+01:00 2023", "Thu Feb 29 10:00:00 UTC 2023",
+                "Thu Apr 31 10:00:00 GMT 2024", "Wed Oct 32 10:00:00 BST 2023"};
+        for (String text : texts) {
+            try {
+                LegacyDateParser.parse(text);
+                fail("Parsed " + text);
+            } catch (java.text.ParseException expected) {
+                // Not rolled over into the next month
+            }
+        }
+    }
+
+    @Test
+    public void legacyDateParser_acceptsTheLastDayOfTheMonth() throws Exception {
+        assertEquals(1_709_200_800_000L, LegacyDateParser.parse("Thu Feb 29 10:00:00 GMT 2024"));
+        assertEquals(TIME + 14 * DAY, LegacyDateParser.parse("Tue Oct 31 10:00:00 GMT 2023"));
+    }
+
+    @Test
+    public void decodeLegacyClassInstances_matchesADecodeBySimpleDateFormat() throws Exception {
+        String[] zones = {"GMT+01:00", "UTC", "GMT-05:30", "Europe/London"};
+        for (String zone : zones) {
+            SimpleDateFormat format = new SimpleDateFormat(LegacyDateParser.PATTERN, Locale.ENGLISH);
+            format.setTimeZone(TimeZone.getTimeZone(zone));
+            for (int i = 0; i < 500; i++) {
+                Map<String, Object> data = legacyDocument(i, format);
+
+                ClassInstance decoded = FirestoreCodec.decodeClassInstance(String.valueOf(i), data);
+                ClassInstance expected = decodeWithSimpleDateFormat(String.valueOf(i), data);
+
+                assertEquals(zone + " " + data, ContentHash.of(expected), ContentHash.of(decoded));
+                assertEquals(expected.getId(), decoded.getId());
+                assertEquals(expected.getDate(), decoded.getDate());
+            }
+        }
+    }
+
+    // A class instance document as old app versions wrote it, with a Date.toString() date an hour apart per index
+    private static Map<String, Object> legacyDocument(int i, SimpleDateFormat format) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FirestoreCodec.FIELD_COURSE_ID, (long) (i % 50));
+        data.put(FirestoreCodec.FIELD_TEACHER, "Teacher " + (i % 20));
+        data.put(FirestoreCodec.FIELD_DATE, format.format(new Date(TIME + i * 3_600_000L)));
+        data.put(FirestoreCodec.FIELD_COMMENTS, "Comment " + i);
+        data.put(FirestoreCodec.FIELD_AVAILABLE_SPOTS, 10L);
+        data.put(FirestoreCodec.FIELD_IS_CANCELLED, i % 7 == 0);
+        return data;
+    }
+
+    // The reference decode: every field read by hand, the date by a new SimpleDateFormat
+    private static ClassInstance decodeWithSimpleDateFormat(String id, Map<String, Object> data) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat(LegacyDateParser.PATTERN, Locale.ENGLISH);
+        return new ClassInstance(Long.parseLong(id), (Long) data.get(FirestoreCodec.FIELD_COURSE_ID),
+                format.parse((String) data.get(FirestoreCodec.FIELD_DATE)), (String) data.get(FirestoreCodec.FIELD_TEACHER),
+                (String) data.get(FirestoreCodec.FIELD_COMMENTS),
+                ((Long) data.get(FirestoreCodec.FIELD_AVAILABLE_SPOTS)).intValue(),
+                Boolean.TRUE.equals(data.get(FirestoreCodec.FIELD_IS_CANCELLED)));
+    }
+}
@@ -0,0 +1,170 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The pull pipeline run against InMemoryRemoteStore instead of Firestore.
+ */
+public class FirestoreSyncManagerTest {
+
+    private static final String COURSES = FirestoreSyncManager.COLLECTION_COURSES;
+
+    private final InMemoryRemoteStore store = new InMemoryRemoteStore();
+    private final FirestoreSyncManager syncManager = new FirestoreSyncManager(store);
+
+    @Test
+    public void fullPull_readsEveryPage() throws Exception {
+        for (int id = 1; id <= 250; id++) {
+            store.putDocument(COURSES, String.valueOf(id), course(id));
+        }
+
+        Pull pull = pullCourses(0, 100);
+
+        assertNull(pull.failure);
+        assertEquals(3, pull.pages.size());
+        assertTrue(pull.pages.get(2).isLastPage());
+        assertEquals(250, pull.changedCount());
+    }
+
+    @Test
+    public void fullPull_marksItsStartTime_notTheNewestStampOfALaterPage() throws Exception {
+        long start = System.currentTimeMillis();
+        for (int id = 1; id <= 250; id++) {
+            Map<String, Object> data = course(id);
+            // As if each page were written again while the one before it was read
+            data.put(FirestoreSyncManager.FIELD_UPDATED_AT, start + id * 60_000L);
+            store.putDocument(COURSES, String.valueOf(id), data);
+        }
+
+        Pull pull = pullCourses(0, 100);
+        long end = System.currentTimeMillis();
+
+        assertNull(pull.failure);
+        long mark = pull.pages.get(2).getHighWaterMark();
+        // Less the minute of overlap for writes still in flight
+        assertTrue("Mark " + mark, mark >= start - 60_000L && mark <= end - 60_000L);
+    }
+
+    @Test
+    public void incrementalPull_readsOnlyNewerWritesAndTombstones() throws Exception {
+        for (int id = 1; id <= 50; id++) {
+            Map<String, Object> old = course(id);
+            old.put(FirestoreSyncManager.FIELD_UPDATED_AT, 1_000L);
+            store.putDocument(COURSES, String.valueOf(id), old);
+        }
+        // One batch, so every write shares one stamp and the pages have to be told apart by ID
+        commit(WriteOp.set(COURSES, "51", course(51)), WriteOp.set(COURSES, "52", course(52)),
+                WriteOp.merge(COURSES, "7", course(7)), WriteOp.delete(COURSES, "8"));
+
+        Pull pull = pullCourses(1_000_000, 2);
+
+        assertNull(pull.failure);
+        assertEquals(3, pull.pages.size());
+        assertEquals(3, pull.changedCount());
+        assertEquals(Arrays.asList(8L), pull.pages.get(1).getDeletedIds());
+        assertTrue(pull.pages.get(2).getHighWaterMark() > 1_000_000);
+    }
+
+    @Test
+    public void failingStore_reportsTheFailure() throws Exception {
+        store.putDocument(COURSES, "1", course(1));
+        store.setFailureRate(1, 42);
+
+        Pull pull = pullCourses(0, 100);
+
+        assertNotNull(pull.failure);
+        assertTrue(pull.pages.isEmpty());
+    }
+
+    @Test
+    public void fullExecutor_endsThePullWithAFailure() throws Exception {
+        for (int id = 1; id <= 250; id++) {
+            store.putDocument(COURSES, String.valueOf(id), course(id));
+        }
+        AtomicInteger accepted = new AtomicInteger();
+        // Takes the first page, then is full
+        Executor executor = work -> {
+            if (accepted.getAndIncrement() > 0) {
+                throw new RejectedExecutionException("full");
+            }
+            work.run();
+        };
+
+        Pull pull = new Pull();
+        syncManager.pullCourses(executor, 0, 100, pull);
+        assertTrue(pull.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, pull.pages.size());
+        assertTrue(pull.failure instanceof RejectedExecutionException);
+    }
+
+    private Pull pullCourses(long highWaterMark, int pageSize) throws InterruptedException {
+        Pull pull = new Pull();
+        syncManager.pullCourses(Runnable::run, highWaterMark, pageSize, pull);
+        assertTrue(pull.done.await(5, TimeUnit.SECONDS));
+        return pull;
+    }
+
+    private void commit(WriteOp... ops) throws InterruptedException {
+        CountDownLatch committed = new CountDownLatch(1);
+        store.commit(Arrays.asList(ops), new RemoteStore.CommitCallback() {
+            @Override
+            public void onSuccess() {
+                committed.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                fail(e.toString());
+            }
+        });
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Map<String, Object> course(int id) {
+        Course course = new Course(id, "Course " + id, "Monday", "10:00", 20, 60, 10.0,
+                "Flow Yoga", null, "Beginner", false, null);
+        return new HashMap<>(FirestoreCodec.encodeCourse(course, ChangedFields.ALL_COURSE));
+    }
+
+    private static class Pull implements FirestorePullCallback<Course> {
+        final List<PulledChanges<Course>> pages = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Exception failure;
+
+        @Override
+        public synchronized void onPage(PulledChanges<Course> page) {
+            pages.add(page);
+            if (page.isLastPage()) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failure = e;
+            done.countDown();
+        }
+
+        synchronized int changedCount() {
+            int count = 0;
+            for (PulledChanges<Course> page : pages) {
+                count += page.getChanged().size();
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class FullTextSearchTest {
+
+    private static final double[] WEIGHTS = {4.0, 1.0, 2.0, 2.0, 0.5};
+
+    @Test
+    public void toMatchQuery_quotesEveryWordAsPrefix() {
+        assertEquals("\"ann*\" \"yin*\"", FullTextSearch.toMatchQuery("  ann, yin! "));
+    }
+
+    @Test
+    public void toMatchQuery_neutralisesOperatorsAndSyntax() {
+        assertEquals("\"OR*\" \"NOT*\" \"x*\"", FullTextSearch.toMatchQuery("OR \"NOT\" x*"));
+    }
+
+    @Test
+    public void toMatchQuery_returnsNullWithoutWords() {
+        assertNull(FullTextSearch.toMatchQuery(null));
+        assertNull(FullTextSearch.toMatchQuery(" -*\" "));
+    }
+
+    @Test
+    public void score_teacherHitOutranksDescriptionHit() {
+        // One phrase, five columns, 100 rows; 10 rows contain the term
+        byte[] teacherHit = matchInfo(1, 5, 100, new int[][]{{1, 10, 10}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}});
+        byte[] descriptionHit = matchInfo(1, 5, 100, new int[][]{{0, 0, 0}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}, {1, 10, 10}});
+
+        assertTrue(FullTextSearch.score(teacherHit, WEIGHTS) > FullTextSearch.score(descriptionHit, WEIGHTS));
+    }
+
+    @Test
+    public void score_rareTermOutranksCommonTerm() {
+        byte[] rare = matchInfo(1, 5, 100, new int[][]{{1, 2, 2}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}});
+        byte[] common = matchInfo(1, 5, 100, new int[][]{{1, 90, 90}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}});
+
+        assertTrue(FullTextSearch.score(rare, WEIGHTS) > FullTextSearch.score(common, WEIGHTS));
+    }
+
+    @Test
+    public void score_isZeroWithoutHits() {
+        byte[] none = matchInfo(1, 5, 100, new int[][]{{0, 3, 3}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}});
+        assertEquals(0.0, FullTextSearch.score(none, WEIGHTS), 0.0);
+    }
+
+    @Test
+    public void scorer_scoresEveryRowOfAQueryAsScoreDoes() {
+        byte[] first = matchInfo(1, 5, 100, new int[][]{{1, 10, 10}, {0, 4, 3}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}});
+        byte[] second = matchInfo(1, 5, 100, new int[][]{{0, 10, 10}, {3, 4, 3}, {0, 0, 0}, {0, 0, 0}, {0, 0, 0}});
+        FullTextSearch.Scorer scorer = new FullTextSearch.Scorer(WEIGHTS);
+
+        assertEquals(FullTextSearch.score(first, WEIGHTS), scorer.score(first), 1e-12);
+        assertEquals(FullTextSearch.score(second, WEIGHTS), scorer.score(second), 1e-12);
+    }
+
+    @Test
+    public void narrows_whenEveryEarlierWordIsExtended() {
+        assertTrue(FullTextSearch.narrows("ann", "anna"));
+        assertTrue(FullTextSearch.narrows("ann", "Ann yin"));
+        assertTrue(FullTextSearch.narrows("yin ann", "anna yin"));
+        assertFalse(FullTextSearch.narrows("anna", "ann"));
+        assertFalse(FullTextSearch.narrows("ann yin", "ann"));
+        assertFalse(FullTextSearch.narrows("", "ann"));
+    }
+
+    @Test
+    public void matches_likeTheSimpleTokenizer() {
+        String text = "Anna Smith Bring a mat Yin Yoga";
+        assertTrue(FullTextSearch.matches(text, "ann yin"));
+        assertTrue(FullTextSearch.matches(text, "YOGA"));
+        assertFalse(FullTextSearch.matches(text, "nna"));
+        assertFalse(FullTextSearch.matches(text, "ann flow"));
+        // Non-ASCII characters are part of words, and only ASCII letters fold case
+        assertTrue(FullTextSearch.matches("O\u2019Brien", "o"));
+        assertFalse(FullTextSearch.matches("O\u2019Brien", "brien"));
+        assertFalse(FullTextSearch.matches("\u00c9lise", "\u00e9lise"));
+    }
+
+    private static byte[] matchInfo(int phrases, int columns, int rows, int[][] hits) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (3 + 3 * hits.length)).order(ByteOrder.nativeOrder());
+        buffer.putInt(phrases).putInt(columns).putInt(rows);
+        for (int[] hit : hits) {
+            for (int value : hit) {
+                buffer.putInt(value);
+            }
+        }
+        return buffer.array();
+    }
+}
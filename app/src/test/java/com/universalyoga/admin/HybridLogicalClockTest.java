@@ -0,0 +1,65 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HybridLogicalClockTest {
+
+    private static final long NOW = 1_760_000_000_000L;
+
+    @Test
+    public void stamp_holdsTimeAndNode() {
+        HybridLogicalClock clock = new HybridLogicalClock(321, () -> NOW);
+
+        long stamp = clock.tick();
+
+        assertEquals(NOW, HybridLogicalClock.timeOf(stamp));
+        assertEquals(321, HybridLogicalClock.nodeOf(stamp));
+    }
+
+    @Test
+    public void ticks_increaseWhileTheClockStandsStillOrGoesBack() {
+        AtomicLong time = new AtomicLong(NOW);
+        HybridLogicalClock clock = new HybridLogicalClock(1, time::get);
+
+        long previous = clock.tick();
+        for (int i = 0; i < 2_000; i++) {
+            if (i == 1_000) {
+                time.set(NOW - 3_600_000);
+            }
+            long stamp = clock.tick();
+            assertTrue(stamp > previous);
+            previous = stamp;
+        }
+    }
+
+    @Test
+    public void observe_movesPastAStampFromADeviceAhead() {
+        HybridLogicalClock ahead = new HybridLogicalClock(1, () -> NOW + 60_000);
+        HybridLogicalClock behind = new HybridLogicalClock(2, () -> NOW);
+
+        long remote = ahead.tick();
+        long local = behind.observe(remote);
+
+        assertTrue(local > remote);
+        assertTrue(behind.tick() > local);
+        // The time part follows the stamp it saw rather than the slow wall clock
+        assertEquals(NOW + 60_000, HybridLogicalClock.timeOf(local));
+    }
+
+    @Test
+    public void concurrentStamps_areOrderedByNode() {
+        long first = new HybridLogicalClock(1, () -> NOW).tick();
+        long second = new HybridLogicalClock(2, () -> NOW).tick();
+
+        assertTrue(second > first);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void node_mustFitInItsBits() {
+        new HybridLogicalClock(-1, () -> NOW);
+    }
+}
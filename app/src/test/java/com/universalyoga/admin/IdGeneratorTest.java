@@ -0,0 +1,103 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class IdGeneratorTest {
+
+    private static final long NOW = 1_760_000_000_000L;
+
+    @Test
+    public void id_holdsTimeAndNode() {
+        IdGenerator generator = new IdGenerator(1234, () -> NOW);
+
+        long id = generator.nextId();
+
+        assertTrue(id > 0);
+        assertEquals(NOW, IdGenerator.timeOf(id));
+        assertEquals(1234, IdGenerator.nodeOf(id));
+    }
+
+    @Test
+    public void ids_increaseWithinAMillisecondAndPastItsSequence() {
+        IdGenerator generator = new IdGenerator(IdGenerator.MAX_NODE, () -> NOW);
+
+        long previous = generator.nextId();
+        for (int i = 0; i < 2_000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > previous);
+            assertEquals(IdGenerator.MAX_NODE, IdGenerator.nodeOf(id));
+            previous = id;
+        }
+        // 512 IDs per millisecond, so the generator ran a few milliseconds ahead of the stopped clock
+        assertEquals(NOW + 3, IdGenerator.timeOf(previous));
+    }
+
+    @Test
+    public void clockGoingBack_neverRepeatsAnId() {
+        AtomicLong clock = new AtomicLong(NOW);
+        IdGenerator generator = new IdGenerator(7, clock::get);
+
+        long before = generator.nextId();
+        clock.set(NOW - 60_000);
+        long after = generator.nextId();
+
+        assertTrue(after > before);
+    }
+
+    @Test
+    public void advancePast_continuesAfterAnEarlierRun() {
+        long earlier = new IdGenerator(7, () -> NOW + 60_000).nextId();
+        IdGenerator generator = new IdGenerator(7, () -> NOW);
+
+        generator.advancePast(earlier);
+
+        assertTrue(generator.nextId() > earlier);
+    }
+
+    @Test
+    public void generators_onDifferentNodes_neverCollide() {
+        Set<Long> ids = new HashSet<>();
+        IdGenerator first = new IdGenerator(1, () -> NOW);
+        IdGenerator second = new IdGenerator(2, () -> NOW);
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(ids.add(first.nextId()));
+            assertTrue(ids.add(second.nextId()));
+        }
+    }
+
+    @Test
+    public void concurrentCallers_getUniqueIds() throws Exception {
+        IdGenerator generator = new IdGenerator(42, System::currentTimeMillis);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    ids.add(generator.nextId());
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80_000, ids.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void node_mustFitInItsBits() {
+        new IdGenerator(IdGenerator.MAX_NODE + 1, System::currentTimeMillis);
+    }
+}
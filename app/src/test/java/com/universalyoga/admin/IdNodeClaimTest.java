@@ -0,0 +1,54 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class IdNodeClaimTest {
+
+    private final InMemoryRemoteStore store = new InMemoryRemoteStore();
+
+    @Test
+    public void freeNode_isClaimed_andStaysTheClaimersOwn() throws Exception {
+        assertTrue(new IdNodeClaim(store).claim(42, "phone"));
+
+        assertTrue(new IdNodeClaim(store).claim(42, "phone"));
+        assertFalse(new IdNodeClaim(store).claim(42, "tablet"));
+        assertEquals("phone", store.getDocument(IdNodeClaim.COLLECTION_ID_NODES, "42").get(IdNodeClaim.FIELD_INSTALLATION));
+    }
+
+    @Test
+    public void claimMadeWhileReading_winsOverTheLaterOne() throws Exception {
+        AtomicBoolean claimed = new AtomicBoolean();
+        // The tablet claims the node between the phone's read and its commit
+        InMemoryRemoteStore racing = new InMemoryRemoteStore() {
+            @Override
+            public void fetchDocuments(String collection, List<String> documentIds, PageCallback callback) {
+                super.fetchDocuments(collection, documentIds, new PageCallback() {
+                    @Override
+                    public void onSuccess(List<RemoteDocument> documents) {
+                        if (claimed.compareAndSet(false, true)) {
+                            putDocument(IdNodeClaim.COLLECTION_ID_NODES, "42", Collections.<String, Object>singletonMap(
+                                    IdNodeClaim.FIELD_INSTALLATION, "tablet"));
+                        }
+                        callback.onSuccess(documents);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        callback.onFailure(e);
+                    }
+                });
+            }
+        };
+
+        assertFalse(new IdNodeClaim(racing).claim(42, "phone"));
+        Map<String, Object> claim = racing.getDocument(IdNodeClaim.COLLECTION_ID_NODES, "42");
+        assertEquals("tablet", claim.get(IdNodeClaim.FIELD_INSTALLATION));
+    }
+}
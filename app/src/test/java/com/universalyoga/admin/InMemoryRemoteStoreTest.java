@@ -0,0 +1,173 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class InMemoryRemoteStoreTest {
+
+    private static final String COLLECTION = "class_instances";
+
+    @Test
+    public void failures_repeatWithTheSameSeed() throws Exception {
+        assertEquals(failurePattern(7), failurePattern(7));
+        assertNotEquals(failurePattern(7), failurePattern(8));
+    }
+
+    @Test
+    public void throughputLimit_makesRequestsWaitForTheirDocuments_andQueueOnTheLink() throws Exception {
+        StoppedClock clock = new StoppedClock();
+        InMemoryRemoteStore store = new InMemoryRemoteStore(5, clock).setThroughput(1_000);
+
+        assertTrue(commit(store, writes(200)));
+        assertTrue(commit(store, writes(1)));
+        fetchAll(store);
+
+        // 200 documents at 1,000 per second plus the round trip; then, with the clock stopped, the link is
+        // still busy, so the next commit and the fetch of all 200 documents queue behind it
+        assertEquals(Arrays.asList(205L, 206L, 406L), clock.sleeps);
+    }
+
+    @Test
+    public void withoutALimit_requestsWaitOnlyForTheRoundTrip() throws Exception {
+        StoppedClock clock = new StoppedClock();
+        InMemoryRemoteStore store = new InMemoryRemoteStore(5, clock);
+
+        assertTrue(commit(store, writes(200)));
+        assertTrue(commit(store, writes(1)));
+
+        assertEquals(Arrays.asList(5L, 5L), clock.sleeps);
+    }
+
+    @Test
+    public void writes_areStampedAndDeletesLeaveTombstones() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        commit(store, Collections.singletonList(WriteOp.set(COLLECTION, "1", Collections.<String, Object>emptyMap())));
+        commit(store, Collections.singletonList(WriteOp.delete(COLLECTION, "1")));
+
+        assertEquals(true, store.getDocument(COLLECTION, "1").get(FirestoreSyncManager.FIELD_DELETED));
+        assertTrue(store.getDocument(COLLECTION, "1").get(FirestoreSyncManager.FIELD_UPDATED_AT) instanceof Long);
+    }
+
+    @Test
+    public void increments_addToMissingFieldsWithoutStamping() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        Map<String, Object> deltas = Collections.<String, Object>singletonMap("s1", 5L);
+        commit(store, Arrays.asList(WriteOp.increment(COLLECTION, "1", deltas), WriteOp.increment(COLLECTION, "1", deltas)));
+
+        assertEquals(10L, store.getDocument(COLLECTION, "1").get("s1"));
+        assertNull(store.getDocument(COLLECTION, "1").get(FirestoreSyncManager.FIELD_UPDATED_AT));
+    }
+
+    @Test
+    public void fetchWhereEqual_pagesThroughTheMatchesInIdOrder() throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        for (int i = 0; i < 10; i++) {
+            store.putDocument(COLLECTION, String.valueOf(i), Collections.<String, Object>singletonMap("bucket", (long) (i % 2)));
+        }
+
+        List<RemoteDocument> first = whereEqual(store, null);
+        List<RemoteDocument> second = whereEqual(store, first.get(first.size() - 1).getId());
+
+        assertEquals(Arrays.asList("1", "3", "5"), ids(first));
+        assertEquals(Arrays.asList("7", "9"), ids(second));
+    }
+
+    private static List<WriteOp> writes(int count) {
+        List<WriteOp> ops = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ops.add(WriteOp.set(COLLECTION, String.valueOf(i), Collections.<String, Object>singletonMap("value", i)));
+        }
+        return ops;
+    }
+
+    private static void fetchAll(InMemoryRemoteStore store) throws Exception {
+        CompletableFuture<List<RemoteDocument>> page = new CompletableFuture<>();
+        store.fetchPage(COLLECTION, null, 500, new RemoteStore.PageCallback() {
+            @Override
+            public void onSuccess(List<RemoteDocument> documents) {
+                page.complete(documents);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                page.completeExceptionally(e);
+            }
+        });
+        assertEquals(200, page.get().size());
+    }
+
+    // Never moves, and records each wait instead of sleeping
+    private static class StoppedClock implements InMemoryRemoteStore.Clock {
+        final List<Long> sleeps = new CopyOnWriteArrayList<>();
+
+        @Override
+        public long currentTimeMillis() {
+            return 1_000_000;
+        }
+
+        @Override
+        public void sleep(long millis) {
+            sleeps.add(millis);
+        }
+    }
+
+    private static List<RemoteDocument> whereEqual(InMemoryRemoteStore store, String afterId) throws Exception {
+        CompletableFuture<List<RemoteDocument>> page = new CompletableFuture<>();
+        store.fetchWhereEqual(COLLECTION, "bucket", 1L, afterId, 3, new RemoteStore.PageCallback() {
+            @Override
+            public void onSuccess(List<RemoteDocument> documents) {
+                page.complete(documents);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                page.completeExceptionally(e);
+            }
+        });
+        return page.get();
+    }
+
+    private static List<String> ids(List<RemoteDocument> documents) {
+        List<String> ids = new ArrayList<>();
+        for (RemoteDocument document : documents) {
+            ids.add(document.getId());
+        }
+        return ids;
+    }
+
+    // Which of 20 commits issued one after another fail at a 50% failure rate
+    private static List<Boolean> failurePattern(long seed) throws Exception {
+        InMemoryRemoteStore store = new InMemoryRemoteStore().setFailureRate(0.5, seed);
+        List<Boolean> pattern = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            pattern.add(commit(store, Collections.singletonList(
+                    WriteOp.set(COLLECTION, String.valueOf(i), Collections.<String, Object>emptyMap()))));
+        }
+        return pattern;
+    }
+
+    private static boolean commit(InMemoryRemoteStore store, List<WriteOp> ops) throws Exception {
+        CompletableFuture<Boolean> committed = new CompletableFuture<>();
+        store.commit(ops, new RemoteStore.CommitCallback() {
+            @Override
+            public void onSuccess() {
+                committed.complete(true);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                committed.complete(false);
+            }
+        });
+        return committed.get();
+    }
+}
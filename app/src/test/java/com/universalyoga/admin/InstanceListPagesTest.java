@@ -0,0 +1,79 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InstanceListPagesTest {
+
+    private static final int PAGE_SIZE = 2;
+
+    @Test
+    public void pages_followTheFirstRead_untilOneComesBackShort() {
+        InstanceListPages pages = new InstanceListPages(PAGE_SIZE);
+        pages.reloaded(rows(1, 2), PAGE_SIZE);
+
+        int ticket = pages.startLoadingMore();
+        assertEquals(2, pages.getLast().getId());
+        // Only one page loads at a time
+        assertEquals(-1, pages.startLoadingMore());
+        assertTrue(pages.pageLoaded(ticket, rows(3, 4)));
+        ticket = pages.startLoadingMore();
+        assertTrue(pages.pageLoaded(ticket, rows(5)));
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), ids(pages.getRows()));
+        assertFalse(pages.hasMore());
+        assertEquals(-1, pages.startLoadingMore());
+    }
+
+    @Test
+    public void pageRequestedBeforeARead_isDropped() {
+        InstanceListPages pages = new InstanceListPages(PAGE_SIZE);
+        pages.reloaded(rows(1, 2), PAGE_SIZE);
+        int ticket = pages.startLoadingMore();
+
+        // An edit made the observed query read the first rows again, which now hold the pages loaded so far
+        pages.reloaded(rows(1, 3), PAGE_SIZE);
+
+        assertFalse(pages.pageLoaded(ticket, rows(3, 4)));
+        assertEquals(Arrays.asList(1L, 3L), ids(pages.getRows()));
+        // The new rows can load their next page
+        assertEquals(3, pages.getLast().getId());
+        assertNotEquals(-1, pages.startLoadingMore());
+    }
+
+    @Test
+    public void failedPage_canBeAskedForAgain() {
+        InstanceListPages pages = new InstanceListPages(PAGE_SIZE);
+        pages.reloaded(rows(1, 2), PAGE_SIZE);
+
+        pages.pageFailed(pages.startLoadingMore());
+
+        int ticket = pages.startLoadingMore();
+        assertNotEquals(-1, ticket);
+        assertFalse(pages.pageLoaded(ticket, Collections.<ClassInstance>emptyList()));
+        assertFalse(pages.hasMore());
+    }
+
+    private static List<ClassInstance> rows(long... ids) {
+        List<ClassInstance> rows = new ArrayList<>();
+        for (long id : ids) {
+            rows.add(new ClassInstance(id, 1, new Date(id), "Anna", null, 20, false));
+        }
+        return rows;
+    }
+
+    private static List<Long> ids(List<ClassInstance> rows) {
+        List<Long> ids = new ArrayList<>();
+        for (ClassInstance row : rows) {
+            ids.add(row.getId());
+        }
+        return ids;
+    }
+}
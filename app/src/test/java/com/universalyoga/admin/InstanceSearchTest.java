@@ -0,0 +1,107 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InstanceSearchTest {
+
+    @Test
+    public void pages_followTheRankedIds() {
+        InstanceSearch search = new InstanceSearch("ann", new long[]{5, 3, 9});
+
+        assertArrayEquals(new long[]{5, 3}, search.nextPageIds(2));
+        search = page(search, 2, "Anna", "Annie");
+        assertTrue(search.hasMore());
+        assertFalse(search.isComplete());
+        assertArrayEquals(new long[]{9}, search.nextPageIds(2));
+        search = page(search, 2, "Ann");
+
+        assertFalse(search.hasMore());
+        assertTrue(search.isComplete());
+        assertEquals(3, search.getResults().size());
+        assertEquals(9, search.getResults().get(2).getId());
+    }
+
+    @Test
+    public void deletedRows_countAsLoaded() {
+        InstanceSearch search = new InstanceSearch("ann", new long[]{5, 3});
+        long[] pageIds = search.nextPageIds(10);
+
+        // Row 3 was deleted between ranking and reading
+        search = search.withPage(pageIds, Arrays.asList(instance(5, "Anna")), Arrays.asList("Anna"));
+
+        assertFalse(search.hasMore());
+        assertEquals(1, search.getResults().size());
+    }
+
+    @Test
+    public void narrowTo_filtersTheLoadedRows() {
+        InstanceSearch search = page(new InstanceSearch("an", new long[]{1, 2, 3}), 3, "Anna", "Andrew", "Annie");
+
+        InstanceSearch narrowed = search.narrowTo("ann");
+
+        assertTrue(narrowed.isProvisional());
+        assertTrue(narrowed.isComplete());
+        assertFalse(narrowed.hasMore());
+        assertEquals("ann", narrowed.getQuery());
+        assertEquals(Arrays.asList(1L, 3L), idsOf(narrowed));
+        assertEquals(Arrays.asList(1L), idsOf(narrowed.narrowTo("anna")));
+    }
+
+    @Test
+    public void narrowTo_ofAPartlyLoadedSearch_isNotComplete() {
+        InstanceSearch search = page(new InstanceSearch("an", new long[]{1, 2, 3}), 2, "Anna", "Andrew");
+
+        InstanceSearch narrowed = search.narrowTo("ann");
+
+        assertFalse(narrowed.isComplete());
+        assertFalse(narrowed.hasMore());
+        assertEquals(Arrays.asList(1L), idsOf(narrowed));
+    }
+
+    @Test
+    public void searchThatRankedOnlySomeMatches_isNotComplete_evenWhenAllRankedAreLoaded() {
+        InstanceSearch search = page(new InstanceSearch("an", new long[]{1, 2}, 5), 2, "Anna", "Andrew");
+
+        assertFalse(search.hasMore());
+        assertEquals(5, search.getMatchCount());
+        assertFalse(search.isComplete());
+        assertFalse(search.narrowTo("ann").isComplete());
+    }
+
+    @Test
+    public void narrowTo_aQueryThatWidens_returnsNull() {
+        InstanceSearch search = page(new InstanceSearch("ann", new long[]{1}), 1, "Anna");
+
+        assertNull(search.narrowTo("an"));
+        assertNull(search.narrowTo("bob"));
+    }
+
+    // Load the next page, with instances whose searchable text is the given teacher
+    private static InstanceSearch page(InstanceSearch search, int pageSize, String... teachers) {
+        long[] pageIds = search.nextPageIds(pageSize);
+        List<ClassInstance> page = new ArrayList<>();
+        for (int i = 0; i < pageIds.length; i++) {
+            page.add(instance(pageIds[i], teachers[i]));
+        }
+        return search.withPage(pageIds, page, Arrays.asList(teachers));
+    }
+
+    private static ClassInstance instance(long id, String teacher) {
+        return new ClassInstance(id, 1, new Date(0), teacher, null, 10, false);
+    }
+
+    private static List<Long> idsOf(InstanceSearch search) {
+        List<Long> ids = new ArrayList<>();
+        for (ClassInstance instance : search.getResults()) {
+            ids.add(instance.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,98 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InvalidationTrackerTest {
+
+    private static final String COURSES = "courses";
+    private static final String INSTANCES = "class_instances";
+
+    @Test
+    public void flush_notifiesOnlyObserversOfChangedTables() {
+        InvalidationTracker tracker = new InvalidationTracker();
+        List<InvalidationTracker.Invalidation> courses = observe(tracker, COURSES);
+        List<InvalidationTracker.Invalidation> instances = observe(tracker, INSTANCES);
+
+        tracker.rowChanged(COURSES, 7);
+        tracker.rowChanged(COURSES, 8);
+        tracker.flush();
+
+        assertEquals(1, courses.size());
+        assertTrue(courses.get(0).isRowChanged(COURSES, 8));
+        assertFalse(courses.get(0).isRowChanged(COURSES, 9));
+        assertTrue(instances.isEmpty());
+    }
+
+    @Test
+    public void nothingRecorded_notifiesNobody() {
+        InvalidationTracker tracker = new InvalidationTracker();
+        List<InvalidationTracker.Invalidation> courses = observe(tracker, COURSES);
+
+        tracker.flush();
+
+        assertTrue(courses.isEmpty());
+    }
+
+    @Test
+    public void manyRows_countAsTheWholeTable() {
+        InvalidationTracker tracker = new InvalidationTracker();
+        List<InvalidationTracker.Invalidation> courses = observe(tracker, COURSES);
+        List<Long> ids = new ArrayList<>();
+        for (long id = 0; id <= InvalidationTracker.MAX_TRACKED_ROWS; id++) {
+            ids.add(id);
+        }
+
+        tracker.rowsChanged(COURSES, ids);
+        tracker.rowChanged(COURSES, -1);
+        tracker.flush();
+
+        assertNull(courses.get(0).getRowIds(COURSES));
+        assertTrue(courses.get(0).isRowChanged(COURSES, 123_456));
+    }
+
+    @Test
+    public void changes_areKeptPerThread() throws Exception {
+        InvalidationTracker tracker = new InvalidationTracker();
+        List<InvalidationTracker.Invalidation> courses = observe(tracker, COURSES);
+        tracker.rowChanged(COURSES, 1);
+
+        // Another thread's write ends on its own and does not take this thread's open change with it
+        Thread other = new Thread(() -> {
+            tracker.rowChanged(COURSES, 2);
+            tracker.flush();
+        });
+        other.start();
+        other.join();
+        tracker.flush();
+
+        assertEquals(2, courses.size());
+        assertEquals(Arrays.asList(false, true), Arrays.asList(
+                courses.get(0).isRowChanged(COURSES, 1), courses.get(1).isRowChanged(COURSES, 1)));
+    }
+
+    @Test
+    public void removedObserver_isNotNotified() {
+        InvalidationTracker tracker = new InvalidationTracker();
+        List<InvalidationTracker.Invalidation> received = new ArrayList<>();
+        InvalidationTracker.Observer observer = received::add;
+        tracker.addObserver(observer, COURSES);
+        tracker.removeObserver(observer);
+
+        tracker.tableChanged(COURSES);
+        tracker.flush();
+
+        assertTrue(received.isEmpty());
+    }
+
+    private static List<InvalidationTracker.Invalidation> observe(InvalidationTracker tracker, String table) {
+        List<InvalidationTracker.Invalidation> received = new ArrayList<>();
+        tracker.addObserver(received::add, table);
+        return received;
+    }
+}
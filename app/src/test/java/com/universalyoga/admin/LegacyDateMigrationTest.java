@@ -0,0 +1,145 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LegacyDateMigrationTest {
+
+    private static final String INSTANCES = FirestoreSyncManager.COLLECTION_CLASS_INSTANCES;
+    private static final String MIGRATIONS = LegacyDateMigration.COLLECTION_MIGRATIONS;
+    private static final long TIME = 1_697_536_800_000L; // 2023-10-17 10:00:00 UTC
+    private static final String LEGACY_TIME = "Tue Oct 17 10:00:00 GMT 2023";
+
+    private final InMemoryRemoteStore store = new InMemoryRemoteStore();
+
+    @Test
+    public void run_rewritesOnlyLegacyDates() throws Exception {
+        store.putDocument(INSTANCES, "1", instance(LEGACY_TIME));
+        store.putDocument(INSTANCES, "2", instance(TIME));
+        Map<String, Object> tombstone = instance(LEGACY_TIME);
+        tombstone.put(FirestoreSyncManager.FIELD_DELETED, true);
+        store.putDocument(INSTANCES, "3", tombstone);
+        store.putDocument(INSTANCES, "4", instance("next Tuesday"));
+        store.putDocument(INSTANCES, "5", instance("Tue Oct 17 11:00:00 BST 2023"));
+
+        LegacyDateMigration.Result result = new LegacyDateMigration(store, 2).run();
+
+        assertEquals(5, result.getScanned());
+        assertEquals(2, result.getRewritten());
+        assertEquals(1, result.getUnreadable());
+        Map<String, Object> migrated = store.getDocument(INSTANCES, "1");
+        assertEquals(TIME, migrated.get(FirestoreCodec.FIELD_DATE));
+        assertEquals(FirestoreCodec.SCHEMA_VERSION, migrated.get(FirestoreCodec.FIELD_SCHEMA_VERSION));
+        assertEquals("Ann", migrated.get(FirestoreCodec.FIELD_TEACHER));
+        assertEquals(TIME, store.getDocument(INSTANCES, "5").get(FirestoreCodec.FIELD_DATE));
+        assertNull(store.getDocument(INSTANCES, "2").get(FirestoreCodec.FIELD_SCHEMA_VERSION));
+        assertTrue(store.getDocument(INSTANCES, "3").get(FirestoreCodec.FIELD_DATE) instanceof String);
+    }
+
+    @Test
+    public void rewrite_keepsTheWriteStamp_soOtherDevicesDoNotPullItAgain() throws Exception {
+        Map<String, Object> stamped = instance(LEGACY_TIME);
+        stamped.put(FirestoreSyncManager.FIELD_UPDATED_AT, 1_000L);
+        store.putDocument(INSTANCES, "1", stamped);
+
+        new LegacyDateMigration(store, 2).run();
+
+        Map<String, Object> migrated = store.getDocument(INSTANCES, "1");
+        assertEquals(TIME, migrated.get(FirestoreCodec.FIELD_DATE));
+        assertEquals(1_000L, migrated.get(FirestoreSyncManager.FIELD_UPDATED_AT));
+    }
+
+    @Test
+    public void run_continuesFromTheSharedCheckpoint() throws Exception {
+        for (int id = 1; id <= 4; id++) {
+            store.putDocument(INSTANCES, String.valueOf(id), instance(LEGACY_TIME));
+        }
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put(LegacyDateMigration.FIELD_AFTER_ID, "2");
+        store.putDocument(MIGRATIONS, LegacyDateMigration.DOCUMENT_ID, checkpoint);
+
+        LegacyDateMigration.Result result = new LegacyDateMigration(store, 2).run();
+
+        assertEquals(2, result.getScanned());
+        assertTrue(store.getDocument(INSTANCES, "2").get(FirestoreCodec.FIELD_DATE) instanceof String);
+        assertEquals(TIME, store.getDocument(INSTANCES, "3").get(FirestoreCodec.FIELD_DATE));
+    }
+
+    @Test
+    public void failedRun_keepsItsCheckpointAndCanBeRetried() throws Exception {
+        store.putDocument(INSTANCES, "1", instance(LEGACY_TIME));
+        store.failNextCommits(1);
+        LegacyDateMigration migration = new LegacyDateMigration(store, 2);
+
+        try {
+            migration.run();
+            fail("Expected the injected commit failure");
+        } catch (ExecutionException expected) {
+            assertFalse(migration.isDone());
+            assertNull(store.getDocument(MIGRATIONS, LegacyDateMigration.DOCUMENT_ID));
+        }
+
+        assertEquals(1, migration.run().getRewritten());
+        assertTrue(migration.isDone());
+    }
+
+    @Test
+    public void completedMigration_doesNotRunAgain_onAnyDevice() throws Exception {
+        new LegacyDateMigration(store, 2).run();
+        store.putDocument(INSTANCES, "1", instance(LEGACY_TIME));
+
+        // A new instance holds no local state, like another device or one whose database was reset
+        LegacyDateMigration elsewhere = new LegacyDateMigration(store, 2);
+        assertTrue(elsewhere.isDone());
+        assertEquals(0, elsewhere.run().getScanned());
+    }
+
+    @Test
+    public void editMadeWhileAPageIsRead_isKept() throws Exception {
+        AtomicBoolean edited = new AtomicBoolean();
+        // Another device moves class 1 by an hour right after the migration read the page
+        InMemoryRemoteStore editedMeanwhile = new InMemoryRemoteStore() {
+            @Override
+            public void fetchPage(String collection, String afterDocumentId, int limit, PageCallback callback) {
+                super.fetchPage(collection, afterDocumentId, limit, new PageCallback() {
+                    @Override
+                    public void onSuccess(List<RemoteDocument> documents) {
+                        if (edited.compareAndSet(false, true)) {
+                            putDocument(INSTANCES, "1", instance(TIME + 3_600_000L));
+                        }
+                        callback.onSuccess(documents);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        callback.onFailure(e);
+                    }
+                });
+            }
+        };
+        editedMeanwhile.putDocument(INSTANCES, "1", instance(LEGACY_TIME));
+        editedMeanwhile.putDocument(INSTANCES, "2", instance(LEGACY_TIME));
+
+        LegacyDateMigration.Result result = new LegacyDateMigration(editedMeanwhile, 5).run();
+
+        assertEquals(1, result.getConflicts());
+        assertEquals(1, result.getRewritten());
+        assertEquals(TIME + 3_600_000L, editedMeanwhile.getDocument(INSTANCES, "1").get(FirestoreCodec.FIELD_DATE));
+        assertEquals(TIME, editedMeanwhile.getDocument(INSTANCES, "2").get(FirestoreCodec.FIELD_DATE));
+    }
+
+    private static Map<String, Object> instance(Object date) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FirestoreCodec.FIELD_COURSE_ID, 7L);
+        data.put(FirestoreCodec.FIELD_TEACHER, "Ann");
+        data.put(FirestoreCodec.FIELD_DATE, date);
+        return data;
+    }
+}
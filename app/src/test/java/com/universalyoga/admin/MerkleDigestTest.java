@@ -0,0 +1,126 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class MerkleDigestTest {
+
+    private static final String COLLECTION = "courses";
+
+    @Test
+    public void bucketOf_spreadsIdsOverAllBuckets() {
+        boolean[] used = new boolean[MerkleDigest.LEAF_COUNT];
+        int distinct = 0;
+        for (long id = 1; id <= 20_000; id++) {
+            int bucket = MerkleDigest.bucketOf(String.valueOf(id));
+            assertTrue(bucket >= 0 && bucket < MerkleDigest.LEAF_COUNT);
+            if (!used[bucket]) {
+                used[bucket] = true;
+                distinct++;
+            }
+        }
+        // Close to every bucket, although the IDs are consecutive
+        assertTrue("Used " + distinct, distinct > MerkleDigest.LEAF_COUNT * 9 / 10);
+    }
+
+    @Test
+    public void contribution_isNeverZeroAndDependsOnTheContent() {
+        assertNotEquals(0, MerkleDigest.contribution("1", 0));
+        assertNotEquals(MerkleDigest.contribution("1", 42), MerkleDigest.contribution("1", 43));
+        assertNotEquals(MerkleDigest.contribution("1", 42), MerkleDigest.contribution("2", 42));
+    }
+
+    @Test
+    public void sumsAt_addsTheBucketsUnderEachNode() {
+        long[] leaves = new long[MerkleDigest.LEAF_COUNT];
+        leaves[0] = 1;
+        leaves[255] = 2;
+        leaves[256] = 4;
+
+        assertArrayEquals(new long[]{7}, MerkleDigest.sumsAt(leaves, 0));
+        assertEquals(3, MerkleDigest.sumsAt(leaves, 1)[0]);
+        assertEquals(4, MerkleDigest.sumsAt(leaves, 1)[1]);
+        assertEquals(leaves.length, MerkleDigest.sumsAt(leaves, MerkleDigest.DEPTH).length);
+    }
+
+    @Test
+    public void deltas_incrementTheStoredTreeLikeTheLocalSums() throws Exception {
+        long[] leaves = new long[MerkleDigest.LEAF_COUNT];
+        MerkleDigest.Deltas deltas = new MerkleDigest.Deltas();
+        for (long id = 1; id <= 50; id++) {
+            String documentId = String.valueOf(id);
+            long contribution = MerkleDigest.contribution(documentId, id * 31);
+            deltas.replace(COLLECTION, documentId, 0, contribution);
+            leaves[MerkleDigest.bucketOf(documentId)] += contribution;
+        }
+        InMemoryRemoteStore store = new InMemoryRemoteStore();
+        commit(store, deltas.toWriteOps());
+
+        for (int level = 0; level < MerkleDigest.DEPTH; level++) {
+            long[] children = MerkleDigest.sumsAt(leaves, level + 1);
+            for (int node = 0; node * MerkleDigest.FANOUT < children.length; node++) {
+                long[] expected = new long[MerkleDigest.FANOUT];
+                System.arraycopy(children, node * MerkleDigest.FANOUT, expected, 0, MerkleDigest.FANOUT);
+                Map<String, Object> stored = store.getDocument(MerkleDigest.COLLECTION_DIGESTS,
+                        MerkleDigest.nodeDocumentId(COLLECTION, level, node));
+                assertArrayEquals("Level " + level + ", node " + node, expected, MerkleDigest.readNode(stored));
+            }
+        }
+    }
+
+    @Test
+    public void deltas_ofAnEdit_moveOneNodePerLevel_andCancelOutWithItsUndo() {
+        MerkleDigest.Deltas deltas = new MerkleDigest.Deltas();
+        long before = MerkleDigest.contribution("7", 1);
+        long after = MerkleDigest.contribution("7", 2);
+        deltas.replace(COLLECTION, "7", before, after);
+
+        List<WriteOp> edit = deltas.toWriteOps();
+        assertEquals(MerkleDigest.DEPTH, edit.size());
+        for (WriteOp op : edit) {
+            assertEquals(WriteOp.Type.INCREMENT, op.getType());
+            assertEquals(Collections.<Object>singletonList(after - before), new ArrayList<>(op.getData().values()));
+        }
+
+        deltas.replace(COLLECTION, "7", after, before);
+
+        assertEquals(Collections.emptyList(), deltas.toWriteOps());
+    }
+
+    @Test
+    public void divergentChildren_listsTheDifferingPositions() {
+        long[] local = new long[MerkleDigest.FANOUT];
+        long[] remote = new long[MerkleDigest.FANOUT];
+        local[3] = 5;
+        remote[9] = 1;
+
+        List<Integer> divergent = MerkleDigest.divergentChildren(local, remote);
+
+        assertEquals(Arrays.asList(3, 9), divergent);
+        assertEquals(Collections.emptyList(), MerkleDigest.divergentChildren(local, local));
+    }
+
+    private static void commit(InMemoryRemoteStore store, List<WriteOp> ops) throws Exception {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        store.commit(ops, new RemoteStore.CommitCallback() {
+            @Override
+            public void onSuccess() {
+                committed.complete(null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                committed.completeExceptionally(e);
+            }
+        });
+        committed.get();
+    }
+}
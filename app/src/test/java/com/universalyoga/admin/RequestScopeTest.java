@@ -0,0 +1,45 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.*;
+
+public class RequestScopeTest {
+
+    @Test
+    public void cancel_cancelsPendingReads() {
+        RequestScope scope = new RequestScope();
+        FutureTask<String> pending = new FutureTask<>(() -> "never");
+        scope.trackRead(pending);
+
+        scope.cancel();
+
+        assertTrue(scope.isCancelled());
+        assertTrue(pending.isCancelled());
+    }
+
+    @Test
+    public void trackRead_afterCancel_cancelsImmediately() {
+        RequestScope scope = new RequestScope();
+        scope.cancel();
+
+        FutureTask<String> late = new FutureTask<>(() -> "never");
+        scope.trackRead(late);
+
+        assertTrue(late.isCancelled());
+    }
+
+    @Test
+    public void cancel_leavesFinishedReadsAlone() {
+        RequestScope scope = new RequestScope();
+        FutureTask<String> done = new FutureTask<>(() -> "done");
+        done.run();
+        scope.trackRead(done);
+
+        scope.cancel();
+
+        assertFalse(done.isCancelled());
+    }
+}
@@ -0,0 +1,108 @@
+package com.universalyoga.admin;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TeacherIndexTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long NOW = 1_000 * DAY;
+
+    @Test
+    public void suggest_findsAnyWordCaseInsensitively() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher("Anna Smith", 1, NOW);
+        index.addTeacher("Bob Jones", 1, NOW);
+
+        assertEquals(Collections.singletonList("Anna Smith"), index.suggest("an", 5, NOW));
+        assertEquals(Collections.singletonList("Anna Smith"), index.suggest("SMI", 5, NOW));
+        assertEquals(Collections.singletonList("Anna Smith"), index.suggest("anna  s", 5, NOW));
+        assertEquals(Collections.emptyList(), index.suggest("nna", 5, NOW));
+        assertEquals(Collections.emptyList(), index.suggest(" ", 5, NOW));
+    }
+
+    @Test
+    public void spellingsDifferingInCase_areOneTeacher_shownAsInTheirLatestClass() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher(" Anna  Smith ", 3, NOW);
+        index.addTeacher("anna smith", 1, NOW - DAY);
+
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList("Anna  Smith"), index.suggest("anna", 5, NOW));
+    }
+
+    @Test
+    public void blankNamesAndTeachersWithoutClasses_areLeftOut() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher("  ", 4, NOW);
+        index.addTeacher("Anna", 0, NOW);
+
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void suggest_ranksByClassesAndRecency() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher("Ann", 1, NOW);
+        index.addTeacher("Anne", 2, NOW);
+        // Many classes, but none for a year
+        index.addTeacher("Annette", 10, NOW - 365 * DAY);
+
+        assertEquals(Arrays.asList("Anne", "Ann", "Annette"), index.suggest("ann", 5, NOW));
+        assertEquals(Arrays.asList("Anne", "Ann"), index.suggest("ann", 2, NOW));
+    }
+
+    @Test
+    public void suggest_keepsTheBestOfManyMatches_tiesInNameOrder() {
+        TeacherIndex index = new TeacherIndex();
+        for (int i = 0; i < 100; i++) {
+            index.addTeacher(String.format("Teacher %03d", i), 1 + i % 10, NOW);
+        }
+
+        assertEquals(Arrays.asList("Teacher 009", "Teacher 019", "Teacher 029"), index.suggest("te", 3, NOW));
+    }
+
+    @Test
+    public void suggest_findsANameOnceWhenTwoOfItsWordsMatch() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher("Ann Annis", 1, NOW);
+
+        assertEquals(Collections.singletonList("Ann Annis"), index.suggest("ann", 5, NOW));
+    }
+
+    @Test
+    public void apply_movesAClassBetweenTeachers_andDropsATeacherLeftWithout() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher("Anna", 1, NOW);
+        index.addTeacher("Annette", 1, NOW);
+        TeacherIndex.Changes changes = new TeacherIndex.Changes();
+        changes.classRemoved("anna ");
+        changes.classAdded("Annette", NOW);
+
+        index.apply(changes);
+
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList("Annette"), index.suggest("ann", 5, NOW));
+    }
+
+    @Test
+    public void apply_addsANewTeacher_spelledAsInTheirLatestClass() {
+        TeacherIndex index = new TeacherIndex();
+        index.addTeacher("Anna", 3, NOW - 365 * DAY);
+        TeacherIndex.Changes changes = new TeacherIndex.Changes();
+        changes.classAdded("annabel lee", NOW - DAY);
+        changes.classAdded("Annabel Lee", NOW);
+        changes.classAdded("  ", NOW);
+
+        index.apply(changes);
+
+        assertEquals(2, index.size());
+        assertEquals(Collections.singletonList("Annabel Lee"), index.suggest("lee", 5, NOW));
+        // Two recent classes outweigh three from a year ago
+        assertEquals(Arrays.asList("Annabel Lee", "Anna"), index.suggest("ann", 5, NOW));
+    }
+}